@@ -0,0 +1,137 @@
+package eu.salusproject.common.triplestore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.GraphEvents;
+import com.hp.hpl.jena.graph.GraphListener;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * {@link GraphListener} which is registered on the graph of a named model and
+ * forwards its modifications to the {@link StoreChangeListener}s of the
+ * owning {@link JenaStore}.
+ */
+public class ChangeDispatcher implements GraphListener {
+
+	private final String ontologyURI;
+	private final List<StoreChangeListener> listeners;
+
+	/**
+	 * @param ontologyURI
+	 *            name of the model whose graph this dispatcher is registered
+	 *            on
+	 * @param listeners
+	 *            live list of listeners of the store, which may be modified
+	 *            after this dispatcher is created
+	 */
+	public ChangeDispatcher(String ontologyURI,
+			List<StoreChangeListener> listeners) {
+		this.ontologyURI = ontologyURI;
+		this.listeners = listeners;
+	}
+
+	public String getOntologyURI() {
+		return ontologyURI;
+	}
+
+	@Override
+	public void notifyAddTriple(Graph g, Triple t) {
+		added(Collections.singletonList(t));
+	}
+
+	@Override
+	public void notifyAddArray(Graph g, Triple[] triples) {
+		added(Arrays.asList(triples));
+	}
+
+	@Override
+	public void notifyAddList(Graph g, List<Triple> triples) {
+		added(triples);
+	}
+
+	@Override
+	public void notifyAddIterator(Graph g, Iterator<Triple> it) {
+		added(toList(it));
+	}
+
+	@Override
+	public void notifyAddGraph(Graph g, Graph added) {
+		added(added.find(Triple.ANY).toList());
+	}
+
+	@Override
+	public void notifyDeleteTriple(Graph g, Triple t) {
+		removed(Collections.singletonList(t));
+	}
+
+	@Override
+	public void notifyDeleteList(Graph g, List<Triple> triples) {
+		removed(triples);
+	}
+
+	@Override
+	public void notifyDeleteArray(Graph g, Triple[] triples) {
+		removed(Arrays.asList(triples));
+	}
+
+	@Override
+	public void notifyDeleteIterator(Graph g, Iterator<Triple> it) {
+		removed(toList(it));
+	}
+
+	@Override
+	public void notifyDeleteGraph(Graph g, Graph removed) {
+		removed(removed.find(Triple.ANY).toList());
+	}
+
+	@Override
+	public void notifyEvent(Graph source, Object value) {
+		if (!(value instanceof GraphEvents)) {
+			return;
+		}
+		GraphEvents event = (GraphEvents) value;
+		Triple pattern = null;
+		if (event.same(GraphEvents.removeAll)) {
+			pattern = Triple.ANY;
+		} else if ("remove".equals(event.getTitle())) {
+			pattern = event.getTriple();
+		}
+		if (pattern != null) {
+			for (StoreChangeListener listener : listeners) {
+				listener.patternRemoved(ontologyURI, pattern);
+			}
+		}
+	}
+
+	private void added(List<Triple> triples) {
+		if (triples.isEmpty()) {
+			return;
+		}
+		for (StoreChangeListener listener : listeners) {
+			listener.triplesAdded(ontologyURI, triples);
+		}
+	}
+
+	private void removed(List<Triple> triples) {
+		if (triples.isEmpty()) {
+			return;
+		}
+		for (StoreChangeListener listener : listeners) {
+			listener.triplesRemoved(ontologyURI, triples);
+		}
+	}
+
+	private static List<Triple> toList(Iterator<Triple> it) {
+		List<Triple> triples = new ArrayList<Triple>();
+		while (it.hasNext()) {
+			triples.add(it.next());
+		}
+		return triples;
+	}
+
+}
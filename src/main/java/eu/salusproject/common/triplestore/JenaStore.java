@@ -1,5 +1,7 @@
 package eu.salusproject.common.triplestore;
 
+import java.io.File;
+import java.util.Collection;
 import java.util.List;
 
 import com.hp.hpl.jena.graph.Graph;
@@ -7,6 +9,12 @@ import com.hp.hpl.jena.ontology.OntModel;
 import com.hp.hpl.jena.query.ReadWrite;
 import com.hp.hpl.jena.rdf.model.Model;
 
+import eu.salusproject.common.triplestore.feed.ChangeFeed;
+import eu.salusproject.common.triplestore.inference.InferenceConfig;
+import eu.salusproject.common.triplestore.io.DumpOptions;
+import eu.salusproject.common.triplestore.io.DumpReport;
+import eu.salusproject.common.triplestore.stats.GraphStatistics;
+
 /**
  * @author anil
  * 
@@ -14,10 +22,12 @@ import com.hp.hpl.jena.rdf.model.Model;
 public interface JenaStore {
 
 	/**
-	 * Creates and returns an empty named OWL_DL {@link OntModel} within this
-	 * {@link JenaStore}. The name of the model is the given URI. Apart from its
-	 * URI, any {@link String} can be given as the name of the created model. To
-	 * update a model, you need to first remove that model.
+	 * Creates and returns an empty named {@link OntModel} within this
+	 * {@link JenaStore}, by default OWL_DL as configured by
+	 * {@link #setInferenceConfig(String, InferenceConfig)}. The name of the
+	 * model is the given URI. Apart from its URI, any {@link String} can be
+	 * given as the name of the created model. To update a model, you need to
+	 * first remove that model.
 	 * 
 	 * @param ontologyURI
 	 * @return
@@ -44,8 +54,12 @@ public interface JenaStore {
 	/**
 	 * Creates and returns a named OWL_DL {@link OntModel} which is initialized
 	 * with the contents of the given ontologyFilePath. The serialization format
-	 * of the ontology is fiven with format (i.e. "RDF/XML", "TTL", "N3"). The
-	 * triples of this newly created model are added to the search index.
+	 * of the ontology is fiven with format (i.e. "RDF/XML", "TTL", "N3", or
+	 * {@link eu.salusproject.common.triplestore.io.BinaryRDF#FORMAT} for a
+	 * file written by
+	 * {@link eu.salusproject.common.triplestore.io.BinaryRDF#write(Model, File, boolean)}
+	 * ). The triples of this newly created model are added to the search
+	 * index.
 	 * 
 	 * @param ontologyURI
 	 * @param baseURI
@@ -78,6 +92,57 @@ public interface JenaStore {
 	 */
 	public OntModel getOntModel(String ontologyURI);
 
+	/**
+	 * Sets the {@link InferenceConfig} of the named model, or the default of
+	 * this {@link JenaStore} if ontologyURI is <code>null</code>. The
+	 * configuration is persisted. If it materializes a rule set, the
+	 * entailments of the model are kept in a companion graph which is
+	 * maintained as the model changes, and the {@link OntModel}s returned
+	 * for the model include them.
+	 * 
+	 * @param ontologyURI
+	 * @param config
+	 *            <code>null</code> restores the default of the store
+	 * @throws JenaStoreException
+	 */
+	public void setInferenceConfig(String ontologyURI, InferenceConfig config)
+			throws JenaStoreException;
+
+	/**
+	 * @param ontologyURI
+	 * @return the {@link InferenceConfig} which applies to the named model
+	 */
+	public InferenceConfig getInferenceConfig(String ontologyURI);
+
+	/**
+	 * Returns the materialized entailments of the named model, brought up to
+	 * date with its modifications. Returns <code>null</code> if the model
+	 * has no materialized rule set.
+	 * 
+	 * @param ontologyURI
+	 * @return
+	 */
+	public Model getInferredModel(String ontologyURI);
+
+	/**
+	 * Returns the statistics of the named model: its number of triples, the
+	 * number of triples per predicate and its numbers of distinct subjects
+	 * and objects. The statistics are maintained as the model changes.
+	 * Returns <code>null</code> if there is no such model.
+	 * 
+	 * @param ontologyURI
+	 * @return
+	 */
+	public GraphStatistics getStatistics(String ontologyURI);
+
+	/**
+	 * Returns the statistics of all named models of this {@link JenaStore}
+	 * added up.
+	 * 
+	 * @return
+	 */
+	public GraphStatistics getStatistics();
+
 	/**
 	 * Given the name, returns the {@link Model}. Returns <code>null</code> if
 	 * the there is no {@link Model} with the given ontologyURI.
@@ -103,6 +168,21 @@ public interface JenaStore {
 	 */
 	public List<String> listModels();
 
+	/**
+	 * Lists the names of the models within this {@link JenaStore} page by
+	 * page, in ascending order, without materializing all names.
+	 * 
+	 * @param prefix
+	 *            only names starting with the prefix are listed, can be null
+	 * @param cursor
+	 *            {@link ModelPage#getNextCursor()} of the previous page, or
+	 *            null for the first page
+	 * @param limit
+	 *            maximum number of names in the page, must be positive
+	 * @return
+	 */
+	public ModelPage listModels(String prefix, String cursor, int limit);
+
 	/**
 	 * Removes the {@link OntModel} with the given name (ontologyURI) from this
 	 * {@link JenaStore}. If the {@link OntModel} does not exists, this method
@@ -112,6 +192,16 @@ public interface JenaStore {
 	 */
 	public void removeModel(String ontologyURI);
 
+	/**
+	 * Removes the {@link OntModel}s with the given names from this
+	 * {@link JenaStore} in batches, which is much faster than removing them
+	 * one by one. Names of models which do not exist are ignored.
+	 * 
+	 * @param ontologyURIs
+	 * @return the number of removed models
+	 */
+	public int removeModels(Collection<String> ontologyURIs);
+
 	/**
 	 * Begin a READ or WRITE transaction on this {@link JenaStore}.
 	 * 
@@ -174,6 +264,39 @@ public interface JenaStore {
 	 */
 	public void remove() throws JenaStoreException;
 
+	/**
+	 * Exports all named models of this {@link JenaStore} as N-Quads into the
+	 * given directory. Models are streamed from the store and exported in
+	 * parallel as configured by the given {@link DumpOptions}.
+	 * 
+	 * @param targetDirectory
+	 * @param options
+	 * @return the written files and the throughput of the export
+	 * @throws JenaStoreException
+	 */
+	public DumpReport dump(File targetDirectory, DumpOptions options)
+			throws JenaStoreException;
+
+	/**
+	 * Registers a {@link StoreChangeListener} which is notified of the
+	 * modifications on the named models of this {@link JenaStore}.
+	 * 
+	 * @param listener
+	 */
+	public void addChangeListener(StoreChangeListener listener);
+
+	public void removeChangeListener(StoreChangeListener listener);
+
+	/**
+	 * Returns the change data capture feed of this {@link JenaStore}, which is
+	 * created on first use. Subscribers of the feed receive the modifications
+	 * on the named models in batches, without slowing down the writers.
+	 * 
+	 * @return
+	 * @throws JenaStoreException
+	 */
+	public ChangeFeed getChangeFeed() throws JenaStoreException;
+
 	/**
 	 * This method is only required by VirtuosoStore related query operations
 	 * through the index of Virtuoso.
@@ -0,0 +1,60 @@
+package eu.salusproject.common.triplestore;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Page of the names of the models of a {@link JenaStore}, as listed by
+ * {@link JenaStore#listModels(String, String, int)}. Names are listed in
+ * ascending order, and the cursor of the next page is the last name of this
+ * page, so that pages remain consistent while models are added or removed.
+ */
+public class ModelPage {
+
+	private final List<String> names;
+	private final String nextCursor;
+
+	public ModelPage(List<String> names, String nextCursor) {
+		this.names = Collections.unmodifiableList(names);
+		this.nextCursor = nextCursor;
+	}
+
+	/**
+	 * Creates the page of the given names, which have been listed with one
+	 * name more than the limit to find out whether there is a next page.
+	 * 
+	 * @param names
+	 *            up to limit + 1 names in ascending order
+	 * @param limit
+	 *            must be positive
+	 * @return
+	 */
+	public static ModelPage of(List<String> names, int limit) {
+		if (limit <= 0) {
+			throw new IllegalArgumentException(String.format(
+					"The limit of a page must be positive: %d", limit));
+		}
+		if (names.size() <= limit) {
+			return new ModelPage(names, null);
+		}
+		List<String> page = names.subList(0, limit);
+		return new ModelPage(page, page.get(limit - 1));
+	}
+
+	public List<String> getNames() {
+		return names;
+	}
+
+	/**
+	 * @return the cursor from which the next page is listed, or
+	 *         <code>null</code> if this is the last page
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	public boolean hasNext() {
+		return nextCursor != null;
+	}
+
+}
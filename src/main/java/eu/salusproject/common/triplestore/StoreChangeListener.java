@@ -0,0 +1,58 @@
+package eu.salusproject.common.triplestore;
+
+import java.util.List;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+
+/**
+ * Receives the modifications on the named models of a {@link JenaStore}.
+ * Statement level notifications are delivered synchronously on the thread
+ * which modifies the model, hence implementations should return quickly.
+ */
+public interface StoreChangeListener {
+
+	/**
+	 * Called after a named model has been added to the store.
+	 * 
+	 * @param ontologyURI
+	 * @param model
+	 *            the persisted model
+	 */
+	public void modelAdded(String ontologyURI, Model model);
+
+	/**
+	 * Called after a named model has been removed from the store.
+	 * 
+	 * @param ontologyURI
+	 */
+	public void modelRemoved(String ontologyURI);
+
+	/**
+	 * Called after triples have been added to a named model.
+	 * 
+	 * @param ontologyURI
+	 * @param triples
+	 */
+	public void triplesAdded(String ontologyURI, List<Triple> triples);
+
+	/**
+	 * Called after triples have been removed from a named model.
+	 * 
+	 * @param ontologyURI
+	 * @param triples
+	 */
+	public void triplesRemoved(String ontologyURI, List<Triple> triples);
+
+	/**
+	 * Called after all triples matching the given pattern have been removed
+	 * from a named model. The pattern may contain {@link Node#ANY}, e.g.
+	 * {@link Triple#ANY} when the model has been cleared.
+	 * 
+	 * @param ontologyURI
+	 * @param pattern
+	 */
+	public void patternRemoved(String ontologyURI, Triple pattern);
+
+}
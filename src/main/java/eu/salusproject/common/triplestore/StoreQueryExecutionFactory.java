@@ -0,0 +1,48 @@
+package eu.salusproject.common.triplestore;
+
+import virtuoso.jena.driver.VirtGraph;
+import virtuoso.jena.driver.VirtuosoQueryExecutionFactory;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+import eu.salusproject.common.triplestore.tdb.TDBStore;
+import eu.salusproject.common.triplestore.virtuoso.VirtuosoStore;
+
+/**
+ * Creates the {@link QueryExecution} of a SPARQL query over the named models
+ * of a {@link JenaStore}: on the TDB dataset of a {@link TDBStore}, on the
+ * server of a {@link VirtuosoStore}, or on an in-memory dataset assembled
+ * from the models of any other store.
+ */
+public class StoreQueryExecutionFactory {
+
+	private StoreQueryExecutionFactory() {
+	}
+
+	/**
+	 * @param store
+	 * @param query
+	 * @return
+	 */
+	public static QueryExecution create(JenaStore store, Query query) {
+		if (store instanceof TDBStore) {
+			return QueryExecutionFactory.create(query,
+					((TDBStore) store).getDataset());
+		} else if (store instanceof VirtuosoStore) {
+			return VirtuosoQueryExecutionFactory.create(query,
+					(VirtGraph) store.getGraph());
+		}
+		Dataset dataset = DatasetFactory.create(ModelFactory
+				.createDefaultModel());
+		for (String uri : store.listModels()) {
+			dataset.addNamedModel(uri, store.getModel(uri));
+		}
+		return QueryExecutionFactory.create(query, dataset);
+	}
+
+}
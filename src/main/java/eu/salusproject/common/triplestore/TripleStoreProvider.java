@@ -1,23 +1,66 @@
 package eu.salusproject.common.triplestore;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.hp.hpl.jena.shared.JenaException;
 
+import eu.salusproject.common.triplestore.governor.GovernedStore;
+import eu.salusproject.common.triplestore.governor.GovernorPolicy;
+import eu.salusproject.common.triplestore.governor.Priority;
+import eu.salusproject.common.triplestore.governor.StoreGovernor;
+import eu.salusproject.common.triplestore.io.DumpOptions;
+import eu.salusproject.common.triplestore.io.DumpReport;
+import eu.salusproject.common.triplestore.shard.HashShardStrategy;
+import eu.salusproject.common.triplestore.shard.ShardRebalancer;
+import eu.salusproject.common.triplestore.shard.ShardStrategy;
+import eu.salusproject.common.triplestore.shard.ShardedStore;
+import eu.salusproject.common.triplestore.tdb.CompactionReport;
+import eu.salusproject.common.triplestore.tdb.StoreBackup;
+import eu.salusproject.common.triplestore.tdb.TDBCompactor;
+import eu.salusproject.common.triplestore.tdb.TDBReplica;
 import eu.salusproject.common.triplestore.tdb.TDBStore;
+import eu.salusproject.common.triplestore.tdb.TDBStoreProfile;
+import eu.salusproject.common.triplestore.trace.StartupTrace;
 import eu.salusproject.common.triplestore.virtuoso.VirtuosoStore;
 
 public class TripleStoreProvider {
 
 	private static final String TDB_STORES_DIR = "stores/tdb/";
 	private static final String VIRTUOSO_STORES_DIR = "stores/virtuoso/";
+	private static final String SHARDED_STORES_DIR = "stores/sharded/";
+
+	private static final String SHARDS_FILE = "shards.properties";
+	private static final String SHARD_SUFFIX = ".shard-";
+	private static final String TDB_SHARD_PREFIX = "tdb:";
+	private static final String VIRTUOSO_SHARD_PREFIX = "virtuoso:";
+
+	private static final String COMPACTION_SUFFIX = ".compacting";
+	private static final String SWAPPED_SUFFIX = ".swapped";
+	private static final String REPLICA_SUFFIX = ".replica-";
+
+	public static final String STARTUP_REPORT_FILE = "stores/startup-trace.json";
 
 	public static final String DefaultTDBStoreName = "default";
 
@@ -33,16 +76,38 @@ public class TripleStoreProvider {
 
 	private Map<String, TDBStore> tdbStores;
 	private Map<String, VirtuosoStore> virtuosoStores;
+	private Map<String, ShardedStore> shardedStores;
+	private Map<String, List<TDBReplica>> tdbReplicas = new ConcurrentHashMap<String, List<TDBReplica>>();
+	private AtomicInteger readCounter = new AtomicInteger();
+	/**
+	 * Names of the TDBStores whose compacted copy is being swapped in, looked
+	 * up by {@link #lookupTDBStore(String)} once the swap is over
+	 */
+	private final Set<String> swappingTDBStores = new HashSet<String>();
+	private Map<String, StoreGovernor> governors = new HashMap<String, StoreGovernor>();
+	private volatile GovernorPolicy governorPolicy = new GovernorPolicy();
+	private final StartupTrace startupTrace = new StartupTrace();
 
 	private TripleStoreProvider() throws JenaStoreException {
 		initDirectory(TDB_STORES_DIR);
 		initDirectory(VIRTUOSO_STORES_DIR);
+		initDirectory(SHARDED_STORES_DIR);
 		initializeTDBStores();
 		initializeVirtuosoStores();
+		initializeShardedStores();
+		startupTrace.finish();
+		try {
+			startupTrace.writeReport(new File(STARTUP_REPORT_FILE));
+		} catch (IOException e) {
+			logger.warn("Cannot write the startup report to {}",
+					STARTUP_REPORT_FILE, e);
+		}
+		startupTrace.register();
 	}
 
 	private void initDirectory(String path) {
 		File f = new File(path);
+		StartupTrace.Phase phase = startupTrace.begin(path, "mkdir");
 		try {
 			FileUtils.forceMkdir(f);
 		} catch (IOException e) {
@@ -52,16 +117,56 @@ public class TripleStoreProvider {
 			throw new IllegalStateException(
 					"Error during the creation of the stores directory", e);
 		}
+		phase.end();
 		logger.info("X_STORES_DIR created to persist JenaStores at {}",
 				f.getAbsolutePath());
 
 	}
 
 	private void initializeTDBStores() throws JenaStoreException {
-		tdbStores = new HashMap<String, TDBStore>();
+		tdbStores = new ConcurrentHashMap<String, TDBStore>();
 		File storesDir = new File(TDB_STORES_DIR);
+		StartupTrace.Phase phase = startupTrace.begin(TDB_STORES_DIR,
+				"recover");
+		recoverInterruptedCompactions(storesDir);
+		phase.end();
+		String[] fnames = storesDir.list();
+		Arrays.sort(fnames);
+		for (String fname : fnames) {
+			int replicaIndex = fname.lastIndexOf(REPLICA_SUFFIX);
+			if (replicaIndex < 0) {
+				createTDBStore(fname);
+			} else if (tdbStores.containsKey(fname.substring(0, replicaIndex))) {
+				openTDBReplica(fname.substring(0, replicaIndex), fname);
+			}
+		}
+	}
+
+	/**
+	 * Cleans up the directories left behind by a compaction which has been
+	 * interrupted. If the original store directory has already been swapped
+	 * out, it is moved back.
+	 * 
+	 * @param storesDir
+	 */
+	private void recoverInterruptedCompactions(File storesDir) {
 		for (String fname : storesDir.list()) {
-			createTDBStore(fname);
+			File f = new File(storesDir, fname);
+			if (fname.endsWith(COMPACTION_SUFFIX)) {
+				logger.warn("Removing incomplete compaction at {}",
+						f.getAbsolutePath());
+				FileUtils.deleteQuietly(f);
+			} else if (fname.endsWith(SWAPPED_SUFFIX)) {
+				File storeDir = new File(storesDir, fname.substring(0,
+						fname.length() - SWAPPED_SUFFIX.length()));
+				if (storeDir.exists()) {
+					FileUtils.deleteQuietly(f);
+				} else if (!f.renameTo(storeDir)) {
+					throw new IllegalStateException(String.format(
+							"Cannot restore the swapped store directory: %s",
+							f.getAbsolutePath()));
+				}
+			}
 		}
 	}
 
@@ -69,6 +174,10 @@ public class TripleStoreProvider {
 		virtuosoStores = new HashMap<String, VirtuosoStore>();
 		File storesDir = new File(VIRTUOSO_STORES_DIR);
 		for (String fname : storesDir.list()) {
+			if (fname.endsWith(VirtuosoStore.FEED_SEQUENCE_SUFFIX)
+					|| fname.endsWith(VirtuosoStore.INFERENCE_SUFFIX)) {
+				continue;
+			}
 			try {
 				String virtData = FileUtils.readFileToString(new File(
 						storesDir, fname));
@@ -84,6 +193,162 @@ public class TripleStoreProvider {
 		}
 	}
 
+	/**
+	 * Reopens the sharded stores over the TDB and Virtuoso stores opened
+	 * before. A rebalancing which has been interrupted is resumed.
+	 */
+	private void initializeShardedStores() throws JenaStoreException {
+		shardedStores = new ConcurrentHashMap<String, ShardedStore>();
+		File storesDir = new File(SHARDED_STORES_DIR);
+		for (String fname : storesDir.list()) {
+			File shardsFile = new File(new File(storesDir, fname), SHARDS_FILE);
+			if (!shardsFile.isFile()) {
+				continue;
+			}
+			Properties props = new Properties();
+			InputStream in = null;
+			try {
+				in = new FileInputStream(shardsFile);
+				props.load(in);
+			} catch (IOException e) {
+				String msg = String.format(
+						"Cannot read the shards of the sharded store: %s",
+						fname);
+				logger.error(msg);
+				throw new JenaException(msg, e);
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+			StartupTrace.Phase phase = startupTrace.begin(SHARDED_STORES_DIR
+					+ fname, "open");
+			String previousShards = props.getProperty("previousShards");
+			List<JenaStore> shards = resolveShards(props.getProperty("shards"));
+			ShardStrategy strategy = ShardedStore.parseStrategy(props
+					.getProperty("strategy"));
+			if (previousShards == null) {
+				ShardedStore shardedStore = new ShardedStore(new File(
+						storesDir, fname), shards, strategy);
+				governShards(shardedStore, shards);
+				shardedStores.put(fname, shardedStore);
+				phase.end();
+				continue;
+			}
+			List<JenaStore> previous = resolveShards(previousShards);
+			ShardedStore shardedStore = new ShardedStore(new File(storesDir,
+					fname), previous, ShardedStore.parseStrategy(props
+					.getProperty("previousStrategy")));
+			governShards(shardedStore, previous);
+			shardedStores.put(fname, shardedStore);
+			phase.end();
+			logger.warn("Resuming the interrupted rebalancing of sharded store {}",
+					fname);
+			phase = startupTrace.begin(SHARDED_STORES_DIR + fname, "rebalance");
+			rebalanceShardedStore(fname, shards, strategy);
+			phase.end();
+		}
+	}
+
+	private List<JenaStore> resolveShards(String spec)
+			throws JenaStoreException {
+		List<JenaStore> shards = new ArrayList<JenaStore>();
+		for (String name : spec.split(",")) {
+			JenaStore shard = null;
+			if (name.startsWith(TDB_SHARD_PREFIX)) {
+				shard = tdbStores.get(name.substring(TDB_SHARD_PREFIX.length()));
+			} else if (name.startsWith(VIRTUOSO_SHARD_PREFIX)) {
+				shard = virtuosoStores.get(name
+						.substring(VIRTUOSO_SHARD_PREFIX.length()));
+			}
+			if (shard == null) {
+				throw new JenaStoreException(String.format(
+						"Shard does not exist: %s", name));
+			}
+			shards.add(shard);
+		}
+		return shards;
+	}
+
+	private String toShardSpec(List<JenaStore> shards)
+			throws JenaStoreException {
+		StringBuilder spec = new StringBuilder();
+		for (JenaStore shard : shards) {
+			String name = null;
+			for (Map.Entry<String, TDBStore> entry : tdbStores.entrySet()) {
+				if (entry.getValue() == shard) {
+					name = TDB_SHARD_PREFIX + entry.getKey();
+				}
+			}
+			for (Map.Entry<String, VirtuosoStore> entry : virtuosoStores
+					.entrySet()) {
+				if (entry.getValue() == shard) {
+					name = VIRTUOSO_SHARD_PREFIX + entry.getKey();
+				}
+			}
+			if (name == null) {
+				throw new JenaStoreException(
+						"Shards must be TDB or Virtuoso stores of this provider");
+			}
+			if (spec.length() > 0) {
+				spec.append(',');
+			}
+			spec.append(name);
+		}
+		return spec.toString();
+	}
+
+	/**
+	 * Routes the sharded store through the governors of its shards, so that
+	 * it is admitted like the {@link GovernedStore}s of the shards.
+	 */
+	private void governShards(ShardedStore shardedStore, List<JenaStore> shards) {
+		for (JenaStore shard : shards) {
+			for (Map.Entry<String, TDBStore> entry : tdbStores.entrySet()) {
+				if (entry.getValue() == shard) {
+					shardedStore.setShardGovernor(shard,
+							getGovernor("tdb/" + entry.getKey()));
+				}
+			}
+			for (Map.Entry<String, VirtuosoStore> entry : virtuosoStores
+					.entrySet()) {
+				if (entry.getValue() == shard) {
+					shardedStore.setShardGovernor(shard,
+							getGovernor("virtuoso/" + entry.getKey()));
+				}
+			}
+		}
+	}
+
+	private void saveShards(String storeName, ShardedStore shardedStore)
+			throws JenaStoreException {
+		saveShards(storeName, toShardSpec(shardedStore.getShards()),
+				shardedStore.getStrategy().toSpec(), null, null);
+	}
+
+	private void saveShards(String storeName, String shards, String strategy,
+			String previousShards, String previousStrategy)
+			throws JenaStoreException {
+		Properties props = new Properties();
+		props.setProperty("shards", shards);
+		props.setProperty("strategy", strategy);
+		if (previousShards != null) {
+			props.setProperty("previousShards", previousShards);
+			props.setProperty("previousStrategy", previousStrategy);
+		}
+		File storeDir = new File(SHARDED_STORES_DIR + storeName);
+		OutputStream out = null;
+		try {
+			FileUtils.forceMkdir(storeDir);
+			out = new FileOutputStream(new File(storeDir, SHARDS_FILE));
+			props.store(out, "Shards of " + storeName);
+		} catch (IOException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot persist the shards of the sharded store: %s",
+					storeName), e);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
 	/**
 	 * This provider has only one instance at current environment. This method
 	 * is used to retrieve that singleton instance
@@ -98,6 +363,15 @@ public class TripleStoreProvider {
 		return instance;
 	}
 
+	/**
+	 * @return the trace of the initialization of this provider, which is
+	 *         also written to {@value #STARTUP_REPORT_FILE} and published over
+	 *         JMX as {@value StartupTrace#OBJECT_NAME}
+	 */
+	public StartupTrace getStartupTrace() {
+		return startupTrace;
+	}
+
 	/**
 	 * Given the type and name, it creates a new {@link JenaStore} and returns
 	 * it. If the {@link JenaStoreException} already exists, then this method
@@ -164,7 +438,39 @@ public class TripleStoreProvider {
 	 * @return
 	 */
 	public TDBStore getTDBStore(String storeName) {
-		return tdbStores.get(storeName);
+		return lookupTDBStore(storeName);
+	}
+
+	/**
+	 * Returns the {@link TDBStore} with the given name, waiting while its
+	 * compacted copy is swapped in, so that callers which do not hold the
+	 * lock of this provider never get the closed store.
+	 */
+	private TDBStore lookupTDBStore(String storeName) {
+		synchronized (swappingTDBStores) {
+			while (swappingTDBStores.contains(storeName)) {
+				try {
+					swappingTDBStores.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new JenaException(String.format(
+							"Interrupted while TDBStore %s is swapped",
+							storeName), e);
+				}
+			}
+			return tdbStores.get(storeName);
+		}
+	}
+
+	private void setSwapping(String storeName, boolean swapping) {
+		synchronized (swappingTDBStores) {
+			if (swapping) {
+				swappingTDBStores.add(storeName);
+			} else {
+				swappingTDBStores.remove(storeName);
+				swappingTDBStores.notifyAll();
+			}
+		}
 	}
 
 	/**
@@ -188,6 +494,24 @@ public class TripleStoreProvider {
 	 * @throws JenaStoreException
 	 */
 	public TDBStore createTDBStore(String storeName) throws JenaStoreException {
+		return createTDBStore(storeName, null);
+	}
+
+	/**
+	 * Given the name, it creates a new {@link TDBStore} tuned with the given
+	 * {@link TDBStoreProfile}. The profile is persisted along with the store
+	 * and reused when the store is reopened. If profile is null, the profile
+	 * persisted in the store directory is used, or the TDB defaults if there
+	 * is none. If the {@link TDBStore} with the given storeName already
+	 * exists, then it is returned with no modification.
+	 * 
+	 * @param storeName
+	 * @param profile
+	 * @return
+	 * @throws JenaStoreException
+	 */
+	public TDBStore createTDBStore(String storeName, TDBStoreProfile profile)
+			throws JenaStoreException {
 		if (storeName == null || storeName.trim().equals("")) {
 			storeName = DefaultTDBStoreName;
 		}
@@ -199,7 +523,11 @@ public class TripleStoreProvider {
 		}
 
 		String storeDirectory = TDB_STORES_DIR + storeName;
-		TDBStore tdbStore = new TDBStore(storeDirectory);
+		StartupTrace.Phase phase = startupTrace.begin(storeDirectory, "open");
+		TDBStore tdbStore = new TDBStore(storeDirectory,
+				profile == null ? TDBStoreProfile.load(storeDirectory)
+						: profile, startupTrace);
+		phase.end();
 		tdbStores.put(storeName, tdbStore);
 		logger.info(
 				"TDBStore at {} has been created and its dataset has been initialized.",
@@ -227,16 +555,504 @@ public class TripleStoreProvider {
 
 		String storeFile = VIRTUOSO_STORES_DIR + storeName;
 
+		StartupTrace.Phase phase = startupTrace.begin(storeFile, "open");
 		VirtuosoStore virtuosoStore = new VirtuosoStore(storeFile, serverURL,
-				username, password);
+				username, password, startupTrace);
+		phase.end();
 		virtuosoStores.put(storeName, virtuosoStore);
 		return virtuosoStore;
 	}
 
+	/**
+	 * Creates a {@link ShardedStore} which partitions its models over the
+	 * given TDB and Virtuoso stores of this provider. The shards and the
+	 * strategy are persisted and reused when the provider is initialized. If
+	 * the {@link ShardedStore} with the given storeName already exists, then
+	 * it is returned with no modification.
+	 * 
+	 * @param storeName
+	 * @param shards
+	 * @param strategy
+	 * @return
+	 * @throws JenaStoreException
+	 */
+	public synchronized ShardedStore createShardedStore(String storeName,
+			List<JenaStore> shards, ShardStrategy strategy)
+			throws JenaStoreException {
+		if (shardedStores.containsKey(storeName)) {
+			logger.info(
+					"Cannot create. ShardedStore already exists: {}. Existing ShardedStore is returned",
+					storeName);
+			return shardedStores.get(storeName);
+		}
+		if (shards.isEmpty()) {
+			throw new JenaStoreException(String.format(
+					"ShardedStore needs at least one shard: %s", storeName));
+		}
+		ShardedStore shardedStore = new ShardedStore(new File(
+				SHARDED_STORES_DIR + storeName), shards, strategy);
+		saveShards(storeName, shardedStore);
+		governShards(shardedStore, shards);
+		shardedStores.put(storeName, shardedStore);
+		logger.info("ShardedStore {} has been created over {} shards",
+				storeName, shards.size());
+		return shardedStore;
+	}
+
+	/**
+	 * Creates a {@link ShardedStore} over the given number of new
+	 * {@link TDBStore}s, named after the sharded store, to which the models
+	 * are assigned by the hash of their URIs.
+	 * 
+	 * @param storeName
+	 * @param shardCount
+	 * @return
+	 * @throws JenaStoreException
+	 */
+	public ShardedStore createShardedTDBStore(String storeName, int shardCount)
+			throws JenaStoreException {
+		List<JenaStore> shards = new ArrayList<JenaStore>();
+		for (int i = 0; i < shardCount; i++) {
+			shards.add(createTDBStore(storeName + SHARD_SUFFIX + i));
+		}
+		return createShardedStore(storeName, shards, new HashShardStrategy());
+	}
+
+	public ShardedStore getShardedStore(String storeName) {
+		return shardedStores.get(storeName);
+	}
+
+	/**
+	 * Returns the given store behind its {@link StoreGovernor}, which limits
+	 * the concurrent operations, queries and queued callers of the store. All
+	 * {@link GovernedStore}s of a store share its governor, whose metrics are
+	 * published over JMX.
+	 * 
+	 * @param type
+	 * @param storeName
+	 * @param priority
+	 *            priority of the callers using the returned store
+	 * @return the governed store, or <code>null</code> if there is no such
+	 *         store
+	 */
+	public GovernedStore getGovernedStore(TripleStoreType type,
+			String storeName, Priority priority) {
+		JenaStore store = getStore(type, storeName);
+		if (store == null) {
+			return null;
+		}
+		String prefix = type == TripleStoreType.Virtuoso ? "virtuoso/"
+				: "tdb/";
+		return new GovernedStore(store, getGovernor(prefix + storeName),
+				priority);
+	}
+
+	/**
+	 * Returns the {@link ShardedStore} with the given name behind its
+	 * {@link StoreGovernor}.
+	 * 
+	 * @param storeName
+	 * @param priority
+	 * @return the governed store, or <code>null</code> if there is no such
+	 *         store
+	 * @see #getGovernedStore(TripleStoreType, String, Priority)
+	 */
+	public GovernedStore getGovernedShardedStore(String storeName,
+			Priority priority) {
+		ShardedStore store = getShardedStore(storeName);
+		if (store == null) {
+			return null;
+		}
+		return new GovernedStore(store, getGovernor("sharded/" + storeName),
+				priority);
+	}
+
+	/**
+	 * Sets the policy of the governors created from now on. The policy of an
+	 * existing governor is changed through
+	 * {@link StoreGovernor#setPolicy(GovernorPolicy)}.
+	 * 
+	 * @param policy
+	 */
+	public void setDefaultGovernorPolicy(GovernorPolicy policy) {
+		this.governorPolicy = policy;
+	}
+
+	private synchronized StoreGovernor getGovernor(String name) {
+		StoreGovernor governor = governors.get(name);
+		if (governor == null) {
+			governor = new StoreGovernor(name, governorPolicy);
+			governor.register();
+			governors.put(name, governor);
+		}
+		return governor;
+	}
+
+	private synchronized void removeGovernor(String name) {
+		StoreGovernor governor = governors.remove(name);
+		if (governor != null) {
+			governor.unregister();
+		}
+	}
+
+	/**
+	 * Moves the models of the {@link ShardedStore} with the given name to
+	 * the given shards and strategy, e.g. to spread them over newly added
+	 * shards. The store keeps serving during the rebalancing; modifications
+	 * made on a model while it is moved are replayed on its new shard. An
+	 * interrupted rebalancing is resumed when the provider is initialized.
+	 * 
+	 * @param storeName
+	 * @param shards
+	 * @param strategy
+	 * @return the number of moved models
+	 * @throws JenaStoreException
+	 */
+	public synchronized int rebalanceShardedStore(String storeName,
+			List<JenaStore> shards, ShardStrategy strategy)
+			throws JenaStoreException {
+		ShardedStore shardedStore = shardedStores.get(storeName);
+		if (shardedStore == null) {
+			throw new JenaStoreException(String.format(
+					"ShardedStore does not exist: %s", storeName));
+		}
+		// Persist both layouts first, so that an interruption is resumed
+		saveShards(storeName, toShardSpec(shards), strategy.toSpec(),
+				toShardSpec(shardedStore.getShards()), shardedStore
+						.getStrategy().toSpec());
+		governShards(shardedStore, shards);
+		int moved = new ShardRebalancer(shardedStore).rebalance(shards,
+				strategy);
+		saveShards(storeName, shardedStore);
+		return moved;
+	}
+
+	/**
+	 * Compacts the {@link TDBStore} with the given name. A densely packed copy
+	 * of its dataset is written next to the store directory while the store
+	 * keeps serving, then the modifications made in the meantime are replayed
+	 * into the copy and the copy replaces the store. The store is unavailable
+	 * only while the directories are swapped: {@link #getTDBStore(String)}
+	 * and {@link #getReadStore(String)} wait meanwhile and then return the
+	 * compacted {@link TDBStore}. Its
+	 * replicas are reopened on the compacted store and its change listeners
+	 * are moved to it. Models and change feeds retrieved from the previous
+	 * instance must not be used after the compaction.
+	 * 
+	 * @param storeName
+	 * @return the reclaimed space and the lookup performance before and after
+	 *         the compaction
+	 * @throws JenaStoreException
+	 *             if the store is a shard of a {@link ShardedStore} or is
+	 *             used behind a {@link GovernedStore}, which would keep the
+	 *             closed instance
+	 */
+	public synchronized CompactionReport compactTDBStore(String storeName)
+			throws JenaStoreException {
+		TDBStore tdbStore = tdbStores.get(storeName);
+		if (tdbStore == null) {
+			throw new JenaStoreException(String.format(
+					"TDBStore does not exist: %s", storeName));
+		}
+		for (ShardedStore shardedStore : shardedStores.values()) {
+			if (shardedStore.getShards().contains(tdbStore)) {
+				throw new JenaStoreException(String.format(
+						"Cannot compact TDBStore %s, it is a shard of a ShardedStore",
+						storeName));
+			}
+		}
+		if (governors.containsKey("tdb/" + storeName)) {
+			throw new JenaStoreException(String.format(
+					"Cannot compact TDBStore %s, it is used behind a GovernedStore",
+					storeName));
+		}
+		File storeDir = new File(TDB_STORES_DIR + storeName);
+		File compactionDir = new File(TDB_STORES_DIR + storeName
+				+ COMPACTION_SUFFIX);
+		File swappedDir = new File(TDB_STORES_DIR + storeName + SWAPPED_SUFFIX);
+		long bytesBefore = FileUtils.sizeOfDirectory(storeDir);
+
+		TDBCompactor compactor = new TDBCompactor(tdbStore,
+				compactionDir.getPath());
+		compactor.copy();
+		compactor.replay();
+
+		// Lookups wait from the closing of the store until the compacted
+		// store is published
+		setSwapping(storeName, true);
+		TDBStore compacted;
+		List<String> replicaNames = new ArrayList<String>();
+		try {
+			// The replicas follow the change log in the swapped directory
+			List<TDBReplica> replicas = tdbReplicas.remove(storeName);
+			if (replicas != null) {
+				for (TDBReplica replica : replicas) {
+					replica.stop();
+					replicaNames.add(new File(replica.getStore()
+							.getStoreDirectory()).getName());
+				}
+			}
+			List<StoreChangeListener> listeners = tdbStore
+					.getChangeListeners();
+			tdbStore.close();
+			compactor.finish();
+			try {
+				FileUtils.moveDirectory(storeDir, swappedDir);
+				FileUtils.moveDirectory(compactionDir, storeDir);
+			} catch (IOException e) {
+				String msg = String.format(
+						"Cannot swap the compacted directory of TDBStore: %s",
+						storeName);
+				logger.error(msg, e);
+				throw new JenaStoreException(msg, e);
+			}
+			compacted = new TDBStore(TDB_STORES_DIR + storeName,
+					TDBStoreProfile.load(TDB_STORES_DIR + storeName));
+			for (StoreChangeListener listener : listeners) {
+				tdbStore.removeChangeListener(listener);
+				compacted.addChangeListener(listener);
+			}
+			tdbStores.put(storeName, compacted);
+		} finally {
+			setSwapping(storeName, false);
+		}
+		FileUtils.deleteQuietly(swappedDir);
+		for (String replicaName : replicaNames) {
+			openTDBReplica(storeName, replicaName);
+		}
+
+		CompactionReport report = compactor.report(bytesBefore,
+				FileUtils.sizeOfDirectory(storeDir), compacted);
+		logger.info("TDBStore {} has been compacted: {}", storeName, report);
+		return report;
+	}
+
+	/**
+	 * Adds a read replica to the {@link TDBStore} with the given name, whose
+	 * {@link TDBStoreProfile} must have the change log enabled. The replica
+	 * is created in its own directory with a copy of the models of the store
+	 * and then follows the change log of the store. Reads can be routed to
+	 * the replicas with {@link #getReadStore(String)}.
+	 * 
+	 * @param storeName
+	 * @return
+	 * @throws JenaStoreException
+	 */
+	public synchronized TDBReplica addTDBReplica(String storeName)
+			throws JenaStoreException {
+		if (!tdbStores.containsKey(storeName)) {
+			throw new JenaStoreException(String.format(
+					"TDBStore does not exist: %s", storeName));
+		}
+		int index = 1;
+		while (new File(TDB_STORES_DIR + storeName + REPLICA_SUFFIX + index)
+				.exists()) {
+			index++;
+		}
+		return openTDBReplica(storeName, storeName + REPLICA_SUFFIX + index);
+	}
+
+	private TDBReplica openTDBReplica(String storeName, String replicaName)
+			throws JenaStoreException {
+		StartupTrace.Phase phase = startupTrace.begin(TDB_STORES_DIR
+				+ replicaName, "open");
+		TDBReplica replica = TDBReplica.open(tdbStores.get(storeName),
+				TDB_STORES_DIR + replicaName);
+		phase.end();
+		replica.start();
+		List<TDBReplica> replicas = tdbReplicas.get(storeName);
+		if (replicas == null) {
+			replicas = new CopyOnWriteArrayList<TDBReplica>();
+			tdbReplicas.put(storeName, replicas);
+		}
+		replicas.add(replica);
+		logger.info("Replica {} of TDBStore {} has been started", replicaName,
+				storeName);
+		return replica;
+	}
+
+	public List<TDBReplica> getTDBReplicas(String storeName) {
+		List<TDBReplica> replicas = tdbReplicas.get(storeName);
+		return replicas == null ? new ArrayList<TDBReplica>()
+				: new ArrayList<TDBReplica>(replicas);
+	}
+
+	/**
+	 * Returns a store to read from on behalf of the {@link TDBStore} with the
+	 * given name. Reads are spread over its running replicas; the store
+	 * itself is returned if it has none. The returned store must not be
+	 * modified, as the modifications need to go to the store returned by
+	 * {@link #getTDBStore(String)}.
+	 * 
+	 * @param storeName
+	 * @return
+	 */
+	public TDBStore getReadStore(String storeName) {
+		return getReadStore(storeName, 0);
+	}
+
+	/**
+	 * Returns a store to read from which reflects the modifications up to the
+	 * given sequence number of the change log of the {@link TDBStore} with
+	 * the given name. To read your own writes, pass the last sequence of its
+	 * change log after the write. The store itself is returned if none of
+	 * its replicas has caught up.
+	 * 
+	 * @param storeName
+	 * @param minSequence
+	 * @return
+	 */
+	public TDBStore getReadStore(String storeName, long minSequence) {
+		List<TDBReplica> candidates = new ArrayList<TDBReplica>();
+		for (TDBReplica replica : getTDBReplicas(storeName)) {
+			if (replica.isRunning()
+					&& replica.getAppliedSequence() >= minSequence) {
+				candidates.add(replica);
+			}
+		}
+		if (candidates.isEmpty()) {
+			return lookupTDBStore(storeName);
+		}
+		int next = (readCounter.getAndIncrement() & Integer.MAX_VALUE)
+				% candidates.size();
+		return candidates.get(next).getStore();
+	}
+
+	/**
+	 * Returns how many sequence numbers of the change log of the
+	 * {@link TDBStore} with the given name each of its replicas has yet to
+	 * apply.
+	 * 
+	 * @param storeName
+	 * @return the lag of the replicas, keyed by their directories
+	 */
+	public Map<String, Long> getReplicaLag(String storeName) {
+		Map<String, Long> lags = new LinkedHashMap<String, Long>();
+		TDBStore tdbStore = lookupTDBStore(storeName);
+		if (tdbStore == null || tdbStore.getChangeLog() == null) {
+			return lags;
+		}
+		long last = tdbStore.getChangeLog().getLastSequence();
+		for (TDBReplica replica : getTDBReplicas(storeName)) {
+			lags.put(replica.getStore().getStoreDirectory(),
+					Math.max(0, last - replica.getAppliedSequence()));
+		}
+		return lags;
+	}
+
+	/**
+	 * Restores the latest chain of {@link StoreBackup}s under the given
+	 * backup root into a new {@link TDBStore} with the given name, and
+	 * registers it in this provider.
+	 * 
+	 * @param storeName
+	 * @param backupRoot
+	 * @return
+	 * @throws JenaStoreException
+	 *             if a store with the given name already exists
+	 */
+	public synchronized TDBStore restoreTDBStore(String storeName,
+			File backupRoot) throws JenaStoreException {
+		if (tdbStores.containsKey(storeName)
+				|| new File(TDB_STORES_DIR + storeName).exists()) {
+			throw new JenaStoreException(String.format(
+					"Cannot restore. TDBStore already exists: %s", storeName));
+		}
+		StoreBackup.restore(backupRoot, TDB_STORES_DIR + storeName);
+		return createTDBStore(storeName);
+	}
+
+	/**
+	 * Dumps all {@link JenaStore}s of this provider as N-Quads. The dump of
+	 * each store is written into the <code>tdb/&lt;storeName&gt;</code> or
+	 * <code>virtuoso/&lt;storeName&gt;</code> subdirectory of the given
+	 * directory.
+	 * 
+	 * @param targetDirectory
+	 * @param options
+	 * @return the reports of the dumped stores, keyed by their subdirectory
+	 * @throws JenaStoreException
+	 */
+	public Map<String, DumpReport> dumpStores(File targetDirectory,
+			DumpOptions options) throws JenaStoreException {
+		Map<String, DumpReport> reports = new LinkedHashMap<String, DumpReport>();
+		for (Map.Entry<String, TDBStore> entry : tdbStores.entrySet()) {
+			String path = "tdb/" + entry.getKey();
+			reports.put(path, entry.getValue().dump(
+					new File(targetDirectory, path), options));
+		}
+		for (Map.Entry<String, VirtuosoStore> entry : virtuosoStores
+				.entrySet()) {
+			String path = "virtuoso/" + entry.getKey();
+			reports.put(path, entry.getValue().dump(
+					new File(targetDirectory, path), options));
+		}
+		return reports;
+	}
+
 	public void removeStore(String storeName) throws JenaStoreException {
+		ShardedStore shardedStore = shardedStores.remove(storeName);
+		if (shardedStore != null) {
+			removeGovernor("sharded/" + storeName);
+			List<JenaStore> shards = new ArrayList<JenaStore>(
+					shardedStore.getShards());
+			if (shardedStore.getPreviousShards() != null) {
+				shards.addAll(shardedStore.getPreviousShards());
+			}
+			List<String> tdbShards = new ArrayList<String>();
+			for (Map.Entry<String, TDBStore> entry : tdbStores.entrySet()) {
+				if (shards.contains(entry.getValue())) {
+					tdbShards.add(entry.getKey());
+				}
+			}
+			List<String> virtuosoShards = new ArrayList<String>();
+			for (Map.Entry<String, VirtuosoStore> entry : virtuosoStores
+					.entrySet()) {
+				if (shards.contains(entry.getValue())) {
+					virtuosoShards.add(entry.getKey());
+				}
+			}
+			for (String shardName : tdbShards) {
+				List<TDBReplica> replicas = tdbReplicas.remove(shardName);
+				if (replicas != null) {
+					for (TDBReplica replica : replicas) {
+						replica.stop();
+						FileUtils.deleteQuietly(new File(replica.getStore()
+								.getStoreDirectory()));
+					}
+				}
+			}
+			shardedStore.remove();
+			// The shards are removed along with the sharded store, including
+			// their files so that they are not reopened as standalone stores
+			for (String shardName : tdbShards) {
+				tdbStores.remove(shardName);
+				removeGovernor("tdb/" + shardName);
+				FileUtils.deleteQuietly(new File(TDB_STORES_DIR + shardName));
+			}
+			for (String shardName : virtuosoShards) {
+				virtuosoStores.remove(shardName);
+				removeGovernor("virtuoso/" + shardName);
+				String storeFile = VIRTUOSO_STORES_DIR + shardName;
+				FileUtils.deleteQuietly(new File(storeFile));
+				FileUtils.deleteQuietly(new File(storeFile
+						+ VirtuosoStore.FEED_SEQUENCE_SUFFIX));
+				FileUtils.deleteQuietly(new File(storeFile
+						+ VirtuosoStore.INFERENCE_SUFFIX));
+			}
+			FileUtils.deleteQuietly(new File(SHARDED_STORES_DIR + storeName));
+			return;
+		}
+		List<TDBReplica> replicas = tdbReplicas.remove(storeName);
+		if (replicas != null) {
+			for (TDBReplica replica : replicas) {
+				replica.stop();
+			}
+		}
 		TDBStore tdbStore = tdbStores.get(storeName);
 		if (tdbStore != null) {
 			tdbStore.remove();
+			removeGovernor("tdb/" + storeName);
 		}
 	}
 
@@ -0,0 +1,559 @@
+package eu.salusproject.common.triplestore.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSetFormatter;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.tdb.sys.Names;
+
+import eu.salusproject.common.triplestore.JenaStoreException;
+import eu.salusproject.common.triplestore.ModelPage;
+import eu.salusproject.common.triplestore.StoreQueryExecutionFactory;
+import eu.salusproject.common.triplestore.io.BinaryRDF;
+import eu.salusproject.common.triplestore.tdb.TDBStore;
+import eu.salusproject.common.triplestore.tdb.StoreCatalog;
+import eu.salusproject.common.triplestore.tdb.TDBStoreProfile;
+import eu.salusproject.common.triplestore.trace.StartupPhase;
+import eu.salusproject.common.triplestore.trace.StartupTrace;
+
+/**
+ * Command line benchmarks of the stores. A scenario is run by
+ * 
+ * <pre>
+ * java -cp &lt;classpath&gt; eu.salusproject.common.triplestore.bench.StoreBenchmark &lt;scenario&gt; [directory] [triples]
+ * </pre>
+ * 
+ * The data of the scenario is generated under the given directory, which
+ * defaults to <code>benchmark</code>, and the measurements are printed as
+ * tab separated lines with a header line. The scenarios are:
+ * <ul>
+ * <li><code>profile</code>: random subject lookups and the resident memory
+ * of a {@link TDBStore} opened with each {@link TDBStoreProfile}, each in a
+ * new JVM</li>
+ * <li><code>stats</code>: a join over skewed data, planned by the fixed
+ * heuristics of TDB and by the optimizer statistics written by the store</li>
+ * <li><code>binary</code>: size and load time of a model written as
+ * {@link BinaryRDF}, plain and compressed, RDF/XML, Turtle and N-Triples</li>
+ * <li><code>paging</code>: listing the models of a {@link TDBStore} at once
+ * and page by page, and removing them one by one and in batches</li>
+ * <li><code>startup</code>: the {@link StartupTrace} of the opening of a
+ * {@link TDBStore} with a clean catalog and with a catalog and an index to
+ * rebuild, each in a new JVM</li>
+ * </ul>
+ */
+public class StoreBenchmark {
+
+	private static final String NS = "http://benchmark.salusproject.eu/";
+	private static final int MODELS = 20;
+	private static final int TRIPLES_PER_SUBJECT = 10;
+	private static final int WARMUP_LOOKUPS = 2000;
+	private static final int LOOKUPS = 20000;
+	private static final int QUERIES = 200;
+	private static final int RARE_SUBJECT_INTERVAL = 1000;
+	private static final int LOADS = 3;
+	private static final int LISTINGS = 20;
+	private static final int PAGE_SIZE = 100;
+	private static final int SUBJECTS_PER_PAGED_MODEL = 10;
+	private static final int STARTUPS = 3;
+
+	private static final String[] TEXT_FORMATS = { "RDF/XML", "TURTLE",
+			"N-TRIPLE" };
+
+	private static final String[] PROFILES = { "default", "small", "large" };
+
+	private static final String[] OPENINGS = { "rebuild", "clean" };
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			usage();
+			return;
+		}
+		File directory = new File(args.length > 1 ? args[1] : "benchmark");
+		int triples = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+		String scenario = args[0];
+		if ("profile".equals(scenario)) {
+			benchmarkProfiles(directory, triples);
+		} else if ("profile-run".equals(scenario)) {
+			// Run of a single profile in the JVM started by the profile
+			// scenario
+			runProfile(directory, triples, args[3]);
+		} else if ("stats".equals(scenario)) {
+			benchmarkStatistics(directory, triples);
+		} else if ("binary".equals(scenario)) {
+			benchmarkBinary(directory, triples);
+		} else if ("paging".equals(scenario)) {
+			benchmarkPaging(directory, triples);
+		} else if ("startup".equals(scenario)) {
+			benchmarkStartup(directory, triples);
+		} else if ("startup-run".equals(scenario)) {
+			// Opening of the store in the JVM started by the startup
+			// scenario
+			runStartup(directory, args[3], Integer.parseInt(args[4]));
+		} else {
+			usage();
+		}
+	}
+
+	private static void usage() {
+		System.err
+				.println("Usage: StoreBenchmark profile|stats|binary|paging|startup [directory] [triples]");
+	}
+
+	/**
+	 * Creates a TDB store with the given number of triples, then opens it
+	 * with each profile in a new JVM, so that the resident memory of a
+	 * profile is not inflated by the previous ones.
+	 */
+	private static void benchmarkProfiles(File directory, int triples)
+			throws Exception {
+		File storeDirectory = new File(directory, "profile");
+		FileUtils.deleteQuietly(storeDirectory);
+		TDBStore store = new TDBStore(storeDirectory.getPath(),
+				new TDBStoreProfile());
+		populate(store, triples);
+		store.close();
+		System.out
+				.println("profile\tfileMode\tlookups\tmeanMicros\tp50Micros\tp99Micros\trssKB");
+		for (String profile : PROFILES) {
+			runInNewJvm(directory, "profile-" + profile, "profile-run",
+					directory.getPath(), String.valueOf(triples), profile);
+		}
+	}
+
+	/**
+	 * Runs the benchmark with the given arguments in a new JVM and prints
+	 * its output. The log of the child goes to a file of its own.
+	 */
+	private static void runInNewJvm(File directory, String logName,
+			String... args) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>(Arrays.asList(new File(
+				System.getProperty("java.home"), "bin/java").getPath(), "-cp",
+				System.getProperty("java.class.path"), StoreBenchmark.class
+						.getName()));
+		command.addAll(Arrays.asList(args));
+		Process process = new ProcessBuilder(command).redirectError(
+				new File(directory, logName + ".log")).start();
+		InputStream in = process.getInputStream();
+		try {
+			System.out.print(IOUtils.toString(in));
+		} finally {
+			in.close();
+		}
+		if (process.waitFor() != 0) {
+			System.err.println(String.format("%s has failed, see %s.log",
+					args[0], logName));
+		}
+	}
+
+	private static void runProfile(File directory, int triples,
+			String profileName) throws JenaStoreException, IOException {
+		TDBStoreProfile profile = "small".equals(profileName) ? TDBStoreProfile
+				.small() : "large".equals(profileName) ? TDBStoreProfile
+				.large() : new TDBStoreProfile();
+		TDBStore store = new TDBStore(new File(directory, "profile").getPath(),
+				profile);
+		int subjects = triples / MODELS / TRIPLES_PER_SUBJECT;
+		Random random = new Random(42);
+		for (int i = 0; i < WARMUP_LOOKUPS; i++) {
+			lookup(store, random, subjects);
+		}
+		long[] micros = new long[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; i++) {
+			long start = System.nanoTime();
+			lookup(store, random, subjects);
+			micros[i] = (System.nanoTime() - start) / 1000;
+		}
+		long rss = readStatus("VmRSS:");
+		store.close();
+		System.out.println(String.format("%s\t%s\t%d\t%s\t%d", profileName,
+				profile.getFileMode(), LOOKUPS, percentiles(micros), rss));
+	}
+
+	/**
+	 * Creates a TDB store in which every subject has the same type and one
+	 * subject in {@value #RARE_SUBJECT_INTERVAL} has a rare property, then
+	 * joins the two. The fixed heuristics of TDB start with the type
+	 * pattern, as its object is bound, whereas the statistics start with the
+	 * rare property. The store is opened first without its optimizer
+	 * statistics, then with the statistics it has written when it was
+	 * closed.
+	 */
+	private static void benchmarkStatistics(File directory, int triples)
+			throws JenaStoreException, IOException {
+		File storeDirectory = new File(directory, "stats");
+		FileUtils.deleteQuietly(storeDirectory);
+		TDBStore store = new TDBStore(storeDirectory.getPath(),
+				new TDBStoreProfile());
+		int subjects = triples / MODELS / 2;
+		for (int m = 0; m < MODELS; m++) {
+			Model model = ModelFactory.createDefaultModel();
+			Property type = model.createProperty(NS + "type");
+			Resource thing = model.createResource(NS + "Thing");
+			Property rare = model.createProperty(NS + "rare");
+			for (int s = 0; s < subjects; s++) {
+				Resource subject = model.createResource(NS + "s" + s);
+				subject.addProperty(type, thing);
+				subject.addProperty(model.createProperty(NS + "p"), "value "
+						+ m + " " + s);
+				if (s % RARE_SUBJECT_INTERVAL == 0) {
+					subject.addProperty(rare, "rare " + s);
+				}
+			}
+			store.addModel(modelURI(m), model);
+		}
+		store.close();
+		String query = String.format(
+				"SELECT ?s ?v WHERE { GRAPH <%s> { ?s <%s> <%s> . ?s <%s> ?v } }",
+				modelURI(0), NS + "type", NS + "Thing", NS + "rare");
+		System.out.println("plan	queries	rows	meanMicros	p50Micros	p99Micros");
+		// Without the optimizer statistics TDB falls back to its fixed
+		// heuristics; closing the store writes them again
+		FileUtils.forceDelete(new File(storeDirectory, Names.optStats));
+		runQueries("fixed", storeDirectory, query);
+		runQueries("statistics", storeDirectory, query);
+	}
+
+	private static void runQueries(String plan, File storeDirectory,
+			String query) throws JenaStoreException {
+		TDBStore store = new TDBStore(storeDirectory.getPath(),
+				TDBStoreProfile.load(storeDirectory.getPath()));
+		int rows = 0;
+		for (int i = 0; i < QUERIES / 10; i++) {
+			rows = select(store, query);
+		}
+		long[] micros = new long[QUERIES];
+		for (int i = 0; i < QUERIES; i++) {
+			long start = System.nanoTime();
+			select(store, query);
+			micros[i] = (System.nanoTime() - start) / 1000;
+		}
+		store.close();
+		System.out.println(String.format("%s\t%d\t%d\t%s", plan, QUERIES,
+				rows, percentiles(micros)));
+	}
+
+	/**
+	 * Writes a model with the given number of triples, including typed and
+	 * language tagged literals and blank nodes, in every format and loads
+	 * each file {@value #LOADS} times into a new in-memory model. The
+	 * fastest load is reported.
+	 */
+	private static void benchmarkBinary(File directory, int triples)
+			throws IOException {
+		File formatDirectory = new File(directory, "binary");
+		FileUtils.deleteQuietly(formatDirectory);
+		FileUtils.forceMkdir(formatDirectory);
+		Model model = ModelFactory.createDefaultModel();
+		Property label = model.createProperty(NS + "label");
+		Property rank = model.createProperty(NS + "rank");
+		Property related = model.createProperty(NS + "related");
+		for (int s = 0; model.size() < triples; s++) {
+			Resource subject = model.createResource(NS + "s" + s);
+			subject.addProperty(label, "label " + s, s % 2 == 0 ? "en" : "de");
+			subject.addLiteral(rank, model.createTypedLiteral(s));
+			subject.addProperty(related, s % 10 == 0 ? model
+					.createResource() : model.createResource(NS + "s"
+					+ (s / 2)));
+		}
+		System.out
+				.println("format\tbytes\twriteMillis\tloadMillis\ttriplesPerSecond");
+		for (boolean compressed : new boolean[] { false, true }) {
+			File file = new File(formatDirectory, "model-"
+					+ (compressed ? "compressed" : "plain")
+					+ BinaryRDF.FILE_EXTENSION);
+			long start = System.currentTimeMillis();
+			BinaryRDF.write(model, file, compressed);
+			long write = System.currentTimeMillis() - start;
+			long load = Long.MAX_VALUE;
+			for (int i = 0; i < LOADS; i++) {
+				Model loaded = ModelFactory.createDefaultModel();
+				start = System.currentTimeMillis();
+				BinaryRDF.read(loaded, file);
+				load = Math.min(load, System.currentTimeMillis() - start);
+			}
+			printLoad(BinaryRDF.FORMAT + (compressed ? " (deflate)" : ""),
+					file, write, load, model.size());
+		}
+		for (String format : TEXT_FORMATS) {
+			File file = new File(formatDirectory, "model."
+					+ format.replace('/', '_').toLowerCase());
+			long start = System.currentTimeMillis();
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(
+					file));
+			try {
+				model.write(out, format);
+			} finally {
+				out.close();
+			}
+			long write = System.currentTimeMillis() - start;
+			long load = Long.MAX_VALUE;
+			for (int i = 0; i < LOADS; i++) {
+				Model loaded = ModelFactory.createDefaultModel();
+				start = System.currentTimeMillis();
+				InputStream in = new BufferedInputStream(new FileInputStream(
+						file));
+				try {
+					loaded.read(in, null, format);
+				} finally {
+					in.close();
+				}
+				load = Math.min(load, System.currentTimeMillis() - start);
+			}
+			printLoad(format, file, write, load, model.size());
+		}
+	}
+
+	/**
+	 * Creates a TDB store with small models of
+	 * {@value #SUBJECTS_PER_PAGED_MODEL} subjects, lists the names of the
+	 * models {@value #LISTINGS} times at once and page by page, then removes
+	 * half of the models one by one and the other half in batches of a page.
+	 * The durations are reported per call.
+	 */
+	private static void benchmarkPaging(File directory, int triples)
+			throws JenaStoreException {
+		File storeDirectory = new File(directory, "paging");
+		FileUtils.deleteQuietly(storeDirectory);
+		TDBStore store = new TDBStore(storeDirectory.getPath(),
+				new TDBStoreProfile());
+		int models = Math.max(2 * PAGE_SIZE, triples
+				/ SUBJECTS_PER_PAGED_MODEL / TRIPLES_PER_SUBJECT);
+		for (int m = 0; m < models; m++) {
+			Model model = ModelFactory.createDefaultModel();
+			for (int s = 0; s < SUBJECTS_PER_PAGED_MODEL; s++) {
+				Resource subject = model.createResource(NS + "s" + s);
+				for (int p = 0; p < TRIPLES_PER_SUBJECT; p++) {
+					subject.addProperty(model.createProperty(NS + "p" + p),
+							"value " + m + " " + s + " " + p);
+				}
+			}
+			store.addModel(modelURI(m), model);
+		}
+		store.sync();
+		System.out
+				.println("operation	calls	modelsPerCall	meanMicros	p50Micros	p99Micros");
+		long[] micros = new long[LISTINGS];
+		List<String> names = null;
+		for (int i = 0; i < LISTINGS; i++) {
+			long start = System.nanoTime();
+			names = store.listModels();
+			micros[i] = (System.nanoTime() - start) / 1000;
+		}
+		System.out.println(String.format("listModels\t%d\t%d\t%s", LISTINGS,
+				names.size(), percentiles(micros)));
+		List<Long> pageMicros = new ArrayList<Long>();
+		for (int i = 0; i < LISTINGS; i++) {
+			String cursor = null;
+			do {
+				long start = System.nanoTime();
+				ModelPage page = store.listModels(null, cursor, PAGE_SIZE);
+				pageMicros.add((System.nanoTime() - start) / 1000);
+				cursor = page.getNextCursor();
+			} while (cursor != null);
+		}
+		System.out.println(String.format("listModels page\t%d\t%d\t%s",
+				pageMicros.size(), PAGE_SIZE, percentiles(toArray(pageMicros))));
+		Collections.sort(names);
+		List<String> oneByOne = names.subList(0, names.size() / 2);
+		micros = new long[oneByOne.size()];
+		for (int i = 0; i < micros.length; i++) {
+			long start = System.nanoTime();
+			store.removeModel(oneByOne.get(i));
+			micros[i] = (System.nanoTime() - start) / 1000;
+		}
+		System.out.println(String.format("removeModel\t%d\t1\t%s",
+				micros.length, percentiles(micros)));
+		List<String> batched = names.subList(names.size() / 2, names.size());
+		List<Long> batchMicros = new ArrayList<Long>();
+		for (int from = 0; from < batched.size(); from += PAGE_SIZE) {
+			List<String> batch = batched.subList(from,
+					Math.min(batched.size(), from + PAGE_SIZE));
+			long start = System.nanoTime();
+			store.removeModels(batch);
+			batchMicros.add((System.nanoTime() - start) / 1000);
+		}
+		System.out.println(String.format("removeModels\t%d\t%d\t%s",
+				batchMicros.size(), PAGE_SIZE,
+				percentiles(toArray(batchMicros))));
+		store.close();
+	}
+
+	/**
+	 * Creates a TDB store with the given number of triples, then opens it
+	 * {@value #STARTUPS} times in a new JVM after removing its catalog, so
+	 * that the catalog and the index are rebuilt, and {@value #STARTUPS}
+	 * times with the clean catalog written by the previous opening. Every
+	 * phase of the {@link StartupTrace} of an opening is printed, followed
+	 * by the totals of the trace.
+	 */
+	private static void benchmarkStartup(File directory, int triples)
+			throws Exception {
+		File storeDirectory = new File(directory, "startup");
+		FileUtils.deleteQuietly(storeDirectory);
+		TDBStore store = new TDBStore(storeDirectory.getPath(),
+				new TDBStoreProfile());
+		populate(store, triples);
+		store.close();
+		System.out
+				.println("opening\trun\tphase\twallMicros\tcpuMicros\tbytesRead\tstorageBytesRead\ttriplesIndexed\tallocatedBytes");
+		for (String opening : OPENINGS) {
+			for (int run = 0; run < STARTUPS; run++) {
+				if ("rebuild".equals(opening)) {
+					FileUtils.forceDelete(new File(storeDirectory,
+							StoreCatalog.CATALOG_FILE));
+				}
+				runInNewJvm(directory, "startup-" + opening + "-" + run,
+						"startup-run", directory.getPath(), String
+								.valueOf(triples), opening, String
+								.valueOf(run));
+			}
+		}
+	}
+
+	private static void runStartup(File directory, String opening, int run)
+			throws JenaStoreException {
+		String storeDirectory = new File(directory, "startup").getPath();
+		StartupTrace trace = new StartupTrace();
+		TDBStore store = new TDBStore(storeDirectory,
+				TDBStoreProfile.load(storeDirectory), trace);
+		trace.finish();
+		String prefix = opening + "\t" + run + "\t";
+		for (StartupPhase phase : trace.getPhases()) {
+			System.out.println(prefix
+					+ String.format("%s\t%d\t%d\t%d\t%d\t%d\t%d",
+							phase.getPhase(), phase.getWallMicros(),
+							phase.getCpuMicros(), phase.getBytesRead(),
+							phase.getStorageBytesRead(),
+							phase.getTriplesIndexed(),
+							phase.getAllocatedBytes()));
+		}
+		System.out.println(prefix
+				+ String.format("total\t%d\t%d\t%d\t%d\t%d\t%d",
+						trace.getWallMicros(), trace.getCpuMicros(),
+						trace.getBytesRead(), trace.getStorageBytesRead(),
+						trace.getTriplesIndexed(), trace.getAllocatedBytes()));
+		store.close();
+	}
+
+	private static void printLoad(String format, File file, long write,
+			long load, long triples) {
+		System.out.println(String.format("%s\t%d\t%d\t%d\t%d", format,
+				file.length(), write, load, triples * 1000 / Math.max(1, load)));
+	}
+
+	private static int select(TDBStore store, String query) {
+		QueryExecution qexec = StoreQueryExecutionFactory.create(store,
+				QueryFactory.create(query));
+		try {
+			return ResultSetFormatter.consume(qexec.execSelect());
+		} finally {
+			qexec.close();
+		}
+	}
+
+	/**
+	 * @return the mean, median and 99th percentile of the given durations,
+	 *         tab separated
+	 */
+	private static String percentiles(long[] micros) {
+		Arrays.sort(micros);
+		long total = 0;
+		for (long m : micros) {
+			total += m;
+		}
+		return String.format("%d\t%d\t%d", total / micros.length,
+				micros[micros.length / 2], micros[micros.length * 99 / 100]);
+	}
+
+	private static long[] toArray(List<Long> values) {
+		long[] array = new long[values.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = values.get(i);
+		}
+		return array;
+	}
+
+	private static int lookup(TDBStore store, Random random, int subjects) {
+		Model model = store.getModel(modelURI(random.nextInt(MODELS)));
+		Resource subject = model.createResource(NS + "s"
+				+ random.nextInt(subjects));
+		return model.listStatements(subject, null, (RDFNode) null).toList()
+				.size();
+	}
+
+	/**
+	 * Adds the given number of triples to the store, spread over
+	 * {@value #MODELS} models.
+	 */
+	static void populate(TDBStore store, int triples) {
+		int subjects = triples / MODELS / TRIPLES_PER_SUBJECT;
+		for (int m = 0; m < MODELS; m++) {
+			Model model = ModelFactory.createDefaultModel();
+			for (int s = 0; s < subjects; s++) {
+				Resource subject = model.createResource(NS + "s" + s);
+				for (int p = 0; p < TRIPLES_PER_SUBJECT; p++) {
+					Property property = model.createProperty(NS + "p" + p);
+					subject.addProperty(property, "value " + m + " " + s
+							+ " " + p);
+				}
+			}
+			store.addModel(modelURI(m), model);
+		}
+		store.sync();
+	}
+
+	static String modelURI(int index) {
+		return NS + "model/" + index;
+	}
+
+	/**
+	 * @return the value in KB of the given field of
+	 *         <code>/proc/self/status</code>, or -1 if it is not available
+	 */
+	private static long readStatus(String field) {
+		File status = new File("/proc/self/status");
+		if (!status.canRead()) {
+			return -1;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(status));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(field)) {
+					return Long.parseLong(line.substring(field.length())
+							.replace("kB", "").trim());
+				}
+			}
+		} catch (IOException e) {
+			return -1;
+		} finally {
+			IOUtils.closeQuietly(reader);
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,74 @@
+package eu.salusproject.common.triplestore.feed;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * A modification on a named model of a store, as delivered by a
+ * {@link ChangeFeed}.
+ */
+public class ChangeEvent {
+
+	/**
+	 * Kinds of modifications.
+	 */
+	public enum Type {
+		/**
+		 * Model added, no triples; its triples follow as
+		 * {@link #TRIPLES_ADDED} events
+		 */
+		MODEL_ADDED,
+		/** Model removed, no triples */
+		MODEL_REMOVED,
+		/** Triples added */
+		TRIPLES_ADDED,
+		/** Triples removed */
+		TRIPLES_REMOVED,
+		/** Triples matching the given single pattern removed */
+		PATTERN_REMOVED
+	}
+
+	private final long sequence;
+	private final Type type;
+	private final String ontologyURI;
+	private final List<Triple> triples;
+
+	ChangeEvent(long sequence, Type type, String ontologyURI,
+			List<Triple> triples) {
+		this.sequence = sequence;
+		this.type = type;
+		this.ontologyURI = ontologyURI;
+		this.triples = triples == null ? Collections.<Triple> emptyList()
+				: Collections.unmodifiableList(triples);
+	}
+
+	/**
+	 * @return the position of this event in the feed, which can be given to
+	 *         {@link ChangeFeed#subscribe(ChangeSubscriber, long, int)} to
+	 *         resume after this event
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getOntologyURI() {
+		return ontologyURI;
+	}
+
+	public List<Triple> getTriples() {
+		return triples;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d %s %s (%d triples)", sequence, type,
+				ontologyURI, triples.size());
+	}
+
+}
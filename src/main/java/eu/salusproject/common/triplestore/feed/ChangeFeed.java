@@ -0,0 +1,265 @@
+package eu.salusproject.common.triplestore.feed;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+import eu.salusproject.common.triplestore.JenaStore;
+import eu.salusproject.common.triplestore.JenaStoreException;
+import eu.salusproject.common.triplestore.StoreChangeListener;
+
+/**
+ * Change data capture feed of a {@link JenaStore}. The modifications on the
+ * named models of the store are published into a bounded ring buffer, from
+ * which {@link Subscription}s deliver them in batches to their
+ * {@link ChangeSubscriber}s.
+ * <p>
+ * Publishing never waits: sequence numbers are taken from an atomic counter
+ * and events are written into their slots without locking. A subscriber
+ * which falls more than the capacity of the buffer behind is not waited
+ * for, it is notified of the lost range instead. Sequence numbers are
+ * persisted, so that they keep increasing across restarts and subscribers
+ * can resume from the last sequence they have handled, as long as it is
+ * still in the buffer.
+ * <p>
+ * An event carries at most {@link #MAX_EVENT_TRIPLES} triples, larger
+ * modifications are split into consecutive events. The triples of an added
+ * model follow its {@link ChangeEvent.Type#MODEL_ADDED} event as
+ * {@link ChangeEvent.Type#TRIPLES_ADDED} events, so that a large model
+ * neither has to be copied into one event nor takes over the buffer.
+ */
+public class ChangeFeed implements StoreChangeListener {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ChangeFeed.class);
+
+	public static final int DEFAULT_CAPACITY = 64 * 1024;
+	public static final int DEFAULT_BATCH_SIZE = 512;
+	public static final int MAX_EVENT_TRIPLES = 1024;
+
+	/**
+	 * Sequence numbers are reserved in blocks, so that the sequence file is
+	 * rarely written while publishing.
+	 */
+	private static final long RESERVATION = 10000;
+
+	private final File sequenceFile;
+	private final int mask;
+	private final AtomicReferenceArray<ChangeEvent> ring;
+	private final AtomicLong sequence;
+	private final long startSequence;
+	private volatile long reserved;
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+	/**
+	 * Opens the feed whose sequence is persisted in the given file.
+	 *
+	 * @param sequenceFile
+	 * @param capacity
+	 *            number of events kept for subscribers, rounded up to a power
+	 *            of two
+	 * @throws JenaStoreException
+	 */
+	public ChangeFeed(File sequenceFile, int capacity)
+			throws JenaStoreException {
+		this.sequenceFile = sequenceFile;
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.mask = size - 1;
+		this.ring = new AtomicReferenceArray<ChangeEvent>(size);
+		long last = 0;
+		if (sequenceFile.isFile()) {
+			try {
+				last = Long.parseLong(FileUtils.readFileToString(sequenceFile)
+						.trim());
+			} catch (IOException e) {
+				throw new JenaStoreException(String.format(
+						"Cannot read the sequence of the change feed: %s",
+						sequenceFile.getAbsolutePath()), e);
+			}
+		}
+		this.startSequence = last;
+		this.reserved = last;
+		this.sequence = new AtomicLong(last);
+		logger.info("Change feed has been opened at sequence {}", last);
+	}
+
+	/**
+	 * Subscribes to the events after the given sequence number.
+	 *
+	 * @param subscriber
+	 * @param afterSequence
+	 *            the sequence of the last event the subscriber has handled,
+	 *            or {@link #getLastSequence()} to receive new events only
+	 * @param maxBatchSize
+	 * @return the started subscription
+	 */
+	public Subscription subscribe(ChangeSubscriber subscriber,
+			long afterSequence, int maxBatchSize) {
+		Subscription subscription = new Subscription(this, subscriber,
+				afterSequence, maxBatchSize);
+		subscriptions.add(subscription);
+		subscription.start();
+		return subscription;
+	}
+
+	/**
+	 * Subscribes to the events published from now on.
+	 *
+	 * @param subscriber
+	 * @return the started subscription
+	 */
+	public Subscription subscribe(ChangeSubscriber subscriber) {
+		return subscribe(subscriber, getLastSequence(), DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @return the sequence of the last published event
+	 */
+	public long getLastSequence() {
+		return sequence.get();
+	}
+
+	/**
+	 * @return the sequence of the oldest event which can still be delivered
+	 */
+	public long getOldestSequence() {
+		return Math.max(startSequence + 1, sequence.get() - mask);
+	}
+
+	public List<Subscription> getSubscriptions() {
+		return new ArrayList<Subscription>(subscriptions);
+	}
+
+	/**
+	 * Cancels all subscriptions and persists the sequence.
+	 */
+	public void close() {
+		for (Subscription subscription : subscriptions) {
+			subscription.cancel();
+		}
+		synchronized (this) {
+			reserved = sequence.get();
+			writeSequence(reserved);
+		}
+	}
+
+	void unsubscribe(Subscription subscription) {
+		subscriptions.remove(subscription);
+	}
+
+	/**
+	 * @return the event with the given sequence, or <code>null</code> if it
+	 *         has not been published yet
+	 * @throws IndexOutOfBoundsException
+	 *             if the event has already been overwritten
+	 */
+	ChangeEvent get(long seq) {
+		if (seq < getOldestSequence()) {
+			throw new IndexOutOfBoundsException();
+		}
+		ChangeEvent event = ring.get((int) (seq & mask));
+		if (event == null || event.getSequence() < seq) {
+			return null;
+		}
+		if (event.getSequence() > seq) {
+			throw new IndexOutOfBoundsException();
+		}
+		return event;
+	}
+
+	@Override
+	public void modelAdded(String ontologyURI, Model model) {
+		publish(ChangeEvent.Type.MODEL_ADDED, ontologyURI, null);
+		List<Triple> chunk = new ArrayList<Triple>();
+		ExtendedIterator<Triple> it = model.getGraph().find(Triple.ANY);
+		try {
+			while (it.hasNext()) {
+				chunk.add(it.next());
+				if (chunk.size() == MAX_EVENT_TRIPLES) {
+					publish(ChangeEvent.Type.TRIPLES_ADDED, ontologyURI, chunk);
+					chunk = new ArrayList<Triple>();
+				}
+			}
+		} finally {
+			it.close();
+		}
+		if (!chunk.isEmpty()) {
+			publish(ChangeEvent.Type.TRIPLES_ADDED, ontologyURI, chunk);
+		}
+	}
+
+	@Override
+	public void modelRemoved(String ontologyURI) {
+		publish(ChangeEvent.Type.MODEL_REMOVED, ontologyURI, null);
+	}
+
+	@Override
+	public void triplesAdded(String ontologyURI, List<Triple> triples) {
+		publishChunks(ChangeEvent.Type.TRIPLES_ADDED, ontologyURI, triples);
+	}
+
+	@Override
+	public void triplesRemoved(String ontologyURI, List<Triple> triples) {
+		publishChunks(ChangeEvent.Type.TRIPLES_REMOVED, ontologyURI, triples);
+	}
+
+	@Override
+	public void patternRemoved(String ontologyURI, Triple pattern) {
+		List<Triple> triples = new ArrayList<Triple>(1);
+		triples.add(pattern);
+		publish(ChangeEvent.Type.PATTERN_REMOVED, ontologyURI, triples);
+	}
+
+	private void publishChunks(ChangeEvent.Type type, String ontologyURI,
+			List<Triple> triples) {
+		for (int from = 0; from < triples.size(); from += MAX_EVENT_TRIPLES) {
+			int to = Math.min(triples.size(), from + MAX_EVENT_TRIPLES);
+			publish(type, ontologyURI, new ArrayList<Triple>(triples.subList(
+					from, to)));
+		}
+	}
+
+	private void publish(ChangeEvent.Type type, String ontologyURI,
+			List<Triple> triples) {
+		long seq = sequence.incrementAndGet();
+		if (seq > reserved) {
+			reserve(seq);
+		}
+		ring.set((int) (seq & mask), new ChangeEvent(seq, type, ontologyURI,
+				triples));
+		for (Subscription subscription : subscriptions) {
+			subscription.wakeUp();
+		}
+	}
+
+	private synchronized void reserve(long seq) {
+		if (seq > reserved) {
+			reserved = seq + RESERVATION;
+			writeSequence(reserved);
+		}
+	}
+
+	private void writeSequence(long value) {
+		try {
+			FileUtils.writeStringToFile(sequenceFile, String.valueOf(value));
+		} catch (IOException e) {
+			// The feed keeps working, but sequences may repeat after a
+			// restart
+			logger.error("Cannot persist the sequence of the change feed: {}",
+					sequenceFile.getAbsolutePath(), e);
+		}
+	}
+
+}
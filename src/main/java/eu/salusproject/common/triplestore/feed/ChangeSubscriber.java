@@ -0,0 +1,34 @@
+package eu.salusproject.common.triplestore.feed;
+
+import java.util.List;
+
+/**
+ * Consumer of a {@link ChangeFeed}. Each subscription delivers the events on
+ * its own thread and waits for a batch to be handled before delivering the
+ * next one, so a subscriber is never called concurrently and consumes at its
+ * own pace.
+ */
+public interface ChangeSubscriber {
+
+	/**
+	 * Handles the next events of the feed, in sequence order. An exception
+	 * thrown by this method cancels the subscription.
+	 *
+	 * @param events
+	 */
+	public void onBatch(List<ChangeEvent> events);
+
+	/**
+	 * Called when the subscriber has fallen so far behind that the events
+	 * from <code>lostFrom</code> have been overwritten in the feed. The
+	 * delivery continues with the oldest available event,
+	 * <code>resumedAt</code>; the subscriber should resynchronize the lost
+	 * range from the store, e.g. by re-reading the affected models. An
+	 * exception thrown by this method cancels the subscription.
+	 *
+	 * @param lostFrom
+	 * @param resumedAt
+	 */
+	public void onOverrun(long lostFrom, long resumedAt);
+
+}
@@ -0,0 +1,161 @@
+package eu.salusproject.common.triplestore.feed;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivery of the events of a {@link ChangeFeed} to a
+ * {@link ChangeSubscriber}. The events are read from the feed by a dedicated
+ * thread and handed to the subscriber in batches of at most the configured
+ * size; the next batch is read only once the previous one has been handled.
+ */
+public class Subscription implements Runnable {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(Subscription.class);
+
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+	private static final AtomicInteger counter = new AtomicInteger();
+
+	private final ChangeFeed feed;
+	private final ChangeSubscriber subscriber;
+	private final int maxBatchSize;
+	private final Thread thread;
+
+	private volatile long position;
+	private volatile long delivered;
+	private volatile long overruns;
+	private volatile boolean cancelled;
+
+	Subscription(ChangeFeed feed, ChangeSubscriber subscriber,
+			long afterSequence, int maxBatchSize) {
+		this.feed = feed;
+		this.subscriber = subscriber;
+		this.position = afterSequence;
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+		this.thread = new Thread(this, "change-feed-"
+				+ counter.incrementAndGet());
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	void wakeUp() {
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * @return the sequence of the last event handled by the subscriber, from
+	 *         which it can resume after a restart
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return the number of published events not yet handled by the
+	 *         subscriber
+	 */
+	public long getLag() {
+		return Math.max(0, feed.getLastSequence() - position);
+	}
+
+	/**
+	 * @return the number of events handled by the subscriber
+	 */
+	public long getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * @return the number of times the subscriber has fallen behind the
+	 *         capacity of the feed
+	 */
+	public long getOverruns() {
+		return overruns;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Stops the delivery. The batch being handled, if any, is completed.
+	 */
+	public void cancel() {
+		cancelled = true;
+		feed.unsubscribe(this);
+		wakeUp();
+	}
+
+	@Override
+	public void run() {
+		while (!cancelled) {
+			List<ChangeEvent> batch = poll();
+			if (batch.isEmpty()) {
+				LockSupport.parkNanos(this, IDLE_NANOS);
+				continue;
+			}
+			try {
+				subscriber.onBatch(batch);
+			} catch (RuntimeException e) {
+				logger.error(
+						"Change feed subscriber failed at sequence {}, the subscription is cancelled",
+						batch.get(0).getSequence(), e);
+				cancel();
+				return;
+			}
+			position = batch.get(batch.size() - 1).getSequence();
+			delivered += batch.size();
+		}
+	}
+
+	private List<ChangeEvent> poll() {
+		List<ChangeEvent> batch = new ArrayList<ChangeEvent>();
+		long next = position + 1;
+		while (batch.size() < maxBatchSize) {
+			ChangeEvent event;
+			try {
+				event = feed.get(next);
+			} catch (IndexOutOfBoundsException e) {
+				if (!batch.isEmpty()) {
+					// deliver what has been read, the overrun is detected in
+					// the next poll
+					break;
+				}
+				long oldest = feed.getOldestSequence();
+				overruns++;
+				logger.warn(
+						"Change feed subscriber has lost the events from {}, resuming at {}",
+						next, oldest);
+				try {
+					subscriber.onOverrun(next, oldest);
+				} catch (RuntimeException failure) {
+					logger.error(
+							"Change feed subscriber failed on the overrun at sequence {}, the subscription is cancelled",
+							next, failure);
+					cancel();
+					return batch;
+				}
+				position = oldest - 1;
+				next = oldest;
+				continue;
+			}
+			if (event == null) {
+				break;
+			}
+			batch.add(event);
+			next++;
+		}
+		return batch;
+	}
+
+}
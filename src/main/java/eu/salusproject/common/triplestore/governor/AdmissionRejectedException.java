@@ -0,0 +1,18 @@
+package eu.salusproject.common.triplestore.governor;
+
+import com.hp.hpl.jena.shared.JenaException;
+
+/**
+ * Thrown when a {@link StoreGovernor} does not admit an operation because its
+ * queue is full or the operation has waited longer than the admission
+ * timeout. The operation has not been started and may be retried later.
+ */
+public class AdmissionRejectedException extends JenaException {
+
+	private static final long serialVersionUID = 1L;
+
+	public AdmissionRejectedException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,343 @@
+package eu.salusproject.common.triplestore.governor;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.ontology.OntModel;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ReadWrite;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.shared.JenaException;
+
+import eu.salusproject.common.triplestore.JenaStore;
+import eu.salusproject.common.triplestore.JenaStoreException;
+import eu.salusproject.common.triplestore.ModelPage;
+import eu.salusproject.common.triplestore.StoreChangeListener;
+import eu.salusproject.common.triplestore.StoreQueryExecutionFactory;
+import eu.salusproject.common.triplestore.feed.ChangeFeed;
+import eu.salusproject.common.triplestore.inference.InferenceConfig;
+import eu.salusproject.common.triplestore.io.DumpOptions;
+import eu.salusproject.common.triplestore.io.DumpReport;
+import eu.salusproject.common.triplestore.shard.ShardedStore;
+import eu.salusproject.common.triplestore.stats.GraphStatistics;
+
+/**
+ * {@link JenaStore} whose operations are admitted by the
+ * {@link StoreGovernor} of the underlying store, on behalf of callers of a
+ * given {@link Priority}. Reads take a {@link OperationType#READ} permit,
+ * the creation and removal of models, syncs and commits a
+ * {@link OperationType#WRITE} permit, and the loading of files and models
+ * and the rebuilding of indexes an {@link OperationType#IMPORT} permit.
+ * <p>
+ * The permit only covers the call itself; the returned models are the live
+ * models of the underlying store. Queries should therefore be run by
+ * {@link #select(String)}, which also enforces the timeout, row and
+ * allocation caps of the governor.
+ */
+public class GovernedStore implements JenaStore {
+
+	private final JenaStore store;
+	private final StoreGovernor governor;
+	private final Priority priority;
+
+	public GovernedStore(JenaStore store, StoreGovernor governor,
+			Priority priority) {
+		this.store = store;
+		this.governor = governor;
+		this.priority = priority;
+	}
+
+	public JenaStore getStore() {
+		return store;
+	}
+
+	public StoreGovernor getGovernor() {
+		return governor;
+	}
+
+	public Priority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Runs the SPARQL SELECT query over the named models of the store within
+	 * the limits of the governor. The query on a {@link ShardedStore} is run
+	 * by {@link ShardedStore#select(String, Priority)} within the limits of
+	 * the governors of its shards.
+	 *
+	 * @param queryString
+	 * @return
+	 * @throws AdmissionRejectedException
+	 *             if the query has not been admitted
+	 * @throws QueryLimitExceededException
+	 *             if the query has been cancelled by its timeout or its
+	 *             allocation cap
+	 * @throws JenaException
+	 *             if the sharded store does not support the query
+	 */
+	public SelectResult select(String queryString) {
+		Query query = QueryFactory.create(queryString);
+		governor.acquire(OperationType.READ, priority);
+		try {
+			if (store instanceof ShardedStore) {
+				return ((ShardedStore) store).select(queryString, priority);
+			}
+			return governor.execSelect(StoreQueryExecutionFactory.create(
+					store, query));
+		} catch (JenaStoreException e) {
+			throw new JenaException(e.getMessage(), e);
+		} finally {
+			governor.release(OperationType.READ);
+		}
+	}
+
+	@Override
+	public OntModel createOntModel(String ontologyURI)
+			throws JenaStoreException {
+		governor.acquire(OperationType.WRITE, priority);
+		try {
+			return store.createOntModel(ontologyURI);
+		} finally {
+			governor.release(OperationType.WRITE);
+		}
+	}
+
+	@Override
+	public OntModel createOntModel(String ontologyURI, String baseURI,
+			String ontologyFilePath) throws JenaStoreException {
+		governor.acquire(OperationType.IMPORT, priority);
+		try {
+			return store.createOntModel(ontologyURI, baseURI, ontologyFilePath);
+		} finally {
+			governor.release(OperationType.IMPORT);
+		}
+	}
+
+	@Override
+	public OntModel createOntModel(String ontologyURI, String baseURI,
+			String ontologyFilePath, String format) throws JenaStoreException {
+		governor.acquire(OperationType.IMPORT, priority);
+		try {
+			return store.createOntModel(ontologyURI, baseURI,
+					ontologyFilePath, format);
+		} finally {
+			governor.release(OperationType.IMPORT);
+		}
+	}
+
+	@Override
+	public Model addModel(String ontologyURI, Model model) {
+		governor.acquire(OperationType.IMPORT, priority);
+		try {
+			return store.addModel(ontologyURI, model);
+		} finally {
+			governor.release(OperationType.IMPORT);
+		}
+	}
+
+	@Override
+	public OntModel getOntModel(String ontologyURI) {
+		governor.acquire(OperationType.READ, priority);
+		try {
+			return store.getOntModel(ontologyURI);
+		} finally {
+			governor.release(OperationType.READ);
+		}
+	}
+
+	@Override
+	public void setInferenceConfig(String ontologyURI, InferenceConfig config)
+			throws JenaStoreException {
+		governor.acquire(OperationType.WRITE, priority);
+		try {
+			store.setInferenceConfig(ontologyURI, config);
+		} finally {
+			governor.release(OperationType.WRITE);
+		}
+	}
+
+	@Override
+	public InferenceConfig getInferenceConfig(String ontologyURI) {
+		return store.getInferenceConfig(ontologyURI);
+	}
+
+	@Override
+	public Model getInferredModel(String ontologyURI) {
+		governor.acquire(OperationType.READ, priority);
+		try {
+			return store.getInferredModel(ontologyURI);
+		} finally {
+			governor.release(OperationType.READ);
+		}
+	}
+
+	@Override
+	public GraphStatistics getStatistics(String ontologyURI) {
+		return store.getStatistics(ontologyURI);
+	}
+
+	@Override
+	public GraphStatistics getStatistics() {
+		return store.getStatistics();
+	}
+
+	@Override
+	public Model getModel(String ontologyURI) {
+		governor.acquire(OperationType.READ, priority);
+		try {
+			return store.getModel(ontologyURI);
+		} finally {
+			governor.release(OperationType.READ);
+		}
+	}
+
+	@Override
+	public boolean hasModel(String ontologyURI) {
+		governor.acquire(OperationType.READ, priority);
+		try {
+			return store.hasModel(ontologyURI);
+		} finally {
+			governor.release(OperationType.READ);
+		}
+	}
+
+	@Override
+	public List<String> listModels() {
+		governor.acquire(OperationType.READ, priority);
+		try {
+			return store.listModels();
+		} finally {
+			governor.release(OperationType.READ);
+		}
+	}
+
+	@Override
+	public ModelPage listModels(String prefix, String cursor, int limit) {
+		governor.acquire(OperationType.READ, priority);
+		try {
+			return store.listModels(prefix, cursor, limit);
+		} finally {
+			governor.release(OperationType.READ);
+		}
+	}
+
+	@Override
+	public void removeModel(String ontologyURI) {
+		governor.acquire(OperationType.WRITE, priority);
+		try {
+			store.removeModel(ontologyURI);
+		} finally {
+			governor.release(OperationType.WRITE);
+		}
+	}
+
+	@Override
+	public int removeModels(Collection<String> ontologyURIs) {
+		governor.acquire(OperationType.WRITE, priority);
+		try {
+			return store.removeModels(ontologyURIs);
+		} finally {
+			governor.release(OperationType.WRITE);
+		}
+	}
+
+	@Override
+	public void begin(ReadWrite readWrite) {
+		store.begin(readWrite);
+	}
+
+	@Override
+	public void end() {
+		store.end();
+	}
+
+	@Override
+	public void commit() {
+		governor.acquire(OperationType.WRITE, priority);
+		try {
+			store.commit();
+		} finally {
+			governor.release(OperationType.WRITE);
+		}
+	}
+
+	@Override
+	public void sync() {
+		governor.acquire(OperationType.WRITE, priority);
+		try {
+			store.sync();
+		} finally {
+			governor.release(OperationType.WRITE);
+		}
+	}
+
+	@Override
+	public void setAutoSync(boolean autoSync) {
+		store.setAutoSync(autoSync);
+	}
+
+	@Override
+	public void close() {
+		store.close();
+	}
+
+	@Override
+	public void updateIndex() {
+		governor.acquire(OperationType.IMPORT, priority);
+		try {
+			store.updateIndex();
+		} finally {
+			governor.release(OperationType.IMPORT);
+		}
+	}
+
+	@Override
+	public void updateIndex(String ontologyURI) {
+		governor.acquire(OperationType.IMPORT, priority);
+		try {
+			store.updateIndex(ontologyURI);
+		} finally {
+			governor.release(OperationType.IMPORT);
+		}
+	}
+
+	@Override
+	public void remove() throws JenaStoreException {
+		store.remove();
+	}
+
+	@Override
+	public DumpReport dump(File targetDirectory, DumpOptions options)
+			throws JenaStoreException {
+		governor.acquire(OperationType.READ, priority);
+		try {
+			return store.dump(targetDirectory, options);
+		} finally {
+			governor.release(OperationType.READ);
+		}
+	}
+
+	@Override
+	public void addChangeListener(StoreChangeListener listener) {
+		store.addChangeListener(listener);
+	}
+
+	@Override
+	public void removeChangeListener(StoreChangeListener listener) {
+		store.removeChangeListener(listener);
+	}
+
+	@Override
+	public ChangeFeed getChangeFeed() throws JenaStoreException {
+		return store.getChangeFeed();
+	}
+
+	@Override
+	public Graph getGraph() {
+		return store.getGraph();
+	}
+
+}
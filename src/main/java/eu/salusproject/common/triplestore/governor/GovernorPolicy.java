@@ -0,0 +1,125 @@
+package eu.salusproject.common.triplestore.governor;
+
+/**
+ * Limits enforced by a {@link StoreGovernor}: the number of concurrent
+ * operations per {@link OperationType}, the depth of the queues of waiting
+ * operations, how long an operation may wait for admission, and the
+ * timeout, row and allocation caps of a governed query. A limit of
+ * <code>0</code> disables the corresponding cap.
+ */
+public class GovernorPolicy {
+
+	private int readPermits;
+	private int writePermits;
+	private int importPermits;
+	private int maxQueueDepth;
+	private long admissionTimeoutMillis;
+	private long queryTimeoutMillis;
+	private int maxRows;
+	private long maxQueryAllocationBytes;
+
+	/**
+	 * Creates a policy with the default limits: two concurrent reads per
+	 * processor, a single write and a single import, 100 waiting operations
+	 * per kind, 30 seconds of admission wait, and queries limited to one
+	 * minute, 100000 rows and 512 MB of allocation.
+	 */
+	public GovernorPolicy() {
+		this.readPermits = 2 * Runtime.getRuntime().availableProcessors();
+		this.writePermits = 1;
+		this.importPermits = 1;
+		this.maxQueueDepth = 100;
+		this.admissionTimeoutMillis = 30000;
+		this.queryTimeoutMillis = 60000;
+		this.maxRows = 100000;
+		this.maxQueryAllocationBytes = 512L * 1024 * 1024;
+	}
+
+	public int getPermits(OperationType type) {
+		switch (type) {
+		case WRITE:
+			return writePermits;
+		case IMPORT:
+			return importPermits;
+		default:
+			return readPermits;
+		}
+	}
+
+	public int getReadPermits() {
+		return readPermits;
+	}
+
+	public void setReadPermits(int readPermits) {
+		this.readPermits = readPermits;
+	}
+
+	public int getWritePermits() {
+		return writePermits;
+	}
+
+	public void setWritePermits(int writePermits) {
+		this.writePermits = writePermits;
+	}
+
+	public int getImportPermits() {
+		return importPermits;
+	}
+
+	public void setImportPermits(int importPermits) {
+		this.importPermits = importPermits;
+	}
+
+	/**
+	 * @return the number of operations of one kind which may wait for a
+	 *         permit, further operations are rejected
+	 */
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	public void setMaxQueueDepth(int maxQueueDepth) {
+		this.maxQueueDepth = maxQueueDepth;
+	}
+
+	public long getAdmissionTimeoutMillis() {
+		return admissionTimeoutMillis;
+	}
+
+	public void setAdmissionTimeoutMillis(long admissionTimeoutMillis) {
+		this.admissionTimeoutMillis = admissionTimeoutMillis;
+	}
+
+	public long getQueryTimeoutMillis() {
+		return queryTimeoutMillis;
+	}
+
+	public void setQueryTimeoutMillis(long queryTimeoutMillis) {
+		this.queryTimeoutMillis = queryTimeoutMillis;
+	}
+
+	/**
+	 * @return the number of rows after which the result of a query is
+	 *         truncated
+	 */
+	public int getMaxRows() {
+		return maxRows;
+	}
+
+	public void setMaxRows(int maxRows) {
+		this.maxRows = maxRows;
+	}
+
+	/**
+	 * @return the number of bytes a query may allocate while its results
+	 *         are read, after which it is cancelled
+	 */
+	public long getMaxQueryAllocationBytes() {
+		return maxQueryAllocationBytes;
+	}
+
+	public void setMaxQueryAllocationBytes(long maxQueryAllocationBytes) {
+		this.maxQueryAllocationBytes = maxQueryAllocationBytes;
+	}
+
+}
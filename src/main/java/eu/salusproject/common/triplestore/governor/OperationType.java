@@ -0,0 +1,20 @@
+package eu.salusproject.common.triplestore.governor;
+
+/**
+ * Kinds of operations on a store, each of which has its own pool of
+ * concurrency permits in a {@link StoreGovernor}.
+ */
+public enum OperationType {
+	/**
+	 * Queries and reads of models, lists and statistics
+	 */
+	READ,
+	/**
+	 * Creation and removal of models, syncs and commits
+	 */
+	WRITE,
+	/**
+	 * Loading of ontology files and models, and rebuilding of text indexes
+	 */
+	IMPORT
+}
@@ -0,0 +1,16 @@
+package eu.salusproject.common.triplestore.governor;
+
+/**
+ * Priority of the callers of a governed store. Waiting interactive callers
+ * are always admitted before waiting batch callers.
+ */
+public enum Priority {
+	/**
+	 * Callers serving a user who waits for the answer
+	 */
+	INTERACTIVE,
+	/**
+	 * Background callers such as imports, exports and reports
+	 */
+	BATCH
+}
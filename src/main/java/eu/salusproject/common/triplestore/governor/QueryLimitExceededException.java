@@ -0,0 +1,21 @@
+package eu.salusproject.common.triplestore.governor;
+
+import com.hp.hpl.jena.shared.JenaException;
+
+/**
+ * Thrown when a governed query has been cancelled because it exceeded its
+ * timeout or its allocation budget.
+ */
+public class QueryLimitExceededException extends JenaException {
+
+	private static final long serialVersionUID = 1L;
+
+	public QueryLimitExceededException(String message) {
+		super(message);
+	}
+
+	public QueryLimitExceededException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
@@ -0,0 +1,44 @@
+package eu.salusproject.common.triplestore.governor;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.hp.hpl.jena.query.QuerySolution;
+
+/**
+ * Solutions of a governed SELECT query.
+ */
+public class SelectResult {
+
+	private final List<QuerySolution> solutions;
+	private final boolean truncated;
+	private final long elapsedMillis;
+
+	public SelectResult(List<QuerySolution> solutions, boolean truncated,
+			long elapsedMillis) {
+		this.solutions = Collections.unmodifiableList(solutions);
+		this.truncated = truncated;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	public List<QuerySolution> getSolutions() {
+		return solutions;
+	}
+
+	/**
+	 * @return whether the query had more solutions than the row cap of the
+	 *         governor
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * @return the execution time of the query, without the time it waited
+	 *         for admission
+	 */
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+}
@@ -0,0 +1,485 @@
+package eu.salusproject.common.triplestore.governor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ResultSet;
+
+/**
+ * Admission control and resource governor of a store. Every operation
+ * acquires a permit of its {@link OperationType} before it runs, so that
+ * reads, writes and imports are limited separately and a bulk import cannot
+ * take the permits of the queries. When all permits are taken, the
+ * operation waits in a queue in which {@link Priority#INTERACTIVE} callers
+ * precede {@link Priority#BATCH} callers. An operation is rejected with an
+ * {@link AdmissionRejectedException} when its queue is full or when it has
+ * waited longer than the admission timeout, so that an overloaded store
+ * answers quickly instead of piling up threads.
+ * <p>
+ * Queries executed by {@link #execSelect(QueryExecution)} are aborted by a
+ * watchdog at their timeout or as soon as their thread has allocated more
+ * than the allocation cap, which the watchdog polls while the query runs,
+ * and truncated at the row cap.
+ * <p>
+ * The governor publishes its queue depths and counters as a
+ * {@link StoreGovernorMXBean} once {@link #register()} has been called.
+ */
+public class StoreGovernor implements StoreGovernorMXBean {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(StoreGovernor.class);
+
+	public static final String OBJECT_NAME_PREFIX = "eu.salusproject.triplestore:type=StoreGovernor,name=";
+
+	/**
+	 * Interval at which the watchdog polls the allocation of a running query
+	 */
+	private static final long ALLOCATION_POLL_MILLIS = 20;
+
+	private static final ScheduledThreadPoolExecutor watchdog = createWatchdog();
+
+	private final String name;
+	private volatile GovernorPolicy policy;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Pool[] pools;
+	private long sequence;
+	private ObjectName objectName;
+
+	private final AtomicLong admittedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong admissionTimeoutCount = new AtomicLong();
+	private final AtomicLong cancelledQueryCount = new AtomicLong();
+	private final AtomicLong truncatedQueryCount = new AtomicLong();
+
+	/**
+	 * @param name
+	 *            name of the governed store, used in messages and in the name
+	 *            of the MXBean
+	 * @param policy
+	 */
+	public StoreGovernor(String name, GovernorPolicy policy) {
+		this.name = name;
+		this.policy = policy;
+		this.pools = new Pool[OperationType.values().length];
+		for (int i = 0; i < pools.length; i++) {
+			pools[i] = new Pool();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public GovernorPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Replaces the policy of the governor. Running operations keep their
+	 * permits; if permits have been added, waiting operations are admitted.
+	 *
+	 * @param policy
+	 */
+	public void setPolicy(GovernorPolicy policy) {
+		lock.lock();
+		try {
+			this.policy = policy;
+			for (OperationType type : OperationType.values()) {
+				dispatch(type);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for a permit of the given type. Every successful call must be
+	 * followed by a call of {@link #release(OperationType)}.
+	 *
+	 * @param type
+	 * @param priority
+	 * @throws AdmissionRejectedException
+	 *             if the queue of the type is full, the admission timeout
+	 *             has elapsed or the thread has been interrupted
+	 */
+	public void acquire(OperationType type, Priority priority) {
+		GovernorPolicy policy = this.policy;
+		Pool pool = pools[type.ordinal()];
+		lock.lock();
+		try {
+			if (pool.waiters.isEmpty()
+					&& pool.active < policy.getPermits(type)) {
+				pool.active++;
+				admittedCount.incrementAndGet();
+				return;
+			}
+			if (pool.waiters.size() >= policy.getMaxQueueDepth()) {
+				rejectedCount.incrementAndGet();
+				throw new AdmissionRejectedException(String.format(
+						"%s queue of store %s is full, %d operations are waiting",
+						type, name, pool.waiters.size()));
+			}
+			Waiter waiter = new Waiter(priority, sequence++,
+					lock.newCondition());
+			pool.waiters.add(waiter);
+			long nanos = TimeUnit.MILLISECONDS.toNanos(policy
+					.getAdmissionTimeoutMillis());
+			try {
+				while (!waiter.granted) {
+					if (nanos <= 0) {
+						pool.waiters.remove(waiter);
+						admissionTimeoutCount.incrementAndGet();
+						throw new AdmissionRejectedException(String.format(
+								"%s operation on store %s has not been admitted within %d ms",
+								type, name, policy.getAdmissionTimeoutMillis()));
+					}
+					nanos = waiter.condition.awaitNanos(nanos);
+				}
+			} catch (InterruptedException e) {
+				if (waiter.granted) {
+					pool.active--;
+					dispatch(type);
+				} else {
+					pool.waiters.remove(waiter);
+				}
+				Thread.currentThread().interrupt();
+				throw new AdmissionRejectedException(String.format(
+						"Interrupted while waiting for admission to store %s",
+						name));
+			}
+			admittedCount.incrementAndGet();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a permit taken by {@link #acquire(OperationType, Priority)} and
+	 * admits the first waiting operation of the type.
+	 *
+	 * @param type
+	 */
+	public void release(OperationType type) {
+		lock.lock();
+		try {
+			pools[type.ordinal()].active--;
+			dispatch(type);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void dispatch(OperationType type) {
+		Pool pool = pools[type.ordinal()];
+		int permits = policy.getPermits(type);
+		while (pool.active < permits && !pool.waiters.isEmpty()) {
+			Waiter waiter = pool.waiters.poll();
+			waiter.granted = true;
+			pool.active++;
+			waiter.condition.signal();
+		}
+	}
+
+	/**
+	 * Executes the SELECT query and reads its solutions within the timeout,
+	 * row and allocation caps of the policy. The execution is closed. The
+	 * caller is expected to hold a {@link OperationType#READ} permit.
+	 *
+	 * @param qexec
+	 * @return
+	 * @throws QueryLimitExceededException
+	 *             if the query has been cancelled by its timeout or its
+	 *             allocation cap
+	 */
+	public SelectResult execSelect(final QueryExecution qexec) {
+		final GovernorPolicy policy = this.policy;
+		long start = System.currentTimeMillis();
+		final AtomicBoolean timedOut = new AtomicBoolean();
+		final AtomicLong overAllocation = new AtomicLong(-1);
+		ScheduledFuture<?> abort = null;
+		if (policy.getQueryTimeoutMillis() > 0) {
+			abort = watchdog.schedule(new Runnable() {
+				@Override
+				public void run() {
+					timedOut.set(true);
+					qexec.abort();
+				}
+			}, policy.getQueryTimeoutMillis(), TimeUnit.MILLISECONDS);
+		}
+		ScheduledFuture<?> allocationPoll = null;
+		final long threadId = Thread.currentThread().getId();
+		final long allocationStart = allocatedBytes(threadId);
+		if (policy.getMaxQueryAllocationBytes() > 0 && allocationStart >= 0) {
+			allocationPoll = watchdog.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					long allocated = allocatedBytes(threadId) - allocationStart;
+					if (allocated > policy.getMaxQueryAllocationBytes()
+							&& overAllocation.compareAndSet(-1, allocated)) {
+						qexec.abort();
+					}
+				}
+			}, ALLOCATION_POLL_MILLIS, ALLOCATION_POLL_MILLIS,
+					TimeUnit.MILLISECONDS);
+		}
+		List<QuerySolution> solutions = new ArrayList<QuerySolution>();
+		boolean truncated = false;
+		try {
+			ResultSet results = qexec.execSelect();
+			while (results.hasNext()) {
+				if (policy.getMaxRows() > 0
+						&& solutions.size() >= policy.getMaxRows()) {
+					truncated = true;
+					break;
+				}
+				solutions.add(results.next());
+			}
+			if (overAllocation.get() >= 0) {
+				throw allocationExceeded(overAllocation.get(), null);
+			}
+			if (timedOut.get()) {
+				throw timeout(policy, null);
+			}
+		} catch (QueryLimitExceededException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			if (overAllocation.get() >= 0) {
+				throw allocationExceeded(overAllocation.get(), e);
+			}
+			if (timedOut.get()) {
+				throw timeout(policy, e);
+			}
+			throw e;
+		} finally {
+			if (abort != null) {
+				abort.cancel(false);
+			}
+			if (allocationPoll != null) {
+				allocationPoll.cancel(false);
+			}
+			qexec.close();
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		if (truncated) {
+			truncatedQueryCount.incrementAndGet();
+			logger.info(
+					"Result of a query on store {} has been truncated at {} rows",
+					name, solutions.size());
+		}
+		return new SelectResult(solutions, truncated, elapsed);
+	}
+
+	private QueryLimitExceededException allocationExceeded(long allocated,
+			Throwable cause) {
+		cancelledQueryCount.incrementAndGet();
+		return new QueryLimitExceededException(String.format(
+				"Query on store %s has been cancelled after allocating %d bytes",
+				name, allocated), cause);
+	}
+
+	private QueryLimitExceededException timeout(GovernorPolicy policy,
+			Throwable cause) {
+		cancelledQueryCount.incrementAndGet();
+		return new QueryLimitExceededException(String.format(
+				"Query on store %s has been cancelled after %d ms", name,
+				policy.getQueryTimeoutMillis()), cause);
+	}
+
+	/**
+	 * @param threadId
+	 * @return the number of bytes allocated by the given thread, or -1 if the
+	 *         JVM does not measure it
+	 */
+	private static long allocatedBytes(long threadId) {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+			if (sunThreads.isThreadAllocatedMemorySupported()
+					&& sunThreads.isThreadAllocatedMemoryEnabled()) {
+				return sunThreads.getThreadAllocatedBytes(threadId);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Publishes the metrics of the governor on the platform MBean server.
+	 */
+	public synchronized void register() {
+		if (objectName != null) {
+			return;
+		}
+		try {
+			ObjectName objectName = new ObjectName(OBJECT_NAME_PREFIX
+					+ ObjectName.quote(name));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(this, objectName);
+			this.objectName = objectName;
+		} catch (JMException e) {
+			logger.warn("Cannot register the metrics of the governor of {}",
+					name, e);
+		}
+	}
+
+	/**
+	 * Removes the metrics of the governor from the platform MBean server.
+	 */
+	public synchronized void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					objectName);
+		} catch (JMException e) {
+			logger.warn("Cannot unregister the metrics of the governor of {}",
+					name, e);
+		}
+		objectName = null;
+	}
+
+	private int active(OperationType type) {
+		lock.lock();
+		try {
+			return pools[type.ordinal()].active;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int queued(OperationType type) {
+		lock.lock();
+		try {
+			return pools[type.ordinal()].waiters.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int getActiveReads() {
+		return active(OperationType.READ);
+	}
+
+	@Override
+	public int getActiveWrites() {
+		return active(OperationType.WRITE);
+	}
+
+	@Override
+	public int getActiveImports() {
+		return active(OperationType.IMPORT);
+	}
+
+	@Override
+	public int getQueuedReads() {
+		return queued(OperationType.READ);
+	}
+
+	@Override
+	public int getQueuedWrites() {
+		return queued(OperationType.WRITE);
+	}
+
+	@Override
+	public int getQueuedImports() {
+		return queued(OperationType.IMPORT);
+	}
+
+	@Override
+	public long getAdmittedCount() {
+		return admittedCount.get();
+	}
+
+	@Override
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	@Override
+	public long getAdmissionTimeoutCount() {
+		return admissionTimeoutCount.get();
+	}
+
+	@Override
+	public long getCancelledQueryCount() {
+		return cancelledQueryCount.get();
+	}
+
+	@Override
+	public long getTruncatedQueryCount() {
+		return truncatedQueryCount.get();
+	}
+
+	private static ScheduledThreadPoolExecutor createWatchdog() {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+				1, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "store-governor-watchdog");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.setRemoveOnCancelPolicy(true);
+		return executor;
+	}
+
+	/**
+	 * Permits of one {@link OperationType}.
+	 */
+	private static class Pool {
+		int active;
+		final PriorityQueue<Waiter> waiters = new PriorityQueue<Waiter>();
+	}
+
+	/**
+	 * Operation waiting for a permit, ordered by priority and then by
+	 * arrival.
+	 */
+	private static class Waiter implements Comparable<Waiter> {
+		final Priority priority;
+		final long sequence;
+		final Condition condition;
+		boolean granted;
+
+		Waiter(Priority priority, long sequence, Condition condition) {
+			this.priority = priority;
+			this.sequence = sequence;
+			this.condition = condition;
+		}
+
+		@Override
+		public int compareTo(Waiter other) {
+			if (priority != other.priority) {
+				return priority.compareTo(other.priority);
+			}
+			return sequence < other.sequence ? -1
+					: sequence == other.sequence ? 0 : 1;
+		}
+	}
+
+}
@@ -0,0 +1,47 @@
+package eu.salusproject.common.triplestore.governor;
+
+/**
+ * Metrics of a {@link StoreGovernor}, published over JMX.
+ */
+public interface StoreGovernorMXBean {
+
+	public int getActiveReads();
+
+	public int getActiveWrites();
+
+	public int getActiveImports();
+
+	public int getQueuedReads();
+
+	public int getQueuedWrites();
+
+	public int getQueuedImports();
+
+	/**
+	 * @return the number of operations which have been admitted
+	 */
+	public long getAdmittedCount();
+
+	/**
+	 * @return the number of operations rejected because their queue was full
+	 */
+	public long getRejectedCount();
+
+	/**
+	 * @return the number of operations rejected because they waited longer
+	 *         than the admission timeout
+	 */
+	public long getAdmissionTimeoutCount();
+
+	/**
+	 * @return the number of queries cancelled by their timeout or allocation
+	 *         cap
+	 */
+	public long getCancelledQueryCount();
+
+	/**
+	 * @return the number of query results truncated by the row cap
+	 */
+	public long getTruncatedQueryCount();
+
+}
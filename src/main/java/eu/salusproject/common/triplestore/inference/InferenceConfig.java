@@ -0,0 +1,155 @@
+package eu.salusproject.common.triplestore.inference;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.hp.hpl.jena.ontology.OntModelSpec;
+import com.hp.hpl.jena.reasoner.rulesys.Rule;
+
+/**
+ * Inference settings of a named model: the {@link OntModelSpec} of the
+ * {@link com.hp.hpl.jena.ontology.OntModel}s returned for the model, and
+ * optionally the rule set whose entailments are materialized into a
+ * companion named graph.
+ * <p>
+ * The {@link OntModelSpec} is given by the name of one of its constants,
+ * e.g. <code>OWL_DL_MEM</code> or <code>OWL_MEM_MICRO_RULE_INF</code>. A
+ * spec with a reasoner re-reasons over the model whenever an OntModel is
+ * requested; a materialized rule set is evaluated once and maintained as the
+ * model changes, so that its entailments are read like asserted triples.
+ */
+public class InferenceConfig {
+
+	/**
+	 * Forward RDFS rules, without the rdfs:Resource typing of every resource.
+	 */
+	public static final String RULES_RDFS = "rdfs";
+
+	/**
+	 * Forward rules of the OWL subset supported by the Jena rule reasoners.
+	 */
+	public static final String RULES_OWL = "owl";
+
+	public static final String DEFAULT_ONT_MODEL_SPEC = "OWL_DL_MEM";
+
+	/**
+	 * OWL_DL_MEM without materialization, as used before the inference
+	 * settings were configurable.
+	 */
+	public static final InferenceConfig DEFAULT = new InferenceConfig(
+			DEFAULT_ONT_MODEL_SPEC, null);
+
+	private static final Map<String, List<Rule>> ruleCache = new ConcurrentHashMap<String, List<Rule>>();
+
+	private final String ontModelSpec;
+	private final String ruleSet;
+
+	/**
+	 * @param ontModelSpec
+	 *            name of an {@link OntModelSpec} constant
+	 * @param ruleSet
+	 *            {@link #RULES_RDFS}, {@link #RULES_OWL}, the location of a
+	 *            file of forward rules, or <code>null</code> for no
+	 *            materialization
+	 */
+	public InferenceConfig(String ontModelSpec, String ruleSet) {
+		toOntModelSpec(ontModelSpec);
+		this.ontModelSpec = ontModelSpec;
+		this.ruleSet = ruleSet;
+	}
+
+	/**
+	 * Parses the textual form written by {@link #toString()}: the name of
+	 * the {@link OntModelSpec}, optionally followed by a space and the rule
+	 * set.
+	 *
+	 * @param spec
+	 * @return
+	 */
+	public static InferenceConfig parse(String spec) {
+		String[] parts = spec.trim().split("\\s+", 2);
+		return new InferenceConfig(parts[0], parts.length > 1 ? parts[1]
+				: null);
+	}
+
+	public String getOntModelSpecName() {
+		return ontModelSpec;
+	}
+
+	public OntModelSpec getOntModelSpec() {
+		return toOntModelSpec(ontModelSpec);
+	}
+
+	public String getRuleSet() {
+		return ruleSet;
+	}
+
+	/**
+	 * @return whether the entailments of the rule set are materialized
+	 */
+	public boolean isMaterialized() {
+		return ruleSet != null;
+	}
+
+	/**
+	 * @return the parsed rules of the rule set, which are cached
+	 */
+	public List<Rule> getRules() {
+		if (ruleSet == null) {
+			throw new IllegalStateException("No rule set is configured");
+		}
+		List<Rule> rules = ruleCache.get(ruleSet);
+		if (rules == null) {
+			String location = ruleSet;
+			if (RULES_RDFS.equals(ruleSet)) {
+				location = "etc/rdfs-noresource.rules";
+			} else if (RULES_OWL.equals(ruleSet)) {
+				location = "etc/owl.rules";
+			}
+			rules = Rule.rulesFromURL(location);
+			ruleCache.put(ruleSet, rules);
+		}
+		return rules;
+	}
+
+	private static OntModelSpec toOntModelSpec(String name) {
+		try {
+			Field field = OntModelSpec.class.getField(name);
+			if (Modifier.isStatic(field.getModifiers())
+					&& field.getType() == OntModelSpec.class) {
+				return (OntModelSpec) field.get(null);
+			}
+		} catch (NoSuchFieldException e) {
+			// reported below
+		} catch (IllegalAccessException e) {
+			// reported below
+		}
+		throw new IllegalArgumentException("Unknown OntModelSpec: " + name);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof InferenceConfig)) {
+			return false;
+		}
+		InferenceConfig other = (InferenceConfig) obj;
+		return ontModelSpec.equals(other.ontModelSpec)
+				&& (ruleSet == null ? other.ruleSet == null : ruleSet
+						.equals(other.ruleSet));
+	}
+
+	@Override
+	public int hashCode() {
+		return ontModelSpec.hashCode() * 31
+				+ (ruleSet == null ? 0 : ruleSet.hashCode());
+	}
+
+	@Override
+	public String toString() {
+		return ruleSet == null ? ontModelSpec : ontModelSpec + " " + ruleSet;
+	}
+
+}
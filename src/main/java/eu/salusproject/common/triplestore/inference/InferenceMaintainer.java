@@ -0,0 +1,443 @@
+package eu.salusproject.common.triplestore.inference;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.compose.MultiUnion;
+import com.hp.hpl.jena.graph.impl.WrappedGraph;
+import com.hp.hpl.jena.ontology.OntModel;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.reasoner.rulesys.Functor;
+import com.hp.hpl.jena.reasoner.rulesys.GenericRuleReasoner;
+import com.hp.hpl.jena.reasoner.rulesys.RETERuleInfGraph;
+import com.hp.hpl.jena.reasoner.rulesys.Rule;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.NullIterator;
+
+import eu.salusproject.common.triplestore.JenaStore;
+import eu.salusproject.common.triplestore.JenaStoreException;
+import eu.salusproject.common.triplestore.StoreChangeListener;
+
+/**
+ * Applies the {@link InferenceSettings} of a {@link JenaStore}. For every
+ * named model with a materialized rule set, the entailments which are not
+ * asserted in the model are kept in a companion named graph of the same
+ * dataset, named by {@link #inferredGraphName(String)}. Companion graphs are
+ * not listed as models of the store.
+ * <p>
+ * The rules are evaluated by a forward RETE engine which is kept in memory
+ * per model. Added triples are fed to the engine and only the new
+ * entailments are written to the companion graph. As the engine cannot
+ * retract entailments, a removal marks the model as stale and its
+ * entailments are recomputed at the next {@link #refresh()}, writing only
+ * the difference to the companion graph. The OntModels of a stale model do
+ * not show its entailments until then, as they may have been derived from
+ * the removed triples.
+ */
+public class InferenceMaintainer implements StoreChangeListener {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(InferenceMaintainer.class);
+
+	public static final String INFERRED_GRAPH_PREFIX = "urn:x-inferred:";
+
+	private final JenaStore store;
+	private final Dataset dataset;
+	private final InferenceSettings settings;
+	// Modified while synchronized, read without a lock by the OntModels
+	private final Map<String, Materialization> materializations = new ConcurrentHashMap<String, Materialization>();
+
+	/**
+	 * @param store
+	 *            the store whose models are maintained
+	 * @param dataset
+	 *            dataset of the store in which the companion graphs are
+	 *            kept, accessed without notifying the listeners of the store
+	 * @param settingsFile
+	 * @throws JenaStoreException
+	 */
+	public InferenceMaintainer(JenaStore store, Dataset dataset,
+			File settingsFile) throws JenaStoreException {
+		this.store = store;
+		this.dataset = dataset;
+		this.settings = InferenceSettings.load(settingsFile);
+		for (String uri : store.listModels()) {
+			if (settings.getConfig(uri).isMaterialized()) {
+				// Companion graphs are persisted, the engine is only built on
+				// the next modification. Missing ones, e.g. after a
+				// compaction, are recomputed on the next refresh.
+				Materialization m = new Materialization();
+				m.stale = !dataset.containsNamedModel(inferredGraphName(uri));
+				materializations.put(uri, m);
+			}
+		}
+	}
+
+	/**
+	 * @param ontologyURI
+	 * @return the name of the companion graph holding the entailments of
+	 *         the named model
+	 */
+	public static String inferredGraphName(String ontologyURI) {
+		return INFERRED_GRAPH_PREFIX + ontologyURI;
+	}
+
+	public static boolean isInferredGraph(String graphName) {
+		return graphName.startsWith(INFERRED_GRAPH_PREFIX);
+	}
+
+	public InferenceConfig getConfig(String ontologyURI) {
+		return settings.getConfig(ontologyURI);
+	}
+
+	/**
+	 * Changes the configuration of the named model, or the default of the
+	 * store if ontologyURI is <code>null</code>, and persists it. Models
+	 * which become materialized are computed at the next refresh, the
+	 * companion graphs of models which are no longer materialized are
+	 * removed.
+	 *
+	 * @param ontologyURI
+	 * @param config
+	 * @throws JenaStoreException
+	 */
+	public synchronized void setConfig(String ontologyURI,
+			InferenceConfig config) throws JenaStoreException {
+		if (ontologyURI == null) {
+			settings.setDefaultConfig(config);
+		} else {
+			settings.setConfig(ontologyURI, config);
+		}
+		settings.save();
+		List<String> affected = new ArrayList<String>();
+		if (ontologyURI == null) {
+			affected.addAll(store.listModels());
+		} else if (store.hasModel(ontologyURI)) {
+			affected.add(ontologyURI);
+		}
+		for (String uri : affected) {
+			// The rules may have changed, the OntModels already returned stop
+			// showing the entailments of the previous ones
+			invalidate(uri);
+			InferenceConfig effective = settings.getConfig(uri);
+			if (effective.isMaterialized()) {
+				if (!materializations.containsKey(uri)) {
+					Materialization m = new Materialization();
+					m.stale = true;
+					materializations.put(uri, m);
+				}
+			} else if (materializations.remove(uri) != null) {
+				dataset.removeNamedModel(inferredGraphName(uri));
+			}
+		}
+	}
+
+	/**
+	 * Returns an {@link OntModel} over the given model with the configured
+	 * {@link com.hp.hpl.jena.ontology.OntModelSpec}. If the model is
+	 * materialized, the OntModel also contains its entailments, except while
+	 * they are stale, and its modifications go to the given model. The
+	 * entailments are not brought up to date, so this method does not write
+	 * to the dataset.
+	 *
+	 * @param ontologyURI
+	 * @param model
+	 * @return
+	 */
+	public OntModel getOntModel(String ontologyURI, Model model) {
+		InferenceConfig config = settings.getConfig(ontologyURI);
+		Materialization m = config.isMaterialized() ? materializations
+				.get(ontologyURI) : null;
+		if (model == null || m == null) {
+			return ModelFactory.createOntologyModel(config.getOntModelSpec(),
+					model);
+		}
+		Graph inferred = new EntailmentView(m, dataset.getNamedModel(
+				inferredGraphName(ontologyURI)).getGraph());
+		MultiUnion union = new MultiUnion(new Graph[] { model.getGraph(),
+				inferred });
+		union.setBaseGraph(model.getGraph());
+		return ModelFactory.createOntologyModel(config.getOntModelSpec(),
+				ModelFactory.createModelForGraph(union));
+	}
+
+	/**
+	 * @param ontologyURI
+	 * @return the companion model holding the entailments of the named
+	 *         model, which is brought up to date first, or <code>null</code>
+	 *         if the model is not materialized
+	 */
+	public Model getInferredModel(String ontologyURI) {
+		synchronized (this) {
+			Materialization m = materializations.get(ontologyURI);
+			if (m == null) {
+				return null;
+			}
+			if (m.stale) {
+				materialize(ontologyURI, m);
+			}
+		}
+		return dataset.getNamedModel(inferredGraphName(ontologyURI));
+	}
+
+	/**
+	 * Recomputes the entailments of the models which have become stale
+	 * since the last refresh.
+	 */
+	public synchronized void refresh() {
+		for (Map.Entry<String, Materialization> entry : materializations
+				.entrySet()) {
+			if (entry.getValue().stale) {
+				materialize(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	@Override
+	public synchronized void modelAdded(String ontologyURI, Model model) {
+		if (!settings.getConfig(ontologyURI).isMaterialized()) {
+			return;
+		}
+		Materialization m = new Materialization();
+		materializations.put(ontologyURI, m);
+		materialize(ontologyURI, m);
+	}
+
+	@Override
+	public synchronized void modelRemoved(String ontologyURI) {
+		invalidate(ontologyURI);
+		if (materializations.remove(ontologyURI) != null) {
+			dataset.removeNamedModel(inferredGraphName(ontologyURI));
+		}
+	}
+
+	@Override
+	public synchronized void triplesAdded(String ontologyURI,
+			List<Triple> triples) {
+		Materialization m = materializations.get(ontologyURI);
+		if (m == null || m.stale) {
+			return;
+		}
+		if (m.engine == null) {
+			// The added triples are already in the model
+			materialize(ontologyURI, m);
+			return;
+		}
+		m.engine.deductions.clear();
+		for (Triple t : triples) {
+			m.engine.add(t);
+		}
+		Graph base = m.engine.getRawGraph();
+		Graph inferred = dataset.getNamedModel(inferredGraphName(ontologyURI))
+				.getGraph();
+		for (Triple t : m.engine.deductions) {
+			if (isStorable(t) && !base.contains(t) && !inferred.contains(t)) {
+				inferred.add(t);
+			}
+		}
+		m.engine.deductions.clear();
+	}
+
+	@Override
+	public synchronized void triplesRemoved(String ontologyURI,
+			List<Triple> triples) {
+		invalidate(ontologyURI);
+	}
+
+	@Override
+	public synchronized void patternRemoved(String ontologyURI, Triple pattern) {
+		invalidate(ontologyURI);
+	}
+
+	private void invalidate(String ontologyURI) {
+		Materialization m = materializations.get(ontologyURI);
+		if (m != null) {
+			m.stale = true;
+			m.engine = null;
+		}
+	}
+
+	/**
+	 * Runs the rules over the whole model and writes the difference between
+	 * their entailments and the companion graph.
+	 */
+	private void materialize(String ontologyURI, Materialization m) {
+		long start = System.currentTimeMillis();
+		Model model = store.getModel(ontologyURI);
+		if (model == null) {
+			materializations.remove(ontologyURI);
+			return;
+		}
+		List<Rule> rules = settings.getConfig(ontologyURI).getRules();
+		DeductionGraph engine = new DeductionGraph(rules, new BaseView(
+				model.getGraph()));
+		engine.prepare();
+		engine.deductions.clear();
+		Graph base = model.getGraph();
+		Graph deductions = engine.getDeductionsGraph();
+		Graph inferred = dataset.getNamedModel(inferredGraphName(ontologyURI))
+				.getGraph();
+		int added = 0;
+		int removed = 0;
+		ExtendedIterator<Triple> it = deductions.find(Triple.ANY);
+		try {
+			while (it.hasNext()) {
+				Triple t = it.next();
+				if (isStorable(t) && !base.contains(t) && !inferred.contains(t)) {
+					inferred.add(t);
+					added++;
+				}
+			}
+		} finally {
+			it.close();
+		}
+		for (Triple t : inferred.find(Triple.ANY).toList()) {
+			if (!deductions.contains(t) || base.contains(t)) {
+				inferred.delete(t);
+				removed++;
+			}
+		}
+		m.engine = engine;
+		m.stale = false;
+		logger.info(
+				"Entailments of model {} have been materialized in {} ms, {} added, {} removed",
+				new Object[] { ontologyURI,
+						System.currentTimeMillis() - start, added, removed });
+	}
+
+	/**
+	 * Entailments with literal subjects or rule engine functors are not
+	 * valid RDF and are kept out of the companion graph.
+	 */
+	private static boolean isStorable(Triple t) {
+		return !t.getSubject().isLiteral() && !Functor.isFunctor(t.getSubject())
+				&& !Functor.isFunctor(t.getObject());
+	}
+
+	/**
+	 * State of a materialized model.
+	 */
+	private static class Materialization {
+		/**
+		 * Engine over the current contents of the model, or
+		 * <code>null</code> if it has not been built since the model was
+		 * opened or became stale.
+		 */
+		DeductionGraph engine;
+		volatile boolean stale;
+	}
+
+	/**
+	 * Read view of the companion graph of a model, which is empty while the
+	 * entailments of the model are stale.
+	 */
+	private static class EntailmentView extends WrappedGraph {
+
+		private final Materialization materialization;
+
+		EntailmentView(Materialization materialization, Graph inferred) {
+			super(inferred);
+			this.materialization = materialization;
+		}
+
+		@Override
+		public ExtendedIterator<Triple> find(TripleMatch m) {
+			if (materialization.stale) {
+				return NullIterator.instance();
+			}
+			return super.find(m);
+		}
+
+		@Override
+		public ExtendedIterator<Triple> find(Node s, Node p, Node o) {
+			if (materialization.stale) {
+				return NullIterator.instance();
+			}
+			return super.find(s, p, o);
+		}
+
+		@Override
+		public boolean contains(Triple t) {
+			return !materialization.stale && super.contains(t);
+		}
+
+		@Override
+		public boolean contains(Node s, Node p, Node o) {
+			return !materialization.stale && super.contains(s, p, o);
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return materialization.stale || super.isEmpty();
+		}
+
+		@Override
+		public int size() {
+			return materialization.stale ? 0 : super.size();
+		}
+	}
+
+	/**
+	 * Forward RETE inference graph which records the entailments derived
+	 * since its list of deductions was last cleared.
+	 */
+	private static class DeductionGraph extends RETERuleInfGraph {
+
+		final List<Triple> deductions = new ArrayList<Triple>();
+
+		DeductionGraph(List<Rule> rules, Graph data) {
+			super(new GenericRuleReasoner(rules), rules, null, data);
+		}
+
+		@Override
+		public void addDeduction(Triple t) {
+			super.addDeduction(t);
+			deductions.add(t);
+		}
+	}
+
+	/**
+	 * Read view of the persisted model given to the rule engine. The engine
+	 * is only told about triples which have already been added to or
+	 * removed from the model, hence it must not modify the model itself.
+	 */
+	private static class BaseView extends WrappedGraph {
+
+		BaseView(Graph base) {
+			super(base);
+		}
+
+		@Override
+		public void add(Triple t) {
+			// already in the model
+		}
+
+		@Override
+		public void delete(Triple t) {
+			// already removed from the model
+		}
+
+		@Override
+		public void performAdd(Triple t) {
+			// already in the model
+		}
+
+		@Override
+		public void performDelete(Triple t) {
+			// already removed from the model
+		}
+	}
+
+}
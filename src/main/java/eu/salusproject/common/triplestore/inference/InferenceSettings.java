@@ -0,0 +1,128 @@
+package eu.salusproject.common.triplestore.inference;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+
+import eu.salusproject.common.triplestore.JenaStoreException;
+
+/**
+ * The {@link InferenceConfig} of a store and the overrides of its named
+ * models, persisted as a properties file.
+ */
+public class InferenceSettings {
+
+	private static final String DEFAULT_KEY = "default";
+	private static final String MODEL_KEY_PREFIX = "model.";
+
+	private final File file;
+	private InferenceConfig defaultConfig = InferenceConfig.DEFAULT;
+	private final Map<String, InferenceConfig> modelConfigs = new HashMap<String, InferenceConfig>();
+
+	private InferenceSettings(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Reads the settings persisted in the given file. If there is no such
+	 * file, all models use {@link InferenceConfig#DEFAULT}.
+	 *
+	 * @param file
+	 * @return
+	 * @throws JenaStoreException
+	 */
+	public static InferenceSettings load(File file) throws JenaStoreException {
+		InferenceSettings settings = new InferenceSettings(file);
+		if (!file.isFile()) {
+			return settings;
+		}
+		Properties props = new Properties();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			props.load(in);
+		} catch (IOException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot read the inference settings: %s",
+					file.getAbsolutePath()), e);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		for (String key : props.stringPropertyNames()) {
+			InferenceConfig config = InferenceConfig.parse(props
+					.getProperty(key));
+			if (DEFAULT_KEY.equals(key)) {
+				settings.defaultConfig = config;
+			} else if (key.startsWith(MODEL_KEY_PREFIX)) {
+				settings.modelConfigs.put(
+						key.substring(MODEL_KEY_PREFIX.length()), config);
+			}
+		}
+		return settings;
+	}
+
+	public synchronized void save() throws JenaStoreException {
+		Properties props = new Properties();
+		props.setProperty(DEFAULT_KEY, defaultConfig.toString());
+		for (Map.Entry<String, InferenceConfig> entry : modelConfigs
+				.entrySet()) {
+			props.setProperty(MODEL_KEY_PREFIX + entry.getKey(), entry
+					.getValue().toString());
+		}
+		OutputStream out = null;
+		try {
+			file.getAbsoluteFile().getParentFile().mkdirs();
+			out = new FileOutputStream(file);
+			props.store(out, "Inference settings");
+		} catch (IOException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot write the inference settings: %s",
+					file.getAbsolutePath()), e);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	/**
+	 * @param ontologyURI
+	 * @return the configuration of the named model, which is the default of
+	 *         the store unless it has been overridden
+	 */
+	public synchronized InferenceConfig getConfig(String ontologyURI) {
+		InferenceConfig config = modelConfigs.get(ontologyURI);
+		return config == null ? defaultConfig : config;
+	}
+
+	public synchronized InferenceConfig getDefaultConfig() {
+		return defaultConfig;
+	}
+
+	public synchronized void setDefaultConfig(InferenceConfig config) {
+		this.defaultConfig = config == null ? InferenceConfig.DEFAULT : config;
+	}
+
+	/**
+	 * Overrides the configuration of the named model, or restores the
+	 * default of the store if config is <code>null</code>.
+	 *
+	 * @param ontologyURI
+	 * @param config
+	 */
+	public synchronized void setConfig(String ontologyURI,
+			InferenceConfig config) {
+		if (config == null) {
+			modelConfigs.remove(ontologyURI);
+		} else {
+			modelConfigs.put(ontologyURI, config);
+		}
+	}
+
+}
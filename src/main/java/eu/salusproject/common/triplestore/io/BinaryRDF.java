@@ -0,0 +1,132 @@
+package eu.salusproject.common.triplestore.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.GraphUtil;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Compact binary serialization of triples and quads, which loads much faster
+ * than the text formats as no RDF syntax has to be parsed.
+ * <p>
+ * A file starts with the magic bytes <code>RDFB</code>, a version byte and a
+ * flags byte ({@link #FLAG_QUADS}, {@link #FLAG_COMPRESSED}), followed by
+ * blocks. Every block is framed by the unsigned varints of its decoded and
+ * stored lengths and a flags byte ({@link #BLOCK_RESET}); its payload is
+ * deflated if the file is compressed. A decoded length of 0 ends the file.
+ * <p>
+ * The payload is a sequence of records of three, or four for quads, node
+ * ids. Ids are varints referring to a node dictionary which is built while
+ * the file is read: id 0 introduces a new node, which is defined inline and
+ * gets the next id, starting with 1. A definition is a kind byte followed by
+ * the varint length prefixed UTF-8 strings of the node: the URI, the blank
+ * node label, the lexical form and language, or the lexical form and the id
+ * of the datatype URI. A block with {@link #BLOCK_RESET} starts a new
+ * dictionary. Records do not span blocks.
+ * <p>
+ * Files are read through memory-mapped buffers by {@link BinaryRDFReader}
+ * and written block by block by {@link BinaryRDFWriter}.
+ */
+public class BinaryRDF {
+
+	/**
+	 * Name of the format, which can be given as the format of
+	 * {@link eu.salusproject.common.triplestore.JenaStore#createOntModel(String, String, String, String)}
+	 * and {@link DumpOptions#setFormat(String)}
+	 */
+	public static final String FORMAT = "RDF/BINARY";
+
+	public static final String FILE_EXTENSION = ".rdfb";
+
+	static final byte[] MAGIC = { 'R', 'D', 'F', 'B' };
+	static final byte VERSION = 1;
+
+	static final int FLAG_QUADS = 1;
+	static final int FLAG_COMPRESSED = 2;
+	static final int BLOCK_RESET = 1;
+
+	static final int KIND_URI = 1;
+	static final int KIND_BLANK = 2;
+	static final int KIND_PLAIN_LITERAL = 3;
+	static final int KIND_LANG_LITERAL = 4;
+	static final int KIND_TYPED_LITERAL = 5;
+
+	private static final int READ_BATCH_SIZE = 10000;
+
+	private BinaryRDF() {
+	}
+
+	/**
+	 * @param format
+	 * @return whether the given format name denotes this format
+	 */
+	public static boolean isFormat(String format) {
+		return FORMAT.equalsIgnoreCase(format);
+	}
+
+	/**
+	 * Adds the triples of the given file to the model. For a file of quads,
+	 * the triples of all graphs are added. The triples are added in batches,
+	 * one bulk add per batch.
+	 * 
+	 * @param model
+	 * @param file
+	 * @return the number of triples read
+	 * @throws IOException
+	 */
+	public static long read(Model model, File file) throws IOException {
+		Graph graph = model.getGraph();
+		BinaryRDFReader in = new BinaryRDFReader(file);
+		List<Triple> batch = new ArrayList<Triple>(READ_BATCH_SIZE);
+		long count = 0;
+		try {
+			Quad quad;
+			while ((quad = in.read()) != null) {
+				batch.add(quad.asTriple());
+				count++;
+				if (batch.size() == READ_BATCH_SIZE) {
+					GraphUtil.add(graph, batch);
+					batch.clear();
+				}
+			}
+			if (!batch.isEmpty()) {
+				GraphUtil.add(graph, batch);
+			}
+		} finally {
+			in.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Writes the triples of the given model to the file.
+	 * 
+	 * @param model
+	 * @param file
+	 * @param compressed
+	 * @return the number of triples written
+	 * @throws IOException
+	 */
+	public static long write(Model model, File file, boolean compressed)
+			throws IOException {
+		BinaryRDFWriter out = new BinaryRDFWriter(file, false, compressed);
+		ExtendedIterator<Triple> it = model.getGraph().find(Triple.ANY);
+		try {
+			while (it.hasNext()) {
+				out.write(null, it.next());
+			}
+		} finally {
+			it.close();
+			out.close();
+		}
+		return out.getCount();
+	}
+
+}
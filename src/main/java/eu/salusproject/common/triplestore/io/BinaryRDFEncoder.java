@@ -0,0 +1,193 @@
+package eu.salusproject.common.triplestore.io;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * Encodes records into the framed blocks of a {@link BinaryRDF} file. The
+ * node dictionary is shared by consecutive blocks until it reaches
+ * {@link #MAX_DICTIONARY_SIZE} nodes, or is restarted for every block if
+ * the blocks have to be independent, e.g. when the blocks of several
+ * encoders are interleaved in one file.
+ */
+class BinaryRDFEncoder {
+
+	static final int BLOCK_SIZE = 256 * 1024;
+	static final int MAX_DICTIONARY_SIZE = 1 << 20;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final boolean quads;
+	private final boolean compressed;
+	private final boolean independentBlocks;
+	private final Map<Node, Integer> dictionary = new HashMap<Node, Integer>();
+	private final Deflater deflater;
+	private byte[] buffer = new byte[BLOCK_SIZE + 4096];
+	private int length;
+	private boolean reset = true;
+
+	BinaryRDFEncoder(boolean quads, boolean compressed,
+			boolean independentBlocks) {
+		this.quads = quads;
+		this.compressed = compressed;
+		this.independentBlocks = independentBlocks;
+		this.deflater = compressed ? new Deflater(Deflater.BEST_SPEED) : null;
+	}
+
+	/**
+	 * Appends the record of the given triple. The graph is ignored unless
+	 * the encoder writes quads.
+	 */
+	void write(Node graph, Triple triple) {
+		if (quads) {
+			writeNode(graph);
+		}
+		writeNode(triple.getSubject());
+		writeNode(triple.getPredicate());
+		writeNode(triple.getObject());
+	}
+
+	boolean isBlockFull() {
+		return length >= BLOCK_SIZE;
+	}
+
+	boolean isEmpty() {
+		return length == 0;
+	}
+
+	/**
+	 * @return the framed block of the records appended since the last block
+	 */
+	ByteBuffer finishBlock() {
+		byte[] payload = buffer;
+		int storedLength = length;
+		if (compressed) {
+			deflater.reset();
+			deflater.setInput(buffer, 0, length);
+			deflater.finish();
+			payload = new byte[length + length / 16 + 64];
+			storedLength = 0;
+			while (!deflater.finished()) {
+				if (storedLength == payload.length) {
+					byte[] larger = new byte[payload.length * 2];
+					System.arraycopy(payload, 0, larger, 0, storedLength);
+					payload = larger;
+				}
+				storedLength += deflater.deflate(payload, storedLength,
+						payload.length - storedLength);
+			}
+		}
+		ByteBuffer block = ByteBuffer.allocate(11 + storedLength);
+		putVarint(block, length);
+		putVarint(block, storedLength);
+		block.put((byte) (reset ? BinaryRDF.BLOCK_RESET : 0));
+		block.put(payload, 0, storedLength);
+		block.flip();
+
+		length = 0;
+		reset = independentBlocks || dictionary.size() >= MAX_DICTIONARY_SIZE;
+		if (reset) {
+			dictionary.clear();
+		}
+		return block;
+	}
+
+	void end() {
+		if (deflater != null) {
+			deflater.end();
+		}
+	}
+
+	private void writeNode(Node node) {
+		Integer id = dictionary.get(node);
+		if (id != null) {
+			writeVarint(id);
+			return;
+		}
+		writeVarint(0);
+		if (node.isURI()) {
+			writeByte(BinaryRDF.KIND_URI);
+			writeString(node.getURI());
+		} else if (node.isBlank()) {
+			writeByte(BinaryRDF.KIND_BLANK);
+			writeString(node.getBlankNodeLabel());
+		} else if (node.isLiteral()) {
+			String datatype = node.getLiteralDatatypeURI();
+			String lang = node.getLiteralLanguage();
+			if (datatype != null) {
+				writeByte(BinaryRDF.KIND_TYPED_LITERAL);
+				writeString(node.getLiteralLexicalForm());
+				writeNode(Node.createURI(datatype));
+			} else if (lang != null && lang.length() > 0) {
+				writeByte(BinaryRDF.KIND_LANG_LITERAL);
+				writeString(node.getLiteralLexicalForm());
+				writeString(lang);
+			} else {
+				writeByte(BinaryRDF.KIND_PLAIN_LITERAL);
+				writeString(node.getLiteralLexicalForm());
+			}
+		} else {
+			throw new IllegalArgumentException("Cannot serialize the node: "
+					+ node);
+		}
+		dictionary.put(node, dictionary.size() + 1);
+	}
+
+	private void writeString(String s) {
+		byte[] bytes = s.getBytes(UTF8);
+		writeVarint(bytes.length);
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+	}
+
+	private void writeByte(int b) {
+		ensure(1);
+		buffer[length++] = (byte) b;
+	}
+
+	private void writeVarint(int value) {
+		ensure(5);
+		while ((value & ~0x7F) != 0) {
+			buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[length++] = (byte) value;
+	}
+
+	private void ensure(int bytes) {
+		if (length + bytes > buffer.length) {
+			byte[] larger = new byte[Math.max(buffer.length * 2, length
+					+ bytes)];
+			System.arraycopy(buffer, 0, larger, 0, length);
+			buffer = larger;
+		}
+	}
+
+	static void putVarint(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	static int getVarint(ByteBuffer buffer) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+}
@@ -0,0 +1,236 @@
+package eu.salusproject.common.triplestore.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.sparql.core.Quad;
+
+/**
+ * Streaming reader of a {@link BinaryRDF} file. The file is mapped into
+ * memory in windows of up to {@value #WINDOW_SIZE} bytes, and uncompressed
+ * blocks are decoded directly from the mapped buffer. Blank node labels are
+ * scoped to a single reader, so that the blank nodes of two loads of the
+ * same file are distinct.
+ */
+public class BinaryRDFReader {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+	private static final int MAX_BLOCK_HEADER = 11;
+
+	private final File path;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long size;
+	private final boolean quads;
+	private final boolean compressed;
+	private final Inflater inflater;
+	private final String blankNodeScope = UUID.randomUUID().toString();
+	private final List<Node> dictionary = new ArrayList<Node>();
+	private MappedByteBuffer window;
+	private long windowStart;
+	private long position;
+	private ByteBuffer block;
+	private byte[] inflated = new byte[0];
+	private byte[] chars = new byte[256];
+	private boolean ended;
+
+	public BinaryRDFReader(File file) throws IOException {
+		this.path = file;
+		this.file = new RandomAccessFile(file, "r");
+		this.channel = this.file.getChannel();
+		this.size = channel.size();
+		int headerSize = BinaryRDF.MAGIC.length + 2;
+		if (size < headerSize) {
+			this.file.close();
+			throw new IOException("Not a binary RDF file: " + file);
+		}
+		ByteBuffer header = map(0, headerSize);
+		byte[] magic = new byte[BinaryRDF.MAGIC.length];
+		header.get(magic);
+		byte version = header.get();
+		int flags = header.get();
+		if (!Arrays.equals(magic, BinaryRDF.MAGIC)
+				|| version != BinaryRDF.VERSION) {
+			this.file.close();
+			throw new IOException("Not a binary RDF file of version "
+					+ BinaryRDF.VERSION + ": " + file);
+		}
+		this.position = headerSize;
+		this.quads = (flags & BinaryRDF.FLAG_QUADS) != 0;
+		this.compressed = (flags & BinaryRDF.FLAG_COMPRESSED) != 0;
+		this.inflater = compressed ? new Inflater() : null;
+	}
+
+	/**
+	 * @return whether the file holds quads
+	 */
+	public boolean isQuads() {
+		return quads;
+	}
+
+	/**
+	 * Reads the next record. Triples of a file without graphs are returned
+	 * in {@link Quad#defaultGraphNodeGenerated}.
+	 * 
+	 * @return the next quad or <code>null</code> at the end of the file
+	 * @throws IOException
+	 */
+	public Quad read() throws IOException {
+		while (block == null || !block.hasRemaining()) {
+			if (ended || !nextBlock()) {
+				return null;
+			}
+		}
+		try {
+			Node graph = quads ? readNode() : Quad.defaultGraphNodeGenerated;
+			Node s = readNode();
+			Node p = readNode();
+			Node o = readNode();
+			return new Quad(graph, s, p, o);
+		} catch (RuntimeException e) {
+			throw new IOException(String.format(
+					"Corrupt block at offset %d of %s", position, path), e);
+		}
+	}
+
+	public void close() throws IOException {
+		if (inflater != null) {
+			inflater.end();
+		}
+		window = null;
+		block = null;
+		file.close();
+	}
+
+	private boolean nextBlock() throws IOException {
+		if (position >= size) {
+			throw new IOException("Unexpected end of file: " + path);
+		}
+		ByteBuffer header = map(position,
+				(int) Math.min(MAX_BLOCK_HEADER, size - position));
+		int start = header.position();
+		int length = BinaryRDFEncoder.getVarint(header);
+		if (length == 0) {
+			ended = true;
+			return false;
+		}
+		int storedLength = BinaryRDFEncoder.getVarint(header);
+		int flags = header.get();
+		position += header.position() - start;
+		if ((flags & BinaryRDF.BLOCK_RESET) != 0) {
+			dictionary.clear();
+		}
+		if (position + storedLength > size) {
+			throw new IOException("Unexpected end of file: " + path);
+		}
+		ByteBuffer payload = map(position, storedLength);
+		position += storedLength;
+		if (!compressed) {
+			block = payload;
+			return true;
+		}
+		byte[] stored = new byte[storedLength];
+		payload.get(stored);
+		if (inflated.length < length) {
+			inflated = new byte[length];
+		}
+		inflater.reset();
+		inflater.setInput(stored);
+		try {
+			int n = 0;
+			while (n < length && !inflater.finished()) {
+				n += inflater.inflate(inflated, n, length - n);
+			}
+			if (n != length) {
+				throw new IOException(String.format(
+						"Corrupt block at offset %d of %s", position, path));
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(String.format(
+					"Corrupt block at offset %d of %s", position, path), e);
+		}
+		block = ByteBuffer.wrap(inflated, 0, length);
+		return true;
+	}
+
+	/**
+	 * @return a buffer positioned at the given offset of the file with at
+	 *         least the given number of bytes remaining
+	 */
+	private ByteBuffer map(long offset, int length) throws IOException {
+		if (window == null || offset < windowStart
+				|| offset + length > windowStart + window.capacity()) {
+			long mapped = Math.min(Math.max(WINDOW_SIZE, length), size - offset);
+			window = channel.map(FileChannel.MapMode.READ_ONLY, offset, mapped);
+			windowStart = offset;
+		}
+		ByteBuffer buffer = window.duplicate();
+		buffer.position((int) (offset - windowStart));
+		buffer.limit(buffer.position() + length);
+		return buffer.slice();
+	}
+
+	private Node readNode() {
+		int id = BinaryRDFEncoder.getVarint(block);
+		if (id > 0) {
+			return dictionary.get(id - 1);
+		}
+		Node node;
+		int kind = block.get();
+		switch (kind) {
+		case BinaryRDF.KIND_URI:
+			node = Node.createURI(readString());
+			break;
+		case BinaryRDF.KIND_BLANK:
+			node = Node.createAnon(new AnonId(blankNodeScope + readString()));
+			break;
+		case BinaryRDF.KIND_PLAIN_LITERAL:
+			node = Node.createLiteral(readString());
+			break;
+		case BinaryRDF.KIND_LANG_LITERAL:
+			String lexical = readString();
+			node = Node.createLiteral(lexical, readString(), null);
+			break;
+		case BinaryRDF.KIND_TYPED_LITERAL:
+			String lex = readString();
+			String datatype = readNode().getURI();
+			node = Node.createLiteral(lex, null, TypeMapper.getInstance()
+					.getSafeTypeByName(datatype));
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown node kind: " + kind);
+		}
+		dictionary.add(node);
+		return node;
+	}
+
+	private String readString() {
+		int length = BinaryRDFEncoder.getVarint(block);
+		if (block.hasArray()) {
+			int offset = block.arrayOffset() + block.position();
+			block.position(block.position() + length);
+			return new String(block.array(), offset, length, UTF8);
+		}
+		if (chars.length < length) {
+			chars = new byte[Math.max(length, chars.length * 2)];
+		}
+		block.get(chars, 0, length);
+		return new String(chars, 0, length, UTF8);
+	}
+
+}
@@ -0,0 +1,104 @@
+package eu.salusproject.common.triplestore.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * Streaming writer of a {@link BinaryRDF} file. Records are encoded into
+ * blocks in memory and every block is appended to the file by a single
+ * channel write, as mapping a region of the file per block costs more than
+ * the write itself.
+ */
+public class BinaryRDFWriter {
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final BinaryRDFEncoder encoder;
+	private long count;
+
+	/**
+	 * Creates the file, replacing an existing one.
+	 * 
+	 * @param file
+	 * @param quads
+	 *            whether the graph of every triple is written
+	 * @param compressed
+	 *            whether the blocks are deflated
+	 * @throws IOException
+	 */
+	public BinaryRDFWriter(File file, boolean quads, boolean compressed)
+			throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.file.setLength(0);
+		this.channel = this.file.getChannel();
+		this.encoder = new BinaryRDFEncoder(quads, compressed, false);
+		ByteBuffer header = ByteBuffer.allocate(BinaryRDF.MAGIC.length + 2);
+		header.put(BinaryRDF.MAGIC);
+		header.put(BinaryRDF.VERSION);
+		header.put((byte) ((quads ? BinaryRDF.FLAG_QUADS : 0) | (compressed ? BinaryRDF.FLAG_COMPRESSED
+				: 0)));
+		header.flip();
+		writeBlock(header);
+	}
+
+	/**
+	 * Writes the given triple, as a quad of the given graph if the file
+	 * holds quads.
+	 * 
+	 * @param graph
+	 * @param triple
+	 * @throws IOException
+	 */
+	public void write(Node graph, Triple triple) throws IOException {
+		encoder.write(graph, triple);
+		count++;
+		if (encoder.isBlockFull()) {
+			writeBlock(encoder.finishBlock());
+		}
+	}
+
+	/**
+	 * @return the number of records written so far
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Writes a framed block produced by another encoder with independent
+	 * blocks.
+	 */
+	void writeBlock(ByteBuffer block) throws IOException {
+		while (block.hasRemaining()) {
+			channel.write(block);
+		}
+	}
+
+	/**
+	 * Writes the last block and the end of the file.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		try {
+			if (!encoder.isEmpty()) {
+				writeBlock(encoder.finishBlock());
+			}
+			ByteBuffer end = ByteBuffer.allocate(1);
+			BinaryRDFEncoder.putVarint(end, 0);
+			end.flip();
+			writeBlock(end);
+			channel.force(false);
+		} finally {
+			encoder.end();
+			file.close();
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+package eu.salusproject.common.triplestore.io;
+
+/**
+ * Options of a {@link StoreDumper}.
+ */
+public class DumpOptions {
+
+	public static final String FORMAT_NQUADS = "N-QUADS";
+
+	private String format = FORMAT_NQUADS;
+	private boolean compressed = true;
+	private boolean singleFile = false;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private long maxBytesPerSecond = 0;
+
+	/**
+	 * @return the format of the dump files, {@value #FORMAT_NQUADS} by
+	 *         default or {@link BinaryRDF#FORMAT}
+	 */
+	public String getFormat() {
+		return format;
+	}
+
+	/**
+	 * Sets the format of the dump files. Binary dumps are written through
+	 * memory-mapped buffers and are not throttled.
+	 * 
+	 * @param format
+	 * @return
+	 */
+	public DumpOptions setFormat(String format) {
+		if (BinaryRDF.isFormat(format)) {
+			this.format = BinaryRDF.FORMAT;
+		} else if (FORMAT_NQUADS.equalsIgnoreCase(format)) {
+			this.format = FORMAT_NQUADS;
+		} else {
+			throw new IllegalArgumentException("Unsupported dump format: "
+					+ format);
+		}
+		return this;
+	}
+
+	public boolean isBinary() {
+		return BinaryRDF.FORMAT.equals(format);
+	}
+
+	/**
+	 * @return whether the dump files are gzip compressed, or the blocks of
+	 *         binary dump files deflated, <code>true</code> by default
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	public DumpOptions setCompressed(boolean compressed) {
+		this.compressed = compressed;
+		return this;
+	}
+
+	/**
+	 * @return whether all models are written into a single file instead of
+	 *         one file per model, <code>false</code> by default
+	 */
+	public boolean isSingleFile() {
+		return singleFile;
+	}
+
+	public DumpOptions setSingleFile(boolean singleFile) {
+		this.singleFile = singleFile;
+		return this;
+	}
+
+	/**
+	 * @return the number of models exported in parallel, the number of
+	 *         available processors by default
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	public DumpOptions setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive");
+		}
+		this.threads = threads;
+		return this;
+	}
+
+	/**
+	 * @return the maximum rate at which each dump file is written, in bytes
+	 *         per second, or 0 if the dump is not throttled which is the
+	 *         default
+	 */
+	public long getMaxBytesPerSecond() {
+		return maxBytesPerSecond;
+	}
+
+	public DumpOptions setMaxBytesPerSecond(long maxBytesPerSecond) {
+		this.maxBytesPerSecond = maxBytesPerSecond;
+		return this;
+	}
+
+}
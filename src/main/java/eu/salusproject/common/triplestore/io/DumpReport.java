@@ -0,0 +1,63 @@
+package eu.salusproject.common.triplestore.io;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Outcome of a dump of a store.
+ */
+public class DumpReport {
+
+	private final List<File> files;
+	private final int models;
+	private final long quads;
+	private final long bytes;
+	private final long elapsedMillis;
+
+	public DumpReport(List<File> files, int models, long quads, long bytes,
+			long elapsedMillis) {
+		this.files = files;
+		this.models = models;
+		this.quads = quads;
+		this.bytes = bytes;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * @return the written files
+	 */
+	public List<File> getFiles() {
+		return files;
+	}
+
+	public int getModels() {
+		return models;
+	}
+
+	public long getQuads() {
+		return quads;
+	}
+
+	/**
+	 * @return the number of bytes written, after compression
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	public double getQuadsPerSecond() {
+		return elapsedMillis == 0 ? quads : quads * 1000.0 / elapsedMillis;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%d models, %d quads, %d bytes in %d ms (%.0f quads/s)",
+				models, quads, bytes, elapsedMillis, getQuadsPerSecond());
+	}
+
+}
@@ -0,0 +1,105 @@
+package eu.salusproject.common.triplestore.io;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jena.riot.out.NodeFmtLib;
+import org.apache.jena.riot.tokens.Token;
+import org.apache.jena.riot.tokens.TokenType;
+import org.apache.jena.riot.tokens.Tokenizer;
+import org.apache.jena.riot.tokens.TokenizerFactory;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.sparql.core.Quad;
+
+/**
+ * Line based reader of the N-Quads written by {@link NQuadsOutput}. Unlike
+ * the RIOT parsers, blank node labels are mapped back to the original blank
+ * nodes instead of fresh ones, so that the blank nodes of a dump can be
+ * matched by later modifications.
+ */
+public class NQuadsInput {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final BufferedReader reader;
+
+	public NQuadsInput(InputStream in) {
+		this.reader = new BufferedReader(new InputStreamReader(in, UTF8),
+				64 * 1024);
+	}
+
+	/**
+	 * Reads the next quad. Triples without a graph are returned in
+	 * {@link Quad#defaultGraphNodeGenerated}.
+	 * 
+	 * @return the next quad or <code>null</code> at the end of the input
+	 * @throws IOException
+	 */
+	public Quad read() throws IOException {
+		String line;
+		while ((line = reader.readLine()) != null) {
+			List<Node> nodes = parseNodes(line);
+			if (nodes.size() == 3) {
+				return new Quad(Quad.defaultGraphNodeGenerated, nodes.get(0), nodes.get(1), nodes.get(2));
+			} else if (nodes.size() == 4) {
+				return new Quad(nodes.get(3), nodes.get(0), nodes.get(1),
+						nodes.get(2));
+			} else if (!nodes.isEmpty()) {
+				throw new IOException("Not an N-Quads line: " + line);
+			}
+		}
+		return null;
+	}
+
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	/**
+	 * Parses the RDF terms of a line up to the terminating dot. The keyword
+	 * <code>ANY</code> is parsed as {@link Node#ANY}.
+	 * 
+	 * @param text
+	 * @return
+	 */
+	public static List<Node> parseNodes(String text) {
+		List<Node> nodes = new ArrayList<Node>(4);
+		Tokenizer tokenizer = TokenizerFactory.makeTokenizerString(text);
+		while (tokenizer.hasNext()) {
+			Token token = tokenizer.next();
+			if (token.getType() == TokenType.DOT) {
+				break;
+			} else if (token.isBNode()) {
+				nodes.add(Node.createAnon(new AnonId(NodeFmtLib
+						.decodeBNodeLabel(token.getImage()))));
+			} else if (token.getType() == TokenType.KEYWORD
+					&& "ANY".equals(token.getImage())) {
+				nodes.add(Node.ANY);
+			} else if (token.isNode()) {
+				nodes.add(token.asNode());
+			} else {
+				throw new IllegalArgumentException("Unexpected token: "
+						+ token + " in " + text);
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * @param quad
+	 * @return the triple of the given quad
+	 */
+	public static Triple asTriple(Quad quad) {
+		return Triple.create(quad.getSubject(), quad.getPredicate(),
+				quad.getObject());
+	}
+
+}
@@ -0,0 +1,82 @@
+package eu.salusproject.common.triplestore.io;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import org.apache.jena.riot.out.NodeFmtLib;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * Streaming N-Quads serializer. Each quad is written as a single line, so
+ * that the output can be produced incrementally without materializing the
+ * serialized models.
+ */
+public class NQuadsOutput {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Writer writer;
+	private long count;
+
+	public NQuadsOutput(OutputStream out) {
+		this.writer = new BufferedWriter(new OutputStreamWriter(out, UTF8),
+				BUFFER_SIZE);
+	}
+
+	/**
+	 * Writes the given triple as a quad of the given graph. If graph is
+	 * <code>null</code>, the triple is written as an N-Triples line.
+	 * 
+	 * @param graph
+	 * @param triple
+	 * @throws IOException
+	 */
+	public void write(Node graph, Triple triple) throws IOException {
+		writer.write(format(graph, triple));
+		count++;
+	}
+
+	/**
+	 * @return the number of quads written so far
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public void flush() throws IOException {
+		writer.flush();
+	}
+
+	public void close() throws IOException {
+		writer.close();
+	}
+
+	/**
+	 * Formats the given triple as an N-Quads line, including the terminating
+	 * newline.
+	 * 
+	 * @param graph
+	 *            can be null
+	 * @param triple
+	 * @return
+	 */
+	public static String format(Node graph, Triple triple) {
+		StringBuilder sb = new StringBuilder(128);
+		sb.append(NodeFmtLib.str(triple.getSubject())).append(' ');
+		sb.append(NodeFmtLib.str(triple.getPredicate())).append(' ');
+		sb.append(NodeFmtLib.str(triple.getObject())).append(' ');
+		if (graph != null) {
+			sb.append(NodeFmtLib.str(graph)).append(' ');
+		}
+		sb.append(".\n");
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,327 @@
+package eu.salusproject.common.triplestore.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.jena.riot.RiotException;
+import org.apache.jena.riot.tokens.Token;
+import org.apache.jena.riot.tokens.TokenType;
+import org.apache.jena.riot.tokens.Tokenizer;
+import org.apache.jena.riot.tokens.TokenizerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.GraphUtil;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Quad;
+
+/**
+ * Parser of N-Triples and N-Quads files which uses all processors. The file
+ * is split into chunks on line boundaries, which are memory-mapped and
+ * parsed in parallel on a {@link ForkJoinPool}. The parsed chunks are added
+ * to the target graph or dataset in the order of the file, one bulk add per
+ * chunk, by the calling thread; at most two chunks per worker are parsed
+ * ahead of the target.
+ * <p>
+ * IRIs are interned in a cache shared by the workers, so that the nodes of
+ * the frequent IRIs such as predicates and classes are only created once.
+ * Blank node labels are scoped to a single parse.
+ */
+public class ParallelNTriplesParser {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ParallelNTriplesParser.class);
+
+	public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_INTERNED = 200000;
+	private static final int SCAN_SIZE = 64 * 1024;
+
+	private final int parallelism;
+	private final int chunkSize;
+
+	/**
+	 * Creates a parser which uses all available processors.
+	 */
+	public ParallelNTriplesParser() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param parallelism
+	 *            number of chunks parsed in parallel
+	 * @param chunkSize
+	 *            size of a chunk in bytes, chunks are extended to the end of
+	 *            their last line
+	 */
+	public ParallelNTriplesParser(int parallelism, int chunkSize) {
+		if (parallelism < 1 || chunkSize < 1) {
+			throw new IllegalArgumentException(
+					"parallelism and chunkSize must be positive");
+		}
+		this.parallelism = parallelism;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * @param format
+	 * @return whether the given format name denotes N-Triples or N-Quads
+	 */
+	public static boolean isSupported(String format) {
+		if (format == null) {
+			return false;
+		}
+		String f = format.toUpperCase();
+		return f.equals("N-TRIPLE") || f.equals("N-TRIPLES")
+				|| f.equals("NT") || f.equals("N-QUADS") || f.equals("NQUADS")
+				|| f.equals("NQ");
+	}
+
+	/**
+	 * @param file
+	 * @return whether the given file can be memory-mapped and parsed, i.e.
+	 *         it is a regular file which is not gzip compressed
+	 * @throws IOException
+	 */
+	public static boolean canParse(File file) throws IOException {
+		if (!file.isFile()) {
+			return false;
+		}
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			return in.length() < 2 || in.read() != 0x1f || in.read() != 0x8b;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Adds the triples of the given file to the graph. For an N-Quads file,
+	 * the triples of all graphs are added.
+	 * 
+	 * @param file
+	 * @param graph
+	 * @return the number of triples read
+	 * @throws IOException
+	 */
+	public long parse(File file, final Graph graph) throws IOException {
+		return parse(file, new Target() {
+			@Override
+			public void add(List<Quad> quads) {
+				List<Triple> triples = new ArrayList<Triple>(quads.size());
+				for (Quad quad : quads) {
+					triples.add(quad.asTriple());
+				}
+				GraphUtil.add(graph, triples);
+			}
+		});
+	}
+
+	/**
+	 * Adds the quads of the given file to the dataset. Triples without a
+	 * graph are added to the default graph.
+	 * 
+	 * @param file
+	 * @param dataset
+	 * @return the number of quads read
+	 * @throws IOException
+	 */
+	public long parse(File file, final DatasetGraph dataset)
+			throws IOException {
+		return parse(file, new Target() {
+			@Override
+			public void add(List<Quad> quads) {
+				for (Quad quad : quads) {
+					dataset.add(quad);
+				}
+			}
+		});
+	}
+
+	private long parse(File file, Target target) throws IOException {
+		long start = System.currentTimeMillis();
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		long count = 0;
+		try {
+			FileChannel channel = in.getChannel();
+			ChunkParser parser = new ChunkParser(channel, UUID.randomUUID()
+					.toString());
+			Deque<Future<List<Quad>>> pending = new ArrayDeque<Future<List<Quad>>>();
+			long size = channel.size();
+			long position = 0;
+			while (position < size) {
+				long end = lineEnd(channel, Math.min(position + chunkSize, size),
+						size);
+				pending.add(pool.submit(parser.chunk(position,
+						(int) (end - position))));
+				position = end;
+				if (pending.size() >= 2 * parallelism) {
+					count += addNext(pending, target, file);
+				}
+			}
+			while (!pending.isEmpty()) {
+				count += addNext(pending, target, file);
+			}
+		} finally {
+			pool.shutdownNow();
+			in.close();
+		}
+		logger.info("{} statements have been parsed from {} in {} ms",
+				new Object[] { count, file, System.currentTimeMillis() - start });
+		return count;
+	}
+
+	private static long addNext(Deque<Future<List<Quad>>> pending,
+			Target target, File file) throws IOException {
+		List<Quad> quads;
+		try {
+			quads = pending.poll().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while parsing " + file, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Cannot parse " + file, e.getCause());
+		}
+		target.add(quads);
+		return quads.size();
+	}
+
+	/**
+	 * @return the offset following the first line break at or after the
+	 *         given offset, or the size of the file
+	 */
+	private long lineEnd(FileChannel channel, long offset, long size)
+			throws IOException {
+		while (offset < size) {
+			int length = (int) Math.min(SCAN_SIZE, size - offset);
+			MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, offset, length);
+			for (int i = 0; i < length; i++) {
+				if (buffer.get(i) == '\n') {
+					return offset + i + 1;
+				}
+			}
+			offset += length;
+		}
+		return size;
+	}
+
+	/**
+	 * Receives the parsed chunks in the order of the file.
+	 */
+	private interface Target {
+		void add(List<Quad> quads);
+	}
+
+	/**
+	 * Parses chunks of one file. Shared by the workers.
+	 */
+	private static class ChunkParser {
+
+		private final FileChannel channel;
+		private final String blankNodeScope;
+		private final ConcurrentMap<String, Node> iris = new ConcurrentHashMap<String, Node>();
+
+		ChunkParser(FileChannel channel, String blankNodeScope) {
+			this.channel = channel;
+			this.blankNodeScope = blankNodeScope;
+		}
+
+		Callable<List<Quad>> chunk(final long offset, final int length) {
+			return new Callable<List<Quad>>() {
+				@Override
+				public List<Quad> call() throws IOException {
+					return parse(offset, length);
+				}
+			};
+		}
+
+		private List<Quad> parse(long offset, int length) throws IOException {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+					offset, length);
+			String text = UTF8.newDecoder().decode(buffer).toString();
+			List<Quad> quads = new ArrayList<Quad>(length / 100 + 16);
+			List<Node> nodes = new ArrayList<Node>(4);
+			try {
+				Tokenizer tokenizer = TokenizerFactory.makeTokenizerString(text);
+				while (tokenizer.hasNext()) {
+					Token token = tokenizer.next();
+					if (token.getType() != TokenType.DOT) {
+						nodes.add(node(token));
+						continue;
+					}
+					if (nodes.size() == 3) {
+						quads.add(new Quad(Quad.defaultGraphNodeGenerated,
+								nodes.get(0), nodes.get(1), nodes.get(2)));
+					} else if (nodes.size() == 4) {
+						quads.add(new Quad(nodes.get(3), nodes.get(0), nodes
+								.get(1), nodes.get(2)));
+					} else {
+						throw new IOException(String.format(
+								"Not an N-Triples or N-Quads statement in the chunk at offset %d: %s",
+								offset, nodes));
+					}
+					nodes.clear();
+				}
+			} catch (RiotException e) {
+				throw new IOException(String.format(
+						"Cannot parse the chunk at offset %d", offset), e);
+			}
+			if (!nodes.isEmpty()) {
+				throw new IOException(String.format(
+						"Unterminated statement in the chunk at offset %d",
+						offset));
+			}
+			return quads;
+		}
+
+		private Node node(Token token) {
+			if (token.isIRI()) {
+				String iri = token.getImage();
+				Node node = iris.get(iri);
+				if (node == null) {
+					node = Node.createURI(iri);
+					if (iris.size() < MAX_INTERNED) {
+						Node existing = iris.putIfAbsent(iri, node);
+						if (existing != null) {
+							node = existing;
+						}
+					}
+				}
+				return node;
+			} else if (token.isBNode()) {
+				return Node.createAnon(new AnonId(blankNodeScope
+						+ token.getImage()));
+			} else if (token.isNode()) {
+				return token.asNode();
+			}
+			throw new RiotException("Unexpected token: " + token);
+		}
+	}
+
+}
@@ -0,0 +1,377 @@
+package eu.salusproject.common.triplestore.io;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+import eu.salusproject.common.triplestore.JenaStore;
+import eu.salusproject.common.triplestore.JenaStoreException;
+
+/**
+ * Exports all named models of a {@link JenaStore} as N-Quads or in the
+ * {@link BinaryRDF} format. Models are exported in parallel and their
+ * triples are streamed from the store, so the memory used does not depend
+ * on the size of the models. The output is either one file per model,
+ * listed in {@value #GRAPH_INDEX_FILE}, or a single file.
+ * <p>
+ * Each model is read while holding the lock returned by
+ * {@link #modelLock(String)}, if any, so that stores whose iterators are
+ * invalidated by concurrent writers can make the writers wait instead.
+ */
+public class StoreDumper {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(StoreDumper.class);
+
+	public static final String GRAPH_INDEX_FILE = "graphs.tsv";
+	public static final String SINGLE_FILE = "dump.nq";
+	public static final String SINGLE_BINARY_FILE = "dump"
+			+ BinaryRDF.FILE_EXTENSION;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final JenaStore store;
+	private final DumpOptions options;
+
+	public StoreDumper(JenaStore store, DumpOptions options) {
+		this.store = store;
+		this.options = options;
+	}
+
+	/**
+	 * Returns the lock to hold while the given model is read, or
+	 * <code>null</code> if the model can be read while it is modified.
+	 * 
+	 * @param ontologyURI
+	 * @return
+	 */
+	protected Lock modelLock(String ontologyURI) {
+		return null;
+	}
+
+	/**
+	 * Dumps the store into the given directory.
+	 *
+	 * @param targetDirectory
+	 * @return
+	 * @throws JenaStoreException
+	 */
+	public DumpReport dump(File targetDirectory) throws JenaStoreException {
+		long start = System.currentTimeMillis();
+		List<String> modelNames = store.listModels();
+		ExecutorService executor = Executors.newFixedThreadPool(options
+				.getThreads());
+		List<File> files;
+		long quads;
+		try {
+			FileUtils.forceMkdir(targetDirectory);
+			List<Future<Long>> results = new ArrayList<Future<Long>>();
+			if (options.isSingleFile()) {
+				File file = new File(targetDirectory,
+						options.isBinary() ? SINGLE_BINARY_FILE : SINGLE_FILE
+								+ extension());
+				files = new ArrayList<File>();
+				files.add(file);
+				dumpSingleFile(file, modelNames, executor, results);
+			} else {
+				files = dumpPerModel(targetDirectory, modelNames, executor,
+						results);
+			}
+			quads = 0;
+			for (Future<Long> result : results) {
+				quads += result.get();
+			}
+		} catch (IOException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot write the dump to %s",
+					targetDirectory.getAbsolutePath()), e);
+		} catch (ExecutionException e) {
+			throw new JenaStoreException("Cannot dump the store", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JenaStoreException("Interrupted during the dump", e);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		long bytes = 0;
+		for (File file : files) {
+			bytes += file.length();
+		}
+		DumpReport report = new DumpReport(files, modelNames.size(), quads,
+				bytes, System.currentTimeMillis() - start);
+		logger.info("Store has been dumped to {}: {}",
+				targetDirectory.getAbsolutePath(), report);
+		return report;
+	}
+
+	private List<File> dumpPerModel(File targetDirectory,
+			List<String> modelNames, ExecutorService executor,
+			List<Future<Long>> results) throws IOException {
+		List<File> files = new ArrayList<File>();
+		StringBuilder index = new StringBuilder();
+		for (int i = 0; i < modelNames.size(); i++) {
+			final String uri = modelNames.get(i);
+			final File file = new File(targetDirectory, options.isBinary() ? String
+					.format("graph-%06d%s", i, BinaryRDF.FILE_EXTENSION)
+					: String.format("graph-%06d.nq%s", i, extension()));
+			files.add(file);
+			index.append(file.getName()).append('\t').append(uri)
+					.append('\n');
+			results.add(executor.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					if (options.isBinary()) {
+						BinaryRDFWriter out = new BinaryRDFWriter(file, false,
+								options.isCompressed());
+						try {
+							writeModel(uri, out);
+						} finally {
+							out.close();
+						}
+						return out.getCount();
+					}
+					NQuadsOutput out = new NQuadsOutput(open(file));
+					try {
+						writeModel(uri, out);
+					} finally {
+						out.close();
+					}
+					return out.getCount();
+				}
+			}));
+		}
+		File indexFile = new File(targetDirectory, GRAPH_INDEX_FILE);
+		FileUtils.writeStringToFile(indexFile, index.toString(), UTF8);
+		return files;
+	}
+
+	/**
+	 * Models are serialized in parallel into line aligned chunks, or binary
+	 * blocks with their own node dictionary, which are written into the file
+	 * by the calling thread. The chunk queue is bounded, so the serializers
+	 * wait for the writer instead of buffering.
+	 */
+	private void dumpSingleFile(File file, List<String> modelNames,
+			ExecutorService executor, List<Future<Long>> results)
+			throws IOException, InterruptedException {
+		final BlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<ByteBuffer>(
+				options.getThreads() * 4);
+		for (final String uri : modelNames) {
+			results.add(executor.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					if (options.isBinary()) {
+						return writeBinaryModel(uri, chunks);
+					}
+					return writeModel(uri, chunks);
+				}
+			}));
+		}
+		if (options.isBinary()) {
+			BinaryRDFWriter out = new BinaryRDFWriter(file, true,
+					options.isCompressed());
+			try {
+				ByteBuffer chunk;
+				while ((chunk = nextChunk(chunks, results)) != null) {
+					out.writeBlock(chunk);
+				}
+			} finally {
+				out.close();
+			}
+			return;
+		}
+		OutputStream out = open(file);
+		try {
+			ByteBuffer chunk;
+			while ((chunk = nextChunk(chunks, results)) != null) {
+				out.write(chunk.array(),
+						chunk.arrayOffset() + chunk.position(),
+						chunk.remaining());
+			}
+			out.close();
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	/**
+	 * @return the next chunk, or <code>null</code> once all serializers are
+	 *         done and their chunks have been taken
+	 */
+	private static ByteBuffer nextChunk(BlockingQueue<ByteBuffer> chunks,
+			List<Future<Long>> results) throws InterruptedException {
+		while (true) {
+			ByteBuffer chunk = chunks.poll(100, TimeUnit.MILLISECONDS);
+			if (chunk != null) {
+				return chunk;
+			} else if (allDone(results) && chunks.isEmpty()) {
+				return null;
+			}
+		}
+	}
+
+	private void writeModel(String uri, NQuadsOutput out) throws IOException {
+		Model model = store.getModel(uri);
+		if (model == null) {
+			return;
+		}
+		Node graphNode = Node.createURI(uri);
+		Lock lock = lock(uri);
+		ExtendedIterator<Triple> it = model.getGraph().find(Triple.ANY);
+		try {
+			while (it.hasNext()) {
+				out.write(graphNode, it.next());
+			}
+		} finally {
+			it.close();
+			unlock(lock);
+		}
+	}
+
+	private void writeModel(String uri, BinaryRDFWriter out)
+			throws IOException {
+		Model model = store.getModel(uri);
+		if (model == null) {
+			return;
+		}
+		Lock lock = lock(uri);
+		ExtendedIterator<Triple> it = model.getGraph().find(Triple.ANY);
+		try {
+			while (it.hasNext()) {
+				out.write(null, it.next());
+			}
+		} finally {
+			it.close();
+			unlock(lock);
+		}
+	}
+
+	private long writeModel(String uri, BlockingQueue<ByteBuffer> chunks)
+			throws InterruptedException {
+		Model model = store.getModel(uri);
+		if (model == null) {
+			return 0;
+		}
+		Node graphNode = Node.createURI(uri);
+		long count = 0;
+		StringBuilder chunk = new StringBuilder(CHUNK_SIZE + 1024);
+		Lock lock = lock(uri);
+		ExtendedIterator<Triple> it = model.getGraph().find(Triple.ANY);
+		try {
+			while (it.hasNext()) {
+				chunk.append(NQuadsOutput.format(graphNode, it.next()));
+				count++;
+				if (chunk.length() >= CHUNK_SIZE) {
+					chunks.put(ByteBuffer.wrap(chunk.toString()
+							.getBytes(UTF8)));
+					chunk.setLength(0);
+				}
+			}
+		} finally {
+			it.close();
+			unlock(lock);
+		}
+		if (chunk.length() > 0) {
+			chunks.put(ByteBuffer.wrap(chunk.toString().getBytes(UTF8)));
+		}
+		return count;
+	}
+
+	private long writeBinaryModel(String uri, BlockingQueue<ByteBuffer> chunks)
+			throws InterruptedException {
+		Model model = store.getModel(uri);
+		if (model == null) {
+			return 0;
+		}
+		Node graphNode = Node.createURI(uri);
+		BinaryRDFEncoder encoder = new BinaryRDFEncoder(true,
+				options.isCompressed(), true);
+		long count = 0;
+		Lock lock = lock(uri);
+		ExtendedIterator<Triple> it = model.getGraph().find(Triple.ANY);
+		try {
+			while (it.hasNext()) {
+				encoder.write(graphNode, it.next());
+				count++;
+				if (encoder.isBlockFull()) {
+					chunks.put(encoder.finishBlock());
+				}
+			}
+			if (!encoder.isEmpty()) {
+				chunks.put(encoder.finishBlock());
+			}
+		} finally {
+			it.close();
+			unlock(lock);
+			encoder.end();
+		}
+		return count;
+	}
+
+	private Lock lock(String uri) {
+		Lock lock = modelLock(uri);
+		if (lock != null) {
+			lock.lock();
+		}
+		return lock;
+	}
+
+	private static void unlock(Lock lock) {
+		if (lock != null) {
+			lock.unlock();
+		}
+	}
+
+	private OutputStream open(File file) throws IOException {
+		OutputStream out = new BufferedOutputStream(new ThrottledOutputStream(
+				new FileOutputStream(file), options.getMaxBytesPerSecond()),
+				BUFFER_SIZE);
+		if (options.isCompressed()) {
+			out = new GZIPOutputStream(out, BUFFER_SIZE);
+		}
+		return out;
+	}
+
+	private String extension() {
+		return options.isCompressed() ? ".gz" : "";
+	}
+
+	private static boolean allDone(List<Future<Long>> results) {
+		for (Future<Long> result : results) {
+			if (!result.isDone()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,60 @@
+package eu.salusproject.common.triplestore.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * {@link OutputStream} which limits the rate at which bytes are written to
+ * the underlying stream, so that background I/O such as backups does not
+ * starve foreground work. Writers are paused whenever they get ahead of the
+ * configured rate.
+ */
+public class ThrottledOutputStream extends FilterOutputStream {
+
+	private final long maxBytesPerSecond;
+	private final long startNanos;
+	private long bytes;
+
+	/**
+	 * @param out
+	 * @param maxBytesPerSecond
+	 *            a non-positive value disables throttling
+	 */
+	public ThrottledOutputStream(OutputStream out, long maxBytesPerSecond) {
+		super(out);
+		this.maxBytesPerSecond = maxBytesPerSecond;
+		this.startNanos = System.nanoTime();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		throttle(1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		throttle(len);
+	}
+
+	private void throttle(int len) throws IOException {
+		if (maxBytesPerSecond <= 0) {
+			return;
+		}
+		bytes += len;
+		long expectedNanos = bytes * 1000000000L / maxBytesPerSecond;
+		long aheadNanos = expectedNanos - (System.nanoTime() - startNanos);
+		if (aheadNanos > 1000000L) {
+			try {
+				Thread.sleep(aheadNanos / 1000000L);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttled");
+			}
+		}
+	}
+
+}
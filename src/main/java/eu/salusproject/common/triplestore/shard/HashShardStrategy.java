@@ -0,0 +1,28 @@
+package eu.salusproject.common.triplestore.shard;
+
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Spreads the named models evenly over the shards by the CRC32 of their
+ * URIs, which does not change across JVMs.
+ */
+public class HashShardStrategy implements ShardStrategy {
+
+	public static final String SPEC = "hash";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Override
+	public int shardFor(String ontologyURI, int shardCount) {
+		CRC32 crc = new CRC32();
+		crc.update(ontologyURI.getBytes(UTF8));
+		return (int) (crc.getValue() % shardCount);
+	}
+
+	@Override
+	public String toSpec() {
+		return SPEC;
+	}
+
+}
@@ -0,0 +1,55 @@
+package eu.salusproject.common.triplestore.shard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Assigns contiguous ranges of URIs to the shards, which keeps the models of
+ * e.g. a tenant namespace together. The ranges are given by sorted split
+ * points: the URIs before the first split point belong to the first shard,
+ * the URIs from the first up to the second split point to the second shard
+ * and so on.
+ */
+public class RangeShardStrategy implements ShardStrategy {
+
+	public static final String SPEC_PREFIX = "range:";
+
+	private final String[] splits;
+
+	/**
+	 * @param splits
+	 *            n - 1 split points for n shards
+	 */
+	public RangeShardStrategy(List<String> splits) {
+		this.splits = splits.toArray(new String[splits.size()]);
+		Arrays.sort(this.splits);
+	}
+
+	@Override
+	public int shardFor(String ontologyURI, int shardCount) {
+		int index = Arrays.binarySearch(splits, ontologyURI);
+		int shard = index >= 0 ? index + 1 : -index - 1;
+		return Math.min(shard, shardCount - 1);
+	}
+
+	public List<String> getSplits() {
+		return new ArrayList<String>(Arrays.asList(splits));
+	}
+
+	/**
+	 * Split points are separated by spaces, which URIs do not contain.
+	 */
+	@Override
+	public String toSpec() {
+		StringBuilder sb = new StringBuilder(SPEC_PREFIX);
+		for (int i = 0; i < splits.length; i++) {
+			if (i > 0) {
+				sb.append(' ');
+			}
+			sb.append(splits[i]);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,46 @@
+package eu.salusproject.common.triplestore.shard;
+
+import com.hp.hpl.jena.graph.Node;
+
+/**
+ * Result of a text search over the shards of a {@link ShardedStore}.
+ */
+public class SearchHit {
+
+	private final Node node;
+	private final float score;
+	private final int shard;
+
+	public SearchHit(Node node, float score, int shard) {
+		this.node = node;
+		this.score = score;
+		this.shard = shard;
+	}
+
+	/**
+	 * @return the matching literal
+	 */
+	public Node getNode() {
+		return node;
+	}
+
+	/**
+	 * @return the relevance reported by the text index of the shard
+	 */
+	public float getScore() {
+		return score;
+	}
+
+	/**
+	 * @return the index of the shard the hit comes from
+	 */
+	public int getShard() {
+		return shard;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s (%.3f, shard %d)", node, score, shard);
+	}
+
+}
@@ -0,0 +1,234 @@
+package eu.salusproject.common.triplestore.shard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+import eu.salusproject.common.triplestore.JenaStore;
+import eu.salusproject.common.triplestore.JenaStoreException;
+import eu.salusproject.common.triplestore.StoreChangeListener;
+import eu.salusproject.common.triplestore.inference.InferenceConfig;
+
+/**
+ * Moves the named models of a {@link ShardedStore} to a new layout of
+ * shards, e.g. after shards have been added. The store switches to the new
+ * layout at once and keeps finding the models which have not been moved yet,
+ * and the model being moved, at their previous shards, so it can be used
+ * during the rebalancing. A model is copied while the updates of its
+ * previous shard are suspended, if that is a TDB store. Modifications made
+ * on the previous shard meanwhile are recorded and replayed on the new shard,
+ * and the lookups of the model wait while the last of them are replayed and
+ * the model is removed from the previous shard, so that no modification
+ * reaches the new shard before the older ones.
+ */
+public class ShardRebalancer {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ShardRebalancer.class);
+
+	private final ShardedStore store;
+
+	public ShardRebalancer(ShardedStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Switches the store to the given shards and strategy and moves the
+	 * models whose owner has changed. If a previous rebalancing has been
+	 * interrupted, it should be resumed by calling this method with the same
+	 * layout again.
+	 *
+	 * @param shards
+	 *            the new shards, usually the current shards followed by the
+	 *            added ones
+	 * @param strategy
+	 * @return the number of moved models
+	 */
+	public int rebalance(List<JenaStore> shards, ShardStrategy strategy)
+			throws JenaStoreException {
+		long start = System.currentTimeMillis();
+		List<JenaStore> previousShards = store.getPreviousShards();
+		if (previousShards == null) {
+			previousShards = store.getShards();
+			store.beginRebalance(shards, strategy);
+		}
+		int moved = 0;
+		for (JenaStore source : previousShards) {
+			for (String uri : source.listModels()) {
+				JenaStore target = store.getShard(uri);
+				if (target == source) {
+					continue;
+				}
+				store.setMoving(uri, true);
+				MoveRecorder recorder = new MoveRecorder(uri);
+				source.addChangeListener(recorder);
+				try {
+					if (!target.hasModel(uri)) {
+						// the inference settings move along with the model
+						InferenceConfig config = source.getInferenceConfig(uri);
+						if (!config.equals(target.getInferenceConfig(uri))) {
+							target.setInferenceConfig(uri, config);
+						}
+						copyModel(source, target, uri);
+					}
+					store.setReplaying(true);
+					try {
+						recorder.replay(target);
+						store.setSwitching(uri, true);
+						try {
+							// modifications made until the removal
+							source.removeModel(uri);
+							recorder.replay(target);
+						} finally {
+							store.setSwitching(uri, false);
+						}
+					} finally {
+						store.setReplaying(false);
+					}
+				} finally {
+					source.removeChangeListener(recorder);
+					store.setMoving(uri, false);
+				}
+				moved++;
+			}
+		}
+		store.endRebalance();
+		logger.info("{} models have been moved over {} shards in {} ms",
+				new Object[] { moved, shards.size(),
+						System.currentTimeMillis() - start });
+		return moved;
+	}
+
+	/**
+	 * Copies the model to the target through an in-memory copy, which is read
+	 * while the updates of the source are suspended. The target is written
+	 * after they have been resumed, as the listeners notified by the target
+	 * may modify the source.
+	 */
+	private static void copyModel(JenaStore source, JenaStore target,
+			String ontologyURI) {
+		Model copy = ModelFactory.createDefaultModel();
+		Lock lock = ShardedStore.updateSuspensionLock(source);
+		if (lock != null) {
+			lock.lock();
+		}
+		try {
+			copy.add(source.getModel(ontologyURI));
+		} finally {
+			if (lock != null) {
+				lock.unlock();
+			}
+		}
+		target.addModel(ontologyURI, copy);
+	}
+
+	/**
+	 * Records the modifications of a moving model on its previous shard until
+	 * the model is removed from it.
+	 */
+	private static class MoveRecorder implements StoreChangeListener {
+
+		private enum Op {
+			ADD, REMOVE, REMOVE_PATTERN
+		}
+
+		private static class Change {
+			final Op op;
+			final List<Triple> triples;
+
+			Change(Op op, List<Triple> triples) {
+				this.op = op;
+				this.triples = triples;
+			}
+		}
+
+		private final String ontologyURI;
+		private List<Change> changes = new ArrayList<Change>();
+		private boolean removed;
+
+		MoveRecorder(String ontologyURI) {
+			this.ontologyURI = ontologyURI;
+		}
+
+		@Override
+		public void modelAdded(String ontologyURI, Model model) {
+		}
+
+		@Override
+		public synchronized void modelRemoved(String ontologyURI) {
+			if (this.ontologyURI.equals(ontologyURI)) {
+				removed = true;
+			}
+		}
+
+		@Override
+		public void triplesAdded(String ontologyURI, List<Triple> triples) {
+			record(ontologyURI, Op.ADD, triples);
+		}
+
+		@Override
+		public void triplesRemoved(String ontologyURI, List<Triple> triples) {
+			record(ontologyURI, Op.REMOVE, triples);
+		}
+
+		@Override
+		public void patternRemoved(String ontologyURI, Triple pattern) {
+			record(ontologyURI, Op.REMOVE_PATTERN,
+					Collections.singletonList(pattern));
+		}
+
+		private synchronized void record(String ontologyURI, Op op,
+				List<Triple> triples) {
+			if (!removed && this.ontologyURI.equals(ontologyURI)) {
+				changes.add(new Change(op, new ArrayList<Triple>(triples)));
+			}
+		}
+
+		/**
+		 * Applies and discards the recorded modifications in their order.
+		 * Adding and removing triples is idempotent, so modifications already
+		 * contained in the copy of the model are applied again safely.
+		 *
+		 * @param target
+		 */
+		void replay(JenaStore target) {
+			List<Change> recorded;
+			synchronized (this) {
+				recorded = changes;
+				changes = new ArrayList<Change>();
+			}
+			if (recorded.isEmpty()) {
+				return;
+			}
+			Graph graph = target.getModel(ontologyURI).getGraph();
+			for (Change change : recorded) {
+				for (Triple t : change.triples) {
+					switch (change.op) {
+					case ADD:
+						graph.add(t);
+						break;
+					case REMOVE:
+						graph.delete(t);
+						break;
+					case REMOVE_PATTERN:
+						graph.remove(t.getSubject(), t.getPredicate(),
+								t.getObject());
+						break;
+					}
+				}
+			}
+			logger.debug("{} modifications of {} have been replayed",
+					recorded.size(), ontologyURI);
+		}
+	}
+
+}
@@ -0,0 +1,22 @@
+package eu.salusproject.common.triplestore.shard;
+
+/**
+ * Decides which shard of a {@link ShardedStore} owns a named model.
+ */
+public interface ShardStrategy {
+
+	/**
+	 * @param ontologyURI
+	 * @param shardCount
+	 * @return the index of the shard owning the named model, in
+	 *         [0, shardCount)
+	 */
+	public int shardFor(String ontologyURI, int shardCount);
+
+	/**
+	 * @return the textual form of this strategy, which is parsed by
+	 *         {@link ShardedStore#parseStrategy(String)}
+	 */
+	public String toSpec();
+
+}
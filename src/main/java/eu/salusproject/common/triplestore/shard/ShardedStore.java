@@ -0,0 +1,973 @@
+package eu.salusproject.common.triplestore.shard;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.jena.larq.HitLARQ;
+import org.apache.jena.larq.IndexLARQ;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import virtuoso.jena.driver.VirtGraph;
+import virtuoso.jena.driver.VirtuosoQueryExecutionFactory;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.compose.MultiUnion;
+import com.hp.hpl.jena.ontology.OntModel;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ReadWrite;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Literal;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.graph.GraphReadOnly;
+
+import eu.salusproject.common.triplestore.JenaStore;
+import eu.salusproject.common.triplestore.JenaStoreException;
+import eu.salusproject.common.triplestore.ModelPage;
+import eu.salusproject.common.triplestore.StoreChangeListener;
+import eu.salusproject.common.triplestore.StoreQueryExecutionFactory;
+import eu.salusproject.common.triplestore.feed.ChangeFeed;
+import eu.salusproject.common.triplestore.governor.AdmissionRejectedException;
+import eu.salusproject.common.triplestore.governor.GovernedStore;
+import eu.salusproject.common.triplestore.governor.OperationType;
+import eu.salusproject.common.triplestore.governor.Priority;
+import eu.salusproject.common.triplestore.governor.QueryLimitExceededException;
+import eu.salusproject.common.triplestore.governor.SelectResult;
+import eu.salusproject.common.triplestore.governor.StoreGovernor;
+import eu.salusproject.common.triplestore.inference.InferenceConfig;
+import eu.salusproject.common.triplestore.io.DumpOptions;
+import eu.salusproject.common.triplestore.io.DumpReport;
+import eu.salusproject.common.triplestore.io.StoreDumper;
+import eu.salusproject.common.triplestore.stats.GraphStatistics;
+import eu.salusproject.common.triplestore.tdb.TDBStore;
+import eu.salusproject.common.triplestore.virtuoso.VirtuosoStore;
+
+/**
+ * {@link JenaStore} which partitions its named models over several shard
+ * stores by a {@link ShardStrategy}. Operations on a named model are routed
+ * to the shard owning it, operations on the whole store are applied to all
+ * shards. SPARQL SELECT queries and text searches are run on all shards in
+ * parallel and their results are merged.
+ * <p>
+ * While a {@link ShardRebalancer} moves models to a new layout of shards,
+ * models which have not been moved yet are still found at their previous
+ * shard.
+ * <p>
+ * A shard given a {@link StoreGovernor} by
+ * {@link #setShardGovernor(JenaStore, StoreGovernor)} is only used through
+ * it, so that the operations and queries of this store are admitted and
+ * limited like those made on the shard directly. Operations of the
+ * {@link JenaStore} interface are admitted as {@link Priority#INTERACTIVE};
+ * queries and searches take the priority of their caller.
+ */
+public class ShardedStore implements JenaStore {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ShardedStore.class);
+
+	public static final String FEED_SEQUENCE_FILE = "feed.sequence";
+
+	private static final AtomicInteger poolCounter = new AtomicInteger();
+
+	private final File directory;
+	private final ExecutorService executor;
+
+	private volatile Layout layout;
+	private volatile Layout previous;
+
+	private final Map<JenaStore, ShardListener> shardListeners = new IdentityHashMap<JenaStore, ShardListener>();
+	private final Map<JenaStore, StoreGovernor> shardGovernors = new IdentityHashMap<JenaStore, StoreGovernor>();
+	private final List<StoreChangeListener> changeListeners = new CopyOnWriteArrayList<StoreChangeListener>();
+	private final Set<String> moving = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Set<String> switching = new HashSet<String>();
+	private final ThreadLocal<Boolean> replaying = new ThreadLocal<Boolean>();
+	private ChangeFeed changeFeed;
+
+	/**
+	 * @param directory
+	 *            directory of the state of this store such as the sequence of
+	 *            its change feed
+	 * @param shards
+	 * @param strategy
+	 */
+	public ShardedStore(File directory, List<JenaStore> shards,
+			ShardStrategy strategy) {
+		this.directory = directory;
+		this.layout = new Layout(shards, strategy);
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final int pool = poolCounter.incrementAndGet();
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "shard-" + pool + "-"
+						+ counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		listenTo(shards);
+	}
+
+	/**
+	 * Parses the textual form of a {@link ShardStrategy}.
+	 *
+	 * @param spec
+	 * @return
+	 */
+	public static ShardStrategy parseStrategy(String spec) {
+		if (spec.startsWith(RangeShardStrategy.SPEC_PREFIX)) {
+			String splits = spec.substring(
+					RangeShardStrategy.SPEC_PREFIX.length()).trim();
+			return new RangeShardStrategy(splits.length() == 0 ? Collections
+					.<String> emptyList() : Arrays.asList(splits.split(" ")));
+		} else if (HashShardStrategy.SPEC.equals(spec)) {
+			return new HashShardStrategy();
+		}
+		throw new IllegalArgumentException("Unknown shard strategy: " + spec);
+	}
+
+	public List<JenaStore> getShards() {
+		return layout.shards;
+	}
+
+	public ShardStrategy getStrategy() {
+		return layout.strategy;
+	}
+
+	/**
+	 * @return the shards before the rebalancing in progress, or
+	 *         <code>null</code>
+	 */
+	public List<JenaStore> getPreviousShards() {
+		Layout p = previous;
+		return p == null ? null : p.shards;
+	}
+
+	public ShardStrategy getPreviousStrategy() {
+		Layout p = previous;
+		return p == null ? null : p.strategy;
+	}
+
+	/**
+	 * @param ontologyURI
+	 * @return the shard which owns the named model in the current layout
+	 */
+	public JenaStore getShard(String ontologyURI) {
+		return layout.shardFor(ontologyURI);
+	}
+
+	/**
+	 * @return the shard which currently holds the named model, which differs
+	 *         from its owner while the model waits to be moved by a
+	 *         rebalancing or is being moved. While a moved model is switched
+	 *         to its owner, its lookup waits for the switch to finish.
+	 */
+	private JenaStore locate(String ontologyURI) {
+		JenaStore owner = layout.shardFor(ontologyURI);
+		Layout p = previous;
+		if (p != null) {
+			awaitSwitch(ontologyURI);
+			JenaStore old = p.shardFor(ontologyURI);
+			if (old != owner
+					&& (moving.contains(ontologyURI) || !owner
+							.hasModel(ontologyURI))
+					&& old.hasModel(ontologyURI)) {
+				return old;
+			}
+		}
+		return owner;
+	}
+
+	private void awaitSwitch(String ontologyURI) {
+		synchronized (switching) {
+			while (switching.contains(ontologyURI)) {
+				try {
+					switching.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new JenaException(String.format(
+							"Interrupted while model %s is switched to its shard",
+							ontologyURI), e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public OntModel createOntModel(String ontologyURI)
+			throws JenaStoreException {
+		if (hasModel(ontologyURI)) {
+			return getOntModel(ontologyURI);
+		}
+		return route(getShard(ontologyURI)).createOntModel(ontologyURI);
+	}
+
+	@Override
+	public OntModel createOntModel(String ontologyURI, String baseURI,
+			String ontologyFilePath) throws JenaStoreException {
+		if (hasModel(ontologyURI)) {
+			return getOntModel(ontologyURI);
+		}
+		return route(getShard(ontologyURI)).createOntModel(ontologyURI,
+				baseURI, ontologyFilePath);
+	}
+
+	@Override
+	public OntModel createOntModel(String ontologyURI, String baseURI,
+			String ontologyFilePath, String format) throws JenaStoreException {
+		if (hasModel(ontologyURI)) {
+			return getOntModel(ontologyURI);
+		}
+		return route(getShard(ontologyURI)).createOntModel(ontologyURI,
+				baseURI, ontologyFilePath, format);
+	}
+
+	@Override
+	public Model addModel(String ontologyURI, Model model) {
+		return route(getShard(ontologyURI)).addModel(ontologyURI, model);
+	}
+
+	@Override
+	public OntModel getOntModel(String ontologyURI) {
+		return route(locate(ontologyURI)).getOntModel(ontologyURI);
+	}
+
+	/**
+	 * The default configuration is set on all shards.
+	 */
+	@Override
+	public void setInferenceConfig(String ontologyURI, InferenceConfig config)
+			throws JenaStoreException {
+		if (ontologyURI == null) {
+			for (JenaStore shard : allShards()) {
+				route(shard).setInferenceConfig(null, config);
+			}
+		} else {
+			route(locate(ontologyURI)).setInferenceConfig(ontologyURI, config);
+		}
+	}
+
+	@Override
+	public InferenceConfig getInferenceConfig(String ontologyURI) {
+		return locate(ontologyURI).getInferenceConfig(ontologyURI);
+	}
+
+	@Override
+	public Model getInferredModel(String ontologyURI) {
+		return route(locate(ontologyURI)).getInferredModel(ontologyURI);
+	}
+
+	@Override
+	public GraphStatistics getStatistics(String ontologyURI) {
+		return locate(ontologyURI).getStatistics(ontologyURI);
+	}
+
+	@Override
+	public GraphStatistics getStatistics() {
+		List<GraphStatistics> all = new ArrayList<GraphStatistics>();
+		for (JenaStore shard : allShards()) {
+			all.add(shard.getStatistics());
+		}
+		return GraphStatistics.sum(all);
+	}
+
+	@Override
+	public Model getModel(String ontologyURI) {
+		JenaStore shard = locate(ontologyURI);
+		return shard.hasModel(ontologyURI) ? route(shard).getModel(ontologyURI)
+				: null;
+	}
+
+	@Override
+	public boolean hasModel(String ontologyURI) {
+		return locate(ontologyURI).hasModel(ontologyURI);
+	}
+
+	/**
+	 * The names are listed from all shards in parallel and returned in
+	 * order.
+	 */
+	@Override
+	public List<String> listModels() {
+		List<Callable<List<String>>> tasks = new ArrayList<Callable<List<String>>>();
+		for (final JenaStore shard : allShards()) {
+			tasks.add(new Callable<List<String>>() {
+				@Override
+				public List<String> call() {
+					return route(shard).listModels();
+				}
+			});
+		}
+		Set<String> names = new TreeSet<String>();
+		for (List<String> shardNames : fanOut(tasks)) {
+			names.addAll(shardNames);
+		}
+		return new ArrayList<String>(names);
+	}
+
+	/**
+	 * A page is listed from all shards in parallel and the pages are merged,
+	 * so each shard returns at most one page.
+	 */
+	@Override
+	public ModelPage listModels(final String prefix, final String cursor,
+			final int limit) {
+		if (limit <= 0) {
+			throw new IllegalArgumentException(String.format(
+					"The limit of a page must be positive: %d", limit));
+		}
+		List<Callable<ModelPage>> tasks = new ArrayList<Callable<ModelPage>>();
+		for (final JenaStore shard : allShards()) {
+			tasks.add(new Callable<ModelPage>() {
+				@Override
+				public ModelPage call() {
+					return route(shard).listModels(prefix, cursor, limit + 1);
+				}
+			});
+		}
+		Set<String> names = new TreeSet<String>();
+		for (ModelPage page : fanOut(tasks)) {
+			names.addAll(page.getNames());
+		}
+		List<String> merged = new ArrayList<String>(limit + 1);
+		for (String name : names) {
+			if (merged.size() > limit) {
+				break;
+			}
+			merged.add(name);
+		}
+		return ModelPage.of(merged, limit);
+	}
+
+	@Override
+	public void removeModel(String ontologyURI) {
+		JenaStore shard = locate(ontologyURI);
+		if (shard.hasModel(ontologyURI)) {
+			route(shard).removeModel(ontologyURI);
+		}
+	}
+
+	/**
+	 * The models are grouped by the shard holding them and each group is
+	 * removed by its shard.
+	 */
+	@Override
+	public int removeModels(Collection<String> ontologyURIs) {
+		Map<JenaStore, List<String>> groups = new IdentityHashMap<JenaStore, List<String>>();
+		for (String uri : ontologyURIs) {
+			JenaStore shard = locate(uri);
+			List<String> group = groups.get(shard);
+			if (group == null) {
+				group = new ArrayList<String>();
+				groups.put(shard, group);
+			}
+			group.add(uri);
+		}
+		int removed = 0;
+		for (Map.Entry<JenaStore, List<String>> group : groups.entrySet()) {
+			removed += route(group.getKey()).removeModels(group.getValue());
+		}
+		return removed;
+	}
+
+	@Override
+	public void begin(ReadWrite readWrite) {
+		for (JenaStore shard : allShards()) {
+			shard.begin(readWrite);
+		}
+	}
+
+	@Override
+	public void end() {
+		for (JenaStore shard : allShards()) {
+			shard.end();
+		}
+	}
+
+	@Override
+	public void commit() {
+		for (JenaStore shard : allShards()) {
+			route(shard).commit();
+		}
+	}
+
+	@Override
+	public void sync() {
+		for (JenaStore shard : allShards()) {
+			route(shard).sync();
+		}
+	}
+
+	@Override
+	public void setAutoSync(boolean autoSync) {
+		for (JenaStore shard : allShards()) {
+			shard.setAutoSync(autoSync);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (changeFeed != null) {
+			changeListeners.remove(changeFeed);
+			changeFeed.close();
+		}
+		for (JenaStore shard : allShards()) {
+			shard.close();
+		}
+		executor.shutdown();
+	}
+
+	@Override
+	public void updateIndex() {
+		for (JenaStore shard : allShards()) {
+			route(shard).updateIndex();
+		}
+	}
+
+	@Override
+	public void updateIndex(String ontologyURI) {
+		route(locate(ontologyURI)).updateIndex(ontologyURI);
+	}
+
+	@Override
+	public void remove() throws JenaStoreException {
+		for (JenaStore shard : allShards()) {
+			shard.remove();
+		}
+		executor.shutdown();
+	}
+
+	@Override
+	public DumpReport dump(File targetDirectory, DumpOptions options)
+			throws JenaStoreException {
+		return new StoreDumper(this, options) {
+			@Override
+			protected Lock modelLock(String ontologyURI) {
+				return updateSuspensionLock(locate(ontologyURI));
+			}
+		}.dump(targetDirectory);
+	}
+
+	@Override
+	public void addChangeListener(StoreChangeListener listener) {
+		changeListeners.add(listener);
+	}
+
+	@Override
+	public void removeChangeListener(StoreChangeListener listener) {
+		changeListeners.remove(listener);
+	}
+
+	/**
+	 * The sequence of the feed is persisted in the directory of this store.
+	 * Models moved by a rebalancing are not reported as removed and added.
+	 */
+	@Override
+	public synchronized ChangeFeed getChangeFeed() throws JenaStoreException {
+		if (changeFeed == null) {
+			if (directory == null) {
+				throw new JenaStoreException(
+						"ShardedStore without a directory has no change feed");
+			}
+			changeFeed = new ChangeFeed(
+					new File(directory, FEED_SEQUENCE_FILE),
+					ChangeFeed.DEFAULT_CAPACITY);
+			changeListeners.add(changeFeed);
+		}
+		return changeFeed;
+	}
+
+	/**
+	 * @return a read-only union of the triples of all shards
+	 */
+	@Override
+	public Graph getGraph() {
+		MultiUnion union = new MultiUnion();
+		for (JenaStore shard : allShards()) {
+			union.addGraph(shardGraph(shard));
+		}
+		return new GraphReadOnly(union);
+	}
+
+	/**
+	 * Runs the given SPARQL SELECT query as {@link Priority#INTERACTIVE}.
+	 *
+	 * @param queryString
+	 * @return
+	 * @throws JenaStoreException
+	 * @see #select(String, Priority)
+	 */
+	public List<QuerySolution> select(String queryString)
+			throws JenaStoreException {
+		return select(queryString, Priority.INTERACTIVE).getSolutions();
+	}
+
+	/**
+	 * Runs the given SPARQL SELECT query on every shard in parallel and
+	 * returns the concatenation of their results. Each shard evaluates the
+	 * query over its own named models only, hence joins across models of
+	 * different shards are not found. Queries with solution modifiers such
+	 * as ORDER BY, LIMIT, OFFSET, DISTINCT or aggregates are rejected, as
+	 * they would only apply per shard. The query is admitted and limited by
+	 * the governor of each shard which has one; the result is truncated if
+	 * the result of any shard is.
+	 *
+	 * @param queryString
+	 * @param priority
+	 * @return
+	 * @throws JenaStoreException
+	 * @throws AdmissionRejectedException
+	 *             if the query has not been admitted by a shard
+	 * @throws QueryLimitExceededException
+	 *             if the query has been cancelled on a shard
+	 */
+	public SelectResult select(String queryString, final Priority priority)
+			throws JenaStoreException {
+		long start = System.currentTimeMillis();
+		final Query query = QueryFactory.create(queryString);
+		if (!query.isSelectType()) {
+			throw new JenaStoreException("Only SELECT queries are supported: "
+					+ queryString);
+		}
+		if (query.hasOrderBy() || query.hasLimit() || query.hasOffset()
+				|| query.isDistinct() || query.isReduced()
+				|| query.hasAggregators() || query.hasGroupBy()
+				|| query.hasHaving()) {
+			throw new JenaStoreException(String.format(
+					"Solution modifiers are not supported across shards: %s",
+					queryString));
+		}
+		List<Callable<SelectResult>> tasks = new ArrayList<Callable<SelectResult>>();
+		for (final JenaStore shard : allShards()) {
+			tasks.add(new Callable<SelectResult>() {
+				@Override
+				public SelectResult call() throws Exception {
+					return select(shard, query, priority);
+				}
+			});
+		}
+		List<QuerySolution> solutions = new ArrayList<QuerySolution>();
+		boolean truncated = false;
+		for (SelectResult shardResult : fanOut(tasks)) {
+			solutions.addAll(shardResult.getSolutions());
+			truncated |= shardResult.isTruncated();
+		}
+		return new SelectResult(solutions, truncated,
+				System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Searches the text indexes of all shards as
+	 * {@link Priority#INTERACTIVE}.
+	 *
+	 * @param text
+	 * @param limit
+	 * @return
+	 * @see #search(String, int, Priority)
+	 */
+	public List<SearchHit> search(String text, int limit) {
+		return search(text, limit, Priority.INTERACTIVE);
+	}
+
+	/**
+	 * Searches the text indexes of all shards in parallel and returns the
+	 * best hits. Scores are compared as reported by the shards, which is
+	 * meaningful among shards of the same type. The search of a shard which
+	 * has a governor holds one of its read permits.
+	 *
+	 * @param text
+	 *            query in the syntax of the index of the shards
+	 * @param limit
+	 * @param priority
+	 * @return the hits in decreasing order of score
+	 */
+	public List<SearchHit> search(final String text, final int limit,
+			final Priority priority) {
+		List<Callable<List<SearchHit>>> tasks = new ArrayList<Callable<List<SearchHit>>>();
+		final List<JenaStore> shards = allShards();
+		for (int i = 0; i < shards.size(); i++) {
+			final int shardIndex = i;
+			tasks.add(new Callable<List<SearchHit>>() {
+				@Override
+				public List<SearchHit> call() throws Exception {
+					return search(shards.get(shardIndex), shardIndex, text,
+							limit, priority);
+				}
+			});
+		}
+		List<SearchHit> hits = new ArrayList<SearchHit>();
+		for (List<SearchHit> shardHits : fanOut(tasks)) {
+			hits.addAll(shardHits);
+		}
+		Collections.sort(hits, new Comparator<SearchHit>() {
+			@Override
+			public int compare(SearchHit h1, SearchHit h2) {
+				return Float.compare(h2.getScore(), h1.getScore());
+			}
+		});
+		return hits.size() > limit ? new ArrayList<SearchHit>(hits.subList(0,
+				limit)) : hits;
+	}
+
+	/**
+	 * Routes the operations and queries of this store on the given shard
+	 * through the given governor, which is usually the governor used by the
+	 * {@link GovernedStore}s of the shard.
+	 *
+	 * @param shard
+	 * @param governor
+	 */
+	public synchronized void setShardGovernor(JenaStore shard,
+			StoreGovernor governor) {
+		shardGovernors.put(shard, governor);
+	}
+
+	private synchronized StoreGovernor getShardGovernor(JenaStore shard) {
+		return shardGovernors.get(shard);
+	}
+
+	/**
+	 * @return the shard behind its governor, if it has one
+	 */
+	private JenaStore route(JenaStore shard) {
+		StoreGovernor governor = getShardGovernor(shard);
+		return governor == null ? shard : new GovernedStore(shard, governor,
+				Priority.INTERACTIVE);
+	}
+
+	/**
+	 * Switches to the given layout, keeping the current one to locate the
+	 * models which have not been moved yet.
+	 */
+	void beginRebalance(List<JenaStore> shards, ShardStrategy strategy) {
+		listenTo(shards);
+		previous = layout;
+		layout = new Layout(shards, strategy);
+	}
+
+	void endRebalance() {
+		previous = null;
+	}
+
+	/**
+	 * Marks the named model as being moved between shards, so that its
+	 * removal and addition are not reported to the change listeners.
+	 */
+	void setMoving(String ontologyURI, boolean isMoving) {
+		if (isMoving) {
+			moving.add(ontologyURI);
+		} else {
+			moving.remove(ontologyURI);
+		}
+	}
+
+	/**
+	 * Marks the named model as being switched from its previous shard to its
+	 * owner, so that its lookups wait until the modifications made on the
+	 * previous shard have been replayed on the owner.
+	 */
+	void setSwitching(String ontologyURI, boolean isSwitching) {
+		synchronized (switching) {
+			if (isSwitching) {
+				switching.add(ontologyURI);
+			} else {
+				switching.remove(ontologyURI);
+				switching.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @param shard
+	 * @return the lock which suspends the updates of the shard while it is
+	 *         held, or <code>null</code> if the shard is not a TDB store
+	 */
+	static Lock updateSuspensionLock(JenaStore shard) {
+		return shard instanceof TDBStore ? ((TDBStore) shard)
+				.getUpdateSuspensionLock() : null;
+	}
+
+	/**
+	 * Marks the modifications made by the calling thread as the replay of
+	 * modifications already reported for a moving model, so that they are
+	 * not reported to the change listeners again.
+	 */
+	void setReplaying(boolean isReplaying) {
+		if (isReplaying) {
+			replaying.set(Boolean.TRUE);
+		} else {
+			replaying.remove();
+		}
+	}
+
+	private boolean isReplayed(String ontologyURI) {
+		return replaying.get() != null && moving.contains(ontologyURI);
+	}
+
+	/**
+	 * @return the shards of the current and the previous layout
+	 */
+	List<JenaStore> allShards() {
+		List<JenaStore> shards = new ArrayList<JenaStore>(layout.shards);
+		Layout p = previous;
+		if (p != null) {
+			for (JenaStore shard : p.shards) {
+				if (!containsShard(shards, shard)) {
+					shards.add(shard);
+				}
+			}
+		}
+		return shards;
+	}
+
+	private synchronized void listenTo(List<JenaStore> shards) {
+		for (JenaStore shard : shards) {
+			if (!shardListeners.containsKey(shard)) {
+				ShardListener listener = new ShardListener();
+				shardListeners.put(shard, listener);
+				shard.addChangeListener(listener);
+			}
+		}
+	}
+
+	private <T> List<T> fanOut(List<Callable<T>> tasks) {
+		List<T> results = new ArrayList<T>();
+		try {
+			for (Future<T> future : executor.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while querying the shards", e);
+		} catch (ExecutionException e) {
+			// e.g. an AdmissionRejectedException, which the caller handles
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			logger.error("Query on a shard has failed", e.getCause());
+			throw new IllegalStateException("Query on a shard has failed",
+					e.getCause());
+		}
+		return results;
+	}
+
+	private SelectResult select(JenaStore shard, Query query,
+			Priority priority) throws JenaStoreException {
+		if (shard instanceof ShardedStore) {
+			return ((ShardedStore) shard).select(query.toString(), priority);
+		}
+		StoreGovernor governor = getShardGovernor(shard);
+		if (governor != null) {
+			governor.acquire(OperationType.READ, priority);
+			try {
+				return governor.execSelect(StoreQueryExecutionFactory.create(
+						shard, query));
+			} finally {
+				governor.release(OperationType.READ);
+			}
+		}
+		long start = System.currentTimeMillis();
+		QueryExecution qexec = StoreQueryExecutionFactory.create(shard, query);
+		List<QuerySolution> solutions = new ArrayList<QuerySolution>();
+		try {
+			ResultSet results = qexec.execSelect();
+			while (results.hasNext()) {
+				solutions.add(results.next());
+			}
+		} finally {
+			qexec.close();
+		}
+		return new SelectResult(solutions, false, System.currentTimeMillis()
+				- start);
+	}
+
+	private static Graph shardGraph(JenaStore shard) {
+		if (shard instanceof TDBStore) {
+			return ((TDBStore) shard).getDataset().asDatasetGraph()
+					.getGraph(Quad.unionGraph);
+		} else if (shard instanceof ShardedStore
+				|| shard instanceof VirtuosoStore) {
+			return shard.getGraph();
+		}
+		MultiUnion union = new MultiUnion();
+		for (String uri : shard.listModels()) {
+			union.addGraph(shard.getModel(uri).getGraph());
+		}
+		return union;
+	}
+
+	private List<SearchHit> search(JenaStore shard, int shardIndex,
+			String text, int limit, Priority priority) {
+		StoreGovernor governor = getShardGovernor(shard);
+		if (governor == null) {
+			return searchShard(shard, shardIndex, text, limit, priority);
+		}
+		governor.acquire(OperationType.READ, priority);
+		try {
+			return searchShard(shard, shardIndex, text, limit, priority);
+		} finally {
+			governor.release(OperationType.READ);
+		}
+	}
+
+	private static List<SearchHit> searchShard(JenaStore shard,
+			int shardIndex, String text, int limit, Priority priority) {
+		List<SearchHit> hits = new ArrayList<SearchHit>();
+		if (shard instanceof ShardedStore) {
+			for (SearchHit hit : ((ShardedStore) shard).search(text, limit,
+					priority)) {
+				hits.add(new SearchHit(hit.getNode(), hit.getScore(),
+						shardIndex));
+			}
+		} else if (shard instanceof TDBStore) {
+			IndexLARQ index = ((TDBStore) shard).getIndex();
+			try {
+				Iterator<HitLARQ> it = index.search(text);
+				while (it.hasNext() && hits.size() < limit) {
+					HitLARQ hit = it.next();
+					hits.add(new SearchHit(hit.getNode(), hit.getScore(),
+							shardIndex));
+				}
+			} finally {
+				index.close();
+			}
+		} else if (shard instanceof VirtuosoStore) {
+			String query = String
+					.format("SELECT ?o ?sc WHERE { GRAPH ?g { ?s ?p ?o . ?o bif:contains \"%s\" OPTION (score ?sc) } } ORDER BY DESC(?sc) LIMIT %d",
+							text.replace("\\", "\\\\").replace("\"", "\\\""),
+							limit);
+			QueryExecution qexec = VirtuosoQueryExecutionFactory.create(query,
+					(VirtGraph) shard.getGraph());
+			try {
+				ResultSet results = qexec.execSelect();
+				while (results.hasNext()) {
+					QuerySolution solution = results.next();
+					Literal score = solution.getLiteral("sc");
+					hits.add(new SearchHit(solution.get("o").asNode(),
+							score == null ? 0 : score.getFloat(), shardIndex));
+				}
+			} finally {
+				qexec.close();
+			}
+		}
+		return hits;
+	}
+
+	private static boolean containsShard(List<JenaStore> shards,
+			JenaStore shard) {
+		for (JenaStore s : shards) {
+			if (s == shard) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Shards and the strategy assigning the models to them.
+	 */
+	private static class Layout {
+
+		final List<JenaStore> shards;
+		final ShardStrategy strategy;
+
+		Layout(List<JenaStore> shards, ShardStrategy strategy) {
+			this.shards = Collections
+					.unmodifiableList(new ArrayList<JenaStore>(shards));
+			this.strategy = strategy;
+		}
+
+		JenaStore shardFor(String ontologyURI) {
+			return shards.get(strategy.shardFor(ontologyURI, shards.size()));
+		}
+	}
+
+	/**
+	 * Forwards the modifications on a shard to the listeners of this store.
+	 */
+	private class ShardListener implements StoreChangeListener {
+
+		@Override
+		public void modelAdded(String ontologyURI, Model model) {
+			if (moving.contains(ontologyURI)) {
+				return;
+			}
+			for (StoreChangeListener listener : changeListeners) {
+				listener.modelAdded(ontologyURI, model);
+			}
+		}
+
+		@Override
+		public void modelRemoved(String ontologyURI) {
+			if (moving.contains(ontologyURI)) {
+				return;
+			}
+			for (StoreChangeListener listener : changeListeners) {
+				listener.modelRemoved(ontologyURI);
+			}
+		}
+
+		@Override
+		public void triplesAdded(String ontologyURI, List<Triple> triples) {
+			if (isReplayed(ontologyURI)) {
+				return;
+			}
+			for (StoreChangeListener listener : changeListeners) {
+				listener.triplesAdded(ontologyURI, triples);
+			}
+		}
+
+		@Override
+		public void triplesRemoved(String ontologyURI, List<Triple> triples) {
+			if (isReplayed(ontologyURI)) {
+				return;
+			}
+			for (StoreChangeListener listener : changeListeners) {
+				listener.triplesRemoved(ontologyURI, triples);
+			}
+		}
+
+		@Override
+		public void patternRemoved(String ontologyURI, Triple pattern) {
+			if (isReplayed(ontologyURI)) {
+				return;
+			}
+			for (StoreChangeListener listener : changeListeners) {
+				listener.patternRemoved(ontologyURI, pattern);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+package eu.salusproject.common.triplestore.stats;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Snapshot of the statistics of a named model or of a whole store: the
+ * number of triples, the number of triples per predicate and the numbers of
+ * distinct subjects and objects.
+ */
+public class GraphStatistics {
+
+	private final long tripleCount;
+	private final long distinctSubjects;
+	private final long distinctObjects;
+	private final Map<String, Long> predicateCounts;
+
+	public GraphStatistics(long tripleCount, long distinctSubjects,
+			long distinctObjects, Map<String, Long> predicateCounts) {
+		this.tripleCount = tripleCount;
+		this.distinctSubjects = distinctSubjects;
+		this.distinctObjects = distinctObjects;
+		this.predicateCounts = Collections
+				.unmodifiableMap(new TreeMap<String, Long>(predicateCounts));
+	}
+
+	public long getTripleCount() {
+		return tripleCount;
+	}
+
+	/**
+	 * For a whole store, this is the sum over its models, which counts a
+	 * subject once per model it appears in.
+	 *
+	 * @return
+	 */
+	public long getDistinctSubjects() {
+		return distinctSubjects;
+	}
+
+	/**
+	 * For a whole store, this is the sum over its models, which counts an
+	 * object once per model it appears in.
+	 *
+	 * @return
+	 */
+	public long getDistinctObjects() {
+		return distinctObjects;
+	}
+
+	/**
+	 * @return the number of triples per predicate URI
+	 */
+	public Map<String, Long> getPredicateCounts() {
+		return predicateCounts;
+	}
+
+	public long getPredicateCount(String predicateURI) {
+		Long count = predicateCounts.get(predicateURI);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Adds up the statistics of several models or stores.
+	 *
+	 * @param all
+	 * @return
+	 */
+	public static GraphStatistics sum(Iterable<GraphStatistics> all) {
+		long triples = 0;
+		long subjects = 0;
+		long objects = 0;
+		Map<String, Long> predicates = new TreeMap<String, Long>();
+		for (GraphStatistics stats : all) {
+			triples += stats.tripleCount;
+			subjects += stats.distinctSubjects;
+			objects += stats.distinctObjects;
+			for (Map.Entry<String, Long> entry : stats.predicateCounts
+					.entrySet()) {
+				Long count = predicates.get(entry.getKey());
+				predicates.put(entry.getKey(), (count == null ? 0 : count)
+						+ entry.getValue());
+			}
+		}
+		return new GraphStatistics(triples, subjects, objects, predicates);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"triples=%d, distinctSubjects=%d, distinctObjects=%d, predicates=%d",
+				tripleCount, distinctSubjects, distinctObjects,
+				predicateCounts.size());
+	}
+
+}
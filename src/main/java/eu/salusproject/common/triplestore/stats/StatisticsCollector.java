@@ -0,0 +1,474 @@
+package eu.salusproject.common.triplestore.stats;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+import eu.salusproject.common.triplestore.JenaStore;
+import eu.salusproject.common.triplestore.StoreChangeListener;
+
+/**
+ * Maintains the {@link GraphStatistics} of the named models of a
+ * {@link JenaStore} from its change stream. Triple and predicate counts are
+ * updated from the modified triples; whether a subject or an object has
+ * appeared or disappeared is decided by a lookup in the model, which is
+ * served by an index of the store.
+ * <p>
+ * The statistics of a model are recomputed by a scan when they cannot be
+ * maintained, i.e. after the model has been added or a pattern has been
+ * removed from it, or when {@link #reconcile(String, long)} detects that they
+ * have drifted from the actual size of the model, which happens when triples
+ * which were already present are added again. Scans run without holding the
+ * lock of the collector, on demand when the statistics are requested or when
+ * the store calls {@link #refresh(String)}, e.g. from a background thread,
+ * and their result is discarded if the model has been modified meanwhile.
+ * A store whose writers can be held off provides the lock to hold during a
+ * scan through {@link #scanLock(String)}, so that the scan does not run
+ * into a concurrent update. The statistics are persisted in a file of the
+ * store so that the models need not be scanned when the store is reopened.
+ */
+public class StatisticsCollector implements StoreChangeListener {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(StatisticsCollector.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String MODEL_LINE = "M";
+	private static final String PREDICATE_LINE = "P";
+
+	private final Dataset dataset;
+	private final File file;
+	private final Map<String, Counts> models = new HashMap<String, Counts>();
+
+	/**
+	 * @param store
+	 *            the store whose models are followed
+	 * @param dataset
+	 *            dataset of the store, through which the models are looked
+	 *            up and scanned
+	 * @param file
+	 *            file in which the statistics are persisted, or
+	 *            <code>null</code> to keep them in memory only
+	 * @param trusted
+	 *            whether the persisted statistics are up to date, i.e. the
+	 *            store has been closed properly
+	 */
+	public StatisticsCollector(JenaStore store, Dataset dataset, File file,
+			boolean trusted) {
+		this.dataset = dataset;
+		this.file = file;
+		Map<String, Counts> persisted = trusted && file != null ? read(file)
+				: new HashMap<String, Counts>();
+		for (String uri : store.listModels()) {
+			Counts counts = persisted.get(uri);
+			if (counts == null) {
+				counts = new Counts();
+				counts.stale = true;
+			}
+			models.put(uri, counts);
+		}
+	}
+
+	/**
+	 * @param ontologyURI
+	 * @return the statistics of the named model, or <code>null</code> if
+	 *         there is no such model
+	 */
+	public GraphStatistics getStatistics(String ontologyURI) {
+		refresh(ontologyURI);
+		synchronized (this) {
+			Counts counts = models.get(ontologyURI);
+			return counts == null ? null : counts.snapshot();
+		}
+	}
+
+	/**
+	 * @return the statistics of all models added up
+	 */
+	public GraphStatistics getStatistics() {
+		refresh();
+		synchronized (this) {
+			List<GraphStatistics> all = new ArrayList<GraphStatistics>();
+			for (Counts counts : models.values()) {
+				all.add(counts.snapshot());
+			}
+			return GraphStatistics.sum(all);
+		}
+	}
+
+	/**
+	 * The models are not scanned, so the counts of the models whose
+	 * statistics could not be maintained are the last known ones.
+	 *
+	 * @return the number of triples per predicate over all models
+	 */
+	public synchronized Map<Node, Long> getPredicateCounts() {
+		Map<Node, Long> predicates = new HashMap<Node, Long>();
+		for (Counts counts : models.values()) {
+			for (Map.Entry<Node, Long> entry : counts.predicates.entrySet()) {
+				Long count = predicates.get(entry.getKey());
+				predicates.put(entry.getKey(), (count == null ? 0 : count)
+						+ entry.getValue());
+			}
+		}
+		return predicates;
+	}
+
+	/**
+	 * Scans the models whose statistics could not be maintained.
+	 */
+	public void refresh() {
+		for (String uri : listStale()) {
+			refresh(uri);
+		}
+	}
+
+	/**
+	 * @return the names of the models whose statistics could not be
+	 *         maintained
+	 */
+	public synchronized List<String> listStale() {
+		List<String> stale = new ArrayList<String>();
+		for (Map.Entry<String, Counts> entry : models.entrySet()) {
+			if (entry.getValue().stale) {
+				stale.add(entry.getKey());
+			}
+		}
+		return stale;
+	}
+
+	/**
+	 * Scans the named model if its statistics could not be maintained. The
+	 * lock of the collector is not held during the scan, and its result is
+	 * discarded if the model is modified meanwhile.
+	 *
+	 * @param ontologyURI
+	 */
+	public void refresh(String ontologyURI) {
+		long version;
+		synchronized (this) {
+			Counts counts = models.get(ontologyURI);
+			if (counts == null || !counts.stale) {
+				return;
+			}
+			version = counts.version;
+		}
+		long start = System.currentTimeMillis();
+		Counts scanned = scan(ontologyURI);
+		synchronized (this) {
+			Counts counts = models.get(ontologyURI);
+			if (counts == null || !counts.stale || counts.version != version) {
+				logger.debug("Model {} has been modified during its scan",
+						ontologyURI);
+				return;
+			}
+			scanned.version = version;
+			models.put(ontologyURI, scanned);
+		}
+		logger.info("Statistics of model {} have been computed in {} ms: {}",
+				new Object[] { ontologyURI,
+						System.currentTimeMillis() - start, scanned.snapshot() });
+	}
+
+	/**
+	 * Compares the maintained triple count of the named model with its
+	 * actual size, and schedules a scan of the model if they differ.
+	 *
+	 * @param ontologyURI
+	 * @param tripleCount
+	 *            the actual size of the model
+	 */
+	public synchronized void reconcile(String ontologyURI, long tripleCount) {
+		Counts counts = models.get(ontologyURI);
+		if (counts != null && !counts.stale && counts.triples != tripleCount) {
+			logger.debug(
+					"Statistics of model {} have drifted, {} triples instead of {}",
+					new Object[] { ontologyURI, counts.triples, tripleCount });
+			counts.stale = true;
+		}
+	}
+
+	/**
+	 * Writes the statistics of the models which are up to date to a
+	 * temporary file and atomically replaces the persisted statistics with
+	 * it.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void write() throws IOException {
+		if (file == null) {
+			return;
+		}
+		File tmpFile = new File(file.getPath() + ".tmp");
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(tmpFile), UTF8));
+		try {
+			for (Map.Entry<String, Counts> entry : models.entrySet()) {
+				Counts counts = entry.getValue();
+				if (counts.stale) {
+					continue;
+				}
+				out.write(MODEL_LINE + '\t' + entry.getKey() + '\t'
+						+ counts.triples + '\t' + counts.subjects + '\t'
+						+ counts.objects + '\n');
+				for (Map.Entry<Node, Long> p : counts.predicates.entrySet()) {
+					out.write(PREDICATE_LINE + '\t' + p.getKey().getURI()
+							+ '\t' + p.getValue() + '\n');
+				}
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmpFile.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	@Override
+	public synchronized void modelAdded(String ontologyURI, Model model) {
+		Counts counts = new Counts();
+		counts.stale = true;
+		models.put(ontologyURI, counts);
+	}
+
+	@Override
+	public synchronized void modelRemoved(String ontologyURI) {
+		models.remove(ontologyURI);
+	}
+
+	@Override
+	public synchronized void triplesAdded(String ontologyURI,
+			List<Triple> triples) {
+		Counts counts = models.get(ontologyURI);
+		if (counts == null) {
+			return;
+		}
+		counts.version++;
+		if (counts.stale) {
+			return;
+		}
+		Graph graph = dataset.getNamedModel(ontologyURI).getGraph();
+		Map<Node, Integer> subjects = new HashMap<Node, Integer>();
+		Map<Node, Integer> objects = new HashMap<Node, Integer>();
+		for (Triple t : new HashSet<Triple>(triples)) {
+			counts.triples++;
+			counts.addPredicate(t.getPredicate(), 1);
+			increment(subjects, t.getSubject());
+			increment(objects, t.getObject());
+		}
+		// A node is new if the model holds no more triples with it than
+		// those which have just been added
+		for (Map.Entry<Node, Integer> entry : subjects.entrySet()) {
+			if (!hasMore(graph.find(entry.getKey(), Node.ANY, Node.ANY),
+					entry.getValue())) {
+				counts.subjects++;
+			}
+		}
+		for (Map.Entry<Node, Integer> entry : objects.entrySet()) {
+			if (!hasMore(graph.find(Node.ANY, Node.ANY, entry.getKey()),
+					entry.getValue())) {
+				counts.objects++;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void triplesRemoved(String ontologyURI,
+			List<Triple> triples) {
+		Counts counts = models.get(ontologyURI);
+		if (counts == null) {
+			return;
+		}
+		counts.version++;
+		if (counts.stale) {
+			return;
+		}
+		Graph graph = dataset.getNamedModel(ontologyURI).getGraph();
+		Set<Node> subjects = new HashSet<Node>();
+		Set<Node> objects = new HashSet<Node>();
+		for (Triple t : new HashSet<Triple>(triples)) {
+			counts.triples = Math.max(0, counts.triples - 1);
+			counts.addPredicate(t.getPredicate(), -1);
+			subjects.add(t.getSubject());
+			objects.add(t.getObject());
+		}
+		for (Node s : subjects) {
+			if (!graph.contains(s, Node.ANY, Node.ANY)) {
+				counts.subjects = Math.max(0, counts.subjects - 1);
+			}
+		}
+		for (Node o : objects) {
+			if (!graph.contains(Node.ANY, Node.ANY, o)) {
+				counts.objects = Math.max(0, counts.objects - 1);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void patternRemoved(String ontologyURI, Triple pattern) {
+		Counts counts = models.get(ontologyURI);
+		if (counts != null) {
+			counts.version++;
+			counts.stale = true;
+		}
+	}
+
+	/**
+	 * @param ontologyURI
+	 * @return the lock to hold while the named model is scanned, or
+	 *         <code>null</code> if the scan needs no lock
+	 */
+	protected Lock scanLock(String ontologyURI) {
+		return null;
+	}
+
+	private Counts scan(String ontologyURI) {
+		Graph graph = dataset.getNamedModel(ontologyURI).getGraph();
+		Counts counts = new Counts();
+		Set<Node> subjects = new HashSet<Node>();
+		Set<Node> objects = new HashSet<Node>();
+		Lock lock = scanLock(ontologyURI);
+		if (lock != null) {
+			lock.lock();
+		}
+		try {
+			ExtendedIterator<Triple> it = graph.find(Triple.ANY);
+			try {
+				while (it.hasNext()) {
+					Triple t = it.next();
+					counts.triples++;
+					counts.addPredicate(t.getPredicate(), 1);
+					subjects.add(t.getSubject());
+					objects.add(t.getObject());
+				}
+			} finally {
+				it.close();
+			}
+		} finally {
+			if (lock != null) {
+				lock.unlock();
+			}
+		}
+		counts.subjects = subjects.size();
+		counts.objects = objects.size();
+		return counts;
+	}
+
+	private static void increment(Map<Node, Integer> counts, Node node) {
+		Integer count = counts.get(node);
+		counts.put(node, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * @return whether the iterator has more than the given number of
+	 *         elements, reading at most one more
+	 */
+	private static boolean hasMore(ExtendedIterator<Triple> it, int count) {
+		try {
+			for (int i = 0; i <= count; i++) {
+				if (!it.hasNext()) {
+					return false;
+				}
+				it.next();
+			}
+			return true;
+		} finally {
+			it.close();
+		}
+	}
+
+	private static Map<String, Counts> read(File file) {
+		Map<String, Counts> persisted = new HashMap<String, Counts>();
+		if (!file.isFile()) {
+			return persisted;
+		}
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new InputStreamReader(new FileInputStream(
+					file), UTF8));
+			Counts counts = null;
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (MODEL_LINE.equals(fields[0])) {
+					counts = new Counts();
+					counts.triples = Long.parseLong(fields[2]);
+					counts.subjects = Long.parseLong(fields[3]);
+					counts.objects = Long.parseLong(fields[4]);
+					persisted.put(fields[1], counts);
+				} else if (PREDICATE_LINE.equals(fields[0]) && counts != null) {
+					counts.predicates.put(Node.createURI(fields[1]),
+							Long.parseLong(fields[2]));
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("Cannot read the statistics: {}",
+					file.getAbsolutePath(), e);
+			return new HashMap<String, Counts>();
+		} catch (RuntimeException e) {
+			logger.warn("Malformed statistics: {}", file.getAbsolutePath(), e);
+			return new HashMap<String, Counts>();
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		return persisted;
+	}
+
+	/**
+	 * Mutable statistics of a model.
+	 */
+	private static class Counts {
+
+		long triples;
+		long subjects;
+		long objects;
+		final Map<Node, Long> predicates = new HashMap<Node, Long>();
+		boolean stale;
+		long version;
+
+		void addPredicate(Node predicate, long delta) {
+			Long count = predicates.get(predicate);
+			long updated = (count == null ? 0 : count) + delta;
+			if (updated > 0) {
+				predicates.put(predicate, updated);
+			} else {
+				predicates.remove(predicate);
+			}
+		}
+
+		GraphStatistics snapshot() {
+			Map<String, Long> byURI = new HashMap<String, Long>();
+			for (Map.Entry<Node, Long> entry : predicates.entrySet()) {
+				byURI.put(entry.getKey().getURI(), entry.getValue());
+			}
+			return new GraphStatistics(triples, subjects, objects, byURI);
+		}
+	}
+
+}
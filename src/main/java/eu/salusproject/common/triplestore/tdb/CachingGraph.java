@@ -0,0 +1,344 @@
+package eu.salusproject.common.triplestore.tdb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.GraphEventManager;
+import com.hp.hpl.jena.graph.GraphEvents;
+import com.hp.hpl.jena.graph.GraphListener;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.impl.GraphWithPerform;
+import com.hp.hpl.jena.graph.impl.WrappedGraph;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.WrappedIterator;
+
+/**
+ * Graph of a named model of a {@link TDBStore} which memoizes the results of
+ * recent find patterns, so that repeated lookups of the same subjects and
+ * predicates do not go down to the TDB indexes and node table. The cache is
+ * bounded and evicts the least recently used pattern. Patterns matching all
+ * triples and results larger than {@value #MAX_RESULT_SIZE} triples are not
+ * cached.
+ * <p>
+ * Modifications go to the TDB graph, whose events are shared by this graph,
+ * so the cache sees every modification of the model, including bulk
+ * updates. The perform methods used by bulk updates, which notify the
+ * events themselves, go to the perform methods of the TDB graph so that
+ * every modification is notified once. An added or deleted triple only
+ * invalidates the patterns it matches, which are found through the subject
+ * and the predicate of the triple.
+ */
+class CachingGraph extends WrappedGraph {
+
+	static final int MAX_RESULT_SIZE = 1000;
+
+	private final int capacity;
+	private final PatternCacheMetrics metrics;
+	private final LinkedHashMap<Triple, List<Triple>> cache;
+	/**
+	 * Cached patterns with a concrete subject, by subject
+	 */
+	private final Map<Node, Set<Triple>> bySubject = new HashMap<Node, Set<Triple>>();
+	/**
+	 * Cached patterns with a wildcard subject and a concrete predicate, by
+	 * predicate
+	 */
+	private final Map<Node, Set<Triple>> byPredicate = new HashMap<Node, Set<Triple>>();
+	/**
+	 * Cached patterns with a wildcard subject and predicate
+	 */
+	private final Set<Triple> unindexed = new HashSet<Triple>();
+	/**
+	 * Incremented by every invalidation, so that a result which has been
+	 * read while the graph was modified is not cached
+	 */
+	private long generation;
+
+	CachingGraph(Graph base, int capacity, PatternCacheMetrics metrics) {
+		super(base);
+		this.capacity = capacity;
+		this.metrics = metrics;
+		this.cache = new LinkedHashMap<Triple, List<Triple>>(16, 0.75f, true);
+		base.getEventManager().register(new Invalidator());
+	}
+
+	@Override
+	public GraphEventManager getEventManager() {
+		return base.getEventManager();
+	}
+
+	@Override
+	public void add(Triple t) {
+		base.add(t);
+	}
+
+	@Override
+	public void delete(Triple t) {
+		base.delete(t);
+	}
+
+	@Override
+	public void performAdd(Triple t) {
+		((GraphWithPerform) base).performAdd(t);
+	}
+
+	@Override
+	public void performDelete(Triple t) {
+		((GraphWithPerform) base).performDelete(t);
+	}
+
+	@Override
+	public void clear() {
+		base.clear();
+	}
+
+	@Override
+	public void remove(Node s, Node p, Node o) {
+		base.remove(s, p, o);
+	}
+
+	@Override
+	public ExtendedIterator<Triple> find(TripleMatch m) {
+		Triple pattern = m.asTriple();
+		return find(pattern.getSubject(), pattern.getPredicate(),
+				pattern.getObject());
+	}
+
+	@Override
+	public ExtendedIterator<Triple> find(Node s, Node p, Node o) {
+		Triple pattern = Triple.createMatch(s, p, o);
+		if (!pattern.getSubject().isConcrete()
+				&& !pattern.getPredicate().isConcrete()
+				&& !pattern.getObject().isConcrete()) {
+			return base.find(s, p, o);
+		}
+		long readGeneration;
+		synchronized (this) {
+			List<Triple> cached = cache.get(pattern);
+			if (cached != null) {
+				metrics.hits.incrementAndGet();
+				return WrappedIterator.createNoRemove(cached.iterator());
+			}
+			readGeneration = generation;
+		}
+		metrics.misses.incrementAndGet();
+		List<Triple> result = new ArrayList<Triple>();
+		ExtendedIterator<Triple> it = base.find(s, p, o);
+		try {
+			while (it.hasNext()) {
+				result.add(it.next());
+				if (result.size() > MAX_RESULT_SIZE) {
+					// Too large to be cached, the rest is streamed
+					return WrappedIterator.createNoRemove(result.iterator())
+							.andThen(it);
+				}
+			}
+		} catch (RuntimeException e) {
+			it.close();
+			throw e;
+		}
+		it.close();
+		synchronized (this) {
+			if (readGeneration == generation && !cache.containsKey(pattern)) {
+				put(pattern, result);
+			}
+		}
+		return WrappedIterator.createNoRemove(result.iterator());
+	}
+
+	private void put(Triple pattern, List<Triple> result) {
+		cache.put(pattern, result);
+		metrics.entries.incrementAndGet();
+		patternsOf(pattern, true).add(pattern);
+		if (cache.size() > capacity) {
+			Triple eldest = cache.keySet().iterator().next();
+			drop(eldest);
+			metrics.evictions.incrementAndGet();
+		}
+	}
+
+	private void drop(Triple pattern) {
+		if (cache.remove(pattern) == null) {
+			return;
+		}
+		metrics.entries.decrementAndGet();
+		Set<Triple> patterns = patternsOf(pattern, false);
+		patterns.remove(pattern);
+		if (patterns.isEmpty()) {
+			if (pattern.getSubject().isConcrete()) {
+				bySubject.remove(pattern.getSubject());
+			} else if (pattern.getPredicate().isConcrete()) {
+				byPredicate.remove(pattern.getPredicate());
+			}
+		}
+	}
+
+	/**
+	 * @return the set of cached patterns the given pattern belongs to
+	 */
+	private Set<Triple> patternsOf(Triple pattern, boolean create) {
+		Map<Node, Set<Triple>> index;
+		Node key;
+		if (pattern.getSubject().isConcrete()) {
+			index = bySubject;
+			key = pattern.getSubject();
+		} else if (pattern.getPredicate().isConcrete()) {
+			index = byPredicate;
+			key = pattern.getPredicate();
+		} else {
+			return unindexed;
+		}
+		Set<Triple> patterns = index.get(key);
+		if (patterns == null) {
+			patterns = new HashSet<Triple>();
+			if (create) {
+				index.put(key, patterns);
+			}
+		}
+		return patterns;
+	}
+
+	/**
+	 * Drops the cached patterns which match the given triple.
+	 */
+	private synchronized void invalidate(Triple t) {
+		generation++;
+		if (cache.isEmpty()) {
+			return;
+		}
+		List<Triple> matching = new ArrayList<Triple>();
+		collectMatching(bySubject.get(t.getSubject()), t, matching);
+		collectMatching(byPredicate.get(t.getPredicate()), t, matching);
+		collectMatching(unindexed, t, matching);
+		dropAll(matching);
+	}
+
+	private synchronized void invalidate(List<Triple> triples) {
+		for (Triple t : triples) {
+			invalidate(t);
+		}
+	}
+
+	/**
+	 * Drops the cached patterns which may share triples with the given
+	 * removal pattern.
+	 */
+	private synchronized void invalidatePattern(Triple removed) {
+		generation++;
+		List<Triple> overlapping = new ArrayList<Triple>();
+		for (Triple pattern : cache.keySet()) {
+			if (overlaps(pattern.getSubject(), removed.getSubject())
+					&& overlaps(pattern.getPredicate(), removed.getPredicate())
+					&& overlaps(pattern.getObject(), removed.getObject())) {
+				overlapping.add(pattern);
+			}
+		}
+		dropAll(overlapping);
+	}
+
+	private void dropAll(List<Triple> patterns) {
+		for (Triple pattern : patterns) {
+			drop(pattern);
+		}
+		metrics.invalidations.addAndGet(patterns.size());
+	}
+
+	private static void collectMatching(Set<Triple> patterns, Triple t,
+			List<Triple> matching) {
+		if (patterns == null) {
+			return;
+		}
+		for (Triple pattern : patterns) {
+			if (pattern.matches(t)) {
+				matching.add(pattern);
+			}
+		}
+	}
+
+	private static boolean overlaps(Node a, Node b) {
+		return !a.isConcrete() || !b.isConcrete() || a.equals(b);
+	}
+
+	/**
+	 * Listener on the events of the TDB graph.
+	 */
+	private class Invalidator implements GraphListener {
+
+		@Override
+		public void notifyAddTriple(Graph g, Triple t) {
+			invalidate(t);
+		}
+
+		@Override
+		public void notifyAddArray(Graph g, Triple[] triples) {
+			for (Triple t : triples) {
+				invalidate(t);
+			}
+		}
+
+		@Override
+		public void notifyAddList(Graph g, List<Triple> triples) {
+			invalidate(triples);
+		}
+
+		@Override
+		public void notifyAddIterator(Graph g, Iterator<Triple> it) {
+			invalidatePattern(Triple.ANY);
+		}
+
+		@Override
+		public void notifyAddGraph(Graph g, Graph added) {
+			invalidatePattern(Triple.ANY);
+		}
+
+		@Override
+		public void notifyDeleteTriple(Graph g, Triple t) {
+			invalidate(t);
+		}
+
+		@Override
+		public void notifyDeleteList(Graph g, List<Triple> triples) {
+			invalidate(triples);
+		}
+
+		@Override
+		public void notifyDeleteArray(Graph g, Triple[] triples) {
+			for (Triple t : triples) {
+				invalidate(t);
+			}
+		}
+
+		@Override
+		public void notifyDeleteIterator(Graph g, Iterator<Triple> it) {
+			invalidatePattern(Triple.ANY);
+		}
+
+		@Override
+		public void notifyDeleteGraph(Graph g, Graph removed) {
+			invalidatePattern(Triple.ANY);
+		}
+
+		@Override
+		public void notifyEvent(Graph source, Object value) {
+			if (!(value instanceof GraphEvents)) {
+				return;
+			}
+			GraphEvents event = (GraphEvents) value;
+			if (event.same(GraphEvents.removeAll)) {
+				invalidatePattern(Triple.ANY);
+			} else if ("remove".equals(event.getTitle())) {
+				invalidatePattern(event.getTriple());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,639 @@
+package eu.salusproject.common.triplestore.tdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jena.riot.out.NodeFmtLib;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.shared.JenaException;
+
+import eu.salusproject.common.triplestore.JenaStoreException;
+import eu.salusproject.common.triplestore.StoreChangeListener;
+import eu.salusproject.common.triplestore.io.NQuadsInput;
+
+/**
+ * Persistent, append-only log of the modifications on a {@link TDBStore}.
+ * Every notification of the store is given the next sequence number and is
+ * appended as one line per triple:
+ *
+ * <pre>
+ * &lt;sequence&gt; &lt;op&gt; &lt;graph&gt; [&lt;s&gt; &lt;p&gt; &lt;o&gt;] .
+ * </pre>
+ *
+ * where op is one of the {@link Op} codes. The lines of a sequence number are
+ * followed by a commit line, <code>&lt;sequence&gt; C .</code>, so that
+ * readers tailing the log can tell when all lines of a sequence number have
+ * been written. The log is split into segment
+ * files named after the first sequence number they contain, so that old
+ * segments can be dropped with {@link #truncate(long)}. Replaying a range of
+ * the log is idempotent.
+ * <p>
+ * Readers which follow the log in this process, like the {@link TDBReplica}s,
+ * {@link #retain(Object, long)} the records they have not applied yet, which
+ * are then kept by {@link #truncate(long)}. A sequence number whose append
+ * has been interrupted, e.g. by a crash, has no commit line; its lines are
+ * cut off when the log is reopened.
+ */
+public class ChangeLog implements StoreChangeListener {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ChangeLog.class);
+
+	public static final String LOG_DIR = "changelog";
+
+	private static final String SEGMENT_PREFIX = "changes-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Kinds of log records.
+	 */
+	public enum Op {
+		/** Triple added */
+		A,
+		/** Triple deleted */
+		D,
+		/** Triples matching a pattern deleted */
+		P,
+		/** Named model removed */
+		R,
+		/** End of the lines of a sequence number */
+		C
+	}
+
+	/**
+	 * Receives the records read from the log.
+	 */
+	public interface Handler {
+		public void handle(Record record);
+	}
+
+	private final File directory;
+	private final Map<Object, Long> retained = new IdentityHashMap<Object, Long>();
+	private long lastSequence;
+	private long segmentBytes;
+	private FileOutputStream segmentStream;
+	private Writer writer;
+
+	/**
+	 * Opens the log in the given directory, continuing the sequence of the
+	 * existing segments.
+	 *
+	 * @param directory
+	 * @throws JenaStoreException
+	 */
+	public ChangeLog(File directory) throws JenaStoreException {
+		this.directory = directory;
+		try {
+			FileUtils.forceMkdir(directory);
+			List<File> segments = listSegments(directory);
+			if (segments.isEmpty()) {
+				lastSequence = 0;
+				openSegment(new File(directory, segmentName(1)));
+			} else {
+				File last = segments.get(segments.size() - 1);
+				lastSequence = Math.max(firstSequence(last) - 1,
+						recoverSegment(last));
+				openSegment(last);
+			}
+		} catch (IOException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot open the change log at %s",
+					directory.getAbsolutePath()), e);
+		}
+		logger.info("Change log at {} opened at sequence {}",
+				directory.getAbsolutePath(), lastSequence);
+	}
+
+	/**
+	 * Creates an empty log in the given directory whose sequence continues
+	 * after the given sequence number, e.g. for a store restored from a
+	 * backup.
+	 *
+	 * @param directory
+	 * @param lastSequence
+	 * @throws IOException
+	 */
+	static void create(File directory, long lastSequence) throws IOException {
+		FileUtils.forceMkdir(directory);
+		FileUtils.touch(new File(directory, segmentName(lastSequence + 1)));
+	}
+
+	/**
+	 * Copies the log of the closed store at the given directory into the
+	 * directory of another store, e.g. its compacted copy, so that the
+	 * sequence numbers continue there.
+	 *
+	 * @param storeDirectory
+	 * @param targetStoreDirectory
+	 * @throws IOException
+	 */
+	static void carryOver(File storeDirectory, File targetStoreDirectory)
+			throws IOException {
+		File logDirectory = new File(storeDirectory, LOG_DIR);
+		if (logDirectory.isDirectory()) {
+			FileUtils.copyDirectoryToDirectory(logDirectory,
+					targetStoreDirectory);
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return the sequence number of the last appended record
+	 */
+	public synchronized long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * @return the first sequence number which is still in the log
+	 */
+	public synchronized long getFirstSequence() {
+		List<File> segments = listSegments(directory);
+		return segments.isEmpty() ? lastSequence + 1 : firstSequence(segments
+				.get(0));
+	}
+
+	@Override
+	public synchronized void modelAdded(String ontologyURI, Model model) {
+		append(Op.A, ontologyURI, model.getGraph().find(Triple.ANY).toList());
+	}
+
+	@Override
+	public synchronized void modelRemoved(String ontologyURI) {
+		append(Op.R, ontologyURI, null);
+	}
+
+	@Override
+	public synchronized void triplesAdded(String ontologyURI,
+			List<Triple> triples) {
+		append(Op.A, ontologyURI, triples);
+	}
+
+	@Override
+	public synchronized void triplesRemoved(String ontologyURI,
+			List<Triple> triples) {
+		append(Op.D, ontologyURI, triples);
+	}
+
+	@Override
+	public synchronized void patternRemoved(String ontologyURI, Triple pattern) {
+		append(Op.P, ontologyURI, Arrays.asList(pattern));
+	}
+
+	private void append(Op op, String ontologyURI, List<Triple> triples) {
+		long seq = lastSequence + 1;
+		String prefix = seq + " " + op.name() + " "
+				+ NodeFmtLib.str(Node.createURI(ontologyURI));
+		try {
+			if (triples == null) {
+				write(prefix + " .\n");
+			} else {
+				for (Triple triple : triples) {
+					write(prefix + " " + NodeFmtLib.str(triple.getSubject())
+							+ " " + NodeFmtLib.str(triple.getPredicate())
+							+ " " + NodeFmtLib.str(triple.getObject())
+							+ " .\n");
+				}
+			}
+			write(seq + " " + Op.C.name() + " .\n");
+			writer.flush();
+		} catch (IOException e) {
+			String msg = String.format(
+					"Cannot append to the change log at %s",
+					directory.getAbsolutePath());
+			logger.error(msg, e);
+			throw new JenaException(msg, e);
+		}
+		lastSequence = seq;
+		if (segmentBytes >= SEGMENT_SIZE) {
+			rotate();
+		}
+	}
+
+	private void write(String line) throws IOException {
+		writer.write(line);
+		segmentBytes += line.length();
+	}
+
+	private void rotate() {
+		try {
+			closeSegment();
+			openSegment(new File(directory, segmentName(lastSequence + 1)));
+		} catch (IOException e) {
+			String msg = String.format(
+					"Cannot start a new segment of the change log at %s",
+					directory.getAbsolutePath());
+			logger.error(msg, e);
+			throw new JenaException(msg, e);
+		}
+	}
+
+	/**
+	 * Forces the appended records to disk.
+	 */
+	public synchronized void sync() {
+		try {
+			writer.flush();
+			segmentStream.getFD().sync();
+		} catch (IOException e) {
+			logger.error("Cannot sync the change log at {}",
+					directory.getAbsolutePath(), e);
+		}
+	}
+
+	public synchronized void close() {
+		try {
+			closeSegment();
+		} catch (IOException e) {
+			logger.error("Cannot close the change log at {}",
+					directory.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * Keeps the records after the given sequence number in the log on behalf
+	 * of the given reader, until the reader retains a later sequence number
+	 * or is released.
+	 *
+	 * @param reader
+	 * @param afterSequence
+	 */
+	public synchronized void retain(Object reader, long afterSequence) {
+		retained.put(reader, afterSequence);
+	}
+
+	public synchronized void release(Object reader) {
+		retained.remove(reader);
+	}
+
+	/**
+	 * Drops the segments which only contain records up to the given
+	 * sequence number, or up to the earliest sequence number retained by a
+	 * reader if that is lower. The segment being appended is never dropped.
+	 *
+	 * @param uptoSequence
+	 */
+	public synchronized void truncate(long uptoSequence) {
+		for (Long sequence : retained.values()) {
+			uptoSequence = Math.min(uptoSequence, sequence);
+		}
+		List<File> segments = listSegments(directory);
+		for (int i = 0; i < segments.size() - 1; i++) {
+			if (firstSequence(segments.get(i + 1)) - 1 > uptoSequence) {
+				break;
+			}
+			if (segments.get(i).delete()) {
+				logger.info("Change log segment {} has been dropped",
+						segments.get(i).getName());
+			}
+		}
+	}
+
+	/**
+	 * Copies the records with sequence numbers in (afterSequence,
+	 * uptoSequence] to the given stream, in the format of the log.
+	 *
+	 * @param afterSequence
+	 * @param uptoSequence
+	 * @param out
+	 * @return the number of copied lines
+	 * @throws JenaStoreException
+	 *             if the requested records are no longer in the log
+	 */
+	public long copyTo(long afterSequence, long uptoSequence, OutputStream out)
+			throws JenaStoreException {
+		Writer copy = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+		long lines = 0;
+		try {
+			for (File segment : segmentsFrom(afterSequence, uptoSequence)) {
+				BufferedReader reader = open(segment);
+				try {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						long seq = sequenceOf(line);
+						if (seq > afterSequence && seq <= uptoSequence) {
+							copy.write(line);
+							copy.write('\n');
+							lines++;
+						}
+					}
+				} finally {
+					reader.close();
+				}
+			}
+			copy.flush();
+		} catch (IOException e) {
+			throw new JenaStoreException("Cannot copy the change log", e);
+		}
+		return lines;
+	}
+
+	/**
+	 * Reads the records with sequence numbers in (afterSequence,
+	 * uptoSequence] in order.
+	 *
+	 * @param afterSequence
+	 * @param uptoSequence
+	 * @param handler
+	 * @throws JenaStoreException
+	 *             if the requested records are no longer in the log
+	 */
+	public void read(long afterSequence, long uptoSequence, Handler handler)
+			throws JenaStoreException {
+		try {
+			for (File segment : segmentsFrom(afterSequence, uptoSequence)) {
+				BufferedReader reader = open(segment);
+				try {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						long seq = sequenceOf(line);
+						if (seq > afterSequence && seq <= uptoSequence) {
+							handler.handle(Record.parse(line));
+						}
+					}
+				} finally {
+					reader.close();
+				}
+			}
+		} catch (IOException e) {
+			throw new JenaStoreException("Cannot read the change log", e);
+		}
+	}
+
+	/**
+	 * Applies the records in the given stream, which is in the format of the
+	 * log, to the given dataset.
+	 *
+	 * @param in
+	 * @param target
+	 * @return the number of applied lines
+	 * @throws IOException
+	 */
+	public static long replay(InputStream in, Dataset target)
+			throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+				UTF8));
+		long lines = 0;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.trim().length() > 0) {
+				Record.parse(line).applyTo(target);
+				lines++;
+			}
+		}
+		return lines;
+	}
+
+	private List<File> segmentsFrom(long afterSequence, long uptoSequence)
+			throws JenaStoreException {
+		List<File> segments;
+		synchronized (this) {
+			try {
+				writer.flush();
+			} catch (IOException e) {
+				throw new JenaStoreException("Cannot flush the change log", e);
+			}
+			segments = listSegments(directory);
+		}
+		if (afterSequence < uptoSequence
+				&& (segments.isEmpty() || firstSequence(segments.get(0)) > afterSequence + 1)) {
+			throw new JenaStoreException(String.format(
+					"Change log at %s no longer contains sequence %d",
+					directory.getAbsolutePath(), afterSequence + 1));
+		}
+		List<File> result = new ArrayList<File>();
+		for (int i = 0; i < segments.size(); i++) {
+			boolean endsBefore = i + 1 < segments.size()
+					&& firstSequence(segments.get(i + 1)) <= afterSequence + 1;
+			if (!endsBefore && firstSequence(segments.get(i)) <= uptoSequence) {
+				result.add(segments.get(i));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param directory
+	 * @return the segment files of the log in the given directory, in
+	 *         sequence order
+	 */
+	static List<File> listSegments(File directory) {
+		List<File> segments = new ArrayList<File>();
+		String[] names = directory.list();
+		if (names != null) {
+			Arrays.sort(names);
+			for (String name : names) {
+				if (name.startsWith(SEGMENT_PREFIX)
+						&& name.endsWith(SEGMENT_SUFFIX)) {
+					segments.add(new File(directory, name));
+				}
+			}
+		}
+		return segments;
+	}
+
+	/**
+	 * Cuts the given segment after its last commit line, so that the lines
+	 * of an interrupted append are neither read nor continued by the next
+	 * appends.
+	 *
+	 * @param segment
+	 * @return the last committed sequence number of the segment, or -1 if
+	 *         it has none
+	 * @throws IOException
+	 */
+	private static long recoverSegment(File segment) throws IOException {
+		long lastCommitted = -1;
+		long committedLength = 0;
+		long position = 0;
+		String commitSuffix = " " + Op.C.name() + " .";
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		InputStream in = new BufferedInputStream(new FileInputStream(segment));
+		try {
+			int b;
+			while ((b = in.read()) != -1) {
+				position++;
+				if (b != '\n') {
+					line.write(b);
+					continue;
+				}
+				String text = new String(line.toByteArray(), UTF8);
+				line.reset();
+				long seq = sequenceOf(text);
+				if (seq > 0 && text.endsWith(commitSuffix)) {
+					lastCommitted = seq;
+					committedLength = position;
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if (committedLength < position) {
+			RandomAccessFile file = new RandomAccessFile(segment, "rw");
+			try {
+				file.setLength(committedLength);
+			} finally {
+				file.close();
+			}
+			logger.warn(
+					"Change log segment {} has been cut after sequence {}, {} bytes of an interrupted append have been dropped",
+					new Object[] { segment.getName(), lastCommitted,
+							position - committedLength });
+		}
+		return lastCommitted;
+	}
+
+	private void openSegment(File segment) throws IOException {
+		segmentStream = new FileOutputStream(segment, true);
+		writer = new BufferedWriter(new OutputStreamWriter(segmentStream, UTF8));
+		segmentBytes = segment.length();
+	}
+
+	private void closeSegment() throws IOException {
+		writer.flush();
+		segmentStream.getFD().sync();
+		writer.close();
+	}
+
+	private static String segmentName(long firstSequence) {
+		return String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence,
+				SEGMENT_SUFFIX);
+	}
+
+	static long firstSequence(File segment) {
+		String name = segment.getName();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+				name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private static BufferedReader open(File segment) throws IOException {
+		return new BufferedReader(new InputStreamReader(new FileInputStream(
+				segment), UTF8));
+	}
+
+	/**
+	 * @return the sequence number of the line, or -1 for a partially written
+	 *         line
+	 */
+	static long sequenceOf(String line) {
+		int end = line.indexOf(' ');
+		if (end <= 0 || !line.endsWith(".")) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(line.substring(0, end));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * A line of the log.
+	 */
+	public static class Record {
+
+		private final long sequence;
+		private final Op op;
+		private final String ontologyURI;
+		private final Triple triple;
+
+		public Record(long sequence, Op op, String ontologyURI, Triple triple) {
+			this.sequence = sequence;
+			this.op = op;
+			this.ontologyURI = ontologyURI;
+			this.triple = triple;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		public Op getOp() {
+			return op;
+		}
+
+		public String getOntologyURI() {
+			return ontologyURI;
+		}
+
+		/**
+		 * @return the added or deleted triple, the deleted pattern, or
+		 *         <code>null</code> if the model has been removed
+		 */
+		public Triple getTriple() {
+			return triple;
+		}
+
+		/**
+		 * Applies this record to the given dataset.
+		 *
+		 * @param target
+		 */
+		public void applyTo(Dataset target) {
+			if (op == Op.C) {
+				return;
+			} else if (op == Op.R) {
+				target.removeNamedModel(ontologyURI);
+				return;
+			}
+			Graph graph = target.getNamedModel(ontologyURI).getGraph();
+			switch (op) {
+			case A:
+				graph.add(triple);
+				break;
+			case D:
+				graph.delete(triple);
+				break;
+			default:
+				graph.remove(triple.getSubject(), triple.getPredicate(),
+						triple.getObject());
+				break;
+			}
+		}
+
+		static Record parse(String line) {
+			int seqEnd = line.indexOf(' ');
+			int opEnd = line.indexOf(' ', seqEnd + 1);
+			long sequence = Long.parseLong(line.substring(0, seqEnd));
+			Op op = Op.valueOf(line.substring(seqEnd + 1, opEnd));
+			List<Node> nodes = NQuadsInput.parseNodes(line.substring(opEnd + 1));
+			Triple triple = nodes.size() == 4 ? Triple.create(nodes.get(1),
+					nodes.get(2), nodes.get(3)) : null;
+			String ontologyURI = nodes.isEmpty() ? null : nodes.get(0)
+					.getURI();
+			return new Record(sequence, op, ontologyURI, triple);
+		}
+	}
+
+}
@@ -0,0 +1,154 @@
+package eu.salusproject.common.triplestore.tdb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.salusproject.common.triplestore.JenaStoreException;
+
+/**
+ * Follows the {@link ChangeLog} in a directory as it is being appended,
+ * possibly by another process. Each poll reads the lines written since the
+ * previous poll, moving on to the next segment once the current one has been
+ * completed.
+ */
+public class ChangeLogTailer {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int READ_SIZE = 1024 * 1024;
+	private static final int MAX_RECORDS = 10000;
+
+	private final File directory;
+	private final long afterSequence;
+	private File segment;
+	private long offset;
+	private long position;
+
+	/**
+	 * @param directory
+	 *            directory of the log
+	 * @param afterSequence
+	 *            the lines up to this sequence number are skipped
+	 */
+	public ChangeLogTailer(File directory, long afterSequence) {
+		this.directory = directory;
+		this.afterSequence = afterSequence;
+		this.position = afterSequence;
+	}
+
+	/**
+	 * @return the sequence number of the last record whose lines have all
+	 *         been read
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Reads the lines appended since the previous poll, at most about
+	 * {@value #MAX_RECORDS} records at a time. The returned records may end
+	 * with part of the lines of a sequence number, the rest of which is
+	 * returned by the next poll.
+	 *
+	 * @return
+	 * @throws IOException
+	 *             if the log cannot be read at the moment
+	 * @throws JenaStoreException
+	 *             if the log no longer contains the next sequence number
+	 */
+	public List<ChangeLog.Record> poll() throws IOException,
+			JenaStoreException {
+		List<ChangeLog.Record> records = new ArrayList<ChangeLog.Record>();
+		if (segment == null) {
+			segment = findSegment();
+			if (segment == null) {
+				return records;
+			}
+			offset = 0;
+		}
+		while (true) {
+			// The next segment is created only after the current one has been
+			// completed, so check for it before reading to the end
+			File next = nextSegment();
+			readLines(records);
+			if (next == null || records.size() >= MAX_RECORDS) {
+				break;
+			}
+			segment = next;
+			offset = 0;
+		}
+		return records;
+	}
+
+	private void readLines(List<ChangeLog.Record> records) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segment, "r");
+		try {
+			byte[] buffer = new byte[READ_SIZE];
+			ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+			long lineStart = offset;
+			file.seek(offset);
+			int n;
+			while ((n = file.read(buffer)) > 0) {
+				for (int i = 0; i < n; i++) {
+					if (buffer[i] != '\n') {
+						line.write(buffer[i]);
+						continue;
+					}
+					lineStart += line.size() + 1;
+					String text = new String(line.toByteArray(), UTF8);
+					line.reset();
+					offset = lineStart;
+					long seq = ChangeLog.sequenceOf(text);
+					if (seq <= afterSequence) {
+						continue;
+					}
+					ChangeLog.Record record = ChangeLog.Record.parse(text);
+					if (record.getOp() == ChangeLog.Op.C) {
+						position = seq;
+					} else {
+						records.add(record);
+					}
+					if (records.size() >= MAX_RECORDS) {
+						return;
+					}
+				}
+			}
+			// an incomplete last line is read again by the next poll
+		} finally {
+			file.close();
+		}
+	}
+
+	private File findSegment() throws JenaStoreException {
+		List<File> segments = ChangeLog.listSegments(directory);
+		if (segments.isEmpty()) {
+			return null;
+		}
+		if (ChangeLog.firstSequence(segments.get(0)) > position + 1) {
+			throw new JenaStoreException(String.format(
+					"Change log at %s no longer contains sequence %d",
+					directory.getAbsolutePath(), position + 1));
+		}
+		File found = segments.get(0);
+		for (File candidate : segments) {
+			if (ChangeLog.firstSequence(candidate) <= position + 1) {
+				found = candidate;
+			}
+		}
+		return found;
+	}
+
+	private File nextSegment() {
+		for (File candidate : ChangeLog.listSegments(directory)) {
+			if (candidate.getName().compareTo(segment.getName()) > 0) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+}
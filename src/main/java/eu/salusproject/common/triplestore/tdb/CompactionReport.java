@@ -0,0 +1,90 @@
+package eu.salusproject.common.triplestore.tdb;
+
+/**
+ * Outcome of the compaction of a {@link TDBStore}.
+ */
+public class CompactionReport {
+
+	private final long bytesBefore;
+	private final long bytesAfter;
+	private final long triplesCopied;
+	private final int changesReplayed;
+	private final int lookups;
+	private final long lookupNanosBefore;
+	private final long lookupNanosAfter;
+	private final long elapsedMillis;
+
+	public CompactionReport(long bytesBefore, long bytesAfter,
+			long triplesCopied, int changesReplayed, int lookups,
+			long lookupNanosBefore, long lookupNanosAfter, long elapsedMillis) {
+		this.bytesBefore = bytesBefore;
+		this.bytesAfter = bytesAfter;
+		this.triplesCopied = triplesCopied;
+		this.changesReplayed = changesReplayed;
+		this.lookups = lookups;
+		this.lookupNanosBefore = lookupNanosBefore;
+		this.lookupNanosAfter = lookupNanosAfter;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * @return size of the store directory before the compaction
+	 */
+	public long getBytesBefore() {
+		return bytesBefore;
+	}
+
+	/**
+	 * @return size of the store directory after the compaction
+	 */
+	public long getBytesAfter() {
+		return bytesAfter;
+	}
+
+	public long getReclaimedBytes() {
+		return bytesBefore - bytesAfter;
+	}
+
+	public long getTriplesCopied() {
+		return triplesCopied;
+	}
+
+	/**
+	 * @return number of modifications made during the compaction which have
+	 *         been replayed into the compacted store
+	 */
+	public int getChangesReplayed() {
+		return changesReplayed;
+	}
+
+	/**
+	 * @return number of sampled subject lookups used to compare the lookup
+	 *         performance
+	 */
+	public int getLookups() {
+		return lookups;
+	}
+
+	public long getLookupNanosBefore() {
+		return lookupNanosBefore;
+	}
+
+	public long getLookupNanosAfter() {
+		return lookupNanosAfter;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	@Override
+	public String toString() {
+		return String
+				.format("reclaimed %d bytes (%d -> %d), %d triples copied, %d changes replayed, %d lookups %.3f ms -> %.3f ms, took %d ms",
+						getReclaimedBytes(), bytesBefore, bytesAfter,
+						triplesCopied, changesReplayed, lookups,
+						lookupNanosBefore / 1e6, lookupNanosAfter / 1e6,
+						elapsedMillis);
+	}
+
+}
@@ -0,0 +1,71 @@
+package eu.salusproject.common.triplestore.tdb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the triple pattern caches of the models of a {@link TDBStore},
+ * see {@link TDBStoreProfile#setPatternCacheSize(int)}.
+ */
+public class PatternCacheMetrics {
+
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong misses = new AtomicLong();
+	final AtomicLong evictions = new AtomicLong();
+	final AtomicLong invalidations = new AtomicLong();
+	final AtomicLong entries = new AtomicLong();
+
+	/**
+	 * @return the number of find calls answered from a cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of find calls which went to the TDB indexes
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of patterns evicted because their cache was full
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return the number of patterns dropped because a modification of
+	 *         their model matched them
+	 */
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	/**
+	 * @return the number of patterns currently cached over all models
+	 */
+	public long getEntries() {
+		return entries.get();
+	}
+
+	/**
+	 * @return the ratio of the find calls answered from a cache, 0 if there
+	 *         has been no call
+	 */
+	public double getHitRatio() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	@Override
+	public String toString() {
+		return String
+				.format("hits=%d, misses=%d, hitRatio=%.3f, evictions=%d, invalidations=%d, entries=%d",
+						getHits(), getMisses(), getHitRatio(), getEvictions(),
+						getInvalidations(), getEntries());
+	}
+
+}
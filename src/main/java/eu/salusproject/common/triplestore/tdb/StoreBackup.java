@@ -0,0 +1,495 @@
+package eu.salusproject.common.triplestore.tdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.tdb.TDB;
+
+import eu.salusproject.common.triplestore.JenaStoreException;
+import eu.salusproject.common.triplestore.io.DumpOptions;
+import eu.salusproject.common.triplestore.io.NQuadsInput;
+import eu.salusproject.common.triplestore.io.StoreDumper;
+import eu.salusproject.common.triplestore.io.ThrottledOutputStream;
+
+/**
+ * Online backups of a {@link TDBStore} whose {@link ChangeLog} is enabled.
+ * Each backup is a directory under the backup root:
+ * <ul>
+ * <li>a full snapshot contains a gzipped N-Quads dump of the store taken
+ * while it keeps serving, the change log records written during the
+ * dump, and the profile and the inference settings of the store;</li>
+ * <li>an incremental backup contains the change log records written since
+ * the previous backup.</li>
+ * </ul>
+ * Each model is dumped while the updates of the store are suspended, so
+ * writers wait instead of failing the dump, and the sequences which bound
+ * the dump period are read while the updates are suspended as well. The
+ * dump of a full snapshot is not a consistent image by itself, as the
+ * models are dumped at different times, but replaying the records of the
+ * dump period, which is idempotent, brings it to the state of the store at
+ * the end sequence of the snapshot. The
+ * manifest of a backup is written last, so backups without a manifest are
+ * incomplete and ignored. Backup I/O can be throttled so that it does not
+ * starve the queries served by the store.
+ */
+public class StoreBackup {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(StoreBackup.class);
+
+	public static final String MANIFEST_FILE = "backup.properties";
+	public static final String DATA_DIR = "data";
+	public static final String CHANGES_FILE = "changes.log.gz";
+	public static final String PREFIXES_FILE = "prefixes.tsv";
+
+	private static final String TYPE = "type";
+	private static final String START_SEQUENCE = "startSequence";
+	private static final String END_SEQUENCE = "endSequence";
+	private static final String CREATED = "created";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final TDBStore store;
+	private final File backupRoot;
+
+	public StoreBackup(TDBStore store, File backupRoot) {
+		this.store = store;
+		this.backupRoot = backupRoot;
+	}
+
+	/**
+	 * Takes a full snapshot of the store. The change log of the store is
+	 * then truncated up to the end sequence of the snapshot.
+	 *
+	 * @param maxBytesPerSecond
+	 *            limit of the backup write rate, a non-positive value
+	 *            disables throttling
+	 * @return the manifest of the snapshot
+	 * @throws JenaStoreException
+	 */
+	public Manifest fullSnapshot(long maxBytesPerSecond)
+			throws JenaStoreException {
+		ChangeLog log = changeLog();
+		long start = lastSequence(log);
+		File directory = newBackupDirectory(Manifest.FULL);
+		// Each model is read while the updates are suspended
+		store.dump(new File(directory, DATA_DIR), new DumpOptions()
+				.setSingleFile(true).setCompressed(true)
+				.setMaxBytesPerSecond(maxBytesPerSecond));
+		writePrefixes(new File(directory, PREFIXES_FILE));
+		long end = lastSequence(log);
+		copyChanges(log, start, end, directory, maxBytesPerSecond);
+		try {
+			FileUtils.copyFileToDirectory(new File(store.getStoreDirectory(),
+					TDBStoreProfile.PROFILE_FILE), directory);
+			File inferenceSettings = new File(store.getStoreDirectory(),
+					TDBStore.INFERENCE_FILE);
+			if (inferenceSettings.isFile()) {
+				FileUtils.copyFileToDirectory(inferenceSettings, directory);
+			}
+		} catch (IOException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot copy the settings of the store into %s",
+					directory.getAbsolutePath()), e);
+		}
+		Manifest manifest = new Manifest(directory, Manifest.FULL, start, end,
+				System.currentTimeMillis());
+		manifest.write();
+		logger.info("Full snapshot of {} has been written to {}",
+				store.getStoreDirectory(), directory.getAbsolutePath());
+		// Restoring starts from this snapshot, the older records are only
+		// kept for the replicas which have not applied them yet
+		log.truncate(end);
+		return manifest;
+	}
+
+	/**
+	 * Backs up the modifications made since the latest backup under the
+	 * backup root. A full snapshot is taken if there is none yet.
+	 *
+	 * @param maxBytesPerSecond
+	 *            limit of the backup write rate, a non-positive value
+	 *            disables throttling
+	 * @return the manifest of the backup
+	 * @throws JenaStoreException
+	 *             if the change log no longer contains the modifications
+	 *             since the latest backup, in which case a full snapshot is
+	 *             needed
+	 */
+	public Manifest incrementalBackup(long maxBytesPerSecond)
+			throws JenaStoreException {
+		List<Manifest> manifests = listManifests(backupRoot);
+		if (manifests.isEmpty()) {
+			return fullSnapshot(maxBytesPerSecond);
+		}
+		ChangeLog log = changeLog();
+		long start = manifests.get(manifests.size() - 1).getEndSequence();
+		long end = log.getLastSequence();
+		File directory = newBackupDirectory(Manifest.INCREMENTAL);
+		copyChanges(log, start, end, directory, maxBytesPerSecond);
+		Manifest manifest = new Manifest(directory, Manifest.INCREMENTAL,
+				start, end, System.currentTimeMillis());
+		manifest.write();
+		logger.info(
+				"Incremental backup of {} with sequences ({}, {}] has been written to {}",
+				new Object[] { store.getStoreDirectory(), start, end,
+						directory.getAbsolutePath() });
+		return manifest;
+	}
+
+	/**
+	 * Restores the latest backup chain under the given backup root, i.e. the
+	 * latest full snapshot followed by the incremental backups which
+	 * continue it, into a new store directory. The restored directory can
+	 * then be opened as a {@link TDBStore}; its change log continues the
+	 * sequence of the backups.
+	 *
+	 * @param backupRoot
+	 * @param storeDirectory
+	 * @return the manifest of the last applied backup
+	 * @throws JenaStoreException
+	 */
+	public static Manifest restore(File backupRoot, String storeDirectory)
+			throws JenaStoreException {
+		List<Manifest> manifests = listManifests(backupRoot);
+		int full = -1;
+		for (int i = 0; i < manifests.size(); i++) {
+			if (manifests.get(i).isFull()) {
+				full = i;
+			}
+		}
+		if (full < 0) {
+			throw new JenaStoreException(String.format(
+					"No full snapshot found under %s",
+					backupRoot.getAbsolutePath()));
+		}
+		File storeDir = new File(storeDirectory);
+		if (storeDir.exists() && storeDir.list().length > 0) {
+			throw new JenaStoreException(String.format(
+					"Cannot restore into the non-empty directory %s",
+					storeDir.getAbsolutePath()));
+		}
+
+		Manifest snapshot = manifests.get(full);
+		TDBStoreProfile profile;
+		try {
+			FileUtils.forceMkdir(storeDir);
+			FileUtils.copyFileToDirectory(new File(snapshot.getDirectory(),
+					TDBStoreProfile.PROFILE_FILE), storeDir);
+			File inferenceSettings = new File(snapshot.getDirectory(),
+					TDBStore.INFERENCE_FILE);
+			if (inferenceSettings.isFile()) {
+				FileUtils.copyFileToDirectory(inferenceSettings, storeDir);
+			}
+			profile = TDBStoreProfile.load(storeDirectory);
+		} catch (IOException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot restore the settings into %s",
+					storeDir.getAbsolutePath()), e);
+		}
+		Dataset dataset = profile.createDataset(storeDirectory);
+		Manifest last = snapshot;
+		try {
+			loadDump(new File(new File(snapshot.getDirectory(), DATA_DIR),
+					StoreDumper.SINGLE_FILE + ".gz"), dataset);
+			readPrefixes(new File(snapshot.getDirectory(), PREFIXES_FILE),
+					dataset);
+			replayChanges(snapshot, dataset);
+			for (Manifest manifest : manifests.subList(full + 1,
+					manifests.size())) {
+				if (manifest.getStartSequence() != last.getEndSequence()) {
+					logger.warn(
+							"Backup {} does not continue the backup chain, restore stops at sequence {}",
+							manifest.getDirectory(), last.getEndSequence());
+					break;
+				}
+				replayChanges(manifest, dataset);
+				last = manifest;
+			}
+			TDB.sync(dataset);
+			if (profile.isChangeLog()) {
+				ChangeLog.create(new File(storeDir, ChangeLog.LOG_DIR),
+						last.getEndSequence());
+			}
+		} catch (IOException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot restore the backups under %s",
+					backupRoot.getAbsolutePath()), e);
+		} finally {
+			dataset.close();
+		}
+		logger.info("Backups under {} up to sequence {} have been restored into {}",
+				new Object[] { backupRoot.getAbsolutePath(),
+						last.getEndSequence(), storeDirectory });
+		return last;
+	}
+
+	/**
+	 * Lists the complete backups under the given root in the order they
+	 * were taken.
+	 *
+	 * @param backupRoot
+	 * @return
+	 * @throws JenaStoreException
+	 */
+	public static List<Manifest> listManifests(File backupRoot)
+			throws JenaStoreException {
+		List<Manifest> manifests = new ArrayList<Manifest>();
+		String[] names = backupRoot.list();
+		if (names == null) {
+			return manifests;
+		}
+		Arrays.sort(names);
+		for (String name : names) {
+			File directory = new File(backupRoot, name);
+			if (new File(directory, MANIFEST_FILE).isFile()) {
+				manifests.add(Manifest.read(directory));
+			}
+		}
+		return manifests;
+	}
+
+	private ChangeLog changeLog() throws JenaStoreException {
+		ChangeLog log = store.getChangeLog();
+		if (log == null) {
+			throw new JenaStoreException(String.format(
+					"Change log of the TDBStore at %s is not enabled",
+					store.getStoreDirectory()));
+		}
+		log.sync();
+		return log;
+	}
+
+	/**
+	 * @return the last sequence of the change log, read while the updates
+	 *         of the store are suspended so that no update is under way
+	 */
+	private long lastSequence(ChangeLog log) {
+		store.suspendUpdates();
+		try {
+			return log.getLastSequence();
+		} finally {
+			store.resumeUpdates();
+		}
+	}
+
+	private File newBackupDirectory(String type) throws JenaStoreException {
+		String name = new SimpleDateFormat("yyyyMMddHHmmssSSS")
+				.format(new Date()) + "-" + type;
+		File directory = new File(backupRoot, name);
+		try {
+			FileUtils.forceMkdir(directory);
+		} catch (IOException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot create the backup directory %s",
+					directory.getAbsolutePath()), e);
+		}
+		return directory;
+	}
+
+	private void copyChanges(ChangeLog log, long start, long end,
+			File directory, long maxBytesPerSecond) throws JenaStoreException {
+		File file = new File(directory, CHANGES_FILE);
+		OutputStream out = null;
+		try {
+			out = new GZIPOutputStream(new BufferedOutputStream(
+					new ThrottledOutputStream(new FileOutputStream(file),
+							maxBytesPerSecond), BUFFER_SIZE), BUFFER_SIZE);
+			log.copyTo(start, end, out);
+			out.close();
+		} catch (IOException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot write the changes to %s", file.getAbsolutePath()),
+					e);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	private void writePrefixes(File file) throws JenaStoreException {
+		StringBuilder sb = new StringBuilder();
+		for (String uri : store.listModels()) {
+			Model model = store.getModel(uri);
+			if (model == null) {
+				continue;
+			}
+			for (Map.Entry<String, String> prefix : model.getNsPrefixMap()
+					.entrySet()) {
+				sb.append(uri).append('\t').append(prefix.getKey())
+						.append('\t').append(prefix.getValue()).append('\n');
+			}
+		}
+		try {
+			FileUtils.writeStringToFile(file, sb.toString(), UTF8);
+		} catch (IOException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot write the prefixes to %s", file.getAbsolutePath()),
+					e);
+		}
+	}
+
+	private static void readPrefixes(File file, Dataset dataset)
+			throws IOException {
+		if (!file.isFile()) {
+			return;
+		}
+		for (String line : FileUtils.readLines(file, UTF8)) {
+			String[] fields = line.split("\t", 3);
+			if (fields.length == 3) {
+				dataset.getNamedModel(fields[0]).setNsPrefix(fields[1],
+						fields[2]);
+			}
+		}
+	}
+
+	private static void loadDump(File file, Dataset dataset)
+			throws IOException {
+		DatasetGraph graph = dataset.asDatasetGraph();
+		NQuadsInput in = new NQuadsInput(new GZIPInputStream(
+				new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)));
+		try {
+			Quad quad;
+			while ((quad = in.read()) != null) {
+				graph.add(quad);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void replayChanges(Manifest manifest, Dataset dataset)
+			throws IOException {
+		InputStream in = new GZIPInputStream(new BufferedInputStream(
+				new FileInputStream(new File(manifest.getDirectory(),
+						CHANGES_FILE)), BUFFER_SIZE));
+		try {
+			ChangeLog.replay(in, dataset);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Description of a complete backup.
+	 */
+	public static class Manifest {
+
+		public static final String FULL = "full";
+		public static final String INCREMENTAL = "incremental";
+
+		private final File directory;
+		private final String type;
+		private final long startSequence;
+		private final long endSequence;
+		private final long created;
+
+		private Manifest(File directory, String type, long startSequence,
+				long endSequence, long created) {
+			this.directory = directory;
+			this.type = type;
+			this.startSequence = startSequence;
+			this.endSequence = endSequence;
+			this.created = created;
+		}
+
+		public File getDirectory() {
+			return directory;
+		}
+
+		public boolean isFull() {
+			return FULL.equals(type);
+		}
+
+		/**
+		 * @return the last sequence of the change log before the backup
+		 */
+		public long getStartSequence() {
+			return startSequence;
+		}
+
+		/**
+		 * @return the sequence of the change log the backup is consistent
+		 *         with
+		 */
+		public long getEndSequence() {
+			return endSequence;
+		}
+
+		public long getCreated() {
+			return created;
+		}
+
+		private void write() throws JenaStoreException {
+			Properties props = new Properties();
+			props.setProperty(TYPE, type);
+			props.setProperty(START_SEQUENCE, String.valueOf(startSequence));
+			props.setProperty(END_SEQUENCE, String.valueOf(endSequence));
+			props.setProperty(CREATED, String.valueOf(created));
+			File file = new File(directory, MANIFEST_FILE);
+			OutputStream out = null;
+			try {
+				out = new FileOutputStream(file);
+				props.store(out, "TDBStore backup");
+			} catch (IOException e) {
+				throw new JenaStoreException(String.format(
+						"Cannot write the backup manifest: %s",
+						file.getAbsolutePath()), e);
+			} finally {
+				IOUtils.closeQuietly(out);
+			}
+		}
+
+		private static Manifest read(File directory) throws JenaStoreException {
+			File file = new File(directory, MANIFEST_FILE);
+			Properties props = new Properties();
+			InputStream in = null;
+			try {
+				in = new FileInputStream(file);
+				props.load(in);
+			} catch (IOException e) {
+				throw new JenaStoreException(String.format(
+						"Cannot read the backup manifest: %s",
+						file.getAbsolutePath()), e);
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+			return new Manifest(directory, props.getProperty(TYPE),
+					Long.parseLong(props.getProperty(START_SEQUENCE)),
+					Long.parseLong(props.getProperty(END_SEQUENCE)),
+					Long.parseLong(props.getProperty(CREATED)));
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s backup %s: sequences (%d, %d]", type,
+					directory.getName(), startSequence, endSequence);
+		}
+	}
+
+}
@@ -0,0 +1,316 @@
+package eu.salusproject.common.triplestore.tdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compact, checksummed catalog of the named models of a {@link TDBStore}. It
+ * records the graph URIs, their triple counts, the versions at which they
+ * were last modified and whether their triples are in the persisted search
+ * index. The catalog is read at startup so that the store can answer
+ * listModels/hasModel without opening the dataset's models, and it is
+ * replaced atomically whenever it is written.
+ * <p>
+ * Modifications only mark the catalog as modified; the store writes it when
+ * it is synchronized or closed. The catalog on disk is not clean while the
+ * store is open, so after a crash it is rebuilt from the dataset rather
+ * than trusted.
+ */
+public class StoreCatalog {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(StoreCatalog.class);
+
+	public static final String CATALOG_FILE = "catalog";
+
+	private static final int MAGIC = 0x54444243;
+	private static final int FORMAT_VERSION = 1;
+
+	private final File catalogFile;
+	private final TreeMap<String, Entry> entries;
+	private long version;
+	private boolean clean;
+	private boolean modified;
+
+	private StoreCatalog(String storeDirectory) {
+		this.catalogFile = new File(storeDirectory, CATALOG_FILE);
+		this.entries = new TreeMap<String, Entry>();
+	}
+
+	/**
+	 * Creates an empty catalog for the store at the given directory. Nothing
+	 * is written until {@link #write()} is called.
+	 *
+	 * @param storeDirectory
+	 * @return
+	 */
+	public static StoreCatalog create(String storeDirectory) {
+		return new StoreCatalog(storeDirectory);
+	}
+
+	/**
+	 * Reads the catalog of the store at the given directory. Returns
+	 * <code>null</code> if there is no catalog, or if it cannot be read or
+	 * its checksum does not match, in which case the catalog needs to be
+	 * rebuilt from the dataset.
+	 *
+	 * @param storeDirectory
+	 * @return
+	 */
+	public static StoreCatalog read(String storeDirectory) {
+		StoreCatalog catalog = new StoreCatalog(storeDirectory);
+		if (!catalog.catalogFile.isFile()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			CheckedInputStream checked = new CheckedInputStream(
+					new BufferedInputStream(new FileInputStream(
+							catalog.catalogFile)), new CRC32());
+			in = new DataInputStream(checked);
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+				logger.warn("Unknown catalog format: {}",
+						catalog.catalogFile.getAbsolutePath());
+				return null;
+			}
+			catalog.clean = in.readBoolean();
+			catalog.version = in.readLong();
+			int size = in.readInt();
+			for (int i = 0; i < size; i++) {
+				Entry entry = new Entry(in.readUTF());
+				entry.version = in.readLong();
+				entry.tripleCount = in.readLong();
+				entry.indexed = in.readBoolean();
+				catalog.entries.put(entry.uri, entry);
+			}
+			long checksum = checked.getChecksum().getValue();
+			if (in.readLong() != checksum) {
+				logger.warn("Checksum mismatch in catalog: {}",
+						catalog.catalogFile.getAbsolutePath());
+				return null;
+			}
+		} catch (IOException e) {
+			logger.warn("Cannot read the catalog: {}",
+					catalog.catalogFile.getAbsolutePath(), e);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		return catalog;
+	}
+
+	/**
+	 * Writes the catalog to a temporary file and atomically replaces the
+	 * existing catalog with it.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void write() throws IOException {
+		File tmpFile = new File(catalogFile.getParentFile(), CATALOG_FILE
+				+ ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmpFile);
+		try {
+			CheckedOutputStream checked = new CheckedOutputStream(
+					new BufferedOutputStream(fos), new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeBoolean(clean);
+			out.writeLong(version);
+			out.writeInt(entries.size());
+			for (Entry entry : entries.values()) {
+				out.writeUTF(entry.uri);
+				out.writeLong(entry.version);
+				out.writeLong(entry.tripleCount);
+				out.writeBoolean(entry.indexed);
+			}
+			out.flush();
+			out.writeLong(checked.getChecksum().getValue());
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		Files.move(tmpFile.toPath(), catalogFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		modified = false;
+	}
+
+	/**
+	 * @return whether the catalog has changed since it was last written
+	 */
+	public synchronized boolean isModified() {
+		return modified;
+	}
+
+	/**
+	 * Whether the store has been closed properly after the catalog was last
+	 * written. A catalog which is not clean may miss modifications and should
+	 * not be trusted.
+	 *
+	 * @return
+	 */
+	public synchronized boolean isClean() {
+		return clean;
+	}
+
+	public synchronized void setClean(boolean clean) {
+		if (this.clean != clean) {
+			this.clean = clean;
+			modified = true;
+		}
+	}
+
+	/**
+	 * @return the version of the last modification within the store
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	public synchronized boolean contains(String uri) {
+		return entries.containsKey(uri);
+	}
+
+	public synchronized Entry get(String uri) {
+		return entries.get(uri);
+	}
+
+	public synchronized List<String> listNames() {
+		return new ArrayList<String>(entries.keySet());
+	}
+
+	/**
+	 * Lists up to limit names in ascending order which start with the prefix
+	 * and follow the given name.
+	 *
+	 * @param prefix
+	 *            can be null
+	 * @param after
+	 *            can be null
+	 * @param limit
+	 * @return
+	 */
+	public synchronized List<String> listNames(String prefix, String after,
+			int limit) {
+		String from = prefix == null ? "" : prefix;
+		boolean inclusive = true;
+		if (after != null && after.compareTo(from) >= 0) {
+			from = after;
+			inclusive = false;
+		}
+		List<String> names = new ArrayList<String>();
+		for (String name : entries.tailMap(from, inclusive).keySet()) {
+			if (names.size() >= limit
+					|| (prefix != null && !name.startsWith(prefix))) {
+				break;
+			}
+			names.add(name);
+		}
+		return names;
+	}
+
+	/**
+	 * Records the named model with the given triple count.
+	 *
+	 * @param uri
+	 * @param tripleCount
+	 * @param indexed
+	 */
+	public synchronized void put(String uri, long tripleCount, boolean indexed) {
+		Entry entry = entries.get(uri);
+		if (entry == null) {
+			entry = new Entry(uri);
+			entries.put(uri, entry);
+		}
+		entry.version = ++version;
+		entry.tripleCount = tripleCount;
+		entry.indexed = indexed;
+		entry.dirty = false;
+		modified = true;
+	}
+
+	/**
+	 * Marks the named model as modified. Its triple count is refreshed by
+	 * the store before the catalog is written.
+	 *
+	 * @param uri
+	 */
+	public synchronized void touch(String uri) {
+		Entry entry = entries.get(uri);
+		if (entry != null) {
+			entry.version = ++version;
+			entry.dirty = true;
+			modified = true;
+		}
+	}
+
+	public synchronized List<String> listDirty() {
+		List<String> dirty = new ArrayList<String>();
+		for (Entry entry : entries.values()) {
+			if (entry.dirty) {
+				dirty.add(entry.uri);
+			}
+		}
+		return dirty;
+	}
+
+	public synchronized void remove(String uri) {
+		if (entries.remove(uri) != null) {
+			version++;
+			modified = true;
+		}
+	}
+
+	/**
+	 * Catalog record of a named model.
+	 */
+	public static class Entry {
+
+		private final String uri;
+		private long version;
+		private long tripleCount;
+		private boolean indexed;
+		private boolean dirty;
+
+		private Entry(String uri) {
+			this.uri = uri;
+		}
+
+		public String getUri() {
+			return uri;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public long getTripleCount() {
+			return tripleCount;
+		}
+
+		public boolean isIndexed() {
+			return indexed;
+		}
+	}
+
+}
@@ -0,0 +1,63 @@
+package eu.salusproject.common.triplestore.tdb;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.hp.hpl.jena.tdb.sys.DatasetControlMRSW;
+
+/**
+ * Concurrency policy of the dataset of a {@link TDBStore} which allows the
+ * updates of the dataset to be suspended. Every update of the TDB tables
+ * goes through {@link #startUpdate()}, which waits while the updates are
+ * suspended, so a thread which has suspended the updates can iterate the
+ * dataset without its iterators being invalidated by concurrent writers.
+ * Several threads may suspend the updates at once, e.g. to copy models in
+ * parallel, whereas updates wait for each other instead of failing. Reads
+ * are not affected.
+ */
+class SuspendableDatasetControl extends DatasetControlMRSW {
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	@Override
+	public void startUpdate() {
+		lock.writeLock().lock();
+		try {
+			super.startUpdate();
+		} catch (RuntimeException e) {
+			lock.writeLock().unlock();
+			throw e;
+		}
+	}
+
+	@Override
+	public void finishUpdate() {
+		try {
+			super.finishUpdate();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Waits for the running update to finish and blocks the following ones
+	 * until {@link #resumeUpdates()} is called by the same thread. The
+	 * calling thread must not update the dataset meanwhile.
+	 */
+	void suspendUpdates() {
+		lock.readLock().lock();
+	}
+
+	void resumeUpdates() {
+		lock.readLock().unlock();
+	}
+
+	/**
+	 * @return the lock which suspends the updates while it is held, shared
+	 *         by the threads which suspend them
+	 */
+	Lock getSuspensionLock() {
+		return lock.readLock();
+	}
+
+}
@@ -0,0 +1,438 @@
+package eu.salusproject.common.triplestore.tdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jena.larq.IndexBuilderString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.tdb.TDB;
+import com.hp.hpl.jena.tdb.store.DatasetGraphTDB;
+import com.hp.hpl.jena.tdb.store.bulkloader.BulkLoader;
+import com.hp.hpl.jena.tdb.store.bulkloader.LoaderNodeTupleTable;
+import com.hp.hpl.jena.tdb.sys.Names;
+
+import eu.salusproject.common.triplestore.JenaStoreException;
+import eu.salusproject.common.triplestore.StoreChangeListener;
+
+/**
+ * Writes a densely packed copy of a {@link TDBStore} into another directory
+ * while the store keeps serving. The copy is built by the TDB bulk loader,
+ * which creates the B+tree indexes from sorted input instead of inserting
+ * into them one by one. Each model is read while the updates of the store
+ * are suspended, so that concurrent writers wait instead of invalidating the
+ * copy; blank nodes keep their labels. Modifications made on the store
+ * during the copy are recorded and replayed into the copy and its search
+ * index.
+ * <p>
+ * The typical sequence is {@link #copy()}, {@link #replay()} while the store
+ * is still open, closing the store, and finally {@link #finish()} to replay
+ * the remaining modifications and close the copy.
+ */
+public class TDBCompactor {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(TDBCompactor.class);
+
+	private static final int LOOKUP_SAMPLES = 1000;
+
+	private final TDBStore store;
+	private final String targetDirectory;
+	private final ChangeRecorder recorder;
+
+	private Dataset target;
+	private IndexBuilderString targetIndex;
+	private List<Triple> lookupSamples;
+	private long lookupNanosBefore;
+	private long triplesCopied;
+	private int changesReplayed;
+	private long startTime;
+
+	public TDBCompactor(TDBStore store, String targetDirectory) {
+		this.store = store;
+		this.targetDirectory = targetDirectory;
+		this.recorder = new ChangeRecorder();
+	}
+
+	/**
+	 * Bulk loads the current contents of the store into a fresh dataset at
+	 * the target directory and indexes its literals. The modifications made
+	 * on the store from this point on are recorded.
+	 *
+	 * @throws JenaStoreException
+	 */
+	public void copy() throws JenaStoreException {
+		startTime = System.currentTimeMillis();
+		lookupSamples = sampleLookups(store);
+		lookupNanosBefore = measureLookups(store, lookupSamples);
+
+		store.addChangeListener(recorder);
+		try {
+			FileUtils.deleteDirectory(new File(targetDirectory));
+		} catch (IOException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot clean the compaction directory: %s",
+					targetDirectory), e);
+		}
+		store.getProfile().save(targetDirectory);
+		target = store.getProfile().createDataset(targetDirectory);
+
+		List<String> modelNames = store.listModels();
+		triplesCopied = copyModels(store, modelNames, target);
+
+		targetIndex = new IndexBuilderString(new File(targetDirectory,
+				TDBStore.INDEX_DIR));
+		for (String uri : modelNames) {
+			targetIndex.indexStatements(target.getNamedModel(uri)
+					.listStatements());
+		}
+		targetIndex.flushWriter();
+		TDB.sync(target);
+		logger.info("{} triples of {} models have been copied to {}",
+				new Object[] { triplesCopied, modelNames.size(),
+						targetDirectory });
+	}
+
+	/**
+	 * Bulk loads the given models of the store into the given empty TDB
+	 * dataset, along with their prefixes. Each model is read while the
+	 * updates of the store are suspended, so it is copied as of one point in
+	 * time; the copy as a whole is brought up to date by replaying the
+	 * modifications made since the copy has started.
+	 *
+	 * @param store
+	 * @param modelNames
+	 * @param target
+	 * @return the number of copied triples
+	 */
+	static long copyModels(TDBStore store, List<String> modelNames,
+			Dataset target) {
+		DatasetGraph source = store.getDataset().asDatasetGraph();
+		DatasetGraphTDB targetGraph = (DatasetGraphTDB) target
+				.asDatasetGraph();
+		LoaderNodeTupleTable loader = new LoaderNodeTupleTable(targetGraph
+				.getQuadTable().getNodeTupleTable(), "quads",
+				BulkLoader.createLoadMonitor(targetGraph, "quads", false));
+		Map<String, Map<String, String>> prefixes = new HashMap<String, Map<String, String>>();
+		long count = 0;
+		loader.loadStart();
+		loader.loadDataStart();
+		for (String uri : modelNames) {
+			Node graphNode = Node.createURI(uri);
+			store.suspendUpdates();
+			try {
+				prefixes.put(uri, store.getDataset().getNamedModel(uri)
+						.getNsPrefixMap());
+				Iterator<Quad> it = source.find(graphNode, Node.ANY,
+						Node.ANY, Node.ANY);
+				while (it.hasNext()) {
+					Quad quad = it.next();
+					loader.load(quad.getGraph(), quad.getSubject(),
+							quad.getPredicate(), quad.getObject());
+					count++;
+				}
+			} finally {
+				store.resumeUpdates();
+			}
+		}
+		loader.loadDataFinish();
+		loader.loadIndexStart();
+		loader.loadIndexFinish();
+		loader.loadFinish();
+		for (Map.Entry<String, Map<String, String>> entry : prefixes
+				.entrySet()) {
+			target.getNamedModel(entry.getKey()).setNsPrefixes(
+					entry.getValue());
+		}
+		return count;
+	}
+
+	/**
+	 * Applies the modifications recorded so far to the copy and its search
+	 * index.
+	 *
+	 * @return the number of replayed modifications
+	 */
+	public int replay() {
+		int count = recorder.replay(target, targetIndex);
+		changesReplayed += count;
+		return count;
+	}
+
+	/**
+	 * Replays the remaining modifications and closes the copy. Must be called
+	 * once the store has been closed, so that no modification is missed. The
+	 * catalog, the change log, the change feed sequence, the statistics and
+	 * the inference settings of the closed store are carried over to the
+	 * copy, as its contents are now the same. The search index is not
+	 * carried over; the copy has its own, which the replay keeps up to date.
+	 *
+	 * @throws JenaStoreException
+	 */
+	public void finish() throws JenaStoreException {
+		store.removeChangeListener(recorder);
+		replay();
+		TDB.sync(target);
+		target.close();
+		targetIndex.closeWriter();
+		File storeDir = new File(store.getStoreDirectory());
+		File targetDir = new File(targetDirectory);
+		try {
+			FileUtils.copyFileToDirectory(new File(storeDir,
+					StoreCatalog.CATALOG_FILE), targetDir);
+			// All models are in the index of the copy, including those the
+			// closed store has not indexed yet
+			StoreCatalog catalog = StoreCatalog.read(targetDirectory);
+			if (catalog != null) {
+				for (String uri : catalog.listNames()) {
+					StoreCatalog.Entry entry = catalog.get(uri);
+					if (!entry.isIndexed()) {
+						catalog.put(uri, entry.getTripleCount(), true);
+					}
+				}
+				catalog.write();
+			}
+			FileUtils.copyFileToDirectory(new File(storeDir,
+					TDBStore.STATISTICS_FILE), targetDir);
+			FileUtils.copyFileToDirectory(new File(storeDir, Names.optStats),
+					targetDir);
+		} catch (IOException e) {
+			// The compacted store rebuilds them when it is opened
+			logger.warn(
+					"Cannot carry over the catalog and the statistics to {}",
+					targetDirectory, e);
+		}
+		// The companion graphs of the materialized models are not copied, the
+		// compacted store recomputes them from these settings
+		try {
+			File inferenceSettings = new File(storeDir, TDBStore.INFERENCE_FILE);
+			if (inferenceSettings.isFile()) {
+				FileUtils.copyFileToDirectory(inferenceSettings, targetDir);
+			}
+		} catch (IOException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot carry over the inference settings to %s",
+					targetDirectory), e);
+		}
+		// Sequence numbers must continue in the compacted store
+		try {
+			File feedSequence = new File(storeDir, TDBStore.FEED_SEQUENCE_FILE);
+			if (feedSequence.isFile()) {
+				FileUtils.copyFileToDirectory(feedSequence, targetDir);
+			}
+			ChangeLog.carryOver(storeDir, targetDir);
+		} catch (IOException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot carry over the change log to %s", targetDirectory),
+					e);
+		}
+		logger.info("Compacted copy has been written to {}", targetDirectory);
+	}
+
+	/**
+	 * Creates the report of the compaction by comparing the lookup
+	 * performance of the original store with that of the compacted store.
+	 *
+	 * @param bytesBefore
+	 * @param bytesAfter
+	 * @param compacted
+	 * @return
+	 */
+	public CompactionReport report(long bytesBefore, long bytesAfter,
+			TDBStore compacted) {
+		long lookupNanosAfter = measureLookups(compacted, lookupSamples);
+		return new CompactionReport(bytesBefore, bytesAfter, triplesCopied,
+				changesReplayed, lookupSamples.size(), lookupNanosBefore,
+				lookupNanosAfter, System.currentTimeMillis() - startTime);
+	}
+
+	/**
+	 * Collects (graph, subject) pairs spread over the models of the store.
+	 * The graph is kept as the subject of the returned triples, the subject
+	 * as their predicate.
+	 */
+	private static List<Triple> sampleLookups(TDBStore store) {
+		List<Triple> samples = new ArrayList<Triple>();
+		List<String> modelNames = store.listModels();
+		if (modelNames.isEmpty()) {
+			return samples;
+		}
+		int perModel = Math.max(1, LOOKUP_SAMPLES / modelNames.size());
+		DatasetGraph dsg = store.getDataset().asDatasetGraph();
+		store.suspendUpdates();
+		try {
+			for (String uri : modelNames) {
+				Node graphNode = Node.createURI(uri);
+				Iterator<Quad> it = dsg.find(graphNode, Node.ANY, Node.ANY,
+						Node.ANY);
+				for (int i = 0; i < perModel && it.hasNext(); i++) {
+					samples.add(Triple.create(graphNode, it.next()
+							.getSubject(), Node.ANY));
+				}
+				if (samples.size() >= LOOKUP_SAMPLES) {
+					break;
+				}
+			}
+		} finally {
+			store.resumeUpdates();
+		}
+		return samples;
+	}
+
+	/**
+	 * @return the total time in nanoseconds to look up all statements of
+	 *         the sampled subjects
+	 */
+	private static long measureLookups(TDBStore store, List<Triple> samples) {
+		DatasetGraph dsg = store.getDataset().asDatasetGraph();
+		store.suspendUpdates();
+		try {
+			long start = System.nanoTime();
+			for (Triple sample : samples) {
+				Iterator<Quad> it = dsg.find(sample.getSubject(),
+						sample.getPredicate(), Node.ANY, Node.ANY);
+				while (it.hasNext()) {
+					it.next();
+				}
+			}
+			return System.nanoTime() - start;
+		} finally {
+			store.resumeUpdates();
+		}
+	}
+
+	/**
+	 * Records the modifications on the store in order, to be replayed into
+	 * the copy.
+	 */
+	private static class ChangeRecorder implements StoreChangeListener {
+
+		private enum Op {
+			ADD_MODEL, REMOVE_MODEL, ADD, REMOVE, REMOVE_PATTERN
+		}
+
+		private static class Change {
+			final Op op;
+			final String ontologyURI;
+			final List<Triple> triples;
+			final Map<String, String> prefixes;
+
+			Change(Op op, String ontologyURI, List<Triple> triples,
+					Map<String, String> prefixes) {
+				this.op = op;
+				this.ontologyURI = ontologyURI;
+				this.triples = triples;
+				this.prefixes = prefixes;
+			}
+		}
+
+		private List<Change> changes = new ArrayList<Change>();
+
+		@Override
+		public synchronized void modelAdded(String ontologyURI, Model model) {
+			changes.add(new Change(Op.ADD_MODEL, ontologyURI, model
+					.getGraph().find(Triple.ANY).toList(), model
+					.getNsPrefixMap()));
+		}
+
+		@Override
+		public synchronized void modelRemoved(String ontologyURI) {
+			changes.add(new Change(Op.REMOVE_MODEL, ontologyURI, null, null));
+		}
+
+		@Override
+		public synchronized void triplesAdded(String ontologyURI,
+				List<Triple> triples) {
+			changes.add(new Change(Op.ADD, ontologyURI, new ArrayList<Triple>(
+					triples), null));
+		}
+
+		@Override
+		public synchronized void triplesRemoved(String ontologyURI,
+				List<Triple> triples) {
+			changes.add(new Change(Op.REMOVE, ontologyURI,
+					new ArrayList<Triple>(triples), null));
+		}
+
+		@Override
+		public synchronized void patternRemoved(String ontologyURI,
+				Triple pattern) {
+			List<Triple> triples = new ArrayList<Triple>();
+			triples.add(pattern);
+			changes.add(new Change(Op.REMOVE_PATTERN, ontologyURI, triples,
+					null));
+		}
+
+		/**
+		 * Applies and discards the recorded modifications, and keeps the
+		 * given search index in line with them. Adding and removing triples
+		 * is idempotent, hence modifications which have already been picked
+		 * up by the bulk copy are harmless.
+		 */
+		int replay(Dataset target, IndexBuilderString index) {
+			List<Change> pending;
+			synchronized (this) {
+				pending = changes;
+				changes = new ArrayList<Change>();
+			}
+			for (Change change : pending) {
+				Model model = target.getNamedModel(change.ontologyURI);
+				if (change.op == Op.REMOVE_MODEL) {
+					for (StmtIterator it = model.listStatements(); it
+							.hasNext();) {
+						index.unindexStatement(it.next());
+					}
+					target.removeNamedModel(change.ontologyURI);
+					continue;
+				}
+				Graph graph = model.getGraph();
+				for (Iterator<Triple> it = change.triples.iterator(); it
+						.hasNext();) {
+					Triple t = it.next();
+					switch (change.op) {
+					case ADD_MODEL:
+					case ADD:
+						if (!graph.contains(t)) {
+							graph.add(t);
+							index.indexStatement(model.asStatement(t));
+						}
+						break;
+					case REMOVE:
+						if (graph.contains(t)) {
+							graph.delete(t);
+							index.unindexStatement(model.asStatement(t));
+						}
+						break;
+					default:
+						for (Triple match : graph.find(t).toList()) {
+							index.unindexStatement(model.asStatement(match));
+						}
+						graph.remove(t.getSubject(), t.getPredicate(),
+								t.getObject());
+						break;
+					}
+				}
+				if (change.prefixes != null) {
+					model.setNsPrefixes(change.prefixes);
+				}
+			}
+			return pending.size();
+		}
+	}
+
+}
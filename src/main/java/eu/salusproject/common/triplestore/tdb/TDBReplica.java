@@ -0,0 +1,332 @@
+package eu.salusproject.common.triplestore.tdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.tdb.TDB;
+
+import eu.salusproject.common.triplestore.JenaStoreException;
+
+/**
+ * Read replica of a {@link TDBStore}. The replica is a {@link TDBStore} in
+ * its own directory which follows the {@link ChangeLog} of the primary store
+ * and applies its records, so it only needs access to the directory of the
+ * primary's log and can run in another process. The replica must only be
+ * read; all modifications go to the primary.
+ * <p>
+ * The sequence number up to which the log has been applied is persisted in
+ * the replica directory, so a reopened replica continues where it stopped.
+ * As replaying the log is idempotent, records applied after the last
+ * persisted sequence are simply applied again. The primary keeps the records
+ * after the persisted sequence when its log is truncated.
+ */
+public class TDBReplica implements Runnable {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(TDBReplica.class);
+
+	public static final String STATE_FILE = "replica.sequence";
+
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+	private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final long SYNC_INTERVAL = 1000;
+
+	private final TDBStore store;
+	private final ChangeLog log;
+	private final ChangeLogTailer tailer;
+	private final File stateFile;
+	private volatile long appliedSequence;
+	private volatile boolean stopped;
+	private volatile JenaStoreException failure;
+	private Thread thread;
+
+	private TDBReplica(TDBStore store, ChangeLog log, long appliedSequence) {
+		this.store = store;
+		this.log = log;
+		this.appliedSequence = appliedSequence;
+		this.stateFile = new File(store.getStoreDirectory(), STATE_FILE);
+		this.tailer = new ChangeLogTailer(log.getDirectory(), appliedSequence);
+		log.retain(this, appliedSequence);
+	}
+
+	/**
+	 * Opens the replica at the given directory, or creates it by copying the
+	 * models of the primary store if the directory does not hold a replica
+	 * yet. The models are bulk loaded as the compactor does, each while the
+	 * updates of the primary are suspended, and the replica then replays the
+	 * log from the sequence at which the copy started. The primary store
+	 * must have its {@link ChangeLog} enabled. The replica is not started.
+	 *
+	 * @param primary
+	 * @param replicaDirectory
+	 * @return
+	 * @throws JenaStoreException
+	 */
+	public static TDBReplica open(TDBStore primary, String replicaDirectory)
+			throws JenaStoreException {
+		ChangeLog log = primary.getChangeLog();
+		if (log == null) {
+			throw new JenaStoreException(String.format(
+					"Change log of the TDBStore at %s is not enabled",
+					primary.getStoreDirectory()));
+		}
+		File stateFile = new File(replicaDirectory, STATE_FILE);
+		if (stateFile.isFile()) {
+			TDBStore store = new TDBStore(replicaDirectory,
+					TDBStoreProfile.load(replicaDirectory));
+			return new TDBReplica(store, log, readState(stateFile));
+		}
+
+		FileUtils.deleteQuietly(new File(replicaDirectory));
+		TDBStoreProfile profile = TDBStoreProfile.load(primary
+				.getStoreDirectory());
+		profile.setChangeLog(false);
+		File inferenceSettings = new File(primary.getStoreDirectory(),
+				TDBStore.INFERENCE_FILE);
+		try {
+			if (inferenceSettings.isFile()) {
+				FileUtils.copyFileToDirectory(inferenceSettings, new File(
+						replicaDirectory));
+			}
+		} catch (IOException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot copy the inference settings to the replica at %s",
+					replicaDirectory), e);
+		}
+		// Records from this sequence on are replayed over the copy, so they
+		// are kept in the log from before the copy until the replica retains
+		// them itself
+		long start = log.getLastSequence();
+		Object copy = new Object();
+		log.retain(copy, start);
+		TDBReplica replica;
+		try {
+			List<String> modelNames = primary.listModels();
+			profile.save(replicaDirectory);
+			Dataset dataset = profile.createDataset(replicaDirectory);
+			try {
+				TDBCompactor.copyModels(primary, modelNames, dataset);
+				TDB.sync(dataset);
+			} finally {
+				dataset.close();
+			}
+			// The catalog and the index are built from the copied dataset,
+			// which has no trace of the empty models
+			TDBStore store = new TDBStore(replicaDirectory, profile);
+			for (String uri : modelNames) {
+				if (!store.hasModel(uri)) {
+					store.addModel(uri, ModelFactory.createDefaultModel());
+				}
+			}
+			store.sync();
+			replica = new TDBReplica(store, log, start);
+		} finally {
+			log.release(copy);
+		}
+		replica.writeState();
+		logger.info("Replica of {} has been created at {} from sequence {}",
+				new Object[] { primary.getStoreDirectory(), replicaDirectory,
+						start });
+		return replica;
+	}
+
+	public TDBStore getStore() {
+		return store;
+	}
+
+	/**
+	 * @return the sequence number of the primary's log up to which all
+	 *         records have been applied to the replica
+	 */
+	public long getAppliedSequence() {
+		return appliedSequence;
+	}
+
+	/**
+	 * @return the error which stopped the replica, if any
+	 */
+	public JenaStoreException getFailure() {
+		return failure;
+	}
+
+	public boolean isRunning() {
+		return thread != null && thread.isAlive();
+	}
+
+	/**
+	 * Starts following the log of the primary store.
+	 */
+	public synchronized void start() {
+		if (isRunning()) {
+			return;
+		}
+		stopped = false;
+		thread = new Thread(this, "tdb-replica-"
+				+ new File(store.getStoreDirectory()).getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops following the log and closes the replica store.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		store.close();
+		log.release(this);
+	}
+
+	/**
+	 * Waits until the replica has applied the log up to the given sequence
+	 * number, e.g. the last sequence of the primary after a write, so that
+	 * the replica reflects that write.
+	 *
+	 * @param sequence
+	 * @param timeoutMillis
+	 * @return whether the sequence has been reached within the timeout
+	 */
+	public boolean awaitSequence(long sequence, long timeoutMillis) {
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (appliedSequence < sequence) {
+			if (System.nanoTime() >= deadline || !isRunning()) {
+				return appliedSequence >= sequence;
+			}
+			LockSupport.parkNanos(this, IDLE_NANOS);
+		}
+		return true;
+	}
+
+	/**
+	 * Follows the log until the replica is stopped. If a record cannot be
+	 * read or applied, the replica stops with a {@link #getFailure()} and
+	 * releases the records it retained in the log of the primary.
+	 */
+	@Override
+	public void run() {
+		try {
+			follow();
+		} catch (JenaStoreException e) {
+			failure = e;
+		} catch (RuntimeException e) {
+			failure = new JenaStoreException(String.format(
+					"Replica at %s cannot apply the change log at sequence %d",
+					store.getStoreDirectory(), appliedSequence + 1), e);
+		}
+		if (failure != null) {
+			logger.error("Replica at {} has stopped",
+					store.getStoreDirectory(), failure);
+			log.release(this);
+			return;
+		}
+		store.sync();
+		writeState();
+	}
+
+	private void follow() throws JenaStoreException {
+		long lastSync = System.currentTimeMillis();
+		boolean dirty = false;
+		while (!stopped) {
+			List<ChangeLog.Record> records;
+			try {
+				records = tailer.poll();
+			} catch (IOException e) {
+				// e.g. while the directory of the primary is being swapped by
+				// a compaction
+				logger.warn("Cannot read the change log, replica at {} retries",
+						store.getStoreDirectory(), e);
+				LockSupport.parkNanos(this, RETRY_NANOS);
+				continue;
+			}
+			for (ChangeLog.Record record : records) {
+				apply(record);
+			}
+			dirty |= !records.isEmpty();
+			appliedSequence = tailer.getPosition();
+			if (dirty
+					&& System.currentTimeMillis() - lastSync >= SYNC_INTERVAL) {
+				store.sync();
+				writeState();
+				lastSync = System.currentTimeMillis();
+				dirty = false;
+			}
+			if (records.isEmpty()) {
+				LockSupport.parkNanos(this, IDLE_NANOS);
+			}
+		}
+	}
+
+	private void apply(ChangeLog.Record record) {
+		String uri = record.getOntologyURI();
+		if (record.getOp() == ChangeLog.Op.R) {
+			if (store.hasModel(uri)) {
+				store.removeModel(uri);
+			}
+			return;
+		}
+		Model model;
+		if (store.hasModel(uri)) {
+			model = store.getModel(uri);
+		} else if (record.getOp() == ChangeLog.Op.A) {
+			model = store.addModel(uri, ModelFactory.createDefaultModel());
+		} else {
+			return;
+		}
+		Graph graph = model.getGraph();
+		Triple triple = record.getTriple();
+		switch (record.getOp()) {
+		case A:
+			graph.add(triple);
+			break;
+		case D:
+			graph.delete(triple);
+			break;
+		default:
+			graph.remove(triple.getSubject(), triple.getPredicate(),
+					triple.getObject());
+			break;
+		}
+	}
+
+	private void writeState() {
+		long sequence = appliedSequence;
+		try {
+			FileUtils.writeStringToFile(stateFile, String.valueOf(sequence));
+			log.retain(this, sequence);
+		} catch (IOException e) {
+			logger.error("Cannot persist the state of the replica at {}",
+					store.getStoreDirectory(), e);
+		}
+	}
+
+	private static long readState(File stateFile) throws JenaStoreException {
+		try {
+			return Long.parseLong(FileUtils.readFileToString(stateFile).trim());
+		} catch (IOException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot read the state of the replica: %s",
+					stateFile.getAbsolutePath()), e);
+		}
+	}
+
+}
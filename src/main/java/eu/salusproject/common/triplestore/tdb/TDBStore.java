@@ -2,15 +2,27 @@ package eu.salusproject.common.triplestore.tdb;
 
 import static com.hp.hpl.jena.ontology.OntModelSpec.OWL_DL_MEM;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.commons.io.FileUtils;
 import org.apache.jena.larq.IndexBuilderString;
+import org.apache.jena.larq.IndexLARQ;
 import org.apache.jena.larq.LARQ;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,15 +31,35 @@ import com.hp.hpl.jena.graph.Graph;
 import com.hp.hpl.jena.ontology.OntModel;
 import com.hp.hpl.jena.query.Dataset;
 import com.hp.hpl.jena.query.ReadWrite;
+import com.hp.hpl.jena.rdf.listeners.StatementListener;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Statement;
 import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.tdb.TDB;
-import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.tdb.solver.stats.Stats;
+import com.hp.hpl.jena.tdb.solver.stats.StatsCollector;
+import com.hp.hpl.jena.tdb.sys.Names;
 import com.hp.hpl.jena.util.FileManager;
 
+import eu.salusproject.common.triplestore.ChangeDispatcher;
 import eu.salusproject.common.triplestore.JenaStore;
 import eu.salusproject.common.triplestore.JenaStoreException;
+import eu.salusproject.common.triplestore.ModelPage;
+import eu.salusproject.common.triplestore.StoreChangeListener;
+import eu.salusproject.common.triplestore.feed.ChangeFeed;
+import eu.salusproject.common.triplestore.inference.InferenceConfig;
+import eu.salusproject.common.triplestore.inference.InferenceMaintainer;
+import eu.salusproject.common.triplestore.io.BinaryRDF;
+import eu.salusproject.common.triplestore.io.DumpOptions;
+import eu.salusproject.common.triplestore.io.DumpReport;
+import eu.salusproject.common.triplestore.io.ParallelNTriplesParser;
+import eu.salusproject.common.triplestore.io.StoreDumper;
+import eu.salusproject.common.triplestore.stats.GraphStatistics;
+import eu.salusproject.common.triplestore.stats.StatisticsCollector;
+import eu.salusproject.common.triplestore.trace.StartupTrace;
 
 /**
  * @author anil
@@ -38,44 +70,220 @@ public class TDBStore implements JenaStore {
 	private static final Logger logger = LoggerFactory
 			.getLogger(TDBStore.class);
 
+	static final String INDEX_DIR = "larq";
+	static final String FEED_SEQUENCE_FILE = "feed.sequence";
+	static final String INFERENCE_FILE = "inference.properties";
+	static final String STATISTICS_FILE = "statistics.tsv";
+
 	private Dataset dataset;
+	private SuspendableDatasetControl datasetControl;
 	private String storeDirectory;
+	private TDBStoreProfile profile;
 
 	private IndexBuilderString index;
 
+	/**
+	 * Opened models by name, read without locking by concurrent readers such
+	 * as dump workers and shard fan-outs
+	 */
 	private Map<String, Model> namedModels;
 
 	private ModelUpdateListener modelUpdateListener;
+	private boolean autoSync;
+
+	private StoreCatalog catalog;
+
+	private ChangeLog changeLog;
+
+	private ChangeFeed changeFeed;
+
+	private InferenceMaintainer inference;
 
+	private StatisticsCollector statistics;
+
+	private ExecutorService statisticsRefresher;
+
+	private final AtomicBoolean statisticsRefreshScheduled = new AtomicBoolean();
+
+	private PatternCacheMetrics patternCacheMetrics = new PatternCacheMetrics();
+
+	private List<StoreChangeListener> changeListeners = new CopyOnWriteArrayList<StoreChangeListener>();
+
+	/**
+	 * Opens the {@link TDBStore} at the given directory with the
+	 * {@link TDBStoreProfile} persisted in that directory, or with the TDB
+	 * defaults if there is none. Failures are thrown as
+	 * {@link JenaException}, as this constructor did not declare
+	 * {@link JenaStoreException} before the profiles were introduced.
+	 * 
+	 * @param storeDirectory
+	 */
 	public TDBStore(String storeDirectory) {
+		try {
+			open(storeDirectory, TDBStoreProfile.load(storeDirectory),
+					StartupTrace.DISABLED);
+		} catch (JenaStoreException e) {
+			throw new JenaException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Opens the {@link TDBStore} at the given directory with the given
+	 * {@link TDBStoreProfile}. The profile is persisted in the store directory
+	 * and used when the store is reopened.
+	 * 
+	 * @param storeDirectory
+	 * @param profile
+	 * @throws JenaStoreException
+	 */
+	public TDBStore(String storeDirectory, TDBStoreProfile profile)
+			throws JenaStoreException {
+		open(storeDirectory, profile, StartupTrace.DISABLED);
+	}
+
+	/**
+	 * Opens the {@link TDBStore} at the given directory with the given
+	 * {@link TDBStoreProfile} and records the phases of the opening in the
+	 * given {@link StartupTrace}.
+	 * 
+	 * @param storeDirectory
+	 * @param profile
+	 * @param trace
+	 * @throws JenaStoreException
+	 */
+	public TDBStore(String storeDirectory, TDBStoreProfile profile,
+			StartupTrace trace) throws JenaStoreException {
+		open(storeDirectory, profile, trace);
+	}
+
+	private void open(String storeDirectory, TDBStoreProfile profile,
+			StartupTrace trace) throws JenaStoreException {
 		this.storeDirectory = storeDirectory;
+		this.profile = profile;
+		profile.save(storeDirectory);
 		long start = System.currentTimeMillis();
-		this.dataset = TDBFactory.createDataset(storeDirectory);
+		StartupTrace.Phase phase = trace.begin(storeDirectory, "dataset");
+		this.datasetControl = new SuspendableDatasetControl();
+		this.dataset = profile.createDataset(storeDirectory, datasetControl);
 		this.modelUpdateListener = new ModelUpdateListener(this.dataset);
+		phase.end();
 		long end = System.currentTimeMillis();
-		logger.info("Dataset restored in " + (end - start) + " miliseconds");
-
-		index = new IndexBuilderString();
-		namedModels = new HashMap<String, Model>();
-		try {
-			begin(ReadWrite.READ);
-			Iterator<String> modelIt = dataset.listNames();
-			while (modelIt.hasNext()) {
-				String uri = modelIt.next();
-				Model model = dataset.getNamedModel(uri);
-				namedModels.put(uri, model);
-				indexModel(uri, model);
+		logger.info("Dataset restored in " + (end - start)
+				+ " miliseconds with profile: " + profile);
+
+		namedModels = new ConcurrentHashMap<String, Model>();
+		File indexDirectory = new File(storeDirectory, INDEX_DIR);
+		phase = trace.begin(storeDirectory, "catalog");
+		StoreCatalog storedCatalog = StoreCatalog.read(storeDirectory);
+		boolean clean = storedCatalog != null && storedCatalog.isClean();
+		if (clean) {
+			catalog = storedCatalog;
+			index = new IndexBuilderString(indexDirectory);
+			LARQ.setDefaultIndex(index.getIndex());
+			logger.info(
+					"Catalog of TDBStore has been read with {} models, models will be opened on demand.",
+					catalog.listNames().size());
+			phase.end();
+		} else {
+			phase.end();
+			phase = trace.begin(storeDirectory, "index");
+			logger.info("No valid catalog found at {}, rebuilding the catalog and the index.",
+					storeDirectory);
+			FileUtils.deleteQuietly(indexDirectory);
+			catalog = StoreCatalog.create(storeDirectory);
+			index = new IndexBuilderString(indexDirectory);
+			try {
+				begin(ReadWrite.READ);
+				Iterator<String> modelIt = dataset.listNames();
+				while (modelIt.hasNext()) {
+					String uri = modelIt.next();
+					if (InferenceMaintainer.isInferredGraph(uri)) {
+						continue;
+					}
+					Model model = namedModel(uri);
+					indexModel(uri, model);
+					long size = model.size();
+					catalog.put(uri, size, true);
+					registerModel(uri, model);
+					phase.addTriplesIndexed(size);
+				}
+			} finally {
+				end();
 			}
-		} finally {
-			end();
+			phase.end();
+			logger.info("All existing models are indexed and the Map cache of TDBStore has been initialized.");
 		}
-		logger.info("All existing models are indexed and the Map cache of TDBStore has been initialized.");
+		// Until the store is closed properly, the catalog is not trusted
+		catalog.setClean(false);
+		writeCatalog();
+		if (profile.isChangeLog()) {
+			changeLog = new ChangeLog(new File(storeDirectory,
+					ChangeLog.LOG_DIR));
+			changeListeners.add(changeLog);
+		}
+		phase = trace.begin(storeDirectory, "inference");
+		inference = new InferenceMaintainer(this, dataset, new File(
+				storeDirectory, INFERENCE_FILE));
+		changeListeners.add(inference);
+		phase.end();
+		// Statistics persisted by a store which has not been closed properly
+		// may miss modifications
+		phase = trace.begin(storeDirectory, "statistics");
+		// The models are scanned while the updates are suspended, whether on
+		// demand or in the background
+		statistics = new StatisticsCollector(this, dataset, new File(
+				storeDirectory, STATISTICS_FILE), clean) {
+			@Override
+			protected Lock scanLock(String ontologyURI) {
+				return getUpdateSuspensionLock();
+			}
+		};
+		changeListeners.add(statistics);
+		final String refresherName = "tdb-statistics-"
+				+ new File(storeDirectory).getName();
+		statisticsRefresher = Executors
+				.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, refresherName);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		phase.end();
 	}
 
 	public String getStoreDirectory() {
 		return this.storeDirectory;
 	}
 
+	public TDBStoreProfile getProfile() {
+		return this.profile;
+	}
+
+	/**
+	 * @return the underlying TDB dataset, e.g. to run SPARQL queries over all
+	 *         named models of this store
+	 */
+	public Dataset getDataset() {
+		return this.dataset;
+	}
+
+	/**
+	 * @return the text index of the literals of this store
+	 */
+	public IndexLARQ getIndex() {
+		return index.getIndex();
+	}
+
+	/**
+	 * @return the {@link ChangeLog} of this store, or <code>null</code> if it
+	 *         is not enabled by the {@link TDBStoreProfile}
+	 */
+	public ChangeLog getChangeLog() {
+		return this.changeLog;
+	}
+
 	@Override
 	public Model addModel(String ontologyURI, Model model) {
 		Model retModel = null;
@@ -83,17 +291,29 @@ public class TDBStore implements JenaStore {
 			begin(ReadWrite.WRITE);
 			dataset.addNamedModel(ontologyURI, model);
 			// sets same PrefixMap in TDB
-			retModel = dataset.getNamedModel(ontologyURI);
+			retModel = namedModel(ontologyURI);
 			retModel.setNsPrefixes(model.getNsPrefixMap());
 			commit();
 		} finally {
 			end();
 		}
-		indexModel(ontologyURI, retModel);
-		namedModels.put(ontologyURI, retModel);
+		publishModel(ontologyURI, retModel);
 		return retModel;
 	}
 
+	/**
+	 * Indexes, catalogs and registers a model which has just been written to
+	 * the dataset, and notifies the listeners.
+	 */
+	private void publishModel(String ontologyURI, Model model) {
+		indexModel(ontologyURI, model);
+		catalog.put(ontologyURI, model.size(), true);
+		registerModel(ontologyURI, model);
+		for (StoreChangeListener listener : changeListeners) {
+			listener.modelAdded(ontologyURI, model);
+		}
+	}
+
 	@Override
 	public OntModel createOntModel(String ontologyURI)
 			throws JenaStoreException {
@@ -104,10 +324,10 @@ public class TDBStore implements JenaStore {
 
 		OntModel ontModel = ModelFactory.createOntologyModel(OWL_DL_MEM);
 		Model model = addModel(ontologyURI, ontModel);
-		ontModel = ModelFactory.createOntologyModel(OWL_DL_MEM, model);
+		namedModels.put(ontologyURI,
+				ModelFactory.createOntologyModel(OWL_DL_MEM, model));
 		logger.info("Empty OntModel has been created: {}", ontologyURI);
-		namedModels.put(ontologyURI, ontModel);
-		return ontModel;
+		return inference.getOntModel(ontologyURI, model);
 	}
 
 	@Override
@@ -123,6 +343,12 @@ public class TDBStore implements JenaStore {
 			logger.info("The model: {} already exists.", ontologyURI);
 			return getOntModel(ontologyURI);
 		}
+		if (BinaryRDF.isFormat(format)
+				|| ParallelNTriplesParser.isSupported(format)
+				&& canParseInParallel(ontologyFilePath)) {
+			return createOntModelFromFile(ontologyURI, ontologyFilePath,
+					format);
+		}
 		InputStream inputStream = FileManager.get().open(ontologyFilePath);
 		if (inputStream == null) {
 			throw new IllegalArgumentException(String.format(
@@ -137,19 +363,101 @@ public class TDBStore implements JenaStore {
 			throw new JenaStoreException("Cannot close the inputstream", e);
 		}
 		Model model = addModel(ontologyURI, ontModel);
-		ontModel = ModelFactory.createOntologyModel(OWL_DL_MEM, model);
+		namedModels.put(ontologyURI,
+				ModelFactory.createOntologyModel(OWL_DL_MEM, model));
 		logger.info(
 				"Newly created OntModel has been populated with the ontology at {}",
 				ontologyURI, ontologyFilePath);
-		namedModels.put(ontologyURI, ontModel);
-		return ontModel;
+		return inference.getOntModel(ontologyURI, model);
+	}
+
+	/**
+	 * Reads a binary RDF file, or parses a local N-Triples or N-Quads file
+	 * on all processors, straight into the named graph of the new model.
+	 */
+	private OntModel createOntModelFromFile(String ontologyURI,
+			String ontologyFilePath, String format) throws JenaStoreException {
+		File file = new File(ontologyFilePath);
+		if (!file.isFile()) {
+			throw new IllegalArgumentException(String.format(
+					"File: %s not found", ontologyFilePath));
+		}
+		Model model;
+		try {
+			begin(ReadWrite.WRITE);
+			Model target = dataset.getNamedModel(ontologyURI);
+			boolean loaded = false;
+			try {
+				if (BinaryRDF.isFormat(format)) {
+					BinaryRDF.read(target, file);
+				} else {
+					new ParallelNTriplesParser().parse(file, target.getGraph());
+				}
+				loaded = true;
+			} catch (IOException e) {
+				throw new JenaStoreException(String.format(
+						"Cannot read the %s file: %s", format,
+						ontologyFilePath), e);
+			} finally {
+				if (!loaded) {
+					// drops the triples of a partial load
+					target.removeAll();
+				}
+			}
+			model = namedModel(ontologyURI);
+			commit();
+		} finally {
+			end();
+		}
+		publishModel(ontologyURI, model);
+		namedModels.put(ontologyURI,
+				ModelFactory.createOntologyModel(OWL_DL_MEM, model));
+		logger.info(
+				"Newly created OntModel {} has been populated with the {} file at {}",
+				new Object[] { ontologyURI, format, ontologyFilePath });
+		return inference.getOntModel(ontologyURI, model);
+	}
+
+	private static boolean canParseInParallel(String ontologyFilePath)
+			throws JenaStoreException {
+		try {
+			return ParallelNTriplesParser.canParse(new File(ontologyFilePath));
+		} catch (IOException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot read the file: %s", ontologyFilePath), e);
+		}
 	}
 
 	@Override
 	public OntModel getOntModel(String ontologyURI) {
 		Model m = getModel(ontologyURI);
-		OntModel ontModel = ModelFactory.createOntologyModel(OWL_DL_MEM, m);
-		return ontModel;
+		return inference.getOntModel(ontologyURI, m);
+	}
+
+	@Override
+	public void setInferenceConfig(String ontologyURI, InferenceConfig config)
+			throws JenaStoreException {
+		inference.setConfig(ontologyURI, config);
+	}
+
+	@Override
+	public InferenceConfig getInferenceConfig(String ontologyURI) {
+		return inference.getConfig(ontologyURI);
+	}
+
+	@Override
+	public Model getInferredModel(String ontologyURI) {
+		return inference.getInferredModel(ontologyURI);
+	}
+
+	@Override
+	public GraphStatistics getStatistics(String ontologyURI) {
+		return statistics.getStatistics(ontologyURI);
+	}
+
+	@Override
+	public GraphStatistics getStatistics() {
+		return statistics.getStatistics();
 	}
 
 	@Override
@@ -158,6 +466,9 @@ public class TDBStore implements JenaStore {
 		if (model != null) {
 			return model;
 		}
+		if (catalog.contains(ontologyURI)) {
+			return openModel(ontologyURI);
+		}
 		try {
 			begin(ReadWrite.READ);
 			model = dataset.getNamedModel(ontologyURI);
@@ -171,16 +482,91 @@ public class TDBStore implements JenaStore {
 		return model;
 	}
 
+	/**
+	 * Opens a model which is listed in the catalog but has not been accessed
+	 * yet. The existence of the model in the dataset is validated at this
+	 * point.
+	 * 
+	 * @param ontologyURI
+	 * @return
+	 */
+	private synchronized Model openModel(String ontologyURI) {
+		Model model = namedModels.get(ontologyURI);
+		if (model != null) {
+			return model;
+		}
+		try {
+			begin(ReadWrite.READ);
+			if (!dataset.containsNamedModel(ontologyURI)) {
+				logger.warn(
+						"Model: {} is in the catalog but not in the dataset, it is removed from the catalog.",
+						ontologyURI);
+				catalog.remove(ontologyURI);
+				return null;
+			}
+			model = namedModel(ontologyURI);
+		} finally {
+			end();
+		}
+		if (!catalog.get(ontologyURI).isIndexed()) {
+			index.indexStatements(model.listStatements());
+			catalog.put(ontologyURI, model.size(), true);
+		}
+		model.register(index);
+		registerModel(ontologyURI, model);
+		return model;
+	}
+
+	/**
+	 * Returns the named model of the dataset, behind a triple pattern cache
+	 * if the profile enables it.
+	 * 
+	 * @param ontologyURI
+	 * @return
+	 */
+	private Model namedModel(String ontologyURI) {
+		Model model = dataset.getNamedModel(ontologyURI);
+		if (profile.getPatternCacheSize() <= 0) {
+			return model;
+		}
+		return ModelFactory.createModelForGraph(new CachingGraph(model
+				.getGraph(), profile.getPatternCacheSize(),
+				patternCacheMetrics));
+	}
+
+	/**
+	 * @return the hit and eviction counters of the triple pattern caches of
+	 *         the models, see {@link TDBStoreProfile#setPatternCacheSize(int)}
+	 */
+	public PatternCacheMetrics getPatternCacheMetrics() {
+		return patternCacheMetrics;
+	}
+
+	/**
+	 * Puts the given model into the Map cache and registers the listeners
+	 * which keep the catalog and the persistence store up to date.
+	 * 
+	 * @param ontologyURI
+	 * @param model
+	 */
+	private void registerModel(String ontologyURI, Model model) {
+		namedModels.put(ontologyURI, model);
+		model.register(new CatalogListener(ontologyURI));
+		model.getGraph().getEventManager()
+				.register(new ChangeDispatcher(ontologyURI, changeListeners));
+		if (autoSync) {
+			model.register(modelUpdateListener);
+		}
+	}
+
 	@Override
 	public boolean hasModel(String ontologyURI) {
-		return namedModels.containsKey(ontologyURI);
+		return catalog.contains(ontologyURI);
 	}
 
 	@Override
 	public List<String> listModels() {
-		List<String> models = new ArrayList<String>();
-		models.addAll(namedModels.keySet());
-		return models;
+		return catalog.listNames();
 	}
 
 	@Override
@@ -196,6 +582,121 @@ public class TDBStore implements JenaStore {
 		} finally {
 			end();
 		}
+		catalog.remove(ontologyURI);
+		for (StoreChangeListener listener : changeListeners) {
+			listener.modelRemoved(ontologyURI);
+		}
+	}
+
+	@Override
+	public ModelPage listModels(String prefix, String cursor, int limit) {
+		return ModelPage.of(catalog.listNames(prefix, cursor, limit + 1),
+				limit);
+	}
+
+	/**
+	 * Removes the models from the dataset within one write section. Models
+	 * which have not been opened are not opened for the removal.
+	 */
+	@Override
+	public int removeModels(Collection<String> ontologyURIs) {
+		List<String> removed = new ArrayList<String>();
+		try {
+			begin(ReadWrite.WRITE);
+			for (String uri : ontologyURIs) {
+				StoreCatalog.Entry entry = catalog.get(uri);
+				if (entry == null) {
+					continue;
+				}
+				Model model = namedModels.remove(uri);
+				if (model == null) {
+					model = dataset.getNamedModel(uri);
+				}
+				model.unregister(index);
+				if (entry.isIndexed()) {
+					unindex(model);
+				}
+				dataset.removeNamedModel(uri);
+				catalog.remove(uri);
+				removed.add(uri);
+			}
+			commit();
+		} finally {
+			end();
+		}
+		for (String uri : removed) {
+			for (StoreChangeListener listener : changeListeners) {
+				listener.modelRemoved(uri);
+			}
+		}
+		logger.info("{} models have been removed from the TDBStore at {}",
+				removed.size(), storeDirectory);
+		return removed.size();
+	}
+
+	@Override
+	public void addChangeListener(StoreChangeListener listener) {
+		changeListeners.add(listener);
+	}
+
+	@Override
+	public void removeChangeListener(StoreChangeListener listener) {
+		changeListeners.remove(listener);
+	}
+
+	/**
+	 * @return the listeners which have been added through
+	 *         {@link #addChangeListener(StoreChangeListener)}, e.g. to move
+	 *         them to a reopened instance of this store
+	 */
+	public List<StoreChangeListener> getChangeListeners() {
+		List<StoreChangeListener> listeners = new ArrayList<StoreChangeListener>(
+				changeListeners);
+		listeners.remove(changeLog);
+		listeners.remove(inference);
+		listeners.remove(statistics);
+		listeners.remove(changeFeed);
+		return listeners;
+	}
+
+	/**
+	 * Blocks the updates of the dataset until {@link #resumeUpdates()} is
+	 * called, so that the calling thread can copy the dataset consistently
+	 * while the store keeps serving reads. Writers wait instead of
+	 * invalidating the iterators of the copy. The calling thread must not
+	 * update the store meanwhile.
+	 */
+	void suspendUpdates() {
+		datasetControl.suspendUpdates();
+	}
+
+	void resumeUpdates() {
+		datasetControl.resumeUpdates();
+	}
+
+	/**
+	 * Returns the lock which blocks the updates of the dataset while it is
+	 * held, as {@link #suspendUpdates()} does. Several threads may hold it
+	 * at once to read models in parallel. The holders must not update the
+	 * store.
+	 * 
+	 * @return
+	 */
+	public Lock getUpdateSuspensionLock() {
+		return datasetControl.getSuspensionLock();
+	}
+
+	/**
+	 * The sequence of the feed is persisted in the store directory.
+	 */
+	@Override
+	public synchronized ChangeFeed getChangeFeed() throws JenaStoreException {
+		if (changeFeed == null) {
+			changeFeed = new ChangeFeed(new File(storeDirectory,
+					FEED_SEQUENCE_FILE), ChangeFeed.DEFAULT_CAPACITY);
+			changeListeners.add(changeFeed);
+		}
+		return changeFeed;
 	}
 
 	@Override
@@ -215,14 +716,124 @@ public class TDBStore implements JenaStore {
 
 	@Override
 	public void sync() {
+		inference.refresh();
 		TDB.sync(dataset);
+		index.flushWriter();
+		refreshCatalog();
+		if (catalog.isModified()) {
+			writeCatalog();
+		}
+		writeStatistics();
+		if (changeLog != null) {
+			changeLog.sync();
+		}
 		logger.info("TDB dataset has been synchronized");
 	}
 
 	@Override
 	public void close() {
+		statisticsRefresher.shutdown();
+		try {
+			statisticsRefresher.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// The statistics are persisted complete for the next opening
+		statistics.refresh();
 		sync();
+		index.closeWriter();
 		dataset.close();
+		catalog.setClean(true);
+		writeCatalog();
+		if (changeLog != null) {
+			changeListeners.remove(changeLog);
+			changeLog.close();
+		}
+		if (changeFeed != null) {
+			changeListeners.remove(changeFeed);
+			changeFeed.close();
+		}
+	}
+
+	/**
+	 * Refreshes the triple counts of the models which have been modified
+	 * since the catalog was last written.
+	 */
+	private void refreshCatalog() {
+		for (String uri : catalog.listDirty()) {
+			Model model = namedModels.get(uri);
+			if (model != null) {
+				long size = model.size();
+				catalog.put(uri, size, true);
+				statistics.reconcile(uri, size);
+			}
+		}
+	}
+
+	/**
+	 * Rescans the models whose statistics could not be maintained in the
+	 * background thread of the store, unless a refresh is already pending.
+	 * The updates of the dataset are suspended during the scan of each
+	 * model, see {@link StatisticsCollector#scanLock(String)}, so that the
+	 * scan neither fails nor makes a writer fail; the refreshed statistics
+	 * are persisted by the next {@link #sync()}.
+	 */
+	private void refreshStatisticsInBackground() {
+		if (statisticsRefresher.isShutdown()
+				|| statistics.listStale().isEmpty()
+				|| !statisticsRefreshScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		statisticsRefresher.execute(new Runnable() {
+			@Override
+			public void run() {
+				statisticsRefreshScheduled.set(false);
+				for (String uri : statistics.listStale()) {
+					try {
+						statistics.refresh(uri);
+					} catch (RuntimeException e) {
+						logger.warn("Cannot compute the statistics of model {}",
+								uri, e);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Persists the statistics of the models and writes them as the TDB
+	 * optimizer statistics of the dataset, which order the triple patterns
+	 * of queries by their selectivity once the dataset is reopened. The
+	 * models whose statistics are stale are not scanned here but by
+	 * {@link #refreshStatisticsInBackground()}.
+	 */
+	private void writeStatistics() {
+		Map<Node, Integer> predicates = new HashMap<Node, Integer>();
+		long total = 0;
+		for (Map.Entry<Node, Long> entry : statistics.getPredicateCounts()
+				.entrySet()) {
+			predicates.put(entry.getKey(),
+					(int) Math.min(Integer.MAX_VALUE, entry.getValue()));
+			total += entry.getValue();
+		}
+		try {
+			statistics.write();
+			Stats.write(new File(storeDirectory, Names.optStats).getPath(),
+					new StatsCollector(total, predicates));
+		} catch (IOException e) {
+			logger.error("Cannot write the statistics of the TDBStore at {}",
+					storeDirectory, e);
+		}
+		refreshStatisticsInBackground();
+	}
+
+	private void writeCatalog() {
+		try {
+			catalog.write();
+		} catch (IOException e) {
+			logger.error("Cannot write the catalog of the TDBStore at {}",
+					storeDirectory, e);
+		}
 	}
 
 	@Override
@@ -266,18 +877,51 @@ public class TDBStore implements JenaStore {
 		// }
 	}
 
+	@Override
+	public DumpReport dump(File targetDirectory, DumpOptions options)
+			throws JenaStoreException {
+		return new StoreDumper(this, options) {
+			@Override
+			protected Lock modelLock(String ontologyURI) {
+				return getUpdateSuspensionLock();
+			}
+		}.dump(targetDirectory);
+	}
+
 	@Override
 	public Graph getGraph() {
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * Keeps the version of the catalog entry of a model up to date with the
+	 * modifications on that model.
+	 */
+	private class CatalogListener extends StatementListener {
+
+		private final String ontologyURI;
+
+		CatalogListener(String ontologyURI) {
+			this.ontologyURI = ontologyURI;
+		}
+
+		@Override
+		public void addedStatement(Statement s) {
+			catalog.touch(ontologyURI);
+		}
+
+		@Override
+		public void removedStatement(Statement s) {
+			catalog.touch(ontologyURI);
+		}
+	}
+
 	@Override
 	public void setAutoSync(boolean autoSync) {
-		List<String> modelNameList = this.listModels();
-		List<Model> modelList = new ArrayList<Model>();
-		for (String model : modelNameList) {
-			modelList.add(this.getModel(model));
-		}
+		// Models which are not opened yet get the listener once they are
+		// opened
+		this.autoSync = autoSync;
+		List<Model> modelList = new ArrayList<Model>(namedModels.values());
 		if (autoSync) {
 			logger.info("Auto sync activated");
 			for (Model m : modelList) {
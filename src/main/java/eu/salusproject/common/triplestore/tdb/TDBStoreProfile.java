@@ -0,0 +1,359 @@
+package eu.salusproject.common.triplestore.tdb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.tdb.base.block.BlockMgr;
+import com.hp.hpl.jena.tdb.base.block.BlockMgrFactory;
+import com.hp.hpl.jena.tdb.base.block.FileMode;
+import com.hp.hpl.jena.tdb.base.file.FileSet;
+import com.hp.hpl.jena.tdb.base.file.Location;
+import com.hp.hpl.jena.tdb.nodetable.NodeTable;
+import com.hp.hpl.jena.tdb.setup.BlockMgrBuilder;
+import com.hp.hpl.jena.tdb.setup.Builder;
+import com.hp.hpl.jena.tdb.setup.DatasetBuilderStd;
+import com.hp.hpl.jena.tdb.setup.NodeTableBuilder;
+import com.hp.hpl.jena.tdb.setup.SystemParams;
+import com.hp.hpl.jena.tdb.sys.DatasetControl;
+import com.hp.hpl.jena.tdb.sys.DatasetControlMRSW;
+import com.hp.hpl.jena.tdb.sys.Names;
+import com.hp.hpl.jena.tdb.sys.SystemTDB;
+
+import eu.salusproject.common.triplestore.JenaStoreException;
+
+/**
+ * Tuning profile of a {@link TDBStore}: the file access mode of its block
+ * files, the sizes of its node table and block caches, whether its
+ * modifications are recorded in a {@link ChangeLog} and the size of the
+ * triple pattern caches of its models. The profile is
+ * persisted in the store directory so that the store is reopened with the
+ * same settings.
+ */
+public class TDBStoreProfile {
+
+	public static final String PROFILE_FILE = "tdbstore.properties";
+
+	private static final String FILE_MODE = "fileMode";
+	private static final String NODE2NODEID_CACHE_SIZE = "node2NodeIdCacheSize";
+	private static final String NODEID2NODE_CACHE_SIZE = "nodeId2NodeCacheSize";
+	private static final String BLOCK_READ_CACHE_SIZE = "blockReadCacheSize";
+	private static final String BLOCK_WRITE_CACHE_SIZE = "blockWriteCacheSize";
+	private static final String CHANGE_LOG = "changeLog";
+	private static final String PATTERN_CACHE_SIZE = "patternCacheSize";
+
+	private FileMode fileMode;
+	private int node2NodeIdCacheSize;
+	private int nodeId2NodeCacheSize;
+	private int blockReadCacheSize;
+	private int blockWriteCacheSize;
+	private boolean changeLog;
+	private int patternCacheSize;
+
+	/**
+	 * Creates a profile initialized with the TDB system defaults.
+	 */
+	public TDBStoreProfile() {
+		this.fileMode = SystemTDB.fileMode();
+		this.node2NodeIdCacheSize = SystemTDB.Node2NodeIdCacheSize;
+		this.nodeId2NodeCacheSize = SystemTDB.NodeId2NodeCacheSize;
+		this.blockReadCacheSize = SystemTDB.BlockReadCacheSize;
+		this.blockWriteCacheSize = SystemTDB.BlockWriteCacheSize;
+	}
+
+	/**
+	 * Profile for small stores: direct file access with small caches, which
+	 * keeps the resident memory of the store low.
+	 *
+	 * @return
+	 */
+	public static TDBStoreProfile small() {
+		TDBStoreProfile profile = new TDBStoreProfile();
+		profile.setFileMode(FileMode.direct);
+		profile.setNode2NodeIdCacheSize(10000);
+		profile.setNodeId2NodeCacheSize(10000);
+		profile.setBlockReadCacheSize(100);
+		profile.setBlockWriteCacheSize(100);
+		return profile;
+	}
+
+	/**
+	 * Profile for large stores: memory-mapped block files with large node
+	 * caches. Block caches are not used in memory-mapped mode.
+	 *
+	 * @return
+	 */
+	public static TDBStoreProfile large() {
+		TDBStoreProfile profile = new TDBStoreProfile();
+		profile.setFileMode(FileMode.mapped);
+		profile.setNode2NodeIdCacheSize(500000);
+		profile.setNodeId2NodeCacheSize(1000000);
+		return profile;
+	}
+
+	public FileMode getFileMode() {
+		return fileMode;
+	}
+
+	public void setFileMode(FileMode fileMode) {
+		this.fileMode = fileMode;
+	}
+
+	public int getNode2NodeIdCacheSize() {
+		return node2NodeIdCacheSize;
+	}
+
+	public void setNode2NodeIdCacheSize(int node2NodeIdCacheSize) {
+		this.node2NodeIdCacheSize = node2NodeIdCacheSize;
+	}
+
+	public int getNodeId2NodeCacheSize() {
+		return nodeId2NodeCacheSize;
+	}
+
+	public void setNodeId2NodeCacheSize(int nodeId2NodeCacheSize) {
+		this.nodeId2NodeCacheSize = nodeId2NodeCacheSize;
+	}
+
+	public int getBlockReadCacheSize() {
+		return blockReadCacheSize;
+	}
+
+	public void setBlockReadCacheSize(int blockReadCacheSize) {
+		this.blockReadCacheSize = blockReadCacheSize;
+	}
+
+	public int getBlockWriteCacheSize() {
+		return blockWriteCacheSize;
+	}
+
+	public void setBlockWriteCacheSize(int blockWriteCacheSize) {
+		this.blockWriteCacheSize = blockWriteCacheSize;
+	}
+
+	public boolean isChangeLog() {
+		return changeLog;
+	}
+
+	/**
+	 * Enables the {@link ChangeLog} of the store, which is needed for
+	 * incremental backups.
+	 *
+	 * @param changeLog
+	 */
+	public void setChangeLog(boolean changeLog) {
+		this.changeLog = changeLog;
+	}
+
+	public int getPatternCacheSize() {
+		return patternCacheSize;
+	}
+
+	/**
+	 * Enables the triple pattern cache of the models of the store, which
+	 * keeps the results of up to the given number of recent find patterns
+	 * per model in memory. The cache is disabled with 0, which is the
+	 * default.
+	 *
+	 * @param patternCacheSize
+	 */
+	public void setPatternCacheSize(int patternCacheSize) {
+		this.patternCacheSize = patternCacheSize;
+	}
+
+	/**
+	 * Checks whether a profile has been persisted in the given store
+	 * directory.
+	 *
+	 * @param storeDirectory
+	 * @return
+	 */
+	public static boolean exists(String storeDirectory) {
+		return new File(storeDirectory, PROFILE_FILE).isFile();
+	}
+
+	/**
+	 * Reads the profile persisted in the given store directory. If there is
+	 * no persisted profile, a profile with the TDB system defaults is
+	 * returned.
+	 *
+	 * @param storeDirectory
+	 * @return
+	 * @throws JenaStoreException
+	 */
+	public static TDBStoreProfile load(String storeDirectory)
+			throws JenaStoreException {
+		TDBStoreProfile profile = new TDBStoreProfile();
+		File profileFile = new File(storeDirectory, PROFILE_FILE);
+		if (!profileFile.isFile()) {
+			return profile;
+		}
+		Properties props = new Properties();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(profileFile);
+			props.load(in);
+		} catch (IOException e) {
+			String msg = String.format("Cannot read the TDBStore profile: %s",
+					profileFile.getAbsolutePath());
+			throw new JenaStoreException(msg, e);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		profile.setFileMode(FileMode.valueOf(props.getProperty(FILE_MODE,
+				profile.getFileMode().name())));
+		profile.setNode2NodeIdCacheSize(intProperty(props,
+				NODE2NODEID_CACHE_SIZE, profile.getNode2NodeIdCacheSize()));
+		profile.setNodeId2NodeCacheSize(intProperty(props,
+				NODEID2NODE_CACHE_SIZE, profile.getNodeId2NodeCacheSize()));
+		profile.setBlockReadCacheSize(intProperty(props,
+				BLOCK_READ_CACHE_SIZE, profile.getBlockReadCacheSize()));
+		profile.setBlockWriteCacheSize(intProperty(props,
+				BLOCK_WRITE_CACHE_SIZE, profile.getBlockWriteCacheSize()));
+		profile.setChangeLog(Boolean.parseBoolean(props.getProperty(
+				CHANGE_LOG, String.valueOf(profile.isChangeLog())).trim()));
+		profile.setPatternCacheSize(intProperty(props, PATTERN_CACHE_SIZE,
+				profile.getPatternCacheSize()));
+		return profile;
+	}
+
+	/**
+	 * Persists this profile in the given store directory.
+	 *
+	 * @param storeDirectory
+	 * @throws JenaStoreException
+	 */
+	public void save(String storeDirectory) throws JenaStoreException {
+		Properties props = new Properties();
+		props.setProperty(FILE_MODE, fileMode.name());
+		props.setProperty(NODE2NODEID_CACHE_SIZE,
+				String.valueOf(node2NodeIdCacheSize));
+		props.setProperty(NODEID2NODE_CACHE_SIZE,
+				String.valueOf(nodeId2NodeCacheSize));
+		props.setProperty(BLOCK_READ_CACHE_SIZE,
+				String.valueOf(blockReadCacheSize));
+		props.setProperty(BLOCK_WRITE_CACHE_SIZE,
+				String.valueOf(blockWriteCacheSize));
+		props.setProperty(CHANGE_LOG, String.valueOf(changeLog));
+		props.setProperty(PATTERN_CACHE_SIZE, String.valueOf(patternCacheSize));
+
+		File profileFile = new File(storeDirectory, PROFILE_FILE);
+		OutputStream out = null;
+		try {
+			profileFile.getParentFile().mkdirs();
+			out = new FileOutputStream(profileFile);
+			props.store(out, "TDBStore tuning profile");
+		} catch (IOException e) {
+			String msg = String.format(
+					"Cannot write the TDBStore profile: %s",
+					profileFile.getAbsolutePath());
+			throw new JenaStoreException(msg, e);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	/**
+	 * Builds the TDB dataset at the given directory with the settings of this
+	 * profile.
+	 *
+	 * @param storeDirectory
+	 * @return
+	 */
+	Dataset createDataset(String storeDirectory) {
+		return createDataset(storeDirectory, new DatasetControlMRSW());
+	}
+
+	/**
+	 * Builds the TDB dataset at the given directory with the settings of this
+	 * profile and the given concurrency policy.
+	 *
+	 * @param storeDirectory
+	 * @param control
+	 * @return
+	 */
+	Dataset createDataset(String storeDirectory, final DatasetControl control) {
+		BlockMgrBuilder blockMgrBuilder = new ProfileBlockMgrBuilder();
+		NodeTableBuilder nodeTableBuilder = new ProfileNodeTableBuilder(
+				new Builder.NodeTableBuilderStd(new Builder.IndexBuilderStd(
+						blockMgrBuilder, blockMgrBuilder),
+						new Builder.ObjectFileBuilderStd()));
+		DatasetBuilderStd builder = new DatasetBuilderStd(blockMgrBuilder,
+				nodeTableBuilder) {
+			@Override
+			protected DatasetControl createConcurrencyPolicy() {
+				return control;
+			}
+		};
+		return builder.build(new Location(storeDirectory),
+				SystemParams.getStdSystemParams()).toDataset();
+	}
+
+	@Override
+	public String toString() {
+		return String
+				.format("fileMode=%s, node2NodeIdCacheSize=%d, nodeId2NodeCacheSize=%d, blockReadCacheSize=%d, blockWriteCacheSize=%d, changeLog=%s, patternCacheSize=%d",
+						fileMode, node2NodeIdCacheSize, nodeId2NodeCacheSize,
+						blockReadCacheSize, blockWriteCacheSize, changeLog,
+						patternCacheSize);
+	}
+
+	private static int intProperty(Properties props, String key,
+			int defaultValue) {
+		String value = props.getProperty(key);
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
+	}
+
+	/**
+	 * Creates the block managers of the indexes and the node table with the
+	 * file mode and the block cache sizes of this profile, instead of the
+	 * global TDB settings.
+	 */
+	private class ProfileBlockMgrBuilder implements BlockMgrBuilder {
+
+		@Override
+		public BlockMgr buildBlockMgr(FileSet fileSet, String ext,
+				int blockSize) {
+			String filename = fileSet.filename(ext);
+			if (fileMode == FileMode.mapped) {
+				return BlockMgrFactory.createMMapFile(filename, blockSize);
+			}
+			return BlockMgrFactory.createStdFile(filename, blockSize,
+					blockReadCacheSize, blockWriteCacheSize);
+		}
+	}
+
+	/**
+	 * Overrides the cache sizes of the main node table. The node table of the
+	 * prefixes keeps its default sizes.
+	 */
+	private class ProfileNodeTableBuilder implements NodeTableBuilder {
+
+		private final NodeTableBuilder delegate;
+
+		ProfileNodeTableBuilder(NodeTableBuilder delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public NodeTable buildNodeTable(FileSet fsIndex, FileSet fsObjectFile,
+				int sizeNode2NodeIdCache, int sizeNodeId2NodeCache,
+				int sizeNodeMissCache) {
+			if (Names.indexNode2Id.equals(fsIndex.getBasename())) {
+				sizeNode2NodeIdCache = node2NodeIdCacheSize;
+				sizeNodeId2NodeCache = nodeId2NodeCacheSize;
+			}
+			return delegate.buildNodeTable(fsIndex, fsObjectFile,
+					sizeNode2NodeIdCache, sizeNodeId2NodeCache,
+					sizeNodeMissCache);
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+package eu.salusproject.common.triplestore.trace;
+
+/**
+ * Measurements of a phase of the startup of a store, recorded by a
+ * {@link StartupTrace}. Counters which cannot be measured on the running
+ * platform are -1.
+ */
+public class StartupPhase {
+
+	private final String store;
+	private final String phase;
+	private final long startMicros;
+	private final long wallMicros;
+	private final long cpuMicros;
+	private final long bytesRead;
+	private final long storageBytesRead;
+	private final long triplesIndexed;
+	private final long allocatedBytes;
+
+	public StartupPhase(String store, String phase, long startMicros,
+			long wallMicros, long cpuMicros, long bytesRead,
+			long storageBytesRead, long triplesIndexed, long allocatedBytes) {
+		this.store = store;
+		this.phase = phase;
+		this.startMicros = startMicros;
+		this.wallMicros = wallMicros;
+		this.cpuMicros = cpuMicros;
+		this.bytesRead = bytesRead;
+		this.storageBytesRead = storageBytesRead;
+		this.triplesIndexed = triplesIndexed;
+		this.allocatedBytes = allocatedBytes;
+	}
+
+	/**
+	 * @return the name of the store, or the directory for the phases which
+	 *         prepare the directories of the stores
+	 */
+	public String getStore() {
+		return store;
+	}
+
+	public String getPhase() {
+		return phase;
+	}
+
+	/**
+	 * @return the start of the phase relative to the start of the trace
+	 */
+	public long getStartMicros() {
+		return startMicros;
+	}
+
+	public long getWallMicros() {
+		return wallMicros;
+	}
+
+	/**
+	 * @return the CPU time of the thread which ran the phase
+	 */
+	public long getCpuMicros() {
+		return cpuMicros;
+	}
+
+	/**
+	 * @return the bytes read by the process through read system calls, from
+	 *         the page cache or the storage, during the phase
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * @return the bytes fetched from the storage by the process during the
+	 *         phase, including the pages of memory-mapped files
+	 */
+	public long getStorageBytesRead() {
+		return storageBytesRead;
+	}
+
+	public long getTriplesIndexed() {
+		return triplesIndexed;
+	}
+
+	/**
+	 * @return the bytes allocated on the heap by the thread which ran the
+	 *         phase
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	@Override
+	public String toString() {
+		return String
+				.format("%s %s: %d us wall, %d us cpu, %d bytes read, %d bytes from storage, %d triples indexed, %d bytes allocated",
+						store, phase, wallMicros, cpuMicros, bytesRead,
+						storageBytesRead, triplesIndexed, allocatedBytes);
+	}
+
+}
@@ -0,0 +1,352 @@
+package eu.salusproject.common.triplestore.trace;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.jena.atlas.json.JSON;
+import org.apache.jena.atlas.json.JsonArray;
+import org.apache.jena.atlas.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the wall time, CPU time, bytes read, triples indexed and heap
+ * allocation of the phases of the startup of the stores, such as the
+ * creation of the directories, the opening of a TDB dataset, the rebuilding
+ * of the LARQ index or the connection to a Virtuoso server. The trace is
+ * written as a JSON report and published over JMX, so that the startups of
+ * different releases can be compared.
+ * <p>
+ * A phase must be ended by the thread which has begun it, as the CPU time
+ * and the allocation are those of the thread. Bytes read are taken from
+ * <code>/proc/self/io</code> and are those of the whole process, hence the
+ * phases only account for them precisely as long as no other thread reads.
+ * A phase may enclose other phases, e.g. the opening of a store encloses the
+ * opening of its dataset.
+ */
+public class StartupTrace implements StartupTraceMXBean {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(StartupTrace.class);
+
+	public static final String OBJECT_NAME = "eu.salusproject.triplestore:type=StartupTrace";
+
+	public static final int FORMAT_VERSION = 1;
+
+	private static final File PROC_IO = new File("/proc/self/io");
+
+	/**
+	 * Trace which records nothing, for stores which are opened outside of a
+	 * traced startup.
+	 */
+	public static final StartupTrace DISABLED = new StartupTrace(false);
+
+	private final long startTime;
+	private final Sample start;
+	private volatile Sample end;
+	private final List<StartupPhase> phases = new CopyOnWriteArrayList<StartupPhase>();
+	private ObjectName objectName;
+
+	public StartupTrace() {
+		this(true);
+	}
+
+	private StartupTrace(boolean enabled) {
+		this.startTime = System.currentTimeMillis();
+		this.start = enabled ? Sample.take() : null;
+		this.end = enabled ? null : new Sample();
+	}
+
+	/**
+	 * Begins a phase on the current thread. Once the trace has been
+	 * finished, the returned phase records nothing.
+	 * 
+	 * @param store
+	 * @param phase
+	 * @return
+	 */
+	public Phase begin(String store, String phase) {
+		return new Phase(isFinished() ? null : this, store, phase);
+	}
+
+	/**
+	 * Ends the trace, the phases begun afterwards are not recorded.
+	 */
+	public void finish() {
+		if (isFinished()) {
+			return;
+		}
+		end = Sample.take();
+		logger.info(
+				"Stores have been started in {} ms, {} ms cpu, {} bytes read, {} triples indexed",
+				new Object[] { getWallMicros() / 1000, getCpuMicros() / 1000,
+						getBytesRead(), getTriplesIndexed() });
+	}
+
+	public boolean isFinished() {
+		return end != null;
+	}
+
+	@Override
+	public long getWallMicros() {
+		return start == null ? 0 : (current().nanos - start.nanos) / 1000;
+	}
+
+	@Override
+	public long getCpuMicros() {
+		return start == null ? 0 : micros(delta(start.cpuNanos,
+				current().cpuNanos));
+	}
+
+	@Override
+	public long getBytesRead() {
+		return start == null ? 0 : delta(start.rchar, current().rchar);
+	}
+
+	@Override
+	public long getStorageBytesRead() {
+		return start == null ? 0 : delta(start.readBytes,
+				current().readBytes);
+	}
+
+	@Override
+	public long getTriplesIndexed() {
+		long triples = 0;
+		for (StartupPhase phase : phases) {
+			triples += phase.getTriplesIndexed();
+		}
+		return triples;
+	}
+
+	@Override
+	public long getAllocatedBytes() {
+		return start == null ? 0 : delta(start.allocatedBytes,
+				current().allocatedBytes);
+	}
+
+	@Override
+	public List<StartupPhase> getPhases() {
+		return new ArrayList<StartupPhase>(phases);
+	}
+
+	/**
+	 * @return the trace as a JSON object with the totals and the list of
+	 *         phases in the order they have ended
+	 */
+	public JsonObject toJson() {
+		JsonObject json = new JsonObject();
+		json.put("formatVersion", FORMAT_VERSION);
+		String release = StartupTrace.class.getPackage()
+				.getImplementationVersion();
+		if (release != null) {
+			json.put("release", release);
+		}
+		json.put("java", System.getProperty("java.version"));
+		json.put("startTime", startTime);
+		json.put("finished", isFinished());
+		json.put("wallMicros", getWallMicros());
+		json.put("cpuMicros", getCpuMicros());
+		json.put("bytesRead", getBytesRead());
+		json.put("storageBytesRead", getStorageBytesRead());
+		json.put("triplesIndexed", getTriplesIndexed());
+		json.put("allocatedBytes", getAllocatedBytes());
+		JsonArray array = new JsonArray();
+		for (StartupPhase phase : phases) {
+			JsonObject p = new JsonObject();
+			p.put("store", phase.getStore());
+			p.put("phase", phase.getPhase());
+			p.put("startMicros", phase.getStartMicros());
+			p.put("wallMicros", phase.getWallMicros());
+			p.put("cpuMicros", phase.getCpuMicros());
+			p.put("bytesRead", phase.getBytesRead());
+			p.put("storageBytesRead", phase.getStorageBytesRead());
+			p.put("triplesIndexed", phase.getTriplesIndexed());
+			p.put("allocatedBytes", phase.getAllocatedBytes());
+			array.add(p);
+		}
+		json.put("phases", array);
+		return json;
+	}
+
+	/**
+	 * Writes the JSON report of the trace to the given file.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writeReport(File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			JSON.write(out, toJson());
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Publishes the metrics of the trace on the platform MBean server.
+	 */
+	public synchronized void register() {
+		if (objectName != null) {
+			return;
+		}
+		try {
+			ObjectName objectName = new ObjectName(OBJECT_NAME);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(this, objectName);
+			this.objectName = objectName;
+		} catch (JMException e) {
+			logger.warn("Cannot register the metrics of the startup trace", e);
+		}
+	}
+
+	/**
+	 * Removes the metrics of the trace from the platform MBean server.
+	 */
+	public synchronized void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					objectName);
+		} catch (JMException e) {
+			logger.warn("Cannot unregister the metrics of the startup trace",
+					e);
+		}
+		objectName = null;
+	}
+
+	private Sample current() {
+		Sample s = end;
+		return s == null ? Sample.take() : s;
+	}
+
+	private static long delta(long from, long to) {
+		return from < 0 || to < 0 ? -1 : to - from;
+	}
+
+	private static long micros(long nanos) {
+		return nanos < 0 ? -1 : nanos / 1000;
+	}
+
+	/**
+	 * Phase of a {@link StartupTrace}, begun by
+	 * {@link StartupTrace#begin(String, String)}.
+	 */
+	public static class Phase {
+
+		private final StartupTrace trace;
+		private final String store;
+		private final String phase;
+		private final Sample start;
+		private long triplesIndexed;
+
+		private Phase(StartupTrace trace, String store, String phase) {
+			this.trace = trace;
+			this.store = store;
+			this.phase = phase;
+			this.start = trace == null ? null : Sample.take();
+		}
+
+		public void addTriplesIndexed(long count) {
+			triplesIndexed += count;
+		}
+
+		/**
+		 * Ends the phase and adds it to the trace.
+		 * 
+		 * @return the measurements of the phase, or <code>null</code> if it
+		 *         is not recorded
+		 */
+		public StartupPhase end() {
+			if (trace == null) {
+				return null;
+			}
+			Sample end = Sample.take();
+			StartupPhase p = new StartupPhase(store, phase,
+					(start.nanos - trace.start.nanos) / 1000,
+					(end.nanos - start.nanos) / 1000, micros(delta(
+							start.cpuNanos, end.cpuNanos)), delta(start.rchar,
+							end.rchar), delta(start.readBytes, end.readBytes),
+					triplesIndexed, delta(start.allocatedBytes,
+							end.allocatedBytes));
+			trace.phases.add(p);
+			logger.debug("Startup phase {}", p);
+			return p;
+		}
+	}
+
+	/**
+	 * Counters of the current thread and of the process at a point in time,
+	 * -1 if they are not available.
+	 */
+	private static class Sample {
+
+		long nanos;
+		long cpuNanos = -1;
+		long allocatedBytes = -1;
+		long rchar = -1;
+		long readBytes = -1;
+
+		static Sample take() {
+			Sample s = new Sample();
+			s.nanos = System.nanoTime();
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			if (threads.isCurrentThreadCpuTimeSupported()) {
+				s.cpuNanos = threads.getCurrentThreadCpuTime();
+			}
+			if (threads instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+				if (sunThreads.isThreadAllocatedMemorySupported()
+						&& sunThreads.isThreadAllocatedMemoryEnabled()) {
+					s.allocatedBytes = sunThreads.getThreadAllocatedBytes(Thread
+							.currentThread().getId());
+				}
+			}
+			if (PROC_IO.canRead()) {
+				readProcIO(s);
+			}
+			return s;
+		}
+
+		private static void readProcIO(Sample s) {
+			BufferedReader reader = null;
+			try {
+				reader = new BufferedReader(new FileReader(PROC_IO));
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith("rchar:")) {
+						s.rchar = Long.parseLong(line.substring(6).trim());
+					} else if (line.startsWith("read_bytes:")) {
+						s.readBytes = Long.parseLong(line.substring(11).trim());
+					}
+				}
+			} catch (IOException e) {
+				logger.debug("Cannot read {}", PROC_IO, e);
+			} catch (NumberFormatException e) {
+				logger.debug("Cannot parse {}", PROC_IO, e);
+			} finally {
+				IOUtils.closeQuietly(reader);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,29 @@
+package eu.salusproject.common.triplestore.trace;
+
+import java.util.List;
+
+/**
+ * Metrics of the startup of the stores, published over JMX by
+ * {@link StartupTrace#register()}.
+ */
+public interface StartupTraceMXBean {
+
+	/**
+	 * @return the wall time from the start of the trace until it has been
+	 *         finished, or until now
+	 */
+	public long getWallMicros();
+
+	public long getCpuMicros();
+
+	public long getBytesRead();
+
+	public long getStorageBytesRead();
+
+	public long getTriplesIndexed();
+
+	public long getAllocatedBytes();
+
+	public List<StartupPhase> getPhases();
+
+}
@@ -0,0 +1,255 @@
+package eu.salusproject.common.triplestore.virtuoso;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import virtuoso.jena.driver.VirtDataSource;
+
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.shared.JenaException;
+
+import eu.salusproject.common.triplestore.JenaStoreException;
+import eu.salusproject.common.triplestore.StoreChangeListener;
+import eu.salusproject.common.triplestore.inference.InferenceMaintainer;
+
+/**
+ * Table of the graph names on the Virtuoso server, keyed by the names, so
+ * that the graphs can be paged in ascending order with a range scan of its
+ * primary key. Neither the quads, whose graphs are IRI ids, nor the IRI
+ * table, whose names are stored with compressed prefixes, can be scanned in
+ * the order of the names.
+ * <p>
+ * The table is filled with the graphs known to the server when it is
+ * created, and the graphs are registered as models are added and written
+ * through the {@link VirtuosoStore}. A name stays in the table if its graph
+ * is emptied by another client, hence only the names of graphs which have
+ * quads are listed.
+ */
+class GraphCatalog implements StoreChangeListener {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(GraphCatalog.class);
+
+	static final String TABLE = "DB.DBA.TRIPLESTORE_GRAPHS";
+
+	private static final String CREATE = "CREATE TABLE " + TABLE
+			+ " (GRAPH_IRI VARCHAR NOT NULL PRIMARY KEY)";
+	private static final String DROP = "DROP TABLE " + TABLE;
+	private static final String FILL = "INSERT SOFT "
+			+ TABLE
+			+ " (GRAPH_IRI) SELECT GRAPH_IRI FROM DB.DBA.SPARQL_SELECT_KNOWN_GRAPHS_T WHERE return_iris = 1 AND lim = 2147483647";
+	private static final String REGISTER = "INSERT SOFT " + TABLE
+			+ " (GRAPH_IRI) VALUES (?)";
+	private static final String UNREGISTER = "DELETE FROM " + TABLE
+			+ " WHERE GRAPH_IRI = ?";
+	private static final String LIST = "SELECT TOP %d GRAPH_IRI FROM "
+			+ TABLE
+			+ " WHERE GRAPH_IRI > ? AND GRAPH_IRI >= ?%s AND EXISTS (SELECT 1 FROM DB.DBA.RDF_QUAD WHERE G = iri_to_id(GRAPH_IRI, 0)) ORDER BY GRAPH_IRI";
+
+	private final VirtDataSource dataSource;
+	private final String serverURL;
+	// Names registered by this store, which need no further round trip
+	private final Set<String> registered = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Opens the catalog of the server, and creates and fills it if it does
+	 * not exist yet.
+	 *
+	 * @param dataSource
+	 * @param serverURL
+	 * @throws JenaStoreException
+	 */
+	GraphCatalog(VirtDataSource dataSource, String serverURL)
+			throws JenaStoreException {
+		this.dataSource = dataSource;
+		this.serverURL = serverURL;
+		try {
+			Connection connection = dataSource.getConnection();
+			ResultSet tables = connection.getMetaData().getTables("DB", "DBA",
+					"TRIPLESTORE_GRAPHS", null);
+			boolean exists = tables.next();
+			tables.close();
+			if (!exists) {
+				execute(CREATE);
+				fill();
+				logger.info("Graph catalog has been created on {}", serverURL);
+			}
+		} catch (SQLException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot open the graph catalog on %s", serverURL), e);
+		} catch (JenaException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot open the graph catalog on %s", serverURL), e);
+		}
+	}
+
+	/**
+	 * Registers the graphs known to the server, including those written by
+	 * other clients, which are only listed once they are registered. This
+	 * enumerates all graphs of the server.
+	 */
+	void fill() {
+		try {
+			execute(FILL);
+		} catch (SQLException e) {
+			throw new JenaException("Cannot fill the graph catalog on "
+					+ serverURL, e);
+		}
+	}
+
+	/**
+	 * Drops the catalog from the server, once all its graphs have been
+	 * removed.
+	 */
+	void drop() {
+		registered.clear();
+		try {
+			execute(DROP);
+		} catch (SQLException e) {
+			throw new JenaException("Cannot drop the graph catalog on "
+					+ serverURL, e);
+		}
+	}
+
+	/**
+	 * Lists the names of the graphs which have quads in ascending order,
+	 * starting at the greater of the cursor and the prefix. The names after
+	 * the prefix are only read up to the first one which does not start with
+	 * it, so a page costs a range scan of at most <code>limit</code> names.
+	 *
+	 * @param prefix
+	 * @param after
+	 * @param limit
+	 * @param modelsOnly
+	 *            whether the companion graphs of the inference are skipped
+	 * @return
+	 */
+	List<String> list(String prefix, String after, int limit,
+			boolean modelsOnly) {
+		String query = String.format(LIST, limit,
+				modelsOnly ? " AND NOT starts_with(GRAPH_IRI, ?)" : "");
+		List<String> names = new ArrayList<String>();
+		PreparedStatement statement = null;
+		try {
+			statement = dataSource.getConnection().prepareStatement(query);
+			statement.setString(1, after == null ? "" : after);
+			statement.setString(2, prefix == null ? "" : prefix);
+			if (modelsOnly) {
+				statement.setString(3,
+						InferenceMaintainer.INFERRED_GRAPH_PREFIX);
+			}
+			ResultSet results = statement.executeQuery();
+			while (results.next()) {
+				String name = results.getString(1);
+				if (prefix != null && !name.startsWith(prefix)) {
+					break;
+				}
+				names.add(name);
+			}
+			results.close();
+		} catch (SQLException e) {
+			throw new JenaException("Cannot list the graphs of " + serverURL,
+					e);
+		} finally {
+			closeQuietly(statement);
+		}
+		return names;
+	}
+
+	void register(String graph) {
+		if (registered.contains(graph)) {
+			return;
+		}
+		PreparedStatement statement = null;
+		try {
+			statement = dataSource.getConnection().prepareStatement(REGISTER);
+			statement.setString(1, graph);
+			statement.executeUpdate();
+		} catch (SQLException e) {
+			throw new JenaException(String.format(
+					"Cannot register the graph %s on %s", graph, serverURL), e);
+		} finally {
+			closeQuietly(statement);
+		}
+		registered.add(graph);
+	}
+
+	/**
+	 * Unregisters the graphs in a single JDBC batch.
+	 *
+	 * @param graphs
+	 */
+	void unregister(Collection<String> graphs) {
+		registered.removeAll(graphs);
+		PreparedStatement statement = null;
+		try {
+			statement = dataSource.getConnection().prepareStatement(UNREGISTER);
+			for (String graph : graphs) {
+				statement.setString(1, graph);
+				statement.addBatch();
+			}
+			statement.executeBatch();
+		} catch (SQLException e) {
+			throw new JenaException("Cannot unregister the graphs on "
+					+ serverURL, e);
+		} finally {
+			closeQuietly(statement);
+		}
+	}
+
+	private void execute(String sql) throws SQLException {
+		Statement statement = dataSource.getConnection().createStatement();
+		try {
+			statement.execute(sql);
+		} finally {
+			closeQuietly(statement);
+		}
+	}
+
+	static void closeQuietly(Statement statement) {
+		if (statement != null) {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				logger.warn("Cannot close the statement", e);
+			}
+		}
+	}
+
+	@Override
+	public void modelAdded(String ontologyURI, Model model) {
+		register(ontologyURI);
+	}
+
+	@Override
+	public void modelRemoved(String ontologyURI) {
+	}
+
+	@Override
+	public void triplesAdded(String ontologyURI, List<Triple> triples) {
+		register(ontologyURI);
+	}
+
+	@Override
+	public void triplesRemoved(String ontologyURI, List<Triple> triples) {
+	}
+
+	@Override
+	public void patternRemoved(String ontologyURI, Triple pattern) {
+	}
+
+}
@@ -5,9 +5,16 @@ import static com.hp.hpl.jena.ontology.OntModelSpec.OWL_DL_MEM;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
@@ -20,10 +27,25 @@ import com.hp.hpl.jena.ontology.OntModel;
 import com.hp.hpl.jena.query.ReadWrite;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.shared.JenaException;
 import com.hp.hpl.jena.util.FileManager;
 
+import eu.salusproject.common.triplestore.ChangeDispatcher;
 import eu.salusproject.common.triplestore.JenaStore;
 import eu.salusproject.common.triplestore.JenaStoreException;
+import eu.salusproject.common.triplestore.ModelPage;
+import eu.salusproject.common.triplestore.StoreChangeListener;
+import eu.salusproject.common.triplestore.feed.ChangeFeed;
+import eu.salusproject.common.triplestore.inference.InferenceConfig;
+import eu.salusproject.common.triplestore.inference.InferenceMaintainer;
+import eu.salusproject.common.triplestore.io.BinaryRDF;
+import eu.salusproject.common.triplestore.io.DumpOptions;
+import eu.salusproject.common.triplestore.io.DumpReport;
+import eu.salusproject.common.triplestore.io.ParallelNTriplesParser;
+import eu.salusproject.common.triplestore.io.StoreDumper;
+import eu.salusproject.common.triplestore.stats.GraphStatistics;
+import eu.salusproject.common.triplestore.stats.StatisticsCollector;
+import eu.salusproject.common.triplestore.trace.StartupTrace;
 
 public class VirtuosoStore implements JenaStore {
 
@@ -34,13 +56,43 @@ public class VirtuosoStore implements JenaStore {
 	private File storeFile;
 
 	public static final String SEPARATOR = "#";
+	public static final String FEED_SEQUENCE_SUFFIX = ".feed";
+	public static final String INFERENCE_SUFFIX = ".inference";
+
+	private static final int DELETE_BATCH_SIZE = 500;
+	private static final String HAS_QUADS = "SELECT TOP 1 1 FROM DB.DBA.RDF_QUAD WHERE G = iri_to_id(?, 0)";
+	private static final String CLEAR_GRAPH = "sparql clear graph iri(??)";
 
 	private final String serverURL;
 	private final String username;
 	private final String password;
 
+	private List<StoreChangeListener> changeListeners = new CopyOnWriteArrayList<StoreChangeListener>();
+	private ChangeFeed changeFeed;
+	private final GraphCatalog catalog;
+	private InferenceMaintainer inference;
+	private StatisticsCollector statistics;
+
 	public VirtuosoStore(String storeFilePath, String serverURL,
 			String username, String password) throws JenaStoreException {
+		this(storeFilePath, serverURL, username, password,
+				StartupTrace.DISABLED);
+	}
+
+	/**
+	 * Connects the {@link VirtuosoStore} and records the phases of the
+	 * connection in the given {@link StartupTrace}.
+	 * 
+	 * @param storeFilePath
+	 * @param serverURL
+	 * @param username
+	 * @param password
+	 * @param trace
+	 * @throws JenaStoreException
+	 */
+	public VirtuosoStore(String storeFilePath, String serverURL,
+			String username, String password, StartupTrace trace)
+			throws JenaStoreException {
 		this.storeFile = new File(storeFilePath);
 		StringBuilder sb = new StringBuilder();
 		String virtData = sb.append(storeFile.getName()).append(SEPARATOR)
@@ -59,10 +111,28 @@ public class VirtuosoStore implements JenaStore {
 		this.username = username;
 		this.password = password;
 
+		StartupTrace.Phase phase = trace.begin(storeFilePath, "connect");
 		this.dataSource = new VirtDataSource(this.serverURL, this.username,
 				this.password);
+		phase.end();
 		logger.info("VirtDataSource has been successfully connected to {}",
 				serverURL);
+		phase = trace.begin(storeFilePath, "catalog");
+		this.catalog = new GraphCatalog(dataSource, serverURL);
+		changeListeners.add(catalog);
+		phase.end();
+		phase = trace.begin(storeFilePath, "inference");
+		this.inference = new InferenceMaintainer(this, dataSource, new File(
+				storeFilePath + INFERENCE_SUFFIX));
+		changeListeners.add(inference);
+		phase.end();
+		// Modifications made by other clients of the server are not seen,
+		// hence the statistics are computed afresh for each session
+		phase = trace.begin(storeFilePath, "statistics");
+		this.statistics = new StatisticsCollector(this, dataSource, null,
+				false);
+		changeListeners.add(statistics);
+		phase.end();
 	}
 
 	@Override
@@ -75,9 +145,8 @@ public class VirtuosoStore implements JenaStore {
 
 		OntModel ontModel = ModelFactory.createOntologyModel(OWL_DL_MEM);
 		Model model = addModel(ontologyURI, ontModel);
-		ontModel = ModelFactory.createOntologyModel(OWL_DL_MEM, model);
 		logger.info("Empty OntModel has been created: {}", ontologyURI);
-		return ontModel;
+		return inference.getOntModel(ontologyURI, model);
 	}
 
 	@Override
@@ -93,6 +162,12 @@ public class VirtuosoStore implements JenaStore {
 			logger.info("The model: {} already exists.", ontologyURI);
 			return getOntModel(ontologyURI);
 		}
+		if (BinaryRDF.isFormat(format)
+				|| ParallelNTriplesParser.isSupported(format)
+				&& canParseInParallel(ontologyFilePath)) {
+			return createOntModelFromFile(ontologyURI, ontologyFilePath,
+					format);
+		}
 		InputStream inputStream = FileManager.get().open(ontologyFilePath);
 		if (inputStream == null) {
 			throw new IllegalArgumentException(String.format(
@@ -107,11 +182,50 @@ public class VirtuosoStore implements JenaStore {
 			throw new JenaStoreException("Cannot close the inputstream", e);
 		}
 		Model model = addModel(ontologyURI, ontModel);
-		ontModel = ModelFactory.createOntologyModel(OWL_DL_MEM, model);
 		logger.info(
 				"Newly created OntModel has been populated with the ontology at {}",
 				ontologyURI, ontologyFilePath);
-		return ontModel;
+		return inference.getOntModel(ontologyURI, model);
+	}
+
+	/**
+	 * Reads a binary RDF file, or parses a local N-Triples or N-Quads file
+	 * on all processors, into a new model.
+	 */
+	private OntModel createOntModelFromFile(String ontologyURI,
+			String ontologyFilePath, String format) throws JenaStoreException {
+		File file = new File(ontologyFilePath);
+		if (!file.isFile()) {
+			throw new IllegalArgumentException(String.format(
+					"File: %s not found", ontologyFilePath));
+		}
+		OntModel ontModel = ModelFactory.createOntologyModel(OWL_DL_MEM);
+		try {
+			if (BinaryRDF.isFormat(format)) {
+				BinaryRDF.read(ontModel.getBaseModel(), file);
+			} else {
+				new ParallelNTriplesParser().parse(file, ontModel
+						.getBaseModel().getGraph());
+			}
+		} catch (IOException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot read the %s file: %s", format, ontologyFilePath), e);
+		}
+		Model model = addModel(ontologyURI, ontModel);
+		logger.info(
+				"Newly created OntModel {} has been populated with the {} file at {}",
+				new Object[] { ontologyURI, format, ontologyFilePath });
+		return inference.getOntModel(ontologyURI, model);
+	}
+
+	private static boolean canParseInParallel(String ontologyFilePath)
+			throws JenaStoreException {
+		try {
+			return ParallelNTriplesParser.canParse(new File(ontologyFilePath));
+		} catch (IOException e) {
+			throw new JenaStoreException(String.format(
+					"Cannot read the file: %s", ontologyFilePath), e);
+		}
 	}
 
 	@Override
@@ -119,19 +233,66 @@ public class VirtuosoStore implements JenaStore {
 		dataSource.addNamedModel(ontologyURI, model);
 		Model retModel = dataSource.getNamedModel(ontologyURI);
 		retModel.setNsPrefixes(model.getNsPrefixMap());
+		observe(ontologyURI, retModel);
+		for (StoreChangeListener listener : changeListeners) {
+			listener.modelAdded(ontologyURI, retModel);
+		}
 		return retModel;
 	}
 
 	@Override
 	public OntModel getOntModel(String ontologyURI) {
 		Model m = getModel(ontologyURI);
-		OntModel ontModel = ModelFactory.createOntologyModel(OWL_DL_MEM, m);
-		return ontModel;
+		return inference.getOntModel(ontologyURI, m);
+	}
+
+	@Override
+	public void setInferenceConfig(String ontologyURI, InferenceConfig config)
+			throws JenaStoreException {
+		inference.setConfig(ontologyURI, config);
+	}
+
+	@Override
+	public InferenceConfig getInferenceConfig(String ontologyURI) {
+		return inference.getConfig(ontologyURI);
+	}
+
+	/**
+	 * The entailments are kept in a companion graph on the Virtuoso server.
+	 */
+	@Override
+	public Model getInferredModel(String ontologyURI) {
+		return inference.getInferredModel(ontologyURI);
+	}
+
+	@Override
+	public GraphStatistics getStatistics(String ontologyURI) {
+		return statistics.getStatistics(ontologyURI);
+	}
+
+	@Override
+	public GraphStatistics getStatistics() {
+		return statistics.getStatistics();
 	}
 
 	@Override
 	public Model getModel(String ontologyURI) {
-		return dataSource.getNamedModel(ontologyURI);
+		Model model = dataSource.getNamedModel(ontologyURI);
+		observe(ontologyURI, model);
+		return model;
+	}
+
+	/**
+	 * Each call to VirtDataSource#getNamedModel creates a new model, so the
+	 * modifications are only captured through the models returned by this
+	 * store.
+	 * 
+	 * @param ontologyURI
+	 * @param model
+	 */
+	private void observe(String ontologyURI, Model model) {
+		model.getGraph().getEventManager()
+				.register(new ChangeDispatcher(ontologyURI, changeListeners));
 	}
 
 	@Override
@@ -145,14 +306,131 @@ public class VirtuosoStore implements JenaStore {
 
 		Iterator<String> modelIt = dataSource.listNames();
 		while (modelIt.hasNext()) {
-			models.add(modelIt.next());
+			String name = modelIt.next();
+			if (!InferenceMaintainer.isInferredGraph(name)) {
+				models.add(name);
+			}
 		}
 		return models;
 	}
 
+	@Override
+	public ModelPage listModels(String prefix, String cursor, int limit) {
+		return ModelPage.of(catalog.list(prefix, cursor, limit + 1, true),
+				limit);
+	}
+
 	@Override
 	public void removeModel(String ontologyURI) {
 		dataSource.removeNamedModel(ontologyURI);
+		catalog.unregister(Collections.singletonList(ontologyURI));
+		for (StoreChangeListener listener : changeListeners) {
+			listener.modelRemoved(ontologyURI);
+		}
+	}
+
+	/**
+	 * The graphs are cleared by JDBC batches of {@value #DELETE_BATCH_SIZE}
+	 * SPARQL CLEAR GRAPH statements, as {@link VirtDataSource} clears a
+	 * single graph.
+	 */
+	@Override
+	public int removeModels(Collection<String> ontologyURIs) {
+		int removed = 0;
+		List<String> batch = new ArrayList<String>(DELETE_BATCH_SIZE);
+		for (String uri : ontologyURIs) {
+			batch.add(uri);
+			if (batch.size() == DELETE_BATCH_SIZE) {
+				removed += removeBatch(batch);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			removed += removeBatch(batch);
+		}
+		logger.info("{} models have been removed from the VirtuosoStore at {}",
+				removed, serverURL);
+		return removed;
+	}
+
+	/**
+	 * Deletes a batch of graphs and notifies the listeners of the removed
+	 * models, so that they are notified as soon as the batch is deleted.
+	 * 
+	 * @return the number of removed models
+	 */
+	private int removeBatch(List<String> batch) {
+		List<String> removed = deleteGraphs(batch);
+		for (String uri : removed) {
+			for (StoreChangeListener listener : changeListeners) {
+				listener.modelRemoved(uri);
+			}
+		}
+		return removed.size();
+	}
+
+	/**
+	 * Clears the graphs which have quads and unregisters all of them. The
+	 * clear statements report no count, so the graphs which exist are
+	 * looked up first.
+	 * 
+	 * @return the graphs which existed and have been deleted
+	 */
+	private List<String> deleteGraphs(List<String> graphs) {
+		List<String> deleted = new ArrayList<String>();
+		PreparedStatement lookup = null;
+		PreparedStatement clear = null;
+		try {
+			Connection connection = dataSource.getConnection();
+			lookup = connection.prepareStatement(HAS_QUADS);
+			for (String graph : graphs) {
+				lookup.setString(1, graph);
+				ResultSet results = lookup.executeQuery();
+				if (results.next()) {
+					deleted.add(graph);
+				}
+				results.close();
+			}
+			if (!deleted.isEmpty()) {
+				clear = connection.prepareStatement(CLEAR_GRAPH);
+				for (String graph : deleted) {
+					clear.setString(1, graph);
+					clear.addBatch();
+				}
+				clear.executeBatch();
+			}
+		} catch (SQLException e) {
+			throw new JenaException("Cannot delete the graphs on "
+					+ serverURL, e);
+		} finally {
+			GraphCatalog.closeQuietly(lookup);
+			GraphCatalog.closeQuietly(clear);
+		}
+		catalog.unregister(graphs);
+		return deleted;
+	}
+
+	@Override
+	public void addChangeListener(StoreChangeListener listener) {
+		changeListeners.add(listener);
+	}
+
+	@Override
+	public void removeChangeListener(StoreChangeListener listener) {
+		changeListeners.remove(listener);
+	}
+
+	/**
+	 * The sequence of the feed is persisted next to the store file.
+	 */
+	@Override
+	public synchronized ChangeFeed getChangeFeed() throws JenaStoreException {
+		if (changeFeed == null) {
+			changeFeed = new ChangeFeed(new File(storeFile.getPath()
+					+ FEED_SEQUENCE_SUFFIX), ChangeFeed.DEFAULT_CAPACITY);
+			changeListeners.add(changeFeed);
+		}
+		return changeFeed;
 	}
 
 	@Override
@@ -167,7 +445,7 @@ public class VirtuosoStore implements JenaStore {
 
 	@Override
 	public void sync() {
-		// Do nothing
+		inference.refresh();
 	}
 	
 	@Override
@@ -177,6 +455,10 @@ public class VirtuosoStore implements JenaStore {
 
 	@Override
 	public void close() {
+		if (changeFeed != null) {
+			changeListeners.remove(changeFeed);
+			changeFeed.close();
+		}
 		dataSource.close();
 	}
 
@@ -192,10 +474,23 @@ public class VirtuosoStore implements JenaStore {
 
 	@Override
 	public void remove() {
-		// Remove all named models
-		for (String modelName : listModels()) {
-			dataSource.removeNamedModel(modelName);
+		// Remove all named models, including the companion graphs and the
+		// graphs written by other clients
+		catalog.fill();
+		String after = null;
+		List<String> names;
+		while (!(names = catalog.list(null, after, DELETE_BATCH_SIZE, false))
+				.isEmpty()) {
+			deleteGraphs(names);
+			after = names.get(names.size() - 1);
 		}
+		catalog.drop();
+	}
+
+	@Override
+	public DumpReport dump(File targetDirectory, DumpOptions options)
+			throws JenaStoreException {
+		return new StoreDumper(this, options).dump(targetDirectory);
 	}
 
 	@Override
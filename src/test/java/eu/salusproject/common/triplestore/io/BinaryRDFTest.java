@@ -0,0 +1,104 @@
+package eu.salusproject.common.triplestore.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+
+public class BinaryRDFTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void roundTripsAllKindsOfNodes() throws IOException {
+		Model model = sampleModel(10);
+		assertRoundTrip(model, false);
+		assertRoundTrip(model, true);
+	}
+
+	@Test
+	public void roundTripsModelsLargerThanABlockAndABatch()
+			throws IOException {
+		// spans several blocks of the file and several batches of the read
+		Model model = sampleModel(30000);
+		assertRoundTrip(model, false);
+		assertRoundTrip(model, true);
+	}
+
+	@Test
+	public void roundTripsAnEmptyModel() throws IOException {
+		assertRoundTrip(ModelFactory.createDefaultModel(), true);
+	}
+
+	@Test
+	public void readsTheTriplesOfAllGraphsOfAQuadsFile() throws IOException {
+		File file = folder.newFile("quads" + BinaryRDF.FILE_EXTENSION);
+		Node p = Node.createURI("http://example.org/p");
+		BinaryRDFWriter out = new BinaryRDFWriter(file, true, true);
+		try {
+			for (int i = 0; i < 100; i++) {
+				Node graph = Node.createURI("http://example.org/g" + (i % 3));
+				out.write(graph, Triple.create(
+						Node.createURI("http://example.org/s" + i), p,
+						Node.createLiteral("v" + i)));
+			}
+		} finally {
+			out.close();
+		}
+
+		Model read = ModelFactory.createDefaultModel();
+		assertEquals(100, BinaryRDF.read(read, file));
+		assertEquals(100, read.size());
+		assertTrue(read.contains(read.createResource("http://example.org/s42"),
+				read.createProperty("http://example.org/p"), "v42"));
+	}
+
+	private void assertRoundTrip(Model model, boolean compressed)
+			throws IOException {
+		File file = folder.newFile();
+		assertEquals(model.size(), BinaryRDF.write(model, file, compressed));
+
+		Model read = ModelFactory.createDefaultModel();
+		assertEquals(model.size(), BinaryRDF.read(read, file));
+		assertEquals(model.size(), read.size());
+		assertTrue(model.isIsomorphicWith(read));
+	}
+
+	private static Model sampleModel(int subjects) {
+		Model model = ModelFactory.createDefaultModel();
+		Property label = model.createProperty("http://example.org/label");
+		Property comment = model.createProperty("http://example.org/comment");
+		Property size = model.createProperty("http://example.org/size");
+		Property knows = model.createProperty("http://example.org/knows");
+		Resource previous = null;
+		for (int i = 0; i < subjects; i++) {
+			Resource subject = i % 5 == 0 ? model.createResource() : model
+					.createResource("http://example.org/resource/" + i);
+			subject.addProperty(label, "label " + i);
+			subject.addProperty(comment, "\u00e7ok g\u00fczel \u00e9t\u00e9 " + i, "tr");
+			subject.addLiteral(size,
+					model.createTypedLiteral(String.valueOf(i),
+							XSDDatatype.XSDinteger));
+			if (previous != null) {
+				subject.addProperty(knows, previous);
+			}
+			previous = subject;
+		}
+		return model;
+	}
+
+}
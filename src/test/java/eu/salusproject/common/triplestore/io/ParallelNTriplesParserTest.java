@@ -0,0 +1,137 @@
+package eu.salusproject.common.triplestore.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.DatasetGraphFactory;
+
+public class ParallelNTriplesParserTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void parsesTheSameTriplesWhateverTheChunkSize() throws IOException {
+		File file = folder.newFile("data.nt");
+		FileUtils.writeStringToFile(file, sampleNTriples(500), "UTF-8");
+		Model expected = ModelFactory.createDefaultModel();
+		InputStream in = new FileInputStream(file);
+		try {
+			expected.read(in, null, "N-TRIPLE");
+		} finally {
+			in.close();
+		}
+
+		// chunk sizes which fall in the middle of lines and of multi-byte
+		// characters, which the chunks are extended over, as well as a single
+		// chunk for the whole file
+		for (int chunkSize : new int[] { 1, 7, 64, 1000, Integer.MAX_VALUE / 2 }) {
+			Model parsed = ModelFactory.createDefaultModel();
+			long count = new ParallelNTriplesParser(3, chunkSize).parse(file,
+					parsed.getGraph());
+			assertEquals("chunk size " + chunkSize, expected.size(), count);
+			assertTrue("chunk size " + chunkSize,
+					expected.isIsomorphicWith(parsed));
+		}
+	}
+
+	@Test
+	public void keepsABlankNodeAcrossChunks() throws IOException {
+		File file = folder.newFile("blank.nt");
+		FileUtils.writeStringToFile(file,
+				"_:b1 <http://example.org/p> \"first\" .\n"
+						+ "<http://example.org/s> <http://example.org/p> \"middle\" .\n"
+						+ "_:b1 <http://example.org/p> \"last\" .\n", "UTF-8");
+
+		Graph graph = ModelFactory.createDefaultModel().getGraph();
+		new ParallelNTriplesParser(2, 1).parse(file, graph);
+
+		Node p = Node.createURI("http://example.org/p");
+		Node first = graph.find(Node.ANY, p, Node.createLiteral("first"))
+				.next().getSubject();
+		Node last = graph.find(Node.ANY, p, Node.createLiteral("last")).next()
+				.getSubject();
+		assertTrue(first.isBlank());
+		assertEquals(first, last);
+	}
+
+	@Test
+	public void parsesQuadsIntoTheirGraphs() throws IOException {
+		File file = folder.newFile("data.nq");
+		FileUtils.writeStringToFile(file,
+				"<http://example.org/s> <http://example.org/p> \"a\" <http://example.org/g1> .\n"
+						+ "<http://example.org/s> <http://example.org/p> \"b\" <http://example.org/g2> .\n"
+						+ "<http://example.org/s> <http://example.org/p> \"c\" .\n",
+				"UTF-8");
+
+		DatasetGraph dataset = DatasetGraphFactory.createMem();
+		long count = new ParallelNTriplesParser(2, 10).parse(file, dataset);
+
+		assertEquals(3, count);
+		Node s = Node.createURI("http://example.org/s");
+		Node p = Node.createURI("http://example.org/p");
+		assertTrue(dataset.getGraph(Node.createURI("http://example.org/g1"))
+				.contains(Triple.create(s, p, Node.createLiteral("a"))));
+		assertTrue(dataset.getGraph(Node.createURI("http://example.org/g2"))
+				.contains(Triple.create(s, p, Node.createLiteral("b"))));
+		assertTrue(dataset.getDefaultGraph().contains(
+				Triple.create(s, p, Node.createLiteral("c"))));
+	}
+
+	@Test
+	public void rejectsAnUnterminatedStatement() throws IOException {
+		File file = folder.newFile("broken.nt");
+		FileUtils.writeStringToFile(file,
+				"<http://example.org/s> <http://example.org/p> \"a\" .\n"
+						+ "<http://example.org/s> <http://example.org/p> \"b\"\n",
+				"UTF-8");
+		try {
+			new ParallelNTriplesParser(2, 16).parse(file, ModelFactory
+					.createDefaultModel().getGraph());
+			fail("An unterminated statement must not be accepted");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static String sampleNTriples(int subjects) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < subjects; i++) {
+			String subject = i % 7 == 0 ? "_:b" + i : "<http://example.org/s/"
+					+ i + ">";
+			text.append(subject).append(" <http://example.org/label> \"label ")
+					.append(i).append("\" .\n");
+			text.append(subject)
+					.append(" <http://example.org/comment> \"\u00e7ok g\u00fczel \u00e9t\u00e9 \u4e2d\u6587 ")
+					.append(i).append("\"@tr .\n");
+			text.append(subject)
+					.append(" <http://example.org/size> \"")
+					.append(i)
+					.append("\"^^<http://www.w3.org/2001/XMLSchema#integer> .\n");
+			if (i > 0) {
+				text.append(subject).append(" <http://example.org/knows> ")
+						.append("<http://example.org/s/").append(i - 1)
+						.append("> .\n");
+			}
+		}
+		return text.toString();
+	}
+
+}